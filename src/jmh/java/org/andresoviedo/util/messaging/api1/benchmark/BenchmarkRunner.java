@@ -0,0 +1,192 @@
+package org.andresoviedo.util.messaging.api1.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and compares their scores with a baseline, so that regressions show up between releases. Arguments are the JSON
+ * file to write the results to, the baseline JSON file, the tolerated regression in percent and then any JMH options.
+ * <p>
+ * A benchmark regresses if its throughput drops, or its time grows, by more than the tolerated percentage. Benchmarks missing from the
+ * baseline are just reported, and so are the ones handing messages over between threads or through sockets, which vary too much between
+ * runs to gate the build. Baselines only hold the names, modes, parameters and scores of the gated benchmarks: every run writes one next
+ * to the results file, to be copied over the baseline and committed to record a new baseline.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * The benchmark classes reported but not gated.
+	 */
+	static final Set<String> UNGATED = new HashSet<String>(Arrays.asList("DispatchBenchmark", "RoundTripBenchmark"));
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *            the results file, the baseline file, the tolerated regression in percent and the JMH options.
+	 * @throws Exception
+	 *             if the benchmarks can't be run.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: BenchmarkRunner <results file> <baseline file> <tolerated regression %> [JMH options]");
+			System.exit(2);
+		}
+		File resultFile = new File(args[0]);
+		File baselineFile = new File(args[1]);
+		double threshold = Double.parseDouble(args[2]) / 100;
+
+		CommandLineOptions commandLine = new CommandLineOptions(Arrays.copyOfRange(args, 3, args.length));
+		Options options = new OptionsBuilder().parent(commandLine).resultFormat(ResultFormatType.JSON).result(resultFile.getPath())
+				.build();
+		resultFile.getParentFile().mkdirs();
+		new Runner(options).run();
+		Map<String, JSONObject> results = read(resultFile);
+		File newBaseline = new File(resultFile.getParentFile(), "jmh-baseline.json");
+		writeBaseline(results, newBaseline);
+		System.out.println("Baseline of this run written to " + newBaseline);
+
+		if (!baselineFile.isFile()) {
+			System.out.println("No baseline found at " + baselineFile + ", nothing to compare with.");
+			return;
+		}
+		int regressions = compare(read(baselineFile), results, threshold);
+		if (regressions > 0) {
+			System.out.println(regressions + " benchmark(s) regressed more than " + args[2] + "% from " + baselineFile);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compares results with a baseline, printing a line per benchmark.
+	 *
+	 * @param baseline
+	 *            the baseline results, by benchmark key.
+	 * @param results
+	 *            the new results, by benchmark key.
+	 * @param threshold
+	 *            the tolerated regression, as a fraction.
+	 * @return the number of benchmarks that regressed.
+	 */
+	static int compare(Map<String, JSONObject> baseline, Map<String, JSONObject> results, double threshold) {
+		int regressions = 0;
+		System.out.println();
+		System.out.println(String.format("%-70s %14s %14s %8s", "Benchmark", "Baseline", "Current", "Change"));
+		for (Map.Entry<String, JSONObject> entry : results.entrySet()) {
+			JSONObject current = entry.getValue().getJSONObject("primaryMetric");
+			JSONObject previous = baseline.containsKey(entry.getKey()) ? baseline.get(entry.getKey()).getJSONObject("primaryMetric") : null;
+			String unit = current.getString("scoreUnit");
+			if ((previous == null) || !unit.equals(previous.getString("scoreUnit"))) {
+				System.out.println(String.format("%-70s %14s %14.3f %8s  %s", entry.getKey(), "-", current.getDouble("score"), "-", unit));
+				continue;
+			}
+			double change = current.getDouble("score") / previous.getDouble("score") - 1;
+			// Throughputs regress when they drop, times when they grow.
+			boolean higherIsBetter = "thrpt".equals(entry.getValue().getString("mode"));
+			boolean regressed = (higherIsBetter ? (change < -threshold) : (change > threshold)) && isGated(entry.getValue());
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format("%-70s %14.3f %14.3f %+7.1f%%  %s%s", entry.getKey(), previous.getDouble("score"),
+					current.getDouble("score"), change * 100, unit, regressed ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+
+	/**
+	 * Returns whether a benchmark fails the build when it regresses.
+	 *
+	 * @param result
+	 *            the result of the benchmark.
+	 * @return <code>false</code> if its class is one of {@link #UNGATED}.
+	 */
+	static boolean isGated(JSONObject result) {
+		String benchmark = result.getString("benchmark");
+		String className = benchmark.substring(0, benchmark.lastIndexOf('.'));
+		return !UNGATED.contains(className.substring(className.lastIndexOf('.') + 1));
+	}
+
+	/**
+	 * Writes the baseline of some results: the name, mode, parameters and score of every gated benchmark, leaving out the JVM and the
+	 * machine they were run on.
+	 *
+	 * @param results
+	 *            the results, by benchmark key.
+	 * @param file
+	 *            the baseline file.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	static void writeBaseline(Map<String, JSONObject> results, File file) throws IOException {
+		JSONArray baseline = new JSONArray();
+		for (JSONObject result : results.values()) {
+			if (!isGated(result)) {
+				continue;
+			}
+			JSONObject metric = result.getJSONObject("primaryMetric");
+			JSONObject entry = new JSONObject();
+			entry.put("benchmark", result.getString("benchmark"));
+			entry.put("mode", result.getString("mode"));
+			if (result.optJSONObject("params") != null) {
+				entry.put("params", result.getJSONObject("params"));
+			}
+			entry.put("primaryMetric", new JSONObject().put("score", metric.getDouble("score")).put("scoreUnit", metric.getString("scoreUnit")));
+			baseline.put(entry);
+		}
+		Files.write(file.toPath(), baseline.toString(4).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads a JSON results file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @return the results, by benchmark, mode and parameters.
+	 * @throws IOException
+	 *             if the file can't be read.
+	 */
+	static Map<String, JSONObject> read(File file) throws IOException {
+		JSONArray array = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		Map<String, JSONObject> results = new LinkedHashMap<String, JSONObject>();
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject result = array.getJSONObject(i);
+			// The class and method names, e.g. CodecBenchmark.read.
+			String benchmark = result.getString("benchmark");
+			StringBuffer key = new StringBuffer(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+			key.append(" ").append(result.getString("mode"));
+			JSONObject params = result.optJSONObject("params");
+			if (params != null) {
+				// Sorted, so that keys don't depend on the order of the parameters.
+				Map<String, String> sorted = new TreeMap<String, String>();
+				for (Iterator<?> it = params.keys(); it.hasNext();) {
+					String name = (String) it.next();
+					sorted.put(name, params.getString(name));
+				}
+				key.append(" ").append(sorted);
+			}
+			results.put(key.toString(), result);
+		}
+		return results;
+	}
+
+}
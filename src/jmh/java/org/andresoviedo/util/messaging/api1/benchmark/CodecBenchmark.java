@@ -0,0 +1,191 @@
+package org.andresoviedo.util.messaging.api1.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfiguration;
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.net.CommandInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the serialization of messages through the streams used by <code>SocketSession</code>: an <code>ObjectOutputStream</code> the
+ * writer writes commands to, either as serialized objects or as primitive data encoded with the agreed codec, and a
+ * <code>CommandInputStream</code> the reader reads them from. Commands are written and read in batches, like the writer does, so the
+ * stream headers don't count.
+ *
+ * @author andresoviedo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+	/**
+	 * The number of messages written or read per invocation.
+	 */
+	private static final int BATCH = 256;
+
+	/**
+	 * The codec, as configured in the messengers.
+	 */
+	@Param({ BasicConfiguration.CODEC_BINARY, BasicConfiguration.CODEC_SERIALIZATION })
+	private String codec;
+
+	/**
+	 * The length of the text of the messages.
+	 */
+	@Param({ "64", "4096" })
+	private int payload;
+
+	/**
+	 * The message written.
+	 */
+	private Message message;
+
+	/**
+	 * The codec, or <code>null</code> to use Java serialization.
+	 */
+	private MessageCodec messageCodec;
+
+	/**
+	 * The buffer the output stream writes to.
+	 */
+	private ByteArrayOutputStream buffer;
+
+	/**
+	 * The output stream, kept open like the one of a session.
+	 */
+	private ObjectOutputStream oos;
+
+	/**
+	 * The encoder of the output stream, or <code>null</code> to use Java serialization.
+	 */
+	private MessageCodec.Encoder encoder;
+
+	/**
+	 * A stream header followed by a batch of messages.
+	 */
+	private byte[] encoded;
+
+	/**
+	 * Creates the message and the streams.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		// Random letters, so that compression doesn't get an easy ride.
+		Random random = new Random(1);
+		StringBuffer text = new StringBuffer(payload);
+		for (int i = 0; i < payload; i++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		message = MessageFactory.getInstance("client1").createTextMessage("service1", "service2", text.toString(), 0);
+		messageCodec = BasicConfiguration.createCodec(codec);
+
+		buffer = new ByteArrayOutputStream();
+		oos = new ObjectOutputStream(buffer);
+		oos.flush();
+		encoder = (messageCodec != null) ? messageCodec.newEncoder() : null;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		MessageCodec.Encoder batchEncoder = (messageCodec != null) ? messageCodec.newEncoder() : null;
+		for (int i = 0; i < BATCH; i++) {
+			write(out, batchEncoder);
+		}
+		out.flush();
+		encoded = bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a batch of messages.
+	 *
+	 * @return the bytes written.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int write() throws IOException {
+		buffer.reset();
+		for (int i = 0; i < BATCH; i++) {
+			write(oos, encoder);
+		}
+		oos.flush();
+		return buffer.size();
+	}
+
+	/**
+	 * Reads a batch of messages.
+	 *
+	 * @param blackhole
+	 *            consumes the messages read.
+	 * @throws Exception
+	 *             if the messages can't be read.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void read(Blackhole blackhole) throws Exception {
+		ObjectInputStream ois = new CommandInputStream(new ByteArrayInputStream(encoded));
+		MessageCodec.Decoder decoder = (messageCodec != null) ? messageCodec.newDecoder() : null;
+		for (int i = 0; i < BATCH; i++) {
+			blackhole.consume(read(ois, decoder));
+		}
+	}
+
+	/**
+	 * Writes the message the way the writer of a session does.
+	 */
+	private void write(ObjectOutputStream out, MessageCodec.Encoder encoder) throws IOException {
+		if (encoder != null) {
+			out.writeByte(messageCodec.getVersion());
+			encoder.encode(message, out);
+		} else {
+			out.writeObject(message);
+			out.reset();
+		}
+	}
+
+	/**
+	 * Reads a command the way the reader of a session does.
+	 */
+	private Command read(ObjectInputStream in, MessageCodec.Decoder decoder) throws IOException, ClassNotFoundException {
+		try {
+			return (Command) in.readObject();
+		} catch (OptionalDataException e) {
+			if (e.eof) {
+				throw e;
+			}
+			in.readUnsignedByte();
+			return decoder.decode(in);
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package org.andresoviedo.util.messaging.api1.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.client.ClientMessenger;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.service.ServiceListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the dispatch of received messages with <code>Messenger.commandReceived</code>, called by several reader threads at the same time
+ * as it happens in a server with many sessions. Services process messages right away, so once their queues fill up the benchmark measures
+ * how fast messages go through the dispatchers and the service threads.
+ *
+ * @author andresoviedo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class DispatchBenchmark {
+
+	/**
+	 * The number of services messages are dispatched to.
+	 */
+	@Param({ "1", "8" })
+	private int services;
+
+	/**
+	 * Whether the messages of each service are processed in order.
+	 */
+	@Param({ "false", "true" })
+	private boolean ordered;
+
+	/**
+	 * The messenger, which doesn't need to be connected to dispatch messages.
+	 */
+	private ClientMessenger messenger;
+
+	/**
+	 * The messages processed.
+	 */
+	private final LongAdder processed = new LongAdder();
+
+	/**
+	 * The messages dispatched by each thread.
+	 */
+	@State(Scope.Thread)
+	public static class Messages {
+
+		/**
+		 * The messages, one per service.
+		 */
+		private Message[] messages;
+
+		/**
+		 * The index of the next message.
+		 */
+		private int next;
+
+		/**
+		 * Creates the messages.
+		 *
+		 * @param benchmark
+		 *            the benchmark.
+		 */
+		@Setup
+		public void setUp(DispatchBenchmark benchmark) {
+			MessageFactory factory = MessageFactory.getInstance("client2");
+			messages = new Message[benchmark.services];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = factory.createTextMessage("service", "service" + i, "dispatch", 0);
+				// No session to acknowledge them.
+				messages[i].setNeedsAck(false);
+			}
+		}
+
+	}
+
+	/**
+	 * Creates the messenger and registers the services.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() {
+		Logger.getLogger(MessengerProperties.LOGGER_NAME).setLevel(java.util.logging.Level.WARNING);
+		messenger = ClientMessenger.getInstance("messaging.client1.properties");
+		ServiceListener listener = new ServiceListener() {
+			public void processMessage(Message message) {
+				processed.increment();
+			}
+		};
+		for (int i = 0; i < services; i++) {
+			messenger.setServiceListener("service" + i, listener);
+			messenger.setOrderedDispatch("service" + i, ordered);
+		}
+	}
+
+	/**
+	 * Dispatches a message.
+	 *
+	 * @param messages
+	 *            the messages of the calling thread.
+	 */
+	@Benchmark
+	public void commandReceived(Messages messages) {
+		Message message = messages.messages[messages.next];
+		messages.next = (messages.next + 1) % messages.messages.length;
+		messenger.commandReceived(null, message);
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.andresoviedo.util.messaging.api1.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.io.Persistence;
+import org.andresoviedo.util.messaging.api1.common.io.PersistenceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures adding and getting messages from a persistence already holding many queued messages, as it happens when a peer is disconnected
+ * for a while. Added messages are deleted right away, so the number of queued messages doesn't change during the benchmark.
+ *
+ * @author andresoviedo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	/**
+	 * The number of messages queued before the benchmark starts.
+	 */
+	@Param({ "10000", "100000" })
+	private int queued;
+
+	/**
+	 * The directory of the persistence.
+	 */
+	private File directory;
+
+	/**
+	 * The persistence.
+	 */
+	private Persistence persistence;
+
+	/**
+	 * The factory of the messages.
+	 */
+	private MessageFactory factory;
+
+	/**
+	 * The persisted ids of the queued messages.
+	 */
+	private String[] ids;
+
+	/**
+	 * The index of the next message to get.
+	 */
+	private int next;
+
+	/**
+	 * Queues the messages.
+	 *
+	 * @throws IOException
+	 *             if the directory can't be created.
+	 * @throws PersistenceException
+	 *             if a message can't be added.
+	 */
+	@Setup
+	public void setUp() throws IOException, PersistenceException {
+		directory = Files.createTempDirectory("persistence-benchmark").toFile();
+		persistence = new Persistence(directory);
+		factory = MessageFactory.getInstance("client1");
+		ids = new String[queued];
+		for (int i = 0; i < queued; i++) {
+			Message message = factory.createTextMessage("service1", "service2", "queued message " + i, 0);
+			persistence.add(message);
+			ids[i] = persistence.getPersistedMessageId(message);
+		}
+	}
+
+	/**
+	 * Closes the persistence and removes its files.
+	 */
+	@TearDown
+	public void tearDown() {
+		persistence.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Adds a message and deletes it once acknowledged.
+	 *
+	 * @return whether the message was deleted.
+	 * @throws PersistenceException
+	 *             if the message can't be added.
+	 */
+	@Benchmark
+	public boolean addAndDelete() throws PersistenceException {
+		Message message = factory.createTextMessage("service1", "service2", "sent message", 0);
+		persistence.add(message);
+		return persistence.delete(message);
+	}
+
+	/**
+	 * Gets a queued message by its persisted id.
+	 *
+	 * @return the message.
+	 * @throws Exception
+	 *             if the message can't be read.
+	 */
+	@Benchmark
+	public Message get() throws Exception {
+		String id = ids[next];
+		next = (next + 1) % ids.length;
+		return persistence.getMessage(id, false);
+	}
+
+}
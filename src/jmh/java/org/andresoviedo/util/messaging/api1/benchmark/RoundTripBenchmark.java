@@ -0,0 +1,157 @@
+package org.andresoviedo.util.messaging.api1.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerException;
+import org.andresoviedo.util.messaging.api1.MessengerListener;
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.client.ClientMessenger;
+import org.andresoviedo.util.messaging.api1.client.ClientMessengerConfiguration;
+import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfiguration;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
+import org.andresoviedo.util.messaging.api1.common.service.ServiceListener;
+import org.andresoviedo.util.messaging.api1.server.ServerMessenger;
+import org.andresoviedo.util.messaging.api1.server.ServerMessengerConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip of a request sent with <code>sendAndReceive</code> from a client to another one through a server on the loopback
+ * interface, the second client replying as soon as it receives it. The messengers are configured as in the tests, each fork running with
+ * a single transport and codec since messengers are singletons.
+ *
+ * @author andresoviedo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	/**
+	 * The transport of the server and the clients.
+	 */
+	@Param({ BasicConfiguration.TRANSPORT_BLOCKING, BasicConfiguration.TRANSPORT_NIO })
+	private String transport;
+
+	/**
+	 * The codec of the server and the clients.
+	 */
+	@Param({ BasicConfiguration.CODEC_BINARY, BasicConfiguration.CODEC_SERIALIZATION })
+	private String codec;
+
+	/**
+	 * The server messenger.
+	 */
+	private ServerMessenger serverMessenger;
+
+	/**
+	 * The client sending the requests.
+	 */
+	private ClientMessenger clientMessenger1;
+
+	/**
+	 * The client replying to the requests.
+	 */
+	private ClientMessenger clientMessenger2;
+
+	/**
+	 * The message factory of the client sending the requests.
+	 */
+	private MessageFactory messageFactory1;
+
+	/**
+	 * Starts the messengers and waits for the clients to log in.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the clients.
+	 */
+	@Setup
+	public void setUp() throws InterruptedException {
+		Logger.getLogger(MessengerProperties.LOGGER_NAME).setLevel(Level.WARNING);
+		System.setProperty(ServerMessengerConfiguration.SYSTEM_PROPERTY_TRANSPORT, transport);
+		System.setProperty(ServerMessengerConfiguration.SYSTEM_PROPERTY_CODEC, codec);
+		System.setProperty(ClientMessengerConfiguration.SYSTEM_PROPERTY_TRANSPORT, transport);
+		System.setProperty(ClientMessengerConfiguration.SYSTEM_PROPERTY_CODEC, codec);
+
+		serverMessenger = ServerMessenger.getInstance();
+		serverMessenger.start();
+
+		clientMessenger1 = ClientMessenger.getInstance("messaging.client1.properties");
+		messageFactory1 = clientMessenger1.createMessageFactory();
+		clientMessenger2 = ClientMessenger.getInstance("messaging.client2.properties");
+		final MessageFactory messageFactory2 = clientMessenger2.createMessageFactory();
+		clientMessenger2.setServiceListener("service2", new ServiceListener() {
+			public void processMessage(Message message) {
+				try {
+					clientMessenger2.send(messageFactory2.createTextMessageReply("pong", 0, message));
+				} catch (MessengerException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		final CountDownLatch loggedIn = new CountDownLatch(2);
+		MessengerListener listener = new MessengerListener() {
+			public void sessionOpened(SocketSession session) {
+				loggedIn.countDown();
+			}
+
+			public void sessionClosed(SocketSession session, boolean forced) {
+			}
+		};
+		clientMessenger1.addMessengerListener(listener);
+		clientMessenger2.addMessengerListener(listener);
+		clientMessenger1.start();
+		clientMessenger2.start();
+		if (!loggedIn.await(30, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Clients not logged in");
+		}
+	}
+
+	/**
+	 * Stops the messengers.
+	 */
+	@TearDown
+	public void tearDown() {
+		clientMessenger1.stop();
+		clientMessenger2.stop();
+		serverMessenger.stop();
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @return the response.
+	 * @throws Exception
+	 *             if the request fails or times out.
+	 */
+	@Benchmark
+	public Message sendAndReceive() throws Exception {
+		Message request = messageFactory1.createTextMessage("service1", "service2", "ping", 0);
+		request.setTargetClientId("client2");
+		Message response = clientMessenger1.sendAndReceive(request, 5000);
+		if (response == null) {
+			throw new IllegalStateException("Request timed out");
+		}
+		return response;
+	}
+
+}
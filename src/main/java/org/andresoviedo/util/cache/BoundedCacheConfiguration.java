@@ -0,0 +1,286 @@
+package org.andresoviedo.util.cache;
+
+import java.time.Clock;
+
+/**
+ * The settings of a <code>SpringBoundedCache</code>, as a bean so that they can be set from Spring configuration. The same configuration
+ * can be used for several caches, each cache takes a copy.
+ * 
+ * @author andresoviedo
+ */
+public class BoundedCacheConfiguration implements Cloneable {
+
+	/**
+	 * The policies choosing the values to evict.
+	 */
+	public enum EvictionPolicy {
+
+		/**
+		 * Window TinyLFU: new values go to a small LRU window, and leave it only if they've been used more often than the value they'd
+		 * replace in the main segmented LRU, so that one-off lookups don't flush frequently used values.
+		 */
+		TINY_LFU,
+
+		/**
+		 * Segmented LRU: new values go to a probation segment and move to a protected one when they're used again. The least recently used
+		 * value of probation is evicted.
+		 */
+		SEGMENTED_LRU
+
+	}
+
+	/**
+	 * The maximum number of values, 0 if not bounded.
+	 */
+	private long maxEntries = 10000;
+
+	/**
+	 * The maximum number of bytes of the values, 0 if not bounded.
+	 */
+	private long maxBytes;
+
+	/**
+	 * The time to live of the values in seconds, 0 if they don't expire.
+	 */
+	private int ttlSeconds;
+
+	/**
+	 * The precision of expiration in milliseconds, that is, how often expired values are swept.
+	 */
+	private long expiryTickMillis = 1000;
+
+	/**
+	 * The eviction policy.
+	 */
+	private EvictionPolicy evictionPolicy = EvictionPolicy.TINY_LFU;
+
+	/**
+	 * Indicates whether the values are stored off the heap.
+	 */
+	private boolean offHeap;
+
+	/**
+	 * The size of the pages of direct memory of the off-heap store.
+	 */
+	private int offHeapPageSize = OffHeapStore.DEFAULT_PAGE_SIZE;
+
+	/**
+	 * Converts values to bytes to store them off the heap or to weigh them.
+	 */
+	private CacheSerializer serializer = new JdkCacheSerializer();
+
+	/**
+	 * Weighs the values kept in the heap, <code>null</code> to weigh them by their serialized size.
+	 */
+	private CacheWeigher weigher;
+
+	/**
+	 * The clock the TTLs are measured with.
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Returns the maximum number of values.
+	 * 
+	 * @return the maximum number of values, 0 if not bounded.
+	 */
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets the maximum number of values. It's 10000 by default.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of values, 0 if not bounded.
+	 */
+	public void setMaxEntries(long maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the maximum number of bytes of the values.
+	 * 
+	 * @return the maximum number of bytes, 0 if not bounded.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the values. Values off the heap take the size of their block, values in the heap the weight given
+	 * by the weigher, or their serialized size if there's none.
+	 * 
+	 * @param maxBytes
+	 *            the maximum number of bytes, 0 if not bounded.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the time to live of the values in seconds.
+	 * 
+	 * @return the time to live, 0 if values don't expire.
+	 */
+	public int getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	/**
+	 * Sets the time to live of the values in seconds, counted from the time they're put.
+	 * 
+	 * @param ttlSeconds
+	 *            the time to live, 0 if values don't expire.
+	 */
+	public void setTtlSeconds(int ttlSeconds) {
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	/**
+	 * Returns how often expired values are swept, in milliseconds.
+	 * 
+	 * @return the expiry tick.
+	 */
+	public long getExpiryTickMillis() {
+		return expiryTickMillis;
+	}
+
+	/**
+	 * Sets how often expired values are swept, in milliseconds. Expired values are never returned, but they take memory until swept.
+	 * 
+	 * @param expiryTickMillis
+	 *            the expiry tick.
+	 */
+	public void setExpiryTickMillis(long expiryTickMillis) {
+		this.expiryTickMillis = expiryTickMillis;
+	}
+
+	/**
+	 * Returns the eviction policy.
+	 * 
+	 * @return the eviction policy.
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets the eviction policy, <code>TINY_LFU</code> by default.
+	 * 
+	 * @param evictionPolicy
+	 *            the eviction policy.
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Returns whether the values are stored off the heap.
+	 * 
+	 * @return <code>true</code> if the values are stored off the heap.
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Sets whether the values are stored off the heap, serialized in direct memory. They're deserialized on every lookup, so each lookup
+	 * returns a new copy.
+	 * 
+	 * @param offHeap
+	 *            <code>true</code> to store the values off the heap.
+	 */
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Returns the size of the pages of direct memory of the off-heap store.
+	 * 
+	 * @return the page size, in bytes.
+	 */
+	public int getOffHeapPageSize() {
+		return offHeapPageSize;
+	}
+
+	/**
+	 * Sets the size of the pages of direct memory of the off-heap store, 1 MB by default. Larger values take direct memory of their own.
+	 * 
+	 * @param offHeapPageSize
+	 *            the page size, in bytes.
+	 */
+	public void setOffHeapPageSize(int offHeapPageSize) {
+		this.offHeapPageSize = offHeapPageSize;
+	}
+
+	/**
+	 * Returns the serializer of the values.
+	 * 
+	 * @return the serializer.
+	 */
+	public CacheSerializer getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * Sets the serializer of the values, Java serialization by default.
+	 * 
+	 * @param serializer
+	 *            the serializer.
+	 */
+	public void setSerializer(CacheSerializer serializer) {
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Returns the weigher of the values kept in the heap.
+	 * 
+	 * @return the weigher, <code>null</code> if values are weighed by their serialized size.
+	 */
+	public CacheWeigher getWeigher() {
+		return weigher;
+	}
+
+	/**
+	 * Sets the weigher of the values kept in the heap. It's only used if the cache is bounded in bytes.
+	 * 
+	 * @param weigher
+	 *            the weigher, <code>null</code> to weigh values by their serialized size.
+	 */
+	public void setWeigher(CacheWeigher weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the clock the TTLs are measured with.
+	 * 
+	 * @return the clock.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets the clock the TTLs are measured with, the system clock by default.
+	 * 
+	 * @param clock
+	 *            the clock.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BoundedCacheConfiguration clone() {
+		try {
+			return (BoundedCacheConfiguration) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
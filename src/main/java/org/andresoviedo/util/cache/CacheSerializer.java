@@ -0,0 +1,34 @@
+package org.andresoviedo.util.cache;
+
+import java.io.IOException;
+
+/**
+ * Converts the values of a cache to bytes and back, to store them off the heap or to weigh them.
+ * 
+ * @author andresoviedo
+ */
+public interface CacheSerializer {
+
+	/**
+	 * Converts a value to bytes.
+	 * 
+	 * @param value
+	 *            the value (non-null).
+	 * @return the bytes of the value.
+	 * @throws IOException
+	 *             if the value cannot be converted.
+	 */
+	byte[] serialize(Object value) throws IOException;
+
+	/**
+	 * Converts bytes back to a value.
+	 * 
+	 * @param bytes
+	 *            the bytes of the value.
+	 * @return the value.
+	 * @throws IOException
+	 *             if the bytes cannot be converted.
+	 */
+	Object deserialize(byte[] bytes) throws IOException;
+
+}
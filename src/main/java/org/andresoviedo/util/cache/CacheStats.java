@@ -0,0 +1,154 @@
+package org.andresoviedo.util.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of a cache. They're updated without locking, so they may be slightly behind while the cache is in use.
+ * 
+ * @author andresoviedo
+ */
+public final class CacheStats {
+
+	/**
+	 * The lookups which found a value.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * The lookups which found no value, or an expired one.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * The values put.
+	 */
+	private final LongAdder puts = new LongAdder();
+
+	/**
+	 * The values evicted to keep the cache within its bounds.
+	 */
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * The values removed because they expired.
+	 */
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * Returns the number of lookups which found a value.
+	 * 
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups which found no value, or an expired one.
+	 * 
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the ratio of lookups which found a value.
+	 * 
+	 * @return the hit ratio, from 0 to 1, or 1 if nothing has been looked up.
+	 */
+	public double getHitRatio() {
+		long hitCount = getHits();
+		long total = hitCount + getMisses();
+		return (total == 0) ? 1.0 : (double) hitCount / total;
+	}
+
+	/**
+	 * Returns the number of values put.
+	 * 
+	 * @return the number of puts.
+	 */
+	public long getPuts() {
+		return puts.sum();
+	}
+
+	/**
+	 * Returns the number of values evicted to keep the cache within its bounds.
+	 * 
+	 * @return the number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of values removed because they expired.
+	 * 
+	 * @return the number of expirations.
+	 */
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	/**
+	 * Clears the counters.
+	 */
+	public void reset() {
+		hits.reset();
+		misses.reset();
+		puts.reset();
+		evictions.reset();
+		expirations.reset();
+	}
+
+	/**
+	 * Records a lookup which found a value.
+	 */
+	void hit() {
+		hits.increment();
+	}
+
+	/**
+	 * Records a lookup which found no value.
+	 */
+	void miss() {
+		misses.increment();
+	}
+
+	/**
+	 * Records a value put.
+	 */
+	void put() {
+		puts.increment();
+	}
+
+	/**
+	 * Records a value evicted.
+	 */
+	void evicted() {
+		evictions.increment();
+	}
+
+	/**
+	 * Records a value expired.
+	 */
+	void expired() {
+		expirations.increment();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("CacheStats [");
+		sb.append("hits=").append(getHits()).append(", ");
+		sb.append("misses=").append(getMisses()).append(", ");
+		sb.append("puts=").append(getPuts()).append(", ");
+		sb.append("evictions=").append(getEvictions()).append(", ");
+		sb.append("expirations=").append(getExpirations()).append("]");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.andresoviedo.util.cache;
+
+/**
+ * Tells how many bytes the values of a cache take, to bound the cache in bytes. Weights are computed once, when the value is put.
+ * 
+ * @author andresoviedo
+ */
+public interface CacheWeigher {
+
+	/**
+	 * Returns the bytes a value takes.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value (non-null).
+	 * @return the weight of the value, in bytes.
+	 */
+	int weigh(Object key, Object value);
+
+}
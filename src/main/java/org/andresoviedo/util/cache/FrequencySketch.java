@@ -0,0 +1,154 @@
+package org.andresoviedo.util.cache;
+
+/**
+ * A count-min sketch estimating how often keys have been accessed, used by the TinyLFU admission policy. Each key has four 4-bit counters,
+ * so frequencies saturate at 15, and all counters are halved once the number of increments reaches ten times the width of the sketch, so
+ * the frequencies reflect the recent history.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+final class FrequencySketch {
+
+	/**
+	 * The seeds of the four hash functions.
+	 */
+	private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	/**
+	 * Clears the highest bit of every counter, after the counters have been shifted.
+	 */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/**
+	 * The lowest bit of every counter.
+	 */
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	/**
+	 * The counters, sixteen per long.
+	 */
+	private final long[] table;
+
+	/**
+	 * The mask of the indexes of the table.
+	 */
+	private final int tableMask;
+
+	/**
+	 * The number of increments after which the counters are halved.
+	 */
+	private final int sampleSize;
+
+	/**
+	 * The number of increments since the counters were halved.
+	 */
+	private int size;
+
+	/**
+	 * Creates a new sketch.
+	 * 
+	 * @param maximum
+	 *            the expected number of keys.
+	 */
+	FrequencySketch(long maximum) {
+		int capacity = (int) Math.min(Math.max(maximum, 16), 1 << 30);
+		this.table = new long[Integer.highestOneBit(capacity - 1) << 1];
+		this.tableMask = table.length - 1;
+		this.sampleSize = 10 * capacity;
+	}
+
+	/**
+	 * Returns the estimated number of accesses to a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the estimated frequency, from 0 to 15.
+	 */
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records an access to a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 */
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && (++size == sampleSize)) {
+			reset();
+		}
+	}
+
+	/**
+	 * Increments a counter unless it's saturated.
+	 * 
+	 * @param i
+	 *            the index of the long in the table.
+	 * @param j
+	 *            the index of the counter in the long.
+	 * @return whether the counter has been incremented.
+	 */
+	private boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		if ((table[i] & mask) != mask) {
+			table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size - (odd >>> 2)) >>> 1;
+	}
+
+	/**
+	 * Returns the index in the table of a counter of a key.
+	 * 
+	 * @param hash
+	 *            the spread hash of the key.
+	 * @param i
+	 *            the hash function.
+	 * @return the index in the table.
+	 */
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEED[i]) * SEED[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	/**
+	 * Spreads the bits of a hash code, since keys may have poor ones.
+	 */
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
@@ -0,0 +1,289 @@
+package org.andresoviedo.util.cache;
+
+import java.time.Clock;
+
+/**
+ * A hierarchical timing wheel: four wheels of 64 slots, each slot of a wheel spanning a whole turn of the wheel below. A timer is put in
+ * the lowest wheel where its deadline falls in a different slot than the current time, and moved down as the time gets to its slot, so
+ * scheduling and cancelling take constant time and advancing takes time proportional to the number of ticks and expired timers. Deadlines
+ * beyond the highest wheel wait in an overflow list, which is scheduled again whenever the highest wheel completes a turn.
+ * <p>
+ * Timers never expire before their deadline, but may expire up to a tick later. This class is not thread safe.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+final class HierarchicalTimingWheel<T> {
+
+	/**
+	 * The number of bits of the slot index of each wheel.
+	 */
+	private static final int BITS = 6;
+
+	/**
+	 * The number of slots of each wheel.
+	 */
+	private static final int SLOTS = 1 << BITS;
+
+	/**
+	 * The mask of the slot index of each wheel.
+	 */
+	private static final long MASK = SLOTS - 1;
+
+	/**
+	 * The number of wheels.
+	 */
+	private static final int LEVELS = 4;
+
+	/**
+	 * Notified of expired timers.
+	 */
+	interface Handler<T> {
+
+		/**
+		 * Invoked when a timer expires. It's not scheduled anymore.
+		 * 
+		 * @param payload
+		 *            the payload of the timer.
+		 */
+		void expired(T payload);
+
+	}
+
+	/**
+	 * A timer, linked in the slot it's scheduled in.
+	 */
+	static final class Timer<T> {
+
+		/**
+		 * The object the timer is for.
+		 */
+		private final T payload;
+
+		/**
+		 * The tick the timer expires at.
+		 */
+		private long deadline;
+
+		/**
+		 * The neighbours in the slot, <code>null</code> if the timer is not scheduled.
+		 */
+		private Timer<T> prev, next;
+
+		/**
+		 * Creates a new timer.
+		 * 
+		 * @param payload
+		 *            the object the timer is for.
+		 */
+		Timer(T payload) {
+			this.payload = payload;
+		}
+
+		/**
+		 * Returns the object the timer is for.
+		 * 
+		 * @return the payload.
+		 */
+		T getPayload() {
+			return payload;
+		}
+
+		/**
+		 * Returns whether the timer is scheduled.
+		 * 
+		 * @return <code>true</code> if it's scheduled.
+		 */
+		boolean isScheduled() {
+			return next != null;
+		}
+
+	}
+
+	/**
+	 * The length of a tick in milliseconds.
+	 */
+	private final long tickMillis;
+
+	/**
+	 * The clock the time is read from.
+	 */
+	private final Clock clock;
+
+	/**
+	 * The slots of the wheels, each one the sentinel of a circular list of timers.
+	 */
+	private final Timer<T>[][] wheels;
+
+	/**
+	 * The timers beyond the highest wheel.
+	 */
+	private final Timer<T> overflow;
+
+	/**
+	 * The current tick.
+	 */
+	private long currentTick;
+
+	/**
+	 * The number of timers scheduled.
+	 */
+	private int size;
+
+	/**
+	 * Creates a new timing wheel.
+	 * 
+	 * @param tickMillis
+	 *            the length of a tick in milliseconds.
+	 * @param clock
+	 *            the clock the time is read from.
+	 */
+	@SuppressWarnings("unchecked")
+	HierarchicalTimingWheel(long tickMillis, Clock clock) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Invalid tick: " + tickMillis);
+		}
+		this.tickMillis = tickMillis;
+		this.clock = clock;
+		this.currentTick = clock.millis() / tickMillis;
+		this.wheels = new Timer[LEVELS][SLOTS];
+		for (int i = 0; i < LEVELS; i++) {
+			for (int j = 0; j < SLOTS; j++) {
+				wheels[i][j] = sentinel();
+			}
+		}
+		this.overflow = sentinel();
+	}
+
+	/**
+	 * Creates the sentinel of an empty list.
+	 */
+	private Timer<T> sentinel() {
+		Timer<T> sentinel = new Timer<T>(null);
+		sentinel.prev = sentinel;
+		sentinel.next = sentinel;
+		return sentinel;
+	}
+
+	/**
+	 * Schedules a timer, cancelling it first if it's scheduled.
+	 * 
+	 * @param timer
+	 *            the timer.
+	 * @param deadline
+	 *            the time to expire at, in milliseconds.
+	 */
+	void schedule(Timer<T> timer, long deadline) {
+		cancel(timer);
+		// Rounded up, so it never expires early.
+		timer.deadline = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+		link(timer);
+		size++;
+	}
+
+	/**
+	 * Cancels a timer. Does nothing if it's not scheduled.
+	 * 
+	 * @param timer
+	 *            the timer.
+	 */
+	void cancel(Timer<T> timer) {
+		if (timer.isScheduled()) {
+			unlink(timer);
+			size--;
+		}
+	}
+
+	/**
+	 * Advances to the current time of the clock, expiring the timers whose deadline has been reached.
+	 * 
+	 * @param handler
+	 *            notified of the expired timers.
+	 * @return the number of expired timers.
+	 */
+	int advance(Handler<T> handler) {
+		long target = clock.millis() / tickMillis;
+		int expired = 0;
+		while (currentTick < target) {
+			if (size == 0) {
+				currentTick = target;
+				break;
+			}
+			currentTick++;
+			// The wheels which completed a turn, from the highest, move their current slot down.
+			int level = 0;
+			while ((level < LEVELS) && ((currentTick & ((1L << (BITS * (level + 1))) - 1)) == 0)) {
+				level++;
+			}
+			if (level == LEVELS) {
+				relink(overflow);
+				level--;
+			}
+			for (int i = level; i > 0; i--) {
+				relink(wheels[i][(int) ((currentTick >>> (BITS * i)) & MASK)]);
+			}
+			Timer<T> slot = wheels[0][(int) (currentTick & MASK)];
+			while (slot.next != slot) {
+				Timer<T> timer = slot.next;
+				unlink(timer);
+				size--;
+				expired++;
+				handler.expired(timer.payload);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Returns the number of timers scheduled.
+	 * 
+	 * @return the number of timers scheduled.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules again the timers of a slot, in the lower wheels.
+	 */
+	private void relink(Timer<T> slot) {
+		Timer<T> timer = slot.next;
+		slot.next = slot;
+		slot.prev = slot;
+		while (timer != slot) {
+			Timer<T> next = timer.next;
+			link(timer);
+			timer = next;
+		}
+	}
+
+	/**
+	 * Links a timer in the slot of its deadline, in the lowest wheel where it differs from the current tick.
+	 */
+	private void link(Timer<T> timer) {
+		long deadline = timer.deadline;
+		Timer<T> slot;
+		if (deadline <= currentTick) {
+			// Moved down to the current tick, it expires as the slot of the tick is processed.
+			slot = wheels[0][(int) (currentTick & MASK)];
+		} else {
+			int level = (63 - Long.numberOfLeadingZeros(deadline ^ currentTick)) / BITS;
+			slot = (level < LEVELS) ? wheels[level][(int) ((deadline >>> (BITS * level)) & MASK)] : overflow;
+		}
+		timer.prev = slot.prev;
+		timer.next = slot;
+		slot.prev.next = timer;
+		slot.prev = timer;
+	}
+
+	/**
+	 * Unlinks a timer from its slot.
+	 */
+	private void unlink(Timer<T> timer) {
+		timer.prev.next = timer.next;
+		timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+	}
+
+}
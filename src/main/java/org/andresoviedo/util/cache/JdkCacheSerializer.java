@@ -0,0 +1,43 @@
+package org.andresoviedo.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The default cache serializer, using Java serialization. Values have to be serializable.
+ * 
+ * @author andresoviedo
+ */
+public class JdkCacheSerializer implements CacheSerializer {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(value);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object deserialize(byte[] bytes) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Class of cached value not found: " + e.getMessage(), e);
+		} finally {
+			ois.close();
+		}
+	}
+
+}
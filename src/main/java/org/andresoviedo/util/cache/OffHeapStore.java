@@ -0,0 +1,243 @@
+package org.andresoviedo.util.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores byte arrays in direct memory, out of the reach of the garbage collector. Memory is allocated in pages which are split into blocks
+ * of a single size, a power of two, so a value takes the smallest block it fits in and freed blocks are reused by values of the same size
+ * class. Values larger than a page take a buffer of their own, released when they're freed.
+ * <p>
+ * Pages are never released but when the store is cleared, so the memory taken is the one of the largest number of blocks of each size
+ * class used at the same time, plus up to a page per size class.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+final class OffHeapStore {
+
+	/**
+	 * The size of the smallest blocks.
+	 */
+	private static final int MIN_BLOCK_SIZE = 64;
+
+	/**
+	 * The default size of the pages.
+	 */
+	static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+	/**
+	 * A block holding a value.
+	 */
+	static final class Block {
+
+		/**
+		 * The buffer the block belongs to.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The position of the block in the buffer.
+		 */
+		private final int offset;
+
+		/**
+		 * The size class of the block, or -1 if the buffer is its own.
+		 */
+		private final int sizeClass;
+
+		/**
+		 * The length of the value.
+		 */
+		private int length;
+
+		/**
+		 * Indicates whether the block has been freed.
+		 */
+		private boolean freed;
+
+		/**
+		 * Creates a new block.
+		 */
+		private Block(ByteBuffer buffer, int offset, int sizeClass) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.sizeClass = sizeClass;
+		}
+
+		/**
+		 * Returns the size of the block, that is, the memory it takes.
+		 * 
+		 * @return the size of the block.
+		 */
+		int getCapacity() {
+			return (sizeClass < 0) ? buffer.capacity() : (MIN_BLOCK_SIZE << sizeClass);
+		}
+
+		/**
+		 * Returns the length of the value held.
+		 * 
+		 * @return the length of the value.
+		 */
+		int getLength() {
+			return length;
+		}
+
+	}
+
+	/**
+	 * The size of the pages.
+	 */
+	private final int pageSize;
+
+	/**
+	 * The free blocks of each size class.
+	 */
+	private final List<List<Block>> free = new ArrayList<List<Block>>();
+
+	/**
+	 * The memory taken by pages and large values.
+	 */
+	private long allocated;
+
+	/**
+	 * The memory taken by the blocks in use.
+	 */
+	private long used;
+
+	/**
+	 * Creates a new store.
+	 * 
+	 * @param pageSize
+	 *            the size of the pages, rounded up to a power of two.
+	 */
+	OffHeapStore(int pageSize) {
+		this.pageSize = Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, pageSize - 1)) << 1);
+		for (int size = MIN_BLOCK_SIZE; size <= this.pageSize; size <<= 1) {
+			free.add(new ArrayList<Block>());
+		}
+	}
+
+	/**
+	 * Stores a value.
+	 * 
+	 * @param bytes
+	 *            the value.
+	 * @return the block holding the value.
+	 */
+	synchronized Block write(byte[] bytes) {
+		Block block;
+		if (bytes.length > pageSize) {
+			block = new Block(ByteBuffer.allocateDirect(bytes.length), 0, -1);
+			allocated += bytes.length;
+		} else {
+			int sizeClass = sizeClassOf(bytes.length);
+			List<Block> blocks = free.get(sizeClass);
+			if (blocks.isEmpty()) {
+				allocatePage(sizeClass, blocks);
+			}
+			Block recycled = blocks.remove(blocks.size() - 1);
+			block = new Block(recycled.buffer, recycled.offset, sizeClass);
+		}
+		ByteBuffer buffer = block.buffer.duplicate();
+		buffer.position(block.offset);
+		buffer.put(bytes);
+		block.length = bytes.length;
+		used += block.getCapacity();
+		return block;
+	}
+
+	/**
+	 * Reads a value.
+	 * 
+	 * @param block
+	 *            the block holding the value.
+	 * @return the value, or <code>null</code> if the block has been freed.
+	 */
+	synchronized byte[] read(Block block) {
+		if (block.freed) {
+			return null;
+		}
+		byte[] bytes = new byte[block.length];
+		ByteBuffer buffer = block.buffer.duplicate();
+		buffer.position(block.offset);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Frees the block of a value. Does nothing if it's already freed.
+	 * 
+	 * @param block
+	 *            the block.
+	 */
+	synchronized void free(Block block) {
+		if (block.freed) {
+			return;
+		}
+		block.freed = true;
+		used -= block.getCapacity();
+		if (block.sizeClass < 0) {
+			// Released by the garbage collector along with the buffer.
+			allocated -= block.getCapacity();
+		} else {
+			// A new block, since readers may still hold the freed one.
+			free.get(block.sizeClass).add(new Block(block.buffer, block.offset, block.sizeClass));
+		}
+	}
+
+	/**
+	 * Frees all blocks and releases the pages.
+	 */
+	synchronized void clear() {
+		for (List<Block> blocks : free) {
+			blocks.clear();
+		}
+		allocated = 0;
+		used = 0;
+	}
+
+	/**
+	 * Returns the memory taken by pages and large values.
+	 * 
+	 * @return the memory allocated, in bytes.
+	 */
+	synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the memory taken by the blocks in use.
+	 * 
+	 * @return the memory used, in bytes.
+	 */
+	synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Returns the size class of the smallest blocks a value fits in.
+	 */
+	private static int sizeClassOf(int length) {
+		int sizeClass = 0;
+		while ((MIN_BLOCK_SIZE << sizeClass) < length) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	/**
+	 * Allocates a page and splits it into blocks of a size class.
+	 */
+	private void allocatePage(int sizeClass, List<Block> blocks) {
+		ByteBuffer page = ByteBuffer.allocateDirect(pageSize);
+		allocated += pageSize;
+		int blockSize = MIN_BLOCK_SIZE << sizeClass;
+		// In reverse, so that blocks are taken from the start of the page.
+		for (int offset = pageSize - blockSize; offset >= 0; offset -= blockSize) {
+			blocks.add(new Block(page, offset, sizeClass));
+		}
+	}
+
+}
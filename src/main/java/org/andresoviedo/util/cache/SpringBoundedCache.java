@@ -0,0 +1,739 @@
+package org.andresoviedo.util.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.andresoviedo.util.cache.BoundedCacheConfiguration.EvictionPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+/**
+ * Spring cache bounded in entries and bytes, with TTL. It's the successor of <code>SpringTTLCache</code>, which never evicts values that
+ * aren't looked up again.
+ * <p>
+ * Values are looked up without locking. The eviction policy, window TinyLFU or segmented LRU, and the timing wheel expiring values are
+ * updated under a lock by writers and by readers which get it without waiting, so under contention some lookups aren't accounted to the
+ * policy. Expired values are never returned, and they're swept when the wheel is advanced: on every put, and every tick if the cache is
+ * given an executor.
+ * </p>
+ * <p>
+ * Values can be stored off the heap, serialized in direct memory, so that large caches don't burden the garbage collector.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public final class SpringBoundedCache implements Cache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpringBoundedCache.class);
+
+	/**
+	 * Stands for <code>null</code> values.
+	 */
+	private static final Object NULL_VALUE = new Object();
+
+	/**
+	 * The value is not linked in the policy.
+	 */
+	private static final int NONE = 0;
+
+	/**
+	 * The value is in the window of new values.
+	 */
+	private static final int WINDOW = 1;
+
+	/**
+	 * The value is in the probation segment.
+	 */
+	private static final int PROBATION = 2;
+
+	/**
+	 * The value is in the protected segment.
+	 */
+	private static final int PROTECTED = 3;
+
+	/**
+	 * The name of the cache.
+	 */
+	private final String name;
+
+	/**
+	 * The configuration of the cache.
+	 */
+	private final BoundedCacheConfiguration configuration;
+
+	/**
+	 * The values, by key.
+	 */
+	private final ConcurrentHashMap<Object, Node> data = new ConcurrentHashMap<Object, Node>();
+
+	/**
+	 * Guards the policy, the timing wheel and the totals.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The frequency of the keys, <code>null</code> unless the policy is TinyLFU.
+	 */
+	private final FrequencySketch sketch;
+
+	/**
+	 * The segments of the policy, from the least to the most recently used.
+	 */
+	private final AccessQueue window = new AccessQueue(), probation = new AccessQueue(), protect = new AccessQueue();
+
+	/**
+	 * The maximum weight of the window and the protected segment.
+	 */
+	private final long windowMax, protectedMax;
+
+	/**
+	 * The weight of the window and the protected segment.
+	 */
+	private long windowWeight, protectedWeight;
+
+	/**
+	 * The number of values.
+	 */
+	private long count;
+
+	/**
+	 * The bytes of the values, if the cache is bounded in bytes.
+	 */
+	private long bytes;
+
+	/**
+	 * Expires the values, <code>null</code> if they don't expire.
+	 */
+	private final HierarchicalTimingWheel<Node> wheel;
+
+	/**
+	 * Removes the expired values from the cache.
+	 */
+	private final HierarchicalTimingWheel.Handler<Node> expiredHandler = new HierarchicalTimingWheel.Handler<Node>() {
+		public void expired(Node node) {
+			if (data.remove(node.key, node)) {
+				remove(node);
+				stats.expired();
+			}
+		}
+	};
+
+	/**
+	 * The store of the values, <code>null</code> if they're kept in the heap.
+	 */
+	private final OffHeapStore store;
+
+	/**
+	 * The counters of the cache.
+	 */
+	private final CacheStats stats = new CacheStats();
+
+	/**
+	 * The sweep of expired values, if scheduled.
+	 */
+	private volatile ScheduledFuture<?> sweep;
+
+	/**
+	 * Creates a new cache, whose expired values are swept as values are put.
+	 * 
+	 * @param name
+	 *            the name of the cache.
+	 * @param configuration
+	 *            the configuration of the cache.
+	 */
+	public SpringBoundedCache(String name, BoundedCacheConfiguration configuration) {
+		this(name, configuration, null);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param name
+	 *            the name of the cache.
+	 * @param configuration
+	 *            the configuration of the cache.
+	 * @param executor
+	 *            the executor sweeping the expired values every tick, <code>null</code> to sweep them only as values are put.
+	 */
+	public SpringBoundedCache(String name, BoundedCacheConfiguration configuration, ScheduledExecutorService executor) {
+		this.name = name;
+		this.configuration = configuration.clone();
+		long capacity = (this.configuration.getMaxBytes() > 0) ? this.configuration.getMaxBytes() : this.configuration.getMaxEntries();
+		if (this.configuration.getEvictionPolicy() == EvictionPolicy.TINY_LFU) {
+			this.sketch = new FrequencySketch((this.configuration.getMaxEntries() > 0) ? this.configuration.getMaxEntries() : 1024);
+			this.windowMax = Math.max(1, capacity / 100);
+		} else {
+			this.sketch = null;
+			this.windowMax = 0;
+		}
+		this.protectedMax = (capacity - windowMax) * 8 / 10;
+		if (this.configuration.getTtlSeconds() > 0) {
+			this.wheel = new HierarchicalTimingWheel<Node>(this.configuration.getExpiryTickMillis(), this.configuration.getClock());
+			if (executor != null) {
+				this.sweep = executor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						cleanUp();
+					}
+				}, this.configuration.getExpiryTickMillis(), this.configuration.getExpiryTickMillis(), TimeUnit.MILLISECONDS);
+			}
+		} else {
+			this.wheel = null;
+		}
+		this.store = this.configuration.isOffHeap() ? new OffHeapStore(this.configuration.getOffHeapPageSize()) : null;
+		LOGGER.info("SpringBoundedCache '{}' configured with maxEntries '{}', maxBytes '{}', TTL '{}' seconds, policy '{}', offHeap '{}'",
+				new Object[] { name, this.configuration.getMaxEntries(), this.configuration.getMaxBytes(), this.configuration.getTtlSeconds(),
+						this.configuration.getEvictionPolicy(), this.configuration.isOffHeap() });
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getNativeCache() {
+		return this;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ValueWrapper get(Object key) {
+		Node node = data.get(key);
+		if (node == null) {
+			stats.miss();
+			return null;
+		}
+		if (node.isExpired(configuration.getClock().millis())) {
+			stats.miss();
+			if (lock.tryLock()) {
+				try {
+					expiredHandler.expired(node);
+				} finally {
+					lock.unlock();
+				}
+			}
+			return null;
+		}
+		Object value = node.value;
+		if (node.block != null) {
+			value = read(node);
+			if (value == null) {
+				// Evicted meanwhile.
+				stats.miss();
+				return null;
+			}
+		}
+		stats.hit();
+		if (lock.tryLock()) {
+			try {
+				onAccess(node);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return new SimpleValueWrapper((value == NULL_VALUE) ? null : value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void put(Object key, Object value) {
+		long now = configuration.getClock().millis();
+		Node node;
+		try {
+			node = createNode(key, value, now);
+		} catch (IOException e) {
+			LOGGER.warn("Value of key '{}' not cached: {}", key, e.getMessage());
+			evict(key);
+			return;
+		}
+		stats.put();
+		lock.lock();
+		try {
+			Node old = data.put(key, node);
+			if (old != null) {
+				remove(old);
+			}
+			add(node);
+			if (wheel != null) {
+				wheel.advance(expiredHandler);
+				wheel.schedule(node.timer, node.expiresAt);
+			}
+			evictIfNeeded();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void evict(Object key) {
+		lock.lock();
+		try {
+			Node node = data.remove(key);
+			if (node != null) {
+				remove(node);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for (Node node : data.values()) {
+				remove(node);
+			}
+			data.clear();
+			if (store != null) {
+				store.clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the expired values.
+	 */
+	public void cleanUp() {
+		if (wheel == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			wheel.advance(expiredHandler);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops sweeping the expired values every tick and clears the cache.
+	 */
+	public void close() {
+		ScheduledFuture<?> current = sweep;
+		if (current != null) {
+			current.cancel(false);
+			sweep = null;
+		}
+		clear();
+	}
+
+	/**
+	 * Returns the counters of the cache.
+	 * 
+	 * @return the counters.
+	 */
+	public CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the number of values, including the expired ones not swept yet.
+	 * 
+	 * @return the number of values.
+	 */
+	public long getSize() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the bytes of the values, if the cache is bounded in bytes.
+	 * 
+	 * @return the bytes of the values, 0 if the cache is not bounded in bytes.
+	 */
+	public long getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the configuration of the cache.
+	 * 
+	 * @return a copy of the configuration.
+	 */
+	public BoundedCacheConfiguration getConfiguration() {
+		return configuration.clone();
+	}
+
+	/**
+	 * Creates the node of a value, storing it off the heap if needed.
+	 */
+	private Node createNode(Object key, Object value, long now) throws IOException {
+		long expiresAt = (configuration.getTtlSeconds() > 0) ? now + TimeUnit.SECONDS.toMillis(configuration.getTtlSeconds()) : 0;
+		if (value == null) {
+			return new Node(key, NULL_VALUE, null, 0, expiresAt);
+		}
+		if (store != null) {
+			OffHeapStore.Block block = store.write(configuration.getSerializer().serialize(value));
+			return new Node(key, null, block, block.getCapacity(), expiresAt);
+		}
+		int weight = 0;
+		if (configuration.getMaxBytes() > 0) {
+			weight = (configuration.getWeigher() != null) ? configuration.getWeigher().weigh(key, value)
+					: configuration.getSerializer().serialize(value).length;
+		}
+		return new Node(key, value, null, weight, expiresAt);
+	}
+
+	/**
+	 * Reads a value stored off the heap.
+	 * 
+	 * @return the value, or <code>null</code> if it's been removed meanwhile.
+	 */
+	private Object read(Node node) {
+		byte[] serialized = store.read(node.block);
+		if (serialized == null) {
+			return null;
+		}
+		try {
+			return configuration.getSerializer().deserialize(serialized);
+		} catch (IOException e) {
+			LOGGER.warn("Value of key '{}' cannot be read: {}", node.key, e.getMessage());
+			evict(node.key);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the weight of a value for the policy: its bytes if the cache is bounded in bytes, otherwise 1.
+	 */
+	private long policyWeight(Node node) {
+		return (configuration.getMaxBytes() > 0) ? node.weight : 1;
+	}
+
+	/**
+	 * Adds a new value to the policy. Must be invoked holding the lock.
+	 */
+	private void add(Node node) {
+		count++;
+		bytes += (configuration.getMaxBytes() > 0) ? node.weight : 0;
+		if (sketch != null) {
+			sketch.increment(node.key);
+			node.queue = WINDOW;
+			window.add(node);
+			windowWeight += policyWeight(node);
+		} else {
+			node.queue = PROBATION;
+			probation.add(node);
+		}
+	}
+
+	/**
+	 * Removes a value from the policy, the timing wheel and the store. Must be invoked holding the lock, once the value has been removed
+	 * from the map.
+	 */
+	private void remove(Node node) {
+		if (node.queue == NONE) {
+			return;
+		}
+		if (node.queue == WINDOW) {
+			window.remove(node);
+			windowWeight -= policyWeight(node);
+		} else if (node.queue == PROBATION) {
+			probation.remove(node);
+		} else {
+			protect.remove(node);
+			protectedWeight -= policyWeight(node);
+		}
+		node.queue = NONE;
+		count--;
+		bytes -= (configuration.getMaxBytes() > 0) ? node.weight : 0;
+		if (wheel != null) {
+			wheel.cancel(node.timer);
+		}
+		if (node.block != null) {
+			store.free(node.block);
+		}
+	}
+
+	/**
+	 * Records a lookup of a value. Must be invoked holding the lock.
+	 */
+	private void onAccess(Node node) {
+		if (sketch != null) {
+			sketch.increment(node.key);
+		}
+		switch (node.queue) {
+		case WINDOW:
+			window.moveToBack(node);
+			break;
+		case PROBATION:
+			// Used again, it's promoted.
+			probation.remove(node);
+			node.queue = PROTECTED;
+			protect.add(node);
+			protectedWeight += policyWeight(node);
+			while ((protectedWeight > protectedMax) && (protect.first() != node)) {
+				Node demoted = protect.poll();
+				protectedWeight -= policyWeight(demoted);
+				demoted.queue = PROBATION;
+				probation.add(demoted);
+			}
+			break;
+		case PROTECTED:
+			protect.moveToBack(node);
+			break;
+		default:
+			// Removed meanwhile.
+		}
+	}
+
+	/**
+	 * Returns whether the cache exceeds its bounds. Must be invoked holding the lock.
+	 */
+	private boolean isOverflowed() {
+		return ((configuration.getMaxEntries() > 0) && (count > configuration.getMaxEntries()))
+				|| ((configuration.getMaxBytes() > 0) && (bytes > configuration.getMaxBytes()));
+	}
+
+	/**
+	 * Moves the values overflowing the window to probation, and evicts values until the cache is within its bounds. With TinyLFU, the
+	 * values coming from the window are candidates which are only admitted if they're more frequent than the least recently used value of
+	 * probation. Must be invoked holding the lock.
+	 */
+	private void evictIfNeeded() {
+		List<Node> candidates = null;
+		// The window keeps at least the newest value, however heavy.
+		while ((windowWeight > windowMax) && (window.first() != window.last())) {
+			Node node = window.poll();
+			windowWeight -= policyWeight(node);
+			node.queue = PROBATION;
+			probation.add(node);
+			if (candidates == null) {
+				candidates = new ArrayList<Node>(2);
+			}
+			candidates.add(node);
+		}
+		while (isOverflowed()) {
+			Node victim = probation.first();
+			if ((candidates != null) && !candidates.isEmpty()) {
+				Node candidate = candidates.remove(0);
+				if ((candidate.queue == PROBATION) && (victim != candidate)) {
+					evictNode(admit(candidate, victim) ? victim : candidate);
+					continue;
+				}
+			}
+			if (victim == null) {
+				victim = (protect.first() != null) ? protect.first() : window.first();
+			}
+			evictNode(victim);
+		}
+	}
+
+	/**
+	 * Returns whether a candidate is admitted in place of a victim: if it's been used more often. Warm candidates are admitted now and then
+	 * anyway, so that an attacker can't keep them out by making the victims look frequent.
+	 */
+	private boolean admit(Node candidate, Node victim) {
+		int candidateFrequency = sketch.frequency(candidate.key);
+		int victimFrequency = sketch.frequency(victim.key);
+		if (candidateFrequency > victimFrequency) {
+			return true;
+		}
+		return (candidateFrequency >= 6) && (ThreadLocalRandom.current().nextInt(128) == 0);
+	}
+
+	/**
+	 * Evicts a value. Must be invoked holding the lock.
+	 */
+	private void evictNode(Node node) {
+		data.remove(node.key, node);
+		remove(node);
+		stats.evicted();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SpringBoundedCache [");
+		sb.append("name=").append(name).append(", ");
+		sb.append("size=").append(getSize()).append(", ");
+		sb.append("stats=").append(stats).append("]");
+		return sb.toString();
+	}
+
+	/**
+	 * A value of the cache, linked in a segment of the policy.
+	 */
+	private static final class Node {
+
+		/**
+		 * The key.
+		 */
+		private final Object key;
+
+		/**
+		 * The value if it's kept in the heap, <code>NULL_VALUE</code> for <code>null</code>.
+		 */
+		private final Object value;
+
+		/**
+		 * The block holding the value if it's stored off the heap.
+		 */
+		private final OffHeapStore.Block block;
+
+		/**
+		 * The bytes the value takes, if the cache is bounded in bytes or the value is stored off the heap.
+		 */
+		private final int weight;
+
+		/**
+		 * The time the value expires at, 0 if it doesn't.
+		 */
+		private final long expiresAt;
+
+		/**
+		 * The timer expiring the value.
+		 */
+		private final HierarchicalTimingWheel.Timer<Node> timer;
+
+		/**
+		 * The segment the value is linked in. Guarded by the lock, as the links.
+		 */
+		private int queue;
+
+		/**
+		 * The neighbours in the segment.
+		 */
+		private Node prev, next;
+
+		/**
+		 * Creates a new node.
+		 */
+		private Node(Object key, Object value, OffHeapStore.Block block, int weight, long expiresAt) {
+			this.key = key;
+			this.value = value;
+			this.block = block;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+			this.timer = (expiresAt > 0) ? new HierarchicalTimingWheel.Timer<Node>(this) : null;
+		}
+
+		/**
+		 * Returns whether the value has expired.
+		 */
+		private boolean isExpired(long now) {
+			return (expiresAt > 0) && (now >= expiresAt);
+		}
+
+	}
+
+	/**
+	 * A segment of the policy: a list of values from the least to the most recently used.
+	 */
+	private static final class AccessQueue {
+
+		/**
+		 * The least and the most recently used values.
+		 */
+		private Node head, tail;
+
+		/**
+		 * Returns the least recently used value.
+		 */
+		private Node first() {
+			return head;
+		}
+
+		/**
+		 * Returns the most recently used value.
+		 */
+		private Node last() {
+			return tail;
+		}
+
+		/**
+		 * Removes the least recently used value.
+		 */
+		private Node poll() {
+			Node node = head;
+			if (node != null) {
+				remove(node);
+			}
+			return node;
+		}
+
+		/**
+		 * Adds a value as the most recently used.
+		 */
+		private void add(Node node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+		}
+
+		/**
+		 * Removes a value.
+		 */
+		private void remove(Node node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+		}
+
+		/**
+		 * Makes a value the most recently used.
+		 */
+		private void moveToBack(Node node) {
+			if (node != tail) {
+				remove(node);
+				add(node);
+			}
+		}
+
+	}
+
+}
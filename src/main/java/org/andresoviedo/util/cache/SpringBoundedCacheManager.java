@@ -0,0 +1,105 @@
+package org.andresoviedo.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.AbstractCacheManager;
+
+/**
+ * Manages several named {@link SpringBoundedCache}, sharing a thread which sweeps their expired values. Caches not configured are created
+ * when first requested if a default configuration is set.
+ * 
+ * @author andresoviedo
+ */
+public class SpringBoundedCacheManager extends AbstractCacheManager implements DisposableBean {
+
+	/**
+	 * The configurations of the caches, by name.
+	 */
+	private Map<String, BoundedCacheConfiguration> configurations = new LinkedHashMap<String, BoundedCacheConfiguration>();
+
+	/**
+	 * The configuration of the caches created on demand, <code>null</code> to create none.
+	 */
+	private BoundedCacheConfiguration defaultConfiguration;
+
+	/**
+	 * Sweeps the expired values of all the caches.
+	 */
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SpringBoundedCacheManager-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Sets the configurations of the caches.
+	 * 
+	 * @param configurations
+	 *            the configurations, by cache name.
+	 */
+	public void setConfigurations(Map<String, BoundedCacheConfiguration> configurations) {
+		this.configurations = new LinkedHashMap<String, BoundedCacheConfiguration>(configurations);
+	}
+
+	/**
+	 * Sets the configuration of the caches created when first requested.
+	 * 
+	 * @param defaultConfiguration
+	 *            the configuration, <code>null</code> to only manage the configured caches.
+	 */
+	public void setDefaultConfiguration(BoundedCacheConfiguration defaultConfiguration) {
+		this.defaultConfiguration = defaultConfiguration;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Collection<? extends Cache> loadCaches() {
+		Collection<Cache> caches = new ArrayList<Cache>(configurations.size());
+		for (Map.Entry<String, BoundedCacheConfiguration> entry : configurations.entrySet()) {
+			caches.add(new SpringBoundedCache(entry.getKey(), entry.getValue(), sweeper));
+		}
+		return caches;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Cache getCache(String name) {
+		Cache cache = super.getCache(name);
+		if ((cache == null) && (defaultConfiguration != null)) {
+			synchronized (this) {
+				cache = super.getCache(name);
+				if (cache == null) {
+					cache = new SpringBoundedCache(name, defaultConfiguration, sweeper);
+					addCache(cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Stops sweeping the caches and clears them.
+	 */
+	@Override
+	public void destroy() {
+		sweeper.shutdownNow();
+		for (String name : getCacheNames()) {
+			((SpringBoundedCache) super.getCache(name)).close();
+		}
+	}
+
+}
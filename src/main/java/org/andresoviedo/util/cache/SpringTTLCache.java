@@ -1,6 +1,14 @@
 package org.andresoviedo.util.cache;
 
-import java.util.Date;
+import java.time.Clock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -10,6 +18,11 @@ import org.springframework.cache.concurrent.ConcurrentMapCache;
 
 /**
  * Spring simple cache with TTL.
+ * <p>
+ * Used as a loading cache through {@link #get(Object, Callable)}, concurrent misses of a key are coalesced into a single load. Values
+ * loaded this way can be refreshed in the background once they've lived a fraction of their TTL, and they can be served stale for a while
+ * if they can't be loaded again. TTLs can be jittered so that values loaded together don't expire together.
+ * </p>
  * 
  * @author andresoviedo
  */
@@ -21,24 +34,150 @@ public final class SpringTTLCache extends ConcurrentMapCache implements Cache {
 	 */
 	private final long ttl;
 
+	/**
+	 * The fraction of the TTL after which values are refreshed in the background, 0 not to refresh them.
+	 */
+	private double refreshAheadRatio;
+
+	/**
+	 * The fraction of the TTL which is randomly subtracted from it, 0 not to jitter it.
+	 */
+	private double jitterRatio;
+
+	/**
+	 * The millis expired values are kept to be served if they can't be loaded again.
+	 */
+	private long staleTtl;
+
+	/**
+	 * The executor refreshing values in the background, <code>null</code> not to refresh them.
+	 */
+	private Executor refreshExecutor;
+
+	/**
+	 * The loads in progress, by key.
+	 */
+	private final ConcurrentHashMap<Object, FutureTask<Object>> loads = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+	/**
+	 * The clock the TTLs are measured with.
+	 */
+	private Clock clock = Clock.systemUTC();
+
 	public SpringTTLCache(String name, int ttlseconds) {
 		super(name);
 		this.ttl = TimeUnit.SECONDS.toMillis(ttlseconds);
 		LOGGER.info("SpringTTLCache configured with a TTL of '{}' millis", ttl);
 	}
 
+	/**
+	 * Sets the fraction of the TTL after which values loaded by {@link #get(Object, Callable)} are refreshed in the background. The
+	 * refresh executor must be set too.
+	 * 
+	 * @param refreshAheadRatio
+	 *            the fraction, between 0 and 1, 0 not to refresh values.
+	 */
+	public void setRefreshAheadRatio(double refreshAheadRatio) {
+		if ((refreshAheadRatio < 0) || (refreshAheadRatio >= 1)) {
+			throw new IllegalArgumentException("refreshAheadRatio must be between 0 and 1: " + refreshAheadRatio);
+		}
+		this.refreshAheadRatio = refreshAheadRatio;
+	}
+
+	/**
+	 * Sets the executor refreshing values in the background.
+	 * 
+	 * @param refreshExecutor
+	 *            the executor, <code>null</code> not to refresh values.
+	 */
+	public void setRefreshExecutor(Executor refreshExecutor) {
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * Sets the fraction of the TTL which is randomly subtracted from it, so that values stored together expire at different times.
+	 * 
+	 * @param jitterRatio
+	 *            the fraction, between 0 and 1, 0 not to jitter the TTL.
+	 */
+	public void setJitterRatio(double jitterRatio) {
+		if ((jitterRatio < 0) || (jitterRatio >= 1)) {
+			throw new IllegalArgumentException("jitterRatio must be between 0 and 1: " + jitterRatio);
+		}
+		this.jitterRatio = jitterRatio;
+	}
+
+	/**
+	 * Sets the time expired values are kept to be served by {@link #get(Object, Callable)} if they can't be loaded again.
+	 * 
+	 * @param staleSeconds
+	 *            the seconds, 0 not to serve expired values.
+	 */
+	public void setStaleSeconds(int staleSeconds) {
+		this.staleTtl = TimeUnit.SECONDS.toMillis(staleSeconds);
+	}
+
+	/**
+	 * Sets the clock the TTLs are measured with, the system clock by default.
+	 * 
+	 * @param clock
+	 *            the clock.
+	 */
+	public void setClock(Clock clock) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock is null");
+		}
+		this.clock = clock;
+	}
+
 	@Override
 	public ValueWrapper get(Object key) {
-		final ValueWrapper valueWrapper = super.get(key);
+		final TTLValueWrapper valueWrapper = lookup(key);
 		if (valueWrapper == null) {
 			return null;
-		} else if (new Date().after(((TTLValueWrapper) valueWrapper.get()).expirationDate)) {
+		}
+		final long now = clock.millis();
+		if (now >= valueWrapper.expirationTime) {
 			// LOGGER.debug("Evicted key {}", key);
-			super.evict(key);
+			if (now >= valueWrapper.staleTime) {
+				getNativeCache().remove(key, valueWrapper);
+			}
 			return null;
-		} else {
-			// LOGGER.debug("Cache hit {}", key);
-			return (TTLValueWrapper) valueWrapper.get();
+		}
+		// LOGGER.debug("Cache hit {}", key);
+		refreshIfNeeded(key, valueWrapper, now);
+		return valueWrapper;
+	}
+
+	/**
+	 * Returns the value of a key, loading it if it's not cached or it's expired. Concurrent loads of a key are coalesced, so that only one
+	 * of the callers invokes the loader and the rest wait for its value. If the value can't be loaded, the expired value is returned if
+	 * it's still within the stale time.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param valueLoader
+	 *            loads the value of the key, which is then cached. It's also used to refresh the value in the background.
+	 * @return the value.
+	 * @throws ValueRetrievalException
+	 *             if the value can't be loaded and there's no stale value to serve.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object key, Callable<T> valueLoader) {
+		final TTLValueWrapper valueWrapper = lookup(key);
+		final long now = clock.millis();
+		if ((valueWrapper != null) && (now < valueWrapper.expirationTime)) {
+			refreshIfNeeded(key, valueWrapper, now);
+			return (T) valueWrapper.value;
+		}
+		try {
+			return (T) load(key, valueLoader);
+		} catch (ValueRetrievalException e) {
+			if ((valueWrapper != null) && (now < valueWrapper.staleTime)) {
+				LOGGER.warn("Serving stale value of key '{}': {}", key, e.getCause());
+				return (T) valueWrapper.value;
+			}
+			throw e;
 		}
 	}
 
@@ -47,7 +186,140 @@ public final class SpringTTLCache extends ConcurrentMapCache implements Cache {
 	 */
 	@Override
 	protected Object toStoreValue(Object userValue) {
-		return new TTLValueWrapper(userValue, new Date(System.currentTimeMillis() + ttl));
+		return newValueWrapper(userValue, null);
+	}
+
+	/**
+	 * Returns the wrapper stored for a key.
+	 * 
+	 * @return the wrapper, or <code>null</code> if none.
+	 */
+	private TTLValueWrapper lookup(Object key) {
+		final ValueWrapper valueWrapper = super.get(key);
+		return (valueWrapper != null) ? (TTLValueWrapper) valueWrapper.get() : null;
+	}
+
+	/**
+	 * Wraps a value, jittering its TTL.
+	 */
+	private TTLValueWrapper newValueWrapper(Object value, Callable<?> loader) {
+		final long now = clock.millis();
+		long jitteredTtl = ttl;
+		if (jitterRatio > 0) {
+			jitteredTtl -= (long) (ttl * jitterRatio * ThreadLocalRandom.current().nextDouble());
+		}
+		final long refreshTime = ((loader != null) && (refreshAheadRatio > 0)) ? now + (long) (jitteredTtl * refreshAheadRatio) : Long.MAX_VALUE;
+		return new TTLValueWrapper(value, now + jitteredTtl, refreshTime, now + jitteredTtl + staleTtl, loader);
+	}
+
+	/**
+	 * Loads the value of a key, or waits for the load in progress.
+	 */
+	private Object load(Object key, Callable<?> loader) {
+		FutureTask<Object> task = newLoad(key, loader);
+		final FutureTask<Object> existing = loads.putIfAbsent(key, task);
+		if (existing == null) {
+			try {
+				task.run();
+			} finally {
+				loads.remove(key, task);
+			}
+		} else {
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			throw new ValueRetrievalException(key, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ValueRetrievalException(key, e);
+		}
+	}
+
+	/**
+	 * Refreshes a value in the background if it's due and it's not being loaded already.
+	 */
+	private void refreshIfNeeded(final Object key, TTLValueWrapper valueWrapper, long now) {
+		final Executor executor = refreshExecutor;
+		if ((executor == null) || (now < valueWrapper.refreshTime) || loads.containsKey(key)) {
+			return;
+		}
+		final FutureTask<Object> task = newLoad(key, valueWrapper.loader);
+		if (loads.putIfAbsent(key, task) != null) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+						task.get();
+					} catch (ExecutionException e) {
+						LOGGER.warn("Refresh of key '{}' failed, keeping current value: {}", key, e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						loads.remove(key, task);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loads.remove(key, task);
+			LOGGER.debug("Refresh of key '{}' rejected: {}", key, e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates the load of a key, which caches the value loaded.
+	 */
+	private FutureTask<Object> newLoad(final Object key, final Callable<?> loader) {
+		return new FutureTask<Object>(new Callable<Object>() {
+			public Object call() throws Exception {
+				final Object value = loader.call();
+				final ConcurrentMap<Object, Object> store = getNativeCache();
+				store.put(key, newValueWrapper(value, loader));
+				return value;
+			}
+		});
+	}
+
+	/**
+	 * Thrown when the value of a key can't be loaded.
+	 * 
+	 * @author andresoviedo
+	 */
+	public static final class ValueRetrievalException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The key whose value couldn't be loaded.
+		 */
+		private final Object key;
+
+		/**
+		 * Creates a new exception.
+		 * 
+		 * @param key
+		 *            the key whose value couldn't be loaded.
+		 * @param cause
+		 *            the error of the loader.
+		 */
+		public ValueRetrievalException(Object key, Throwable cause) {
+			super("Value for key '" + key + "' could not be loaded", cause);
+			this.key = key;
+		}
+
+		/**
+		 * Returns the key whose value couldn't be loaded.
+		 * 
+		 * @return the key.
+		 */
+		public Object getKey() {
+			return key;
+		}
+
 	}
 
 	/**
@@ -62,21 +334,42 @@ public final class SpringTTLCache extends ConcurrentMapCache implements Cache {
 		 */
 		private final Object value;
 		/**
-		 * Expiration Date (now + TTL)
+		 * Expiration time (now + TTL)
+		 */
+		private final long expirationTime;
+		/**
+		 * Time after which the value is refreshed in the background
+		 */
+		private final long refreshTime;
+		/**
+		 * Time until which the expired value can be served if it can't be loaded again
+		 */
+		private final long staleTime;
+		/**
+		 * Loader of the value, <code>null</code> if it was put
 		 */
-		private final Date expirationDate;
+		private final Callable<?> loader;
 
 		/**
 		 * Create a new TTLValueWrapper instance for exposing the given value.
 		 * 
 		 * @param value
 		 *            the value to expose (may be {@code null})
-		 * @param expirationDate
+		 * @param expirationTime
 		 *            date d'expration du objet
+		 * @param refreshTime
+		 *            time after which the value is refreshed
+		 * @param staleTime
+		 *            time until which the expired value can be served
+		 * @param loader
+		 *            loader of the value (may be {@code null})
 		 */
-		private TTLValueWrapper(Object value, Date expirationDate) {
+		private TTLValueWrapper(Object value, long expirationTime, long refreshTime, long staleTime, Callable<?> loader) {
 			this.value = value;
-			this.expirationDate = expirationDate;
+			this.expirationTime = expirationTime;
+			this.refreshTime = refreshTime;
+			this.staleTime = staleTime;
+			this.loader = loader;
 		}
 
 		/**
@@ -89,4 +382,4 @@ public final class SpringTTLCache extends ConcurrentMapCache implements Cache {
 
 	}
 
-}
\ No newline at end of file
+}
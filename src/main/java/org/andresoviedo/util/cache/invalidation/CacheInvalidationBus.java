@@ -0,0 +1,352 @@
+package org.andresoviedo.util.cache.invalidation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.andresoviedo.util.cache.invalidation.InvalidationBatch.Event;
+import org.andresoviedo.util.cache.invalidation.InvalidationBatch.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+
+/**
+ * Keeps the caches of several nodes coherent: the changes of the caches registered in a node are broadcast to its peers, which evict the
+ * values changed so that they're loaded again.
+ * <p>
+ * Changes are debounced: they're sent in batches once no more changes have happened for a while, or once the batch is full, and only the
+ * last change of every key is sent. Changes are stamped with versions from a hybrid clock, the time in millis unless it'd go back, which
+ * the clock of every node catches up with as it receives changes. Peers ignore changes older than the last they know of for a key, and
+ * they don't cache values read before a change they know of, even if the change arrived while the value was being read.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public class CacheInvalidationBus {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+	/**
+	 * The default time with no changes after which they're sent, in millis.
+	 */
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+	/**
+	 * The default maximum number of changes per batch.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+	/**
+	 * The default time the versions of changes are remembered, in millis.
+	 */
+	public static final long DEFAULT_VERSION_RETENTION_MILLIS = 60000;
+
+	/**
+	 * The default time a put following a miss of the same thread caches the value read on the miss, in millis.
+	 */
+	public static final long DEFAULT_LEASE_MILLIS = 10000;
+
+	/**
+	 * The bits of the versions counting the changes within a milli.
+	 */
+	private static final int COUNTER_BITS = 12;
+
+	/**
+	 * The id of the node.
+	 */
+	private final String nodeId;
+
+	/**
+	 * Broadcasts the batches.
+	 */
+	private final InvalidationTransport transport;
+
+	/**
+	 * The time with no changes after which they're sent, in millis.
+	 */
+	private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+	/**
+	 * The maximum number of changes per batch.
+	 */
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/**
+	 * The time the versions of changes are remembered, in millis.
+	 */
+	private long versionRetentionMillis = DEFAULT_VERSION_RETENTION_MILLIS;
+
+	/**
+	 * The time a put following a miss of the same thread caches the value read on the miss, in millis.
+	 */
+	private volatile long leaseMillis = DEFAULT_LEASE_MILLIS;
+
+	/**
+	 * The registered caches, by name.
+	 */
+	private final ConcurrentHashMap<String, InvalidatingCache> caches = new ConcurrentHashMap<String, InvalidatingCache>();
+
+	/**
+	 * The last version stamped or received.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * The changes waiting to be sent, by cache and key. Guarded by itself.
+	 */
+	private final Map<List<Object>, Event> pending = new LinkedHashMap<List<Object>, Event>();
+
+	/**
+	 * The scheduled sending of the pending changes, <code>null</code> if none. Guarded by the pending changes.
+	 */
+	private ScheduledFuture<?> flush;
+
+	/**
+	 * Sends the changes and forgets old versions.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Creates a new bus.
+	 * 
+	 * @param nodeId
+	 *            the id of the node, unique among its peers.
+	 * @param transport
+	 *            broadcasts the changes.
+	 */
+	public CacheInvalidationBus(String nodeId, InvalidationTransport transport) {
+		this.nodeId = nodeId;
+		this.transport = transport;
+	}
+
+	/**
+	 * Sets the time with no changes after which they're sent.
+	 * 
+	 * @param debounceMillis
+	 *            the time in millis, 0 to send every change right away.
+	 */
+	public void setDebounceMillis(long debounceMillis) {
+		this.debounceMillis = debounceMillis;
+	}
+
+	/**
+	 * Sets the maximum number of changes per batch, sent right away once reached.
+	 * 
+	 * @param maxBatchSize
+	 *            the maximum number of changes.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Sets the time the versions of changes are remembered. It must exceed the time peers take to read and cache a value.
+	 * 
+	 * @param versionRetentionMillis
+	 *            the time in millis.
+	 */
+	public void setVersionRetentionMillis(long versionRetentionMillis) {
+		this.versionRetentionMillis = versionRetentionMillis;
+	}
+
+	/**
+	 * Sets the time a put following a miss of the same thread caches the value read on the miss, as <code>@Cacheable</code> does, rather
+	 * than writing it. Later puts are writes, broadcast to the peers. It must exceed the time it takes to read a value.
+	 * 
+	 * @param leaseMillis
+	 *            the time in millis, 0 to take every put as a write.
+	 * @see InvalidatingCache#get(Object, java.util.concurrent.Callable)
+	 */
+	public void setLeaseMillis(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Returns the time a put following a miss of the same thread caches the value read on the miss.
+	 * 
+	 * @return the time in millis.
+	 */
+	long getLeaseMillis() {
+		return leaseMillis;
+	}
+
+	/**
+	 * Returns the id of the node.
+	 * 
+	 * @return the id of the node.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Starts broadcasting and receiving changes.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CacheInvalidationBus-" + nodeId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long oldest = System.currentTimeMillis() - versionRetentionMillis;
+				for (InvalidatingCache cache : caches.values()) {
+					cache.forgetVersions(oldest);
+				}
+			}
+		}, versionRetentionMillis, versionRetentionMillis, TimeUnit.MILLISECONDS);
+		transport.start(new InvalidationTransport.Receiver() {
+			public void received(InvalidationBatch batch) {
+				CacheInvalidationBus.this.received(batch);
+			}
+		});
+		LOGGER.info("CacheInvalidationBus '{}' started", nodeId);
+	}
+
+	/**
+	 * Sends the pending changes and stops broadcasting and receiving changes.
+	 */
+	public synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		flush();
+		transport.stop();
+		scheduler.shutdownNow();
+		scheduler = null;
+		LOGGER.info("CacheInvalidationBus '{}' stopped", nodeId);
+	}
+
+	/**
+	 * Registers a cache, whose changes are broadcast to the caches of the same name of the peers.
+	 * 
+	 * @param cache
+	 *            the cache.
+	 * @return the cache to use instead, broadcasting its changes.
+	 */
+	public InvalidatingCache register(Cache cache) {
+		InvalidatingCache invalidating = new InvalidatingCache(cache, this);
+		InvalidatingCache existing = caches.putIfAbsent(cache.getName(), invalidating);
+		if (existing != null) {
+			throw new IllegalArgumentException("Cache already registered: " + cache.getName());
+		}
+		return invalidating;
+	}
+
+	/**
+	 * Returns a new version stamp.
+	 * 
+	 * @return a version greater than any version stamped or received before.
+	 */
+	long nextVersion() {
+		long time = System.currentTimeMillis() << COUNTER_BITS;
+		while (true) {
+			long current = clock.get();
+			long next = Math.max(current + 1, time);
+			if (clock.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Queues a change to be sent.
+	 * 
+	 * @param event
+	 *            the change.
+	 */
+	void publish(Event event) {
+		boolean full;
+		synchronized (pending) {
+			List<Object> id = new ArrayList<Object>(2);
+			id.add(event.getCacheName());
+			id.add(event.getKey());
+			if (event.getType() == Type.CLEAR) {
+				// Older changes of the cache don't matter any more.
+				for (Iterator<Event> it = pending.values().iterator(); it.hasNext();) {
+					if (it.next().getCacheName().equals(event.getCacheName())) {
+						it.remove();
+					}
+				}
+			}
+			pending.remove(id);
+			pending.put(id, event);
+			full = pending.size() >= maxBatchSize;
+			if (!full && (debounceMillis > 0) && (scheduler != null)) {
+				// Every change postpones the sending, until the batch is full.
+				if (flush != null) {
+					flush.cancel(false);
+				}
+				flush = scheduler.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, debounceMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full || (debounceMillis <= 0)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the pending changes.
+	 */
+	public void flush() {
+		List<Event> events;
+		synchronized (pending) {
+			if (flush != null) {
+				flush.cancel(false);
+				flush = null;
+			}
+			if (pending.isEmpty()) {
+				return;
+			}
+			events = new ArrayList<Event>(pending.values());
+			pending.clear();
+		}
+		try {
+			transport.send(new InvalidationBatch(nodeId, events));
+		} catch (RuntimeException e) {
+			// Peers will serve their values until they expire.
+			LOGGER.error("Invalidations not sent: " + events, e);
+		}
+	}
+
+	/**
+	 * Applies the changes of a peer.
+	 */
+	private void received(InvalidationBatch batch) {
+		if (nodeId.equals(batch.getOrigin())) {
+			return;
+		}
+		LOGGER.debug("Received {}", batch);
+		for (Event event : batch.getEvents()) {
+			// Versions stamped from now on are newer than the changes of the peer.
+			long current;
+			do {
+				current = clock.get();
+			} while ((event.getVersion() > current) && !clock.compareAndSet(current, event.getVersion()));
+			InvalidatingCache cache = caches.get(event.getCacheName());
+			if (cache != null) {
+				cache.invalidated(event);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,340 @@
+package org.andresoviedo.util.cache.invalidation;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.andresoviedo.util.cache.SpringTTLCache.ValueRetrievalException;
+import org.andresoviedo.util.cache.invalidation.InvalidationBatch.Event;
+import org.andresoviedo.util.cache.invalidation.InvalidationBatch.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+
+/**
+ * A cache whose changes are broadcast to the peers by a {@link CacheInvalidationBus}, which also evicts the values changed by the peers.
+ * <p>
+ * Values loaded by {@link #get(Object, Callable)} are cached without being broadcast, and they're not cached if a change of the key has
+ * been known of since the miss, as the value read may be stale. A put following a miss of the same thread within the lease time of the
+ * bus, as <code>@Cacheable</code> does, is taken as caching the value read on the miss the same way. Any other put is a write, broadcast
+ * to the peers.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public final class InvalidatingCache implements Cache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InvalidatingCache.class);
+
+	/**
+	 * The maximum number of misses a thread remembers.
+	 */
+	private static final int MAX_LEASES = 64;
+
+	/**
+	 * The cache.
+	 */
+	private final Cache delegate;
+
+	/**
+	 * Broadcasts the changes.
+	 */
+	private final CacheInvalidationBus bus;
+
+	/**
+	 * The last change known of every key, by key.
+	 */
+	private final ConcurrentHashMap<Object, Change> changes = new ConcurrentHashMap<Object, Change>();
+
+	/**
+	 * The version of the last clearing of the cache.
+	 */
+	private volatile long clearVersion;
+
+	/**
+	 * The keys missed by every thread, by key.
+	 */
+	private final ThreadLocal<Map<Object, Lease>> leases = new ThreadLocal<Map<Object, Lease>>() {
+		protected Map<Object, Lease> initialValue() {
+			return new HashMap<Object, Lease>();
+		}
+	};
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param delegate
+	 *            the cache.
+	 * @param bus
+	 *            broadcasts the changes.
+	 */
+	InvalidatingCache(Cache delegate, CacheInvalidationBus bus) {
+		this.delegate = delegate;
+		this.bus = bus;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getNativeCache() {
+		return delegate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ValueWrapper get(Object key) {
+		ValueWrapper value = delegate.get(key);
+		if (value == null) {
+			Map<Object, Lease> threadLeases = leases.get();
+			long now = System.currentTimeMillis();
+			if (threadLeases.size() >= MAX_LEASES) {
+				// Misses not followed by a put.
+				for (Iterator<Lease> it = threadLeases.values().iterator(); it.hasNext();) {
+					if (it.next().isExpired(now)) {
+						it.remove();
+					}
+				}
+				if (threadLeases.size() >= MAX_LEASES) {
+					threadLeases.clear();
+				}
+			}
+			threadLeases.put(key, new Lease(versionOf(key), now + bus.getLeaseMillis()));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of a key, loading it on a miss. The value loaded is cached without being broadcast to the peers, unless a change of
+	 * the key becomes known of while it's loaded.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param valueLoader
+	 *            loads the value of the key.
+	 * @return the value.
+	 * @throws ValueRetrievalException
+	 *             if the value can't be loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object key, Callable<T> valueLoader) {
+		ValueWrapper value = delegate.get(key);
+		if (value != null) {
+			return (T) value.get();
+		}
+		long version = versionOf(key);
+		T loaded;
+		try {
+			loaded = valueLoader.call();
+		} catch (Exception e) {
+			throw new ValueRetrievalException(key, e);
+		}
+		populate(key, loaded, version);
+		return loaded;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void put(Object key, Object value) {
+		Lease lease = leases.get().remove(key);
+		if ((lease != null) && !lease.isExpired(System.currentTimeMillis())) {
+			populate(key, value, lease.version);
+			return;
+		}
+		long version = bus.nextVersion();
+		changed(key, version);
+		delegate.put(key, value);
+		bus.publish(new Event(getName(), Type.PUT, key, version));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void evict(Object key) {
+		leases.get().remove(key);
+		long version = bus.nextVersion();
+		changed(key, version);
+		delegate.evict(key);
+		bus.publish(new Event(getName(), Type.EVICT, key, version));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		leases.get().clear();
+		long version = bus.nextVersion();
+		clearVersion = version;
+		changes.clear();
+		delegate.clear();
+		bus.publish(new Event(getName(), Type.CLEAR, null, version));
+	}
+
+	/**
+	 * Caches a value read on a miss, unless a change of the key has been known of since.
+	 * 
+	 * @param version
+	 *            the version of the key when it was missed.
+	 */
+	private void populate(Object key, Object value, long version) {
+		if (version == versionOf(key)) {
+			delegate.put(key, value);
+			if (version != versionOf(key)) {
+				// Changed meanwhile, and maybe evicted before the put.
+				delegate.evict(key);
+			}
+		} else {
+			LOGGER.debug("Value of key '{}' changed while read, not cached", key);
+		}
+	}
+
+	/**
+	 * Applies a change of a peer, evicting the value changed unless a newer change is known of.
+	 * 
+	 * @param event
+	 *            the change.
+	 */
+	void invalidated(Event event) {
+		if (event.getType() == Type.CLEAR) {
+			synchronized (this) {
+				if (event.getVersion() <= clearVersion) {
+					return;
+				}
+				clearVersion = event.getVersion();
+			}
+			delegate.clear();
+		} else if (changed(event.getKey(), event.getVersion())) {
+			delegate.evict(event.getKey());
+		}
+	}
+
+	/**
+	 * Forgets the changes known of before some time. Values read before those changes can be cached afterwards, so the time must exceed
+	 * the time it takes to read a value.
+	 * 
+	 * @param oldest
+	 *            the time of the oldest change to remember.
+	 */
+	void forgetVersions(long oldest) {
+		for (Iterator<Change> it = changes.values().iterator(); it.hasNext();) {
+			if (it.next().time < oldest) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the version of the last change known of a key.
+	 */
+	private long versionOf(Object key) {
+		Change change = changes.get(key);
+		return Math.max((change != null) ? change.version : 0, clearVersion);
+	}
+
+	/**
+	 * Records a change of a key.
+	 * 
+	 * @return whether the change is newer than the ones known of.
+	 */
+	private boolean changed(Object key, long version) {
+		if (version <= clearVersion) {
+			return false;
+		}
+		Change change = new Change(version);
+		while (true) {
+			Change current = changes.putIfAbsent(key, change);
+			if (current == null) {
+				return true;
+			}
+			if (current.version >= version) {
+				return false;
+			}
+			if (changes.replace(key, current, change)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("InvalidatingCache [").append(delegate).append("]");
+		return sb.toString();
+	}
+
+	/**
+	 * A key missed by a thread, whose value is expected to be put.
+	 */
+	private static final class Lease {
+
+		/**
+		 * The version of the key when it was missed.
+		 */
+		private final long version;
+
+		/**
+		 * The time after which a put is a write.
+		 */
+		private final long expirationTime;
+
+		/**
+		 * Creates a new lease.
+		 */
+		private Lease(long version, long expirationTime) {
+			this.version = version;
+			this.expirationTime = expirationTime;
+		}
+
+		/**
+		 * Returns whether a put is a write at some time.
+		 */
+		private boolean isExpired(long now) {
+			return now >= expirationTime;
+		}
+
+	}
+
+	/**
+	 * A change known of a key.
+	 */
+	private static final class Change {
+
+		/**
+		 * The version of the change.
+		 */
+		private final long version;
+
+		/**
+		 * The time the change became known.
+		 */
+		private final long time = System.currentTimeMillis();
+
+		/**
+		 * Creates a new change.
+		 */
+		private Change(long version) {
+			this.version = version;
+		}
+
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.andresoviedo.util.cache.invalidation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The invalidations a node broadcasts at once to its peers.
+ * 
+ * @author andresoviedo
+ */
+public final class InvalidationBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The id of the node sending the batch.
+	 */
+	private final String origin;
+
+	/**
+	 * The invalidations, in the order they happened.
+	 */
+	private final List<Event> events;
+
+	/**
+	 * The kind of change invalidating the peer caches.
+	 */
+	public enum Type {
+		/**
+		 * A value was written.
+		 */
+		PUT,
+		/**
+		 * A value was evicted.
+		 */
+		EVICT,
+		/**
+		 * All the values were evicted.
+		 */
+		CLEAR
+	}
+
+	/**
+	 * A change of a cache, invalidating the value of the key in the peer caches if it's newer than the last change they know of.
+	 */
+	public static final class Event implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The name of the cache.
+		 */
+		private final String cacheName;
+
+		/**
+		 * The kind of change.
+		 */
+		private final Type type;
+
+		/**
+		 * The key changed, <code>null</code> if the cache was cleared.
+		 */
+		private final Object key;
+
+		/**
+		 * The version stamp of the change.
+		 */
+		private final long version;
+
+		/**
+		 * Creates a new event.
+		 * 
+		 * @param cacheName
+		 *            the name of the cache.
+		 * @param type
+		 *            the kind of change.
+		 * @param key
+		 *            the key changed, <code>null</code> if the cache was cleared.
+		 * @param version
+		 *            the version stamp of the change.
+		 */
+		public Event(String cacheName, Type type, Object key, long version) {
+			this.cacheName = cacheName;
+			this.type = type;
+			this.key = key;
+			this.version = version;
+		}
+
+		/**
+		 * Returns the name of the cache.
+		 * 
+		 * @return the name of the cache.
+		 */
+		public String getCacheName() {
+			return cacheName;
+		}
+
+		/**
+		 * Returns the kind of change.
+		 * 
+		 * @return the kind of change.
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the key changed.
+		 * 
+		 * @return the key, <code>null</code> if the cache was cleared.
+		 */
+		public Object getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the version stamp of the change.
+		 * 
+		 * @return the version stamp.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(type).append("[").append(cacheName).append(", ").append(key).append(", ").append(version).append("]");
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Creates a new batch.
+	 * 
+	 * @param origin
+	 *            the id of the node sending the batch.
+	 * @param events
+	 *            the invalidations.
+	 */
+	public InvalidationBatch(String origin, List<Event> events) {
+		this.origin = origin;
+		this.events = Collections.unmodifiableList(new ArrayList<Event>(events));
+	}
+
+	/**
+	 * Returns the id of the node sending the batch.
+	 * 
+	 * @return the id of the node.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * Returns the invalidations.
+	 * 
+	 * @return the invalidations, in the order they happened.
+	 */
+	public List<Event> getEvents() {
+		return events;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("InvalidationBatch [origin=").append(origin).append(", events=").append(events).append("]");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.andresoviedo.util.cache.invalidation;
+
+/**
+ * Broadcasts invalidations to the peers of a node.
+ * 
+ * @author andresoviedo
+ */
+public interface InvalidationTransport {
+
+	/**
+	 * Receives the invalidations broadcast by the peers.
+	 */
+	interface Receiver {
+
+		/**
+		 * Invoked when a batch is received. Batches sent by the node itself may be received too.
+		 * 
+		 * @param batch
+		 *            the batch.
+		 */
+		void received(InvalidationBatch batch);
+
+	}
+
+	/**
+	 * Starts delivering the batches broadcast by the peers.
+	 * 
+	 * @param receiver
+	 *            the receiver of the batches.
+	 */
+	void start(Receiver receiver);
+
+	/**
+	 * Broadcasts a batch to the peers.
+	 * 
+	 * @param batch
+	 *            the batch.
+	 */
+	void send(InvalidationBatch batch);
+
+	/**
+	 * Stops delivering batches.
+	 */
+	void stop();
+
+}
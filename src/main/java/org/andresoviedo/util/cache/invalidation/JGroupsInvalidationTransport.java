@@ -0,0 +1,59 @@
+package org.andresoviedo.util.cache.invalidation;
+
+import org.andresoviedo.util.jgroups.JGroupsCluster;
+import org.jgroups.Address;
+
+/**
+ * Broadcasts batches to the members of a {@link JGroupsCluster}, which must be initialized. Other messages broadcast in the cluster are
+ * ignored.
+ * 
+ * @author andresoviedo
+ */
+public class JGroupsInvalidationTransport implements InvalidationTransport {
+
+	/**
+	 * The cluster.
+	 */
+	private final JGroupsCluster cluster;
+
+	/**
+	 * Creates a new transport.
+	 * 
+	 * @param cluster
+	 *            the cluster.
+	 */
+	public JGroupsInvalidationTransport(JGroupsCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start(final Receiver receiver) {
+		cluster.setListener(new JGroupsCluster.Listener() {
+			public void received(Address src, Object message) {
+				if (message instanceof InvalidationBatch) {
+					receiver.received((InvalidationBatch) message);
+				}
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void send(InvalidationBatch batch) {
+		cluster.broadcast(batch);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void stop() {
+		cluster.setListener(null);
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.andresoviedo.util.cache.invalidation;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.andresoviedo.util.cache.CacheSerializer;
+import org.andresoviedo.util.cache.JdkCacheSerializer;
+
+/**
+ * Delivers batches to the transports of the same group in this JVM, e.g. to test several nodes in a single process. Batches are
+ * serialized on their way, as they'd be by a network transport.
+ * 
+ * @author andresoviedo
+ */
+public class LoopbackInvalidationTransport implements InvalidationTransport {
+
+	/**
+	 * The started transports of the group.
+	 */
+	private final List<LoopbackInvalidationTransport> group;
+
+	/**
+	 * Serializes the batches.
+	 */
+	private final CacheSerializer serializer = new JdkCacheSerializer();
+
+	/**
+	 * The receiver of the batches, <code>null</code> if stopped.
+	 */
+	private volatile Receiver receiver;
+
+	/**
+	 * Creates the first transport of a group.
+	 */
+	public LoopbackInvalidationTransport() {
+		this.group = new CopyOnWriteArrayList<LoopbackInvalidationTransport>();
+	}
+
+	/**
+	 * Creates a transport joining the group of another one.
+	 * 
+	 * @param peer
+	 *            a transport of the group.
+	 */
+	public LoopbackInvalidationTransport(LoopbackInvalidationTransport peer) {
+		this.group = peer.group;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start(Receiver receiver) {
+		this.receiver = receiver;
+		group.add(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void send(InvalidationBatch batch) {
+		byte[] serialized;
+		try {
+			serialized = serializer.serialize(batch);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Batch not serializable: " + batch, e);
+		}
+		for (LoopbackInvalidationTransport peer : group) {
+			Receiver current = peer.receiver;
+			if (current != null) {
+				try {
+					current.received((InvalidationBatch) serializer.deserialize(serialized));
+				} catch (IOException e) {
+					throw new IllegalStateException("Batch not deserializable: " + batch, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void stop() {
+		group.remove(this);
+		receiver = null;
+	}
+
+}
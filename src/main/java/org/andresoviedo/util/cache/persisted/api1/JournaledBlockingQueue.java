@@ -0,0 +1,800 @@
+package org.andresoviedo.util.cache.persisted.api1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.cache.CacheSerializer;
+import org.andresoviedo.util.cache.JdkCacheSerializer;
+
+/**
+ * A durable blocking queue, whose elements are appended to a memory-mapped journal.
+ * <p>
+ * Enqueued elements are written to the disk by a committer thread, which forces all the elements enqueued meanwhile at once (group
+ * commit). By default, enqueuing returns once the element is on the disk, so the more producers, the more elements per write. Otherwise,
+ * enqueuing returns once the element is in the journal, which survives a crash of the process, and elements are written to the disk every
+ * commit interval.
+ * </p>
+ * <p>
+ * Elements taken with the methods of {@link BlockingQueue} are acknowledged right away. Elements received with {@link #receive(long,
+ * TimeUnit)} must be acknowledged once processed, otherwise they're delivered again once the acknowledgement timeout expires, or when the
+ * queue is opened again.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class JournaledBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	private static final Logger LOG = Logger.getLogger(JournaledBlockingQueue.class.getName());
+
+	/**
+	 * The default size of a journal segment in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The default interval between writes to the disk when enqueuing doesn't wait for them, in millis.
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+
+	/**
+	 * The default time received elements are delivered again if not acknowledged, in millis.
+	 */
+	public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * Record types: an element enqueued, and elements acknowledged.
+	 */
+	private static final byte ENQUEUE = 1, ACK = 2;
+
+	/**
+	 * Serializes the elements.
+	 */
+	private final CacheSerializer serializer;
+
+	/**
+	 * The maximum number of elements waiting to be delivered.
+	 */
+	private final int capacity;
+
+	/**
+	 * The journal.
+	 */
+	private final MappedJournal journal;
+
+	/**
+	 * Guards the queue and the journal.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signaled when elements are enqueued, space is available or a commit is needed.
+	 */
+	private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition(), commitNeeded = lock.newCondition();
+
+	/**
+	 * Guards the bytes of the journal on the disk.
+	 */
+	private final ReentrantLock commitLock = new ReentrantLock();
+
+	/**
+	 * Signaled when the journal is written to the disk.
+	 */
+	private final Condition committed = commitLock.newCondition();
+
+	/**
+	 * The bytes of the journal written to the disk.
+	 */
+	private long forced;
+
+	/**
+	 * The elements waiting to be delivered.
+	 */
+	private final ArrayDeque<Entry<E>> ready = new ArrayDeque<Entry<E>>();
+
+	/**
+	 * The elements delivered and not acknowledged yet, in the order they expire.
+	 */
+	private final LinkedHashMap<Long, Entry<E>> inFlight = new LinkedHashMap<Long, Entry<E>>();
+
+	/**
+	 * The number of elements not acknowledged of every segment, by segment.
+	 */
+	private final TreeMap<Integer, Integer> pendingBySegment = new TreeMap<Integer, Integer>();
+
+	/**
+	 * The sequence of the last element enqueued.
+	 */
+	private long lastSequence;
+
+	/**
+	 * Whether enqueuing waits for the element to be written to the disk.
+	 */
+	private volatile boolean syncEnqueue = true;
+
+	/**
+	 * The interval between writes to the disk when enqueuing doesn't wait for them.
+	 */
+	private volatile long commitIntervalMillis = DEFAULT_COMMIT_INTERVAL_MILLIS;
+
+	/**
+	 * The time received elements are delivered again if not acknowledged.
+	 */
+	private volatile long ackTimeoutMillis = DEFAULT_ACK_TIMEOUT_MILLIS;
+
+	/**
+	 * Whether the queue is open.
+	 */
+	private volatile boolean open = true;
+
+	/**
+	 * Writes the journal to the disk.
+	 */
+	private final Thread committer;
+
+	/**
+	 * An element of the queue.
+	 */
+	private static final class Entry<E> {
+
+		private final long sequence;
+
+		private final E element;
+
+		private final int segment;
+
+		private int deliveries;
+
+		private long deadline;
+
+		private Entry(long sequence, E element, int segment) {
+			this.sequence = sequence;
+			this.element = element;
+			this.segment = segment;
+		}
+	}
+
+	/**
+	 * An element received, which must be acknowledged once processed.
+	 */
+	public static final class Delivery<E> {
+
+		private final JournaledBlockingQueue<E> queue;
+
+		private final Entry<E> entry;
+
+		private final int delivery;
+
+		private Delivery(JournaledBlockingQueue<E> queue, Entry<E> entry) {
+			this.queue = queue;
+			this.entry = entry;
+			this.delivery = entry.deliveries;
+		}
+
+		/**
+		 * Returns the element.
+		 *
+		 * @return the element
+		 */
+		public E getElement() {
+			return entry.element;
+		}
+
+		/**
+		 * Returns the number of times the element was delivered before, since the queue was opened.
+		 *
+		 * @return the number of previous deliveries
+		 */
+		public int getRedeliveries() {
+			return delivery - 1;
+		}
+
+		/**
+		 * Acknowledges the element, which won't be delivered again.
+		 *
+		 * @return <code>false</code> if the acknowledgement timeout expired before, and the element was delivered again
+		 */
+		public boolean ack() {
+			return queue.ack(entry, delivery);
+		}
+
+		/**
+		 * Returns the element to the head of the queue, to be delivered again.
+		 *
+		 * @return <code>false</code> if the acknowledgement timeout expired before, and the element was delivered again
+		 */
+		public boolean nack() {
+			return queue.nack(entry, delivery);
+		}
+	}
+
+	public JournaledBlockingQueue(File folder) {
+		this(folder, new JdkCacheSerializer(), Integer.MAX_VALUE, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens a queue, delivering again the elements not acknowledged when it was closed.
+	 *
+	 * @param folder
+	 *            the folder of the journal
+	 * @param serializer
+	 *            serializes the elements
+	 * @param capacity
+	 *            the maximum number of elements waiting to be delivered
+	 * @param segmentSize
+	 *            the size of a journal segment in bytes
+	 */
+	public JournaledBlockingQueue(File folder, CacheSerializer serializer, int capacity, int segmentSize) {
+		this.serializer = serializer;
+		this.capacity = capacity;
+		this.journal = new MappedJournal(folder, segmentSize);
+		final Map<Long, Entry<E>> recovered = new LinkedHashMap<Long, Entry<E>>();
+		try {
+			journal.open(new MappedJournal.Visitor() {
+				public void record(int segment, byte type, long sequence, byte[] payload) {
+					if (type == ENQUEUE) {
+						recovered.put(sequence, new Entry<E>(sequence, deserialize(payload), segment));
+						lastSequence = Math.max(lastSequence, sequence);
+					} else if (type == ACK) {
+						ByteBuffer acks = ByteBuffer.wrap(payload);
+						while (acks.hasRemaining()) {
+							recovered.remove(acks.getLong());
+						}
+					}
+				}
+			});
+		} catch (IOException ex) {
+			throw new IllegalStateException("Journal can't be opened: " + folder, ex);
+		}
+		for (Entry<E> entry : recovered.values()) {
+			ready.add(entry);
+			incrementPending(entry.segment, 1);
+		}
+		deleteAcknowledgedSegments();
+		forced = journal.getAppended();
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commitLoop();
+			}
+		}, "JournaledBlockingQueue-" + folder.getName());
+		committer.setDaemon(true);
+		committer.start();
+		LOG.fine("Opened queue '" + folder + "' with " + ready.size() + " elements");
+	}
+
+	/**
+	 * Sets whether enqueuing waits for the element to be written to the disk. If not, elements are written every commit interval, and a
+	 * crash of the system, though not of the process, may lose the ones enqueued meanwhile.
+	 *
+	 * @param syncEnqueue
+	 *            <code>false</code> not to wait
+	 */
+	public void setSyncEnqueue(boolean syncEnqueue) {
+		this.syncEnqueue = syncEnqueue;
+	}
+
+	/**
+	 * Sets the interval between writes to the disk when enqueuing doesn't wait for them.
+	 *
+	 * @param commitIntervalMillis
+	 *            the interval in millis
+	 */
+	public void setCommitIntervalMillis(long commitIntervalMillis) {
+		this.commitIntervalMillis = Math.max(1, commitIntervalMillis);
+	}
+
+	/**
+	 * Sets the time received elements are delivered again if not acknowledged.
+	 *
+	 * @param ackTimeoutMillis
+	 *            the time in millis
+	 */
+	public void setAckTimeoutMillis(long ackTimeoutMillis) {
+		this.ackTimeoutMillis = ackTimeoutMillis;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		byte[] payload = serialize(e);
+		long position;
+		lock.lock();
+		try {
+			if (ready.size() >= capacity) {
+				return false;
+			}
+			position = enqueue(e, payload);
+		} finally {
+			lock.unlock();
+		}
+		awaitCommit(position);
+		return true;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		byte[] payload = serialize(e);
+		long position;
+		lock.lockInterruptibly();
+		try {
+			while (ready.size() >= capacity) {
+				notFull.await();
+			}
+			position = enqueue(e, payload);
+		} finally {
+			lock.unlock();
+		}
+		awaitCommit(position);
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		byte[] payload = serialize(e);
+		long nanos = unit.toNanos(timeout);
+		long position;
+		lock.lockInterruptibly();
+		try {
+			while (ready.size() >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			position = enqueue(e, payload);
+		} finally {
+			lock.unlock();
+		}
+		awaitCommit(position);
+		return true;
+	}
+
+	@Override
+	public E poll() {
+		lock.lock();
+		try {
+			Entry<E> entry = dequeue();
+			if (entry == null) {
+				return null;
+			}
+			acknowledge(Collections.singletonList(entry));
+			return entry.element;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			Entry<E> entry;
+			while ((entry = dequeue()) == null) {
+				awaitElement(notEmpty, Long.MAX_VALUE);
+			}
+			acknowledge(Collections.singletonList(entry));
+			return entry.element;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Entry<E> entry = receiveEntry(timeout, unit);
+		if (entry == null) {
+			return null;
+		}
+		ack(entry, entry.deliveries);
+		return entry.element;
+	}
+
+	/**
+	 * Receives an element, which is delivered again unless it's acknowledged before the acknowledgement timeout.
+	 *
+	 * @param timeout
+	 *            how long to wait for an element
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the delivery, or <code>null</code> if the timeout expired
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public Delivery<E> receive(long timeout, TimeUnit unit) throws InterruptedException {
+		Entry<E> entry = receiveEntry(timeout, unit);
+		return (entry != null) ? new Delivery<E>(this, entry) : null;
+	}
+
+	@Override
+	public E peek() {
+		lock.lock();
+		try {
+			redeliverExpired();
+			Entry<E> entry = ready.peek();
+			return (entry != null) ? entry.element : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException("Can't drain to itself");
+		}
+		lock.lock();
+		try {
+			List<Entry<E>> drained = new ArrayList<Entry<E>>(Math.min(maxElements, Math.max(1, ready.size())));
+			Entry<E> entry;
+			while (drained.size() < maxElements && (entry = dequeue()) != null) {
+				drained.add(entry);
+			}
+			if (!drained.isEmpty()) {
+				// A single acknowledgement record for the batch.
+				acknowledge(drained);
+				for (Entry<E> e : drained) {
+					c.add(e.element);
+				}
+			}
+			return drained.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return ready.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - ready.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the elements waiting to be delivered. Elements can't be removed through it.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		lock.lock();
+		try {
+			List<E> elements = new ArrayList<E>(ready.size());
+			for (Entry<E> entry : ready) {
+				elements.add(entry.element);
+			}
+			return Collections.unmodifiableList(elements).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the journal to the disk and closes it. Elements received and not acknowledged will be delivered again when the queue is
+	 * opened again.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (!open) {
+				return;
+			}
+			open = false;
+			commitNeeded.signalAll();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		lock.lock();
+		try {
+			journal.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends an element to the journal and the queue. Must be invoked holding the lock.
+	 *
+	 * @return the bytes of the journal which must be on the disk for the element to be
+	 */
+	private long enqueue(E e, byte[] payload) {
+		checkOpen();
+		long sequence = ++lastSequence;
+		int segment;
+		try {
+			segment = journal.append(ENQUEUE, sequence, payload);
+		} catch (IOException ex) {
+			lastSequence--;
+			throw new IllegalStateException("Element can't be journaled", ex);
+		}
+		ready.add(new Entry<E>(sequence, e, segment));
+		incrementPending(segment, 1);
+		notEmpty.signal();
+		if (syncEnqueue) {
+			commitNeeded.signal();
+		}
+		return journal.getAppended();
+	}
+
+	/**
+	 * Waits until a position of the journal is on the disk, if enqueuing waits for it.
+	 */
+	private void awaitCommit(long position) {
+		if (!syncEnqueue) {
+			return;
+		}
+		boolean interrupted = false;
+		commitLock.lock();
+		try {
+			while (forced < position && open) {
+				try {
+					committed.await();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			commitLock.unlock();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the journal to the disk until the queue is closed: right away if enqueuing waits for it, otherwise every commit interval.
+	 */
+	private void commitLoop() {
+		while (true) {
+			List<MappedByteBuffer> dirty;
+			long position;
+			boolean closing;
+			lock.lock();
+			try {
+				if (open && !(syncEnqueue && journal.getAppended() > forced)) {
+					commitNeeded.await(commitIntervalMillis, TimeUnit.MILLISECONDS);
+				}
+				redeliverExpired();
+				closing = !open;
+				dirty = journal.takeDirty();
+				position = journal.getAppended();
+			} catch (InterruptedException ex) {
+				continue;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				// Elements enqueued meanwhile will be forced together next time.
+				MappedJournal.force(dirty);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.SEVERE, "Journal can't be written to the disk", ex);
+			}
+			commitLock.lock();
+			try {
+				forced = position;
+				committed.signalAll();
+			} finally {
+				commitLock.unlock();
+			}
+			if (closing) {
+				return;
+			}
+		}
+	}
+
+	private Entry<E> receiveEntry(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			Entry<E> entry;
+			while ((entry = dequeue()) == null) {
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					return null;
+				}
+				awaitElement(notEmpty, nanos);
+			}
+			entry.deadline = System.currentTimeMillis() + ackTimeoutMillis;
+			inFlight.put(entry.sequence, entry);
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for an element, or for the first element received to expire. Must be invoked holding the lock.
+	 */
+	private void awaitElement(Condition condition, long nanos) throws InterruptedException {
+		checkOpen();
+		if (!inFlight.isEmpty()) {
+			long untilExpiry = inFlight.values().iterator().next().deadline - System.currentTimeMillis();
+			nanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(Math.max(1, untilExpiry)));
+		}
+		condition.awaitNanos(nanos);
+	}
+
+	/**
+	 * Takes the next element to deliver. Must be invoked holding the lock.
+	 */
+	private Entry<E> dequeue() {
+		checkOpen();
+		redeliverExpired();
+		Entry<E> entry = ready.poll();
+		if (entry != null) {
+			entry.deliveries++;
+			notFull.signal();
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the elements whose acknowledgement timeout expired to the head of the queue. Must be invoked holding the lock.
+	 */
+	private void redeliverExpired() {
+		if (inFlight.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<Entry<E>> expired = null;
+		for (Iterator<Entry<E>> it = inFlight.values().iterator(); it.hasNext();) {
+			Entry<E> entry = it.next();
+			if (entry.deadline > now) {
+				break;
+			}
+			it.remove();
+			if (expired == null) {
+				expired = new ArrayList<Entry<E>>();
+			}
+			expired.add(entry);
+		}
+		if (expired != null) {
+			for (int i = expired.size() - 1; i >= 0; i--) {
+				ready.addFirst(expired.get(i));
+			}
+			LOG.fine("Delivering again " + expired.size() + " elements not acknowledged");
+			notEmpty.signalAll();
+		}
+	}
+
+	private boolean ack(Entry<E> entry, int delivery) {
+		lock.lock();
+		try {
+			if (!removeInFlight(entry, delivery)) {
+				return false;
+			}
+			acknowledge(Collections.singletonList(entry));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean nack(Entry<E> entry, int delivery) {
+		lock.lock();
+		try {
+			if (!removeInFlight(entry, delivery)) {
+				return false;
+			}
+			ready.addFirst(entry);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an element received, unless it was delivered again since. Must be invoked holding the lock.
+	 */
+	private boolean removeInFlight(Entry<E> entry, int delivery) {
+		if (entry.deliveries != delivery || !inFlight.containsKey(entry.sequence)) {
+			return false;
+		}
+		inFlight.remove(entry.sequence);
+		return true;
+	}
+
+	/**
+	 * Appends the acknowledgement of elements to the journal. Must be invoked holding the lock.
+	 */
+	private void acknowledge(List<Entry<E>> entries) {
+		ByteBuffer payload = ByteBuffer.allocate(8 * entries.size());
+		for (Entry<E> entry : entries) {
+			payload.putLong(entry.sequence);
+		}
+		try {
+			journal.append(ACK, 0, payload.array());
+		} catch (IOException ex) {
+			// They'll be delivered again when the queue is opened again.
+			LOG.log(Level.WARNING, "Acknowledgement can't be journaled", ex);
+		}
+		for (Entry<E> entry : entries) {
+			incrementPending(entry.segment, -1);
+		}
+		deleteAcknowledgedSegments();
+	}
+
+	private void incrementPending(int segment, int delta) {
+		Integer current = pendingBySegment.get(segment);
+		int pending = ((current != null) ? current : 0) + delta;
+		if (pending == 0) {
+			pendingBySegment.remove(segment);
+		} else {
+			pendingBySegment.put(segment, pending);
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments, as long as all their elements are acknowledged. Later segments are kept even if they are too, as they may
+	 * hold the acknowledgements of elements in earlier segments.
+	 */
+	private void deleteAcknowledgedSegments() {
+		int firstPending = pendingBySegment.isEmpty() ? journal.getActiveSegment() : pendingBySegment.firstKey();
+		if (journal.getFirstSegment() < firstPending) {
+			journal.deleteSegmentsBefore(firstPending);
+		}
+	}
+
+	private void checkOpen() {
+		if (!open) {
+			throw new IllegalStateException("Queue closed");
+		}
+	}
+
+	private byte[] serialize(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		try {
+			return serializer.serialize(e);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Element can't be serialized: " + e, ex);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E deserialize(byte[] payload) {
+		try {
+			return (E) serializer.deserialize(payload);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Element can't be deserialized", ex);
+		}
+	}
+}
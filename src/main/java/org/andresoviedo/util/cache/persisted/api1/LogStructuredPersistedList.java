@@ -0,0 +1,644 @@
+package org.andresoviedo.util.cache.persisted.api1;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.andresoviedo.util.cache.CacheSerializer;
+import org.andresoviedo.util.cache.JdkCacheSerializer;
+
+/**
+ * A persisted list which appends its changes as records to segment files, instead of keeping an element per file. Only the location of
+ * the elements is kept in memory, 12 bytes per element, and the elements are read in pages when accessed, keeping the most recently used in
+ * memory, so the list can be larger than the heap.
+ * <p>
+ * Every record has a checksum: on loading, a record which was partially written when the process crashed is truncated with whatever
+ * follows it. The records of removed and replaced elements are garbage which is compacted once it outweighs the live elements: these are
+ * copied to a new segment which, once complete, replaces the old ones.
+ * </p>
+ * <p>
+ * The elements returned are copies: modified elements must be set again, or synchronized with {@link #synch(Object)}, to persist the
+ * changes. Elements can only be added at the end of the list.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class LogStructuredPersistedList<T> extends PersistedList<T> {
+
+	private static final Logger LOG = Logger.getLogger(LogStructuredPersistedList.class.getName());
+
+	/**
+	 * The default size of a segment in bytes, after which a new one is started.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default number of elements kept in memory.
+	 */
+	public static final int DEFAULT_HOT_ELEMENTS = 1024;
+
+	/**
+	 * The default number of elements read at once.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 32;
+
+	/**
+	 * The extension of the segment files.
+	 */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The file a compaction is written to until it's complete.
+	 */
+	private static final String COMPACTION_FILE = "compaction.tmp";
+
+	/**
+	 * The size of the record header: the length and the checksum of the record body.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The size of the record body before the element: the type and the index.
+	 */
+	private static final int BODY_PREFIX_SIZE = 5;
+
+	/**
+	 * Record types: an element added at the end, an element replaced, an element removed and the list cleared.
+	 */
+	private static final byte ADD = 1, SET = 2, REMOVE = 3, CLEAR = 4;
+
+	/**
+	 * The folder of the segments.
+	 */
+	private final File folder;
+
+	/**
+	 * Serializes the elements.
+	 */
+	private final CacheSerializer serializer;
+
+	/**
+	 * The size of a segment in bytes, after which a new one is started.
+	 */
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	/**
+	 * The number of elements read at once.
+	 */
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	/**
+	 * The maximum number of elements kept in memory.
+	 */
+	private int maxHotElements = DEFAULT_HOT_ELEMENTS;
+
+	/**
+	 * Whether the records are forced to the disk as they're written.
+	 */
+	private boolean syncWrites;
+
+	/**
+	 * The most recently used elements, by location.
+	 */
+	private final LinkedHashMap<Long, T> hotElements = new LinkedHashMap<Long, T>(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+			return size() > maxHotElements;
+		}
+	};
+
+	/**
+	 * The open segments, by number.
+	 */
+	private final TreeMap<Integer, RandomAccessFile> segments = new TreeMap<Integer, RandomAccessFile>();
+
+	/**
+	 * The number of the segment the records are appended to.
+	 */
+	private int activeSegment;
+
+	/**
+	 * The length of the segment the records are appended to.
+	 */
+	private long activeLength;
+
+	/**
+	 * The location and size of the records of the elements, in the order of the list.
+	 */
+	private final RecordIndex index = new RecordIndex();
+
+	/**
+	 * The bytes of all the segments, and of the records of the elements.
+	 */
+	private long totalBytes, liveBytes;
+
+	public LogStructuredPersistedList(File targetFile) {
+		this(targetFile, new JdkCacheSerializer());
+	}
+
+	public LogStructuredPersistedList(File targetFile, CacheSerializer serializer) {
+		super(targetFile);
+		this.folder = targetFile;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Sets the size of a segment, after which a new one is started.
+	 *
+	 * @param segmentSize
+	 *            the size in bytes
+	 */
+	public synchronized void setSegmentSize(long segmentSize) {
+		if (segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segments can't exceed 2GB: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Sets the number of elements read at once when an element not in memory is accessed.
+	 *
+	 * @param pageSize
+	 *            the number of elements
+	 */
+	public synchronized void setPageSize(int pageSize) {
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * Sets the maximum number of elements kept in memory.
+	 *
+	 * @param maxHotElements
+	 *            the number of elements
+	 */
+	public synchronized void setMaxHotElements(int maxHotElements) {
+		this.maxHotElements = Math.max(1, maxHotElements);
+		hotElements.clear();
+	}
+
+	/**
+	 * Sets whether the records are forced to the disk as they're written, so that they survive a crash of the system and not only of the
+	 * process.
+	 *
+	 * @param syncWrites
+	 *            <code>true</code> to force every record to the disk
+	 */
+	public synchronized void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	@Override
+	public synchronized int size() {
+		return index.size();
+	}
+
+	@Override
+	public synchronized T get(int i) {
+		rangeCheck(i);
+		long location = index.getLocation(i);
+		if (hotElements.containsKey(location)) {
+			return hotElements.get(location);
+		}
+		T element = read(location);
+		// The following elements will likely be accessed next, e.g. by an iterator.
+		int end = Math.min(index.size(), i + Math.min(pageSize, maxHotElements));
+		for (int j = i + 1; j < end; j++) {
+			long next = index.getLocation(j);
+			if (!hotElements.containsKey(next)) {
+				hotElements.put(next, read(next));
+			}
+		}
+		hotElements.put(location, element);
+		return element;
+	}
+
+	@Override
+	public synchronized T set(int i, T element) {
+		T previous = get(i);
+		long location = append(SET, i, serialize(element));
+		liveBytes -= index.getSize(i);
+		hotElements.remove(index.getLocation(i));
+		index.set(i, location, recordSize(location));
+		liveBytes += index.getSize(i);
+		hotElements.put(location, element);
+		compactIfNeeded();
+		return previous;
+	}
+
+	@Override
+	public synchronized void add(int i, T element) {
+		if (i != size()) {
+			throw new UnsupportedOperationException("Elements can only be added at the end of the storage.");
+		}
+		long location = append(ADD, i, serialize(element));
+		index.add(location, recordSize(location));
+		liveBytes += index.getSize(i);
+		hotElements.put(location, element);
+		modCount++;
+	}
+
+	@Override
+	public synchronized T remove(int i) {
+		T removed = get(i);
+		append(REMOVE, i, new byte[0]);
+		liveBytes -= index.getSize(i);
+		hotElements.remove(index.getLocation(i));
+		index.remove(i);
+		modCount++;
+		compactIfNeeded();
+		return removed;
+	}
+
+	@Override
+	public synchronized void clear() {
+		append(CLEAR, 0, new byte[0]);
+		index.clear();
+		hotElements.clear();
+		liveBytes = 0;
+		modCount++;
+		compactIfNeeded();
+	}
+
+	/**
+	 * Copies the elements to a new segment which replaces the current ones, dropping the records of removed and replaced elements. It's
+	 * done automatically once they outweigh the elements.
+	 */
+	public synchronized void compact() {
+		File compaction = new File(folder, COMPACTION_FILE);
+		int compactedSegment = activeSegment + 1;
+		RecordIndex compacted = new RecordIndex();
+		try {
+			RandomAccessFile out = new RandomAccessFile(compaction, "rw");
+			try {
+				out.setLength(0);
+				// Replayed after the current segments if they're not deleted.
+				long length = writeRecord(out, 0, CLEAR, 0, new byte[0]);
+				for (int i = 0; i < index.size(); i++) {
+					long location = ((long) compactedSegment << 32) | length;
+					length += writeRecord(out, length, ADD, i, readBody(index.getLocation(i)));
+					compacted.add(location, (int) (length - (location & 0xFFFFFFFFL)));
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(compaction.toPath(), segmentFile(compactedSegment).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			compaction.delete();
+			LOG.log(Level.WARNING, "Compaction of '" + folder + "' failed", ex);
+			return;
+		}
+		closeSegments();
+		for (File f : listSegments()) {
+			if (segmentNumber(f) < compactedSegment) {
+				f.delete();
+			}
+		}
+		index.clear();
+		index.addAll(compacted);
+		hotElements.clear();
+		try {
+			activeSegment = compactedSegment;
+			activeLength = openSegment(compactedSegment).length();
+		} catch (IOException ex) {
+			throw new IllegalStateException("Compacted segment can't be opened: " + segmentFile(compactedSegment), ex);
+		}
+		totalBytes = activeLength;
+		liveBytes = totalBytes - HEADER_SIZE - BODY_PREFIX_SIZE;
+		LOG.fine("Compacted '" + folder + "' to " + totalBytes + " bytes");
+	}
+
+	/**
+	 * Closes the segment files. The list can't be used afterwards.
+	 */
+	public synchronized void close() {
+		closeSegments();
+		hotElements.clear();
+	}
+
+	@Override
+	synchronized void loadObjects() {
+		new File(folder, COMPACTION_FILE).delete();
+		List<File> files = listSegments();
+		boolean corrupted = false;
+		for (File f : files) {
+			int number = segmentNumber(f);
+			if (corrupted) {
+				LOG.warning("Deleting segment '" + f + "' following a corrupted record");
+				f.delete();
+				continue;
+			}
+			try {
+				RandomAccessFile raf = openSegment(number);
+				long length = replay(number, raf);
+				if (length < raf.length()) {
+					LOG.warning("Truncating segment '" + f + "' at corrupted record at " + length);
+					raf.setLength(length);
+					corrupted = true;
+				}
+				activeSegment = number;
+				activeLength = length;
+				totalBytes += length;
+			} catch (IOException ex) {
+				throw new IllegalStateException("Segment can't be read: " + f, ex);
+			}
+		}
+		if (activeSegment == 0) {
+			activeSegment = 1;
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T readObject(File targetFile) throws IOException {
+		return (T) serializer.deserialize(Files.readAllBytes(targetFile.toPath()));
+	}
+
+	@Override
+	public void writeObject(File targetFile, T targetObject) throws IOException {
+		Files.write(targetFile.toPath(), serializer.serialize(targetObject));
+	}
+
+	/**
+	 * Applies the records of a segment.
+	 *
+	 * @return the length of the valid records.
+	 */
+	private long replay(int number, RandomAccessFile raf) throws IOException {
+		long length = raf.length();
+		long offset = 0;
+		byte[] header = new byte[HEADER_SIZE];
+		while (offset + HEADER_SIZE <= length) {
+			raf.seek(offset);
+			raf.readFully(header);
+			ByteBuffer bb = ByteBuffer.wrap(header);
+			int bodyLength = bb.getInt();
+			int checksum = bb.getInt();
+			if ((bodyLength < BODY_PREFIX_SIZE) || (offset + HEADER_SIZE + bodyLength > length)) {
+				return offset;
+			}
+			byte[] body = new byte[bodyLength];
+			raf.readFully(body);
+			if (checksum(body) != checksum) {
+				return offset;
+			}
+			ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+			byte type = bodyBuffer.get();
+			int i = bodyBuffer.getInt();
+			long location = ((long) number << 32) | offset;
+			int size = HEADER_SIZE + bodyLength;
+			if (type == ADD && i == index.size()) {
+				index.add(location, size);
+				liveBytes += size;
+			} else if (type == SET && i < index.size()) {
+				liveBytes += size - index.getSize(i);
+				index.set(i, location, size);
+			} else if (type == REMOVE && i < index.size()) {
+				liveBytes -= index.getSize(i);
+				index.remove(i);
+			} else if (type == CLEAR) {
+				index.clear();
+				liveBytes = 0;
+			} else {
+				return offset;
+			}
+			offset += size;
+		}
+		return offset;
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new one if it's full.
+	 *
+	 * @return the location of the record.
+	 */
+	private long append(byte type, int i, byte[] element) {
+		try {
+			if ((activeLength > 0) && (activeLength + HEADER_SIZE + BODY_PREFIX_SIZE + element.length > segmentSize)) {
+				if (syncWrites) {
+					openSegment(activeSegment).getFD().sync();
+				}
+				activeSegment++;
+				activeLength = 0;
+			}
+			RandomAccessFile raf = openSegment(activeSegment);
+			long location = ((long) activeSegment << 32) | activeLength;
+			long written = writeRecord(raf, activeLength, type, i, element);
+			if (syncWrites) {
+				raf.getFD().sync();
+			}
+			activeLength += written;
+			totalBytes += written;
+			return location;
+		} catch (IOException ex) {
+			throw new IllegalStateException("Record can't be written to '" + folder + "'", ex);
+		}
+	}
+
+	/**
+	 * Writes a record.
+	 *
+	 * @return the size of the record.
+	 */
+	private long writeRecord(RandomAccessFile raf, long offset, byte type, int i, byte[] element) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(BODY_PREFIX_SIZE + element.length);
+		body.put(type).putInt(i).put(element);
+		return writeRecord(raf, offset, body.array());
+	}
+
+	/**
+	 * Writes a record.
+	 *
+	 * @return the size of the record.
+	 */
+	private long writeRecord(RandomAccessFile raf, long offset, byte[] body) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+		record.putInt(body.length).putInt(checksum(body)).put(body);
+		raf.seek(offset);
+		raf.write(record.array());
+		return record.capacity();
+	}
+
+	/**
+	 * Reads the body of a record, with its type set to {@link #ADD}.
+	 */
+	private byte[] readBody(long location) throws IOException {
+		RandomAccessFile raf = openSegment((int) (location >>> 32));
+		raf.seek(location & 0xFFFFFFFFL);
+		int bodyLength = raf.readInt();
+		int checksum = raf.readInt();
+		byte[] body = new byte[bodyLength];
+		raf.readFully(body);
+		if (checksum(body) != checksum) {
+			throw new IOException("Corrupted record at " + (location & 0xFFFFFFFFL) + " of segment " + (location >>> 32));
+		}
+		body[0] = ADD;
+		return body;
+	}
+
+	/**
+	 * Reads the element of a record.
+	 */
+	@SuppressWarnings("unchecked")
+	private T read(long location) {
+		try {
+			byte[] body = readBody(location);
+			return (T) serializer.deserialize(Arrays.copyOfRange(body, BODY_PREFIX_SIZE, body.length));
+		} catch (EOFException ex) {
+			throw new IllegalStateException("Truncated record at " + (location & 0xFFFFFFFFL) + " of segment " + (location >>> 32), ex);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Element can't be read from '" + folder + "'", ex);
+		}
+	}
+
+	private byte[] serialize(T element) {
+		try {
+			return serializer.serialize(element);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Element can't be serialized: " + element, ex);
+		}
+	}
+
+	/**
+	 * Returns the size of the record last appended, at the given location.
+	 */
+	private int recordSize(long location) {
+		return (int) (activeLength - (location & 0xFFFFFFFFL));
+	}
+
+	private void compactIfNeeded() {
+		long garbage = totalBytes - liveBytes;
+		if ((garbage > segmentSize) && (garbage > liveBytes)) {
+			compact();
+		}
+	}
+
+	private RandomAccessFile openSegment(int number) throws IOException {
+		RandomAccessFile raf = segments.get(number);
+		if (raf == null) {
+			raf = new RandomAccessFile(segmentFile(number), "rw");
+			segments.put(number, raf);
+		}
+		return raf;
+	}
+
+	private void closeSegments() {
+		for (Iterator<RandomAccessFile> it = segments.values().iterator(); it.hasNext();) {
+			try {
+				it.next().close();
+			} catch (IOException ex) {
+				LOG.log(Level.FINE, "Segment not closed", ex);
+			}
+			it.remove();
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(folder, String.format("%010d", number) + SEGMENT_SUFFIX);
+	}
+
+	private List<File> listSegments() {
+		File[] files = folder.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().matches("\\d+\\" + SEGMENT_SUFFIX);
+			}
+		});
+		List<File> ret = new ArrayList<File>();
+		if (files != null) {
+			ret.addAll(Arrays.asList(files));
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static int segmentNumber(File segment) {
+		String name = segment.getName();
+		return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static int checksum(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue();
+	}
+
+	private void rangeCheck(int i) {
+		if ((i < 0) || (i >= index.size())) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + index.size());
+		}
+	}
+
+	/**
+	 * The location and size of the records of the elements: arrays of primitives, so that large lists take little memory.
+	 */
+	private static final class RecordIndex {
+
+		private long[] locations = new long[16];
+
+		private int[] sizes = new int[16];
+
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		long getLocation(int i) {
+			return locations[i];
+		}
+
+		int getSize(int i) {
+			return sizes[i];
+		}
+
+		void add(long location, int recordSize) {
+			if (size == locations.length) {
+				locations = Arrays.copyOf(locations, size * 2);
+				sizes = Arrays.copyOf(sizes, size * 2);
+			}
+			locations[size] = location;
+			sizes[size] = recordSize;
+			size++;
+		}
+
+		void addAll(RecordIndex other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.locations[i], other.sizes[i]);
+			}
+		}
+
+		void set(int i, long location, int recordSize) {
+			locations[i] = location;
+			sizes[i] = recordSize;
+		}
+
+		void remove(int i) {
+			System.arraycopy(locations, i + 1, locations, i, size - i - 1);
+			System.arraycopy(sizes, i + 1, sizes, i, size - i - 1);
+			size--;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package org.andresoviedo.util.cache.persisted.api1;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of records appended to memory-mapped segment files. Appending a record only copies it to the mapped memory, so it survives a
+ * crash of the process; {@link #force(List)} writes the segments to the disk. Every record has a checksum, so records partially written by
+ * a crash of the system are ignored when the journal is replayed.
+ * <p>
+ * It isn't thread-safe: appending, replaying and deleting segments must be synchronized by the caller, while forcing can be done
+ * concurrently.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+class MappedJournal {
+
+	private static final Logger LOG = Logger.getLogger(MappedJournal.class.getName());
+
+	/**
+	 * The extension of the segment files.
+	 */
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	/**
+	 * The size of the record header: the length and the checksum of the record body.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The size of the record body before the payload: the type and the sequence.
+	 */
+	private static final int BODY_PREFIX_SIZE = 9;
+
+	/**
+	 * The size of the zero length written after every record, marking the end of the segment.
+	 */
+	private static final int END_SIZE = 4;
+
+	/**
+	 * Receives the records of the journal as it's replayed.
+	 */
+	interface Visitor {
+
+		void record(int segment, byte type, long sequence, byte[] payload);
+	}
+
+	/**
+	 * The folder of the segments.
+	 */
+	private final File folder;
+
+	/**
+	 * The size of a new segment.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * The mapped segments, by number.
+	 */
+	private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<Integer, MappedByteBuffer>();
+
+	/**
+	 * The numbers of the segments appended to since they were last taken to be forced. Buffers aren't kept in a set as their hash code is
+	 * computed from their content.
+	 */
+	private final Set<Integer> dirty = new TreeSet<Integer>();
+
+	/**
+	 * The number of the segment the records are appended to.
+	 */
+	private int activeSegment;
+
+	/**
+	 * The bytes appended since the journal was opened.
+	 */
+	private long appended;
+
+	MappedJournal(File folder, int segmentSize) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+	}
+
+	/**
+	 * Maps the segments and replays their records, in the order they were appended.
+	 *
+	 * @param visitor
+	 *            receives the records
+	 * @throws IOException
+	 *             if a segment can't be mapped
+	 */
+	void open(Visitor visitor) throws IOException {
+		List<File> files = listSegments();
+		for (File f : files) {
+			int number = segmentNumber(f);
+			MappedByteBuffer buffer = map(number, (int) f.length());
+			int position = replay(number, buffer, visitor);
+			buffer.position(position);
+			activeSegment = number;
+		}
+		if (segments.isEmpty()) {
+			activeSegment = 1;
+			map(activeSegment, segmentSize);
+		}
+	}
+
+	/**
+	 * Appends a record, starting a new segment if it doesn't fit in the current one.
+	 *
+	 * @return the number of the segment it's appended to
+	 * @throws IOException
+	 *             if a new segment can't be mapped
+	 */
+	int append(byte type, long sequence, byte[] payload) throws IOException {
+		int bodyLength = BODY_PREFIX_SIZE + payload.length;
+		int recordSize = HEADER_SIZE + bodyLength;
+		MappedByteBuffer buffer = segments.get(activeSegment);
+		if (buffer.remaining() < recordSize + END_SIZE) {
+			activeSegment++;
+			buffer = map(activeSegment, Math.max(segmentSize, recordSize + END_SIZE));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (sequence >>> shift));
+		}
+		crc.update(payload, 0, payload.length);
+
+		int start = buffer.position();
+		buffer.position(start + HEADER_SIZE);
+		buffer.put(type).putLong(sequence).put(payload);
+		// The end mark is in place before the record is complete.
+		buffer.putInt(buffer.position(), 0);
+		buffer.putInt(start + 4, (int) crc.getValue());
+		buffer.putInt(start, bodyLength);
+		dirty.add(activeSegment);
+		appended += recordSize;
+		return activeSegment;
+	}
+
+	/**
+	 * Returns the bytes appended since the journal was opened.
+	 */
+	long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * Returns the number of the segment the records are appended to.
+	 */
+	int getActiveSegment() {
+		return activeSegment;
+	}
+
+	/**
+	 * Takes the segments appended to since last taken.
+	 *
+	 * @return the segments to force
+	 */
+	List<MappedByteBuffer> takeDirty() {
+		List<MappedByteBuffer> ret = new ArrayList<MappedByteBuffer>(dirty.size());
+		for (Integer number : dirty) {
+			ret.add(segments.get(number));
+		}
+		dirty.clear();
+		return ret;
+	}
+
+	/**
+	 * Writes segments to the disk. It can be invoked concurrently with the other methods.
+	 *
+	 * @param buffers
+	 *            the segments taken with {@link #takeDirty()}
+	 */
+	static void force(List<MappedByteBuffer> buffers) {
+		for (MappedByteBuffer buffer : buffers) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Deletes the segments before the given one, which mustn't hold records needed any more.
+	 *
+	 * @param number
+	 *            the first segment to keep
+	 */
+	void deleteSegmentsBefore(int number) {
+		for (Iterator<Map.Entry<Integer, MappedByteBuffer>> it = segments.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, MappedByteBuffer> entry = it.next();
+			if (entry.getKey() >= number || entry.getKey() == activeSegment) {
+				break;
+			}
+			dirty.remove(entry.getKey());
+			it.remove();
+			File f = segmentFile(entry.getKey());
+			// The mapping is released once the buffer is collected, and some systems don't delete mapped files until then.
+			if (!f.delete()) {
+				f.deleteOnExit();
+			}
+			LOG.fine("Deleted segment '" + f + "'");
+		}
+	}
+
+	/**
+	 * Returns the number of the oldest segment.
+	 */
+	int getFirstSegment() {
+		return segments.firstKey();
+	}
+
+	/**
+	 * Forces and releases the segments.
+	 */
+	void close() {
+		force(new ArrayList<MappedByteBuffer>(segments.values()));
+		segments.clear();
+		dirty.clear();
+	}
+
+	private int replay(int number, MappedByteBuffer buffer, Visitor visitor) {
+		int position = 0;
+		int limit = buffer.capacity();
+		while (position + HEADER_SIZE <= limit) {
+			int bodyLength = buffer.getInt(position);
+			if (bodyLength == 0) {
+				break;
+			}
+			if (bodyLength < BODY_PREFIX_SIZE || position + HEADER_SIZE + bodyLength > limit) {
+				LOG.warning("Invalid record at " + position + " of segment " + number + ", ignoring the rest of the segment");
+				break;
+			}
+			int checksum = buffer.getInt(position + 4);
+			byte[] body = new byte[bodyLength];
+			buffer.position(position + HEADER_SIZE);
+			buffer.get(body);
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			if ((int) crc.getValue() != checksum) {
+				LOG.warning("Corrupted record at " + position + " of segment " + number + ", ignoring the rest of the segment");
+				break;
+			}
+			long sequence = 0;
+			for (int i = 1; i < BODY_PREFIX_SIZE; i++) {
+				sequence = (sequence << 8) | (body[i] & 0xFF);
+			}
+			visitor.record(number, body[0], sequence, Arrays.copyOfRange(body, BODY_PREFIX_SIZE, body.length));
+			position += HEADER_SIZE + bodyLength;
+		}
+		if (position + END_SIZE <= limit) {
+			// Anything after is garbage from a crash.
+			buffer.putInt(position, 0);
+		}
+		return position;
+	}
+
+	private MappedByteBuffer map(int number, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segmentFile(number), "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			segments.put(number, buffer);
+			return buffer;
+		} finally {
+			// The mapping stays valid.
+			raf.close();
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(folder, String.format("%010d", number) + SEGMENT_SUFFIX);
+	}
+
+	private List<File> listSegments() {
+		File[] files = folder.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().matches("\\d+\\" + SEGMENT_SUFFIX) && f.length() > 0;
+			}
+		});
+		List<File> ret = new ArrayList<File>();
+		if (files != null) {
+			ret.addAll(Arrays.asList(files));
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static int segmentNumber(File segment) {
+		String name = segment.getName();
+		return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
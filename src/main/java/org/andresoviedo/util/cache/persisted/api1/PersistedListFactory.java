@@ -11,6 +11,8 @@ public class PersistedListFactory {
 
 	final public static int TYPE_XML = 1;
 
+	final public static int TYPE_LOG_STRUCTURED = 2;
+
 	private PersistedListFactory() {
 	}
 
@@ -24,6 +26,9 @@ public class PersistedListFactory {
 		case TYPE_XML:
 			ret = new XMLPersistedList(targetFile);
 			break;
+		case TYPE_LOG_STRUCTURED:
+			ret = new LogStructuredPersistedList(targetFile);
+			break;
 		default:
 			throw new IllegalArgumentException("Non valid object storage type!!");
 		}
@@ -47,6 +52,12 @@ public class PersistedListFactory {
 			}
 			ret = new XMLPersistedList(targetFile);
 			break;
+		case TYPE_LOG_STRUCTURED:
+			if (!(Serializable.class.isAssignableFrom(clazz))) {
+				throw new IllegalArgumentException(clazz + " is not assignable to " + Serializable.class.toString());
+			}
+			ret = new LogStructuredPersistedList<T>(targetFile);
+			break;
 		default:
 			throw new IllegalArgumentException("Non valid object storage type!!");
 		}
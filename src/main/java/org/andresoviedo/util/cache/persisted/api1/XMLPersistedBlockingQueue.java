@@ -1,9 +1,12 @@
 package org.andresoviedo.util.cache.persisted.api1;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,16 +17,17 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.andresoviedo.util.cache.CacheSerializer;
 import org.w3c.dom.Document;
 
+/**
+ * A persisted queue of XML documents, stored in a {@link JournaledBlockingQueue}. Documents left as files by former versions are moved to
+ * the journal when the queue is created.
+ */
 public class XMLPersistedBlockingQueue {
 
 	private File dir;
-	private String _dir;
-	private DocumentBuilder builder;
-	private Transformer xformer;
-
-	private Vector<File> _files = new Vector<File>();
+	private JournaledBlockingQueue<Document> queue;
 
 	private Logger _logger = Logger.getLogger("");
 
@@ -32,50 +36,34 @@ public class XMLPersistedBlockingQueue {
 	}
 
 	public XMLPersistedBlockingQueue(String storageDir) {
-		_dir = storageDir;
-		try {
-			dir = new File(_dir);
-			builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			xformer = TransformerFactory.newInstance().newTransformer();
-			init();
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
+		dir = new File(storageDir);
+		_logger.logp(Level.INFO, "XMLPersistedBlockingQueue", "<init>", "Initializing directory [" + dir + "]");
+		queue = new JournaledBlockingQueue<Document>(dir, new DocumentSerializer(), Integer.MAX_VALUE,
+				JournaledBlockingQueue.DEFAULT_SEGMENT_SIZE);
+		migrateFiles();
 	}
 
-	private void init() {
-		initializeDirectory();
-		readDirectory();
-	}
-
-	private void initializeDirectory() {
-		_logger.logp(Level.INFO, "XMLPersistedBlockingQueue", "initializeDirectory", "Initializing directory [" + dir + "]");
-		if (!dir.exists()) {
-			boolean ret = dir.mkdirs();
-			_logger.logp(Level.INFO, "XMLPersistedBlockingQueue", "initializeDirectory", "Directory created [" + ret + "]");
-		}
+	/**
+	 * Returns the queue the documents are stored in, e.g. to receive them with acknowledgements.
+	 *
+	 * @return the queue
+	 */
+	public JournaledBlockingQueue<Document> getQueue() {
+		return queue;
 	}
 
-	private void readDirectory() {
-		File[] files = dir.listFiles();
-		if (files != null && files.length > 0) {
-			Arrays.sort(files);
-			for (int i = 0; i < files.length; i++) {
-				_files.add(files[i]);
-			}
-		}
+	/**
+	 * Closes the journal of the queue.
+	 */
+	public void close() {
+		queue.close();
 	}
 
 	// ------------------------------------------------------------------------ //
 
 	public void add(Document doc) {
 		try {
-			synchronized (_files) {
-				File f = getFreeFile();
-				xformer.transform(new DOMSource(doc), new StreamResult(f));
-				_files.add(f);
-				_files.notify();
-			}
+			queue.put(doc);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
@@ -90,62 +78,78 @@ public class XMLPersistedBlockingQueue {
 		if (max <= 0) {
 			throw new IllegalArgumentException("max <= 0");
 		}
-		Document[] ret = null;
-		Vector<Document> docs = new Vector<Document>();
-		synchronized (_files) {
-			// First checking
-			while (_files.isEmpty()) {
-				_files.wait();
-			}
-			for (Iterator<File> i = _files.iterator(); i.hasNext() && max > 0; max--) {
-				try {
-					// parse file
-					File f = (File) i.next();
-					Document doc = builder.parse(f);
-					docs.add(doc);
-
-					// Delete reference and file
-					i.remove();
-					f.delete();
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-			}
+		List<Document> docs = new ArrayList<Document>();
+		docs.add(queue.take());
+		queue.drainTo(docs, max - 1);
+		return docs.toArray(new Document[docs.size()]);
+	}
+
+	// ------------------------------------------------------------------------ //
+
+	private void migrateFiles() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
 		}
-		if (!docs.isEmpty()) {
-			ret = new Document[docs.size()];
-			for (int i = 0; i < docs.size(); i++) {
-				ret[i] = (Document) docs.elementAt(i);
+		Arrays.sort(files);
+		DocumentSerializer serializer = new DocumentSerializer();
+		for (int i = 0; i < files.length; i++) {
+			File f = files[i];
+			if (!f.isFile() || !f.getName().endsWith(".xml")) {
+				continue;
+			}
+			try {
+				queue.put(serializer.builders.get().parse(f));
+				f.delete();
+			} catch (Exception ex) {
+				_logger.logp(Level.WARNING, "XMLPersistedBlockingQueue", "migrateFiles", "Document not migrated [" + f + "]", ex);
 			}
 		}
-		return ret;
 	}
 
-	// ------------------------------------------------------------------------ //
+	/**
+	 * Serializes documents as XML, with a parser and a transformer per thread as they're not thread-safe.
+	 */
+	private static final class DocumentSerializer implements CacheSerializer {
 
-	private File getFreeFile() {
-		File ret = null;
-		File baseDir = new File(_dir + File.separator);
+		private final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>() {
+			@Override
+			protected DocumentBuilder initialValue() {
+				try {
+					return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
 
-		// Create dirs if they doesn't exists
-		if (!baseDir.exists()) {
-			baseDir.mkdirs();
+		private final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+			@Override
+			protected Transformer initialValue() {
+				try {
+					return TransformerFactory.newInstance().newTransformer();
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
+
+		public byte[] serialize(Object value) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+			try {
+				transformers.get().transform(new DOMSource((Document) value), new StreamResult(bytes));
+			} catch (Exception ex) {
+				throw new IOException("Document can't be serialized: " + ex.getMessage(), ex);
+			}
+			return bytes.toByteArray();
 		}
 
-		// Look for free file
-		int i = 0;
-		do {
-			String freeFileName = baseDir.getAbsolutePath() + File.separator + String.valueOf(System.currentTimeMillis()) + i + ".xml";
-			ret = new File(freeFileName);
-			i++;
-		} while (ret.exists());
-		return ret;
+		public Object deserialize(byte[] bytes) throws IOException {
+			try {
+				return builders.get().parse(new ByteArrayInputStream(bytes));
+			} catch (Exception ex) {
+				throw new IOException("Document can't be parsed: " + ex.getMessage(), ex);
+			}
+		}
 	}
-
-	// ------------------------------------------------------------------------ //
-	// Sorting by name
-	/*
-	 * public static void main(String[] args){ String[] array = new String[2]; array[0] = "hola_1"; array[1] = "hola"; Arrays.sort(array);
-	 * System.out.println("array[0]:"+array[0]); System.out.println("array[1]:"+array[1]); }
-	 */
 }
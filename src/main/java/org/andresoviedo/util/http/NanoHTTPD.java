@@ -60,6 +60,8 @@ import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -175,11 +177,30 @@ public abstract class NanoHTTPD {
             safeClose(this.acceptSocket);
         }
 
+        /**
+         * Sends a response without reading the request and closes the
+         * connection, i.e. to reject it when the server is overloaded.
+         * 
+         * @param response
+         *            the response to send.
+         */
+        public void reject(Response response) {
+            try {
+                response.setKeepAlive(false);
+                response.send(this.acceptSocket.getOutputStream());
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Could not reject the client", e);
+            } finally {
+                safeClose(response);
+                close();
+            }
+        }
+
         @Override
         public void run() {
             OutputStream outputStream = null;
             try {
-                outputStream = this.acceptSocket.getOutputStream();
+                outputStream = this.acceptSocket.getChannel() != null ? new ChannelOutputStream(this.acceptSocket) : this.acceptSocket.getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
                 HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
                 while (!this.acceptSocket.isClosed()) {
@@ -205,6 +226,65 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Implemented by the streams responses are sent to that can send regions
+     * of files without copying them through the heap.
+     */
+    public interface FileOutput {
+
+        /**
+         * Sends a region of a file, after the bytes already written. The
+         * stream owns the channel from then on and closes it once sent, which
+         * may happen after this method returns.
+         * 
+         * @param file
+         *            the file, closed once sent or on error.
+         * @param position
+         *            the position of the region in the file.
+         * @param count
+         *            the bytes of the region.
+         * @throws IOException
+         *             if the client can't be written.
+         */
+        void sendFile(FileChannel file, long position, long count) throws IOException;
+    }
+
+    /**
+     * The output of a plain socket, sending files with
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * so the kernel copies them to the socket.
+     */
+    private static class ChannelOutputStream extends FilterOutputStream implements FileOutput {
+
+        private final SocketChannel channel;
+
+        public ChannelOutputStream(Socket socket) throws IOException {
+            super(socket.getOutputStream());
+            this.channel = socket.getChannel();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException {
+            try {
+                while (count > 0) {
+                    long sent = file.transferTo(position, count, this.channel);
+                    if (sent <= 0 && position >= file.size()) {
+                        throw new IOException("File truncated while sending it");
+                    }
+                    position += sent;
+                    count -= sent;
+                }
+            } finally {
+                safeClose(file);
+            }
+        }
+    }
+
     public static class Cookie {
 
         public static String getHTTPTime(int days) {
@@ -246,7 +326,7 @@ public abstract class NanoHTTPD {
      * 
      * @author LordFokas
      */
-    public class CookieHandler implements Iterable<String> {
+    public static class CookieHandler implements Iterable<String> {
 
         private final HashMap<String, String> cookies = new HashMap<String, String>();
 
@@ -1126,6 +1206,7 @@ public abstract class NanoHTTPD {
             RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
             INTERNAL_ERROR(500, "Internal Server Error"),
             NOT_IMPLEMENTED(501, "Not Implemented"),
+            SERVICE_UNAVAILABLE(503, "Service Unavailable"),
             UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported");
 
             private final int requestStatus;
@@ -1259,6 +1340,13 @@ public abstract class NanoHTTPD {
             return this.data;
         }
 
+        /**
+         * @return the length of the data, or -1 if it's sent chunked.
+         */
+        public long getContentLength() {
+            return this.chunkedTransfer ? -1 : this.contentLength;
+        }
+
         public String getHeader(String name) {
             for (String headerName : header.keySet()) {
                 if (headerName.equalsIgnoreCase(name)) {
@@ -1297,9 +1385,10 @@ public abstract class NanoHTTPD {
         }
 
         /**
-         * Sends given response to the socket.
+         * Sends given response to the socket. It's public so that other
+         * servers can write nanohttpd responses.
          */
-        protected void send(OutputStream outputStream) {
+        public void send(OutputStream outputStream) {
             String mime = this.mimeType;
             SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
             gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -1378,7 +1467,8 @@ public abstract class NanoHTTPD {
         /**
          * Sends the body to the specified OutputStream. The pending parameter
          * limits the maximum amounts of bytes sent unless it is -1, in which
-         * case everything is sent.
+         * case everything is sent. Subclasses can override it to send other
+         * kinds of bodies, i.e. files to a {@link FileOutput}.
          * 
          * @param outputStream
          *            the OutputStream to send data to
@@ -1388,7 +1478,7 @@ public abstract class NanoHTTPD {
          * @throws IOException
          *             if something goes wrong while sending the data.
          */
-        private void sendBody(OutputStream outputStream, long pending) throws IOException {
+        protected void sendBody(OutputStream outputStream, long pending) throws IOException {
             long BUFFER_SIZE = 16 * 1024;
             byte[] buff = new byte[(int) BUFFER_SIZE];
             boolean sendEverything = pending == -1;
@@ -1952,7 +2042,8 @@ public abstract class NanoHTTPD {
             ss.setNeedClientAuth(false);
             this.myServerSocket = ss;
         } else {
-            this.myServerSocket = new ServerSocket();
+            // A channel backed socket lets responses send files with transferTo
+            this.myServerSocket = ServerSocketChannel.open().socket();
         }
         this.myServerSocket.setReuseAddress(true);
 
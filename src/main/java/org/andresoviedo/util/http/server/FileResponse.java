@@ -0,0 +1,281 @@
+package org.andresoviedo.util.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.FileOutput;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+
+/**
+ * A response serving a file, or a range of it. When the output of the connection is a {@link FileOutput} the file is sent without
+ * copying it through the heap, with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}; otherwise, i.e.
+ * over TLS or when compressing, it's read in chunks into a single buffer.
+ * <p>
+ * {@link #newFileResponse(IHTTPSession, File, String)} answers conditional requests: a strong ETag derived from the file key (the inode),
+ * the modification time and the size, so computing it reads nothing, is checked against <code>If-None-Match</code>, the modification
+ * time against <code>If-Modified-Since</code>, and single <code>Range</code> requests, guarded by <code>If-Range</code>, get a 206.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public final class FileResponse extends Response {
+
+	/**
+	 * The bytes read at once to send a file to a plain stream.
+	 */
+	private static final int COPY_BUFFER = 64 * 1024;
+
+	private final File file;
+
+	private final long offset;
+
+	private final long length;
+
+	FileResponse(Status status, String mimeType, File file, long offset, long length) {
+		super(status, mimeType, new ByteArrayInputStream(new byte[0]), length);
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Creates the response to a request of a file, evaluating its conditional and range headers.
+	 *
+	 * @param session
+	 *            the request
+	 * @param file
+	 *            the file to serve, which must exist
+	 * @param mimeType
+	 *            the mime type of the file
+	 * @return a 200 or 206 response sending the file, or a 304 or 416 one
+	 * @throws IOException
+	 *             if the attributes of the file can't be read
+	 */
+	public static Response newFileResponse(IHTTPSession session, File file, String mimeType) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		String etag = etag(attributes.fileKey(), lastModified, size);
+		String lastModifiedDate = formatDate(lastModified);
+		Map<String, String> headers = session.getHeaders();
+
+		// INFO: If-None-Match wins over If-Modified-Since (RFC 7232)
+		String ifNoneMatch = headers.get("if-none-match");
+		boolean notModified;
+		if (ifNoneMatch != null) {
+			notModified = matches(ifNoneMatch, etag);
+		} else {
+			long ifModifiedSince = parseDate(headers.get("if-modified-since"));
+			notModified = ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+		}
+		if (notModified && (session.getMethod() == Method.GET || session.getMethod() == Method.HEAD)) {
+			Response ret = NanoHTTPD.newFixedLengthResponse(Status.NOT_MODIFIED, null, (String) null);
+			addValidators(ret, etag, lastModifiedDate);
+			return ret;
+		}
+
+		String range = session.getMethod() == Method.GET ? headers.get("range") : null;
+		if (range != null && isCurrent(headers.get("if-range"), etag, lastModified)) {
+			long[] bounds = parseRange(range, size);
+			if (bounds == null) {
+				Response ret = NanoHTTPD.newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+				ret.addHeader("Content-Range", "bytes */" + size);
+				addValidators(ret, etag, lastModifiedDate);
+				return ret;
+			}
+			if (bounds.length == 2) {
+				long count = bounds[1] - bounds[0] + 1;
+				FileResponse ret = new FileResponse(Status.PARTIAL_CONTENT, mimeType, file, bounds[0], count);
+				ret.addHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+				// INFO: An explicit length disables compressing the part
+				ret.addHeader("Content-Length", String.valueOf(count));
+				addValidators(ret, etag, lastModifiedDate);
+				return ret;
+			}
+		}
+		FileResponse ret = new FileResponse(Status.OK, mimeType, file, 0, size);
+		addValidators(ret, etag, lastModifiedDate);
+		return ret;
+	}
+
+	@Override
+	protected void sendBody(OutputStream outputStream, long pending) throws IOException {
+		if (getRequestMethod() == Method.HEAD) {
+			return;
+		}
+		long count = pending < 0 ? length : Math.min(pending, length);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		if (outputStream instanceof FileOutput) {
+			((FileOutput) outputStream).sendFile(channel, offset, count);
+			return;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER, Math.max(count, 1)));
+			long position = offset;
+			while (count > 0) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count));
+				int n = channel.read(buffer, position);
+				if (n < 0) {
+					throw new IOException("File truncated while sending it");
+				}
+				outputStream.write(buffer.array(), 0, n);
+				position += n;
+				count -= n;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the ETag of the gzip representation of the file, which is different from the identity one
+	 */
+	static String gzipEtag(String etag) {
+		return etag.substring(0, etag.length() - 1) + "-gzip\"";
+	}
+
+	/**
+	 * @return a strong ETag that changes whenever the file is replaced or modified
+	 */
+	static String etag(Object fileKey, long lastModified, long size) {
+		StringBuffer ret = new StringBuffer("\"");
+		if (fileKey != null) {
+			// INFO: The whole key, i.e. device and inode, as a hash could collide. Separators are replaced so that it's a valid ETag and
+			// If-None-Match lists can be split by commas.
+			String key = fileKey.toString().replaceAll("[^0-9A-Za-z]+", ".").replaceAll("^\\.|\\.$", "");
+			ret.append(key).append('-');
+		}
+		return ret.append(Long.toHexString(lastModified)).append('-').append(Long.toHexString(size)).append('"').toString();
+	}
+
+	/**
+	 * Parses a single byte range.
+	 *
+	 * @return the first and last byte, an empty array if the header is ignored (i.e. multiple ranges), or <code>null</code> if it's not
+	 *         satisfiable
+	 */
+	static long[] parseRange(String range, long size) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		try {
+			long first;
+			long last;
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix <= 0 || size == 0) {
+					return null;
+				}
+				first = Math.max(0, size - suffix);
+				last = size - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String end = spec.substring(dash + 1).trim();
+				last = end.length() == 0 ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+				if (first < 0 || end.length() != 0 && Long.parseLong(end) < first) {
+					return new long[0];
+				}
+				if (first >= size) {
+					return null;
+				}
+			}
+			return new long[] { first, last };
+		} catch (NumberFormatException ex) {
+			return new long[0];
+		}
+	}
+
+	private static void addValidators(Response response, String etag, String lastModified) {
+		response.addHeader("ETag", etag);
+		response.addHeader("Last-Modified", lastModified);
+		response.addHeader("Accept-Ranges", "bytes");
+	}
+
+	/**
+	 * @return whether an <code>If-None-Match</code> header matches the ETag, or that of the gzip representation
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag) || candidate.equals(gzipEtag(etag))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the representation an <code>If-Range</code> header refers to is the current one
+	 */
+	private static boolean isCurrent(String ifRange, String etag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(etag);
+		}
+		long date = parseDate(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	private static SimpleDateFormat newDateFormat() {
+		SimpleDateFormat ret = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		ret.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return ret;
+	}
+
+	private static String formatDate(long millis) {
+		return newDateFormat().format(new Date(millis));
+	}
+
+	/**
+	 * @return the millis of an http date, or -1 if missing or malformed
+	 */
+	private static long parseDate(String date) {
+		if (date == null) {
+			return -1;
+		}
+		try {
+			return newDateFormat().parse(date.trim()).getTime();
+		} catch (ParseException ex) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FileResponse [file=" + file + ", offset=" + offset + ", length=" + length + "]";
+	}
+}
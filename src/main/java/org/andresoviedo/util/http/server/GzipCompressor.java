@@ -0,0 +1,514 @@
+package org.andresoviedo.util.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.andresoviedo.util.cache.BoundedCacheConfiguration;
+import org.andresoviedo.util.cache.BoundedCacheConfiguration.EvictionPolicy;
+import org.andresoviedo.util.cache.CacheStats;
+import org.andresoviedo.util.cache.CacheWeigher;
+import org.andresoviedo.util.cache.SpringBoundedCache;
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.pool.Lease;
+import org.andresoviedo.util.pool.ResourceFactory;
+import org.andresoviedo.util.pool.ResourcePool;
+import org.andresoviedo.util.pool.TimeoutException;
+import org.springframework.cache.Cache.ValueWrapper;
+
+/**
+ * Gzips the responses of the clients accepting it, so that identical payloads aren't compressed again on every hit.
+ * <p>
+ * Fixed length bodies up to {@link #setMaxCachedBody(int)} are compressed once and kept in a cache bounded in bytes, evicting the least
+ * recently used ones: {@link FileResponse}s by their ETag, so that they're not even read again, and other bodies by their SHA-256. A
+ * file with a newer <code>.gz</code> sibling is answered with the sibling, still sent without copying it through the heap. Larger or
+ * chunked bodies are compressed while sent, and bodies smaller than {@link #setMinSize(int)} aren't compressed.
+ * </p>
+ * <p>
+ * The deflaters are pooled, since creating one allocates its native buffers. When they're all in use the response is sent uncompressed
+ * rather than waiting for one, unless {@link #setBorrowTimeout(long)} allows a short wait. {@link #close()} releases them.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public class GzipCompressor {
+
+	private static final Logger LOG = Logger.getLogger(GzipCompressor.class.getName());
+
+	/**
+	 * The gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS.
+	 */
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final int level;
+
+	private final ResourcePool<Deflater> deflaters;
+
+	/**
+	 * The compressed bodies by ETag or digest, <code>null</code> if they're not cached.
+	 */
+	private final SpringBoundedCache cache;
+
+	/**
+	 * Bodies smaller than this aren't compressed.
+	 */
+	private int minSize = 1024;
+
+	/**
+	 * Bodies larger than this are compressed while sent, and not cached.
+	 */
+	private int maxCachedBody = 1024 * 1024;
+
+	/**
+	 * Millis to wait for a deflater when they're all in use, before sending the response uncompressed.
+	 */
+	private long borrowTimeout = 0;
+
+	/**
+	 * Creates a compressor with the default level and a cache of 16 MB.
+	 */
+	public GzipCompressor() {
+		this(6, 16 * 1024 * 1024);
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, from 1 (fastest) to 9 (smallest)
+	 * @param cacheBytes
+	 *            the maximum bytes of the cached compressed bodies, 0 not to cache them
+	 */
+	public GzipCompressor(final int level, long cacheBytes) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+		this.deflaters = new ResourcePool<Deflater>(new ResourceFactory<Deflater>() {
+
+			@Override
+			public Deflater create() {
+				return new Deflater(level, true);
+			}
+
+			@Override
+			public boolean validate(Deflater resource) {
+				return true;
+			}
+
+			@Override
+			public void destroy(Deflater resource) {
+				resource.end();
+			}
+		}, 0, Runtime.getRuntime().availableProcessors() * 2);
+		if (cacheBytes > 0) {
+			BoundedCacheConfiguration configuration = new BoundedCacheConfiguration();
+			configuration.setMaxEntries(0);
+			configuration.setMaxBytes(cacheBytes);
+			configuration.setEvictionPolicy(EvictionPolicy.SEGMENTED_LRU);
+			configuration.setWeigher(new CacheWeigher() {
+
+				@Override
+				public int weigh(Object key, Object value) {
+					return ((byte[]) value).length + 2 * key.toString().length();
+				}
+			});
+			this.cache = new SpringBoundedCache("gzip", configuration);
+		} else {
+			this.cache = null;
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param minSize
+	 *            bodies smaller than this aren't compressed, as the gzip framing may take more than it saves
+	 */
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @param maxCachedBody
+	 *            bodies larger than this are compressed while sent, and not cached
+	 */
+	public void setMaxCachedBody(int maxCachedBody) {
+		this.maxCachedBody = maxCachedBody;
+	}
+
+	/**
+	 * @param borrowTimeout
+	 *            millis to wait for a deflater when they're all in use, before sending the response uncompressed. 0, the default, doesn't
+	 *            wait.
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * @return the stats of the cache, <code>null</code> if it doesn't cache
+	 */
+	public CacheStats getCacheStats() {
+		return cache != null ? cache.getStats() : null;
+	}
+
+	/**
+	 * Compresses a response if the client accepts gzip and its mime type is compressible.
+	 *
+	 * @param session
+	 *            the request
+	 * @param response
+	 *            the response, which is updated or replaced
+	 * @return the response to send
+	 */
+	public Response compress(IHTTPSession session, Response response) {
+		if (response == null || !isCompressible(response.getMimeType()) || response.getHeader("content-encoding") != null
+				|| response.getHeader("content-length") != null) {
+			return response;
+		}
+		int status = response.getStatus().getRequestStatus();
+		if (status < 200 || status == Status.NO_CONTENT.getRequestStatus() || status == Status.PARTIAL_CONTENT.getRequestStatus()
+				|| status == Status.NOT_MODIFIED.getRequestStatus()) {
+			return response;
+		}
+		response.addHeader("Vary", "Accept-Encoding");
+		String acceptEncoding = session.getHeaders().get("accept-encoding");
+		if (acceptEncoding == null || !acceptEncoding.contains("gzip") || session.getMethod() == Method.HEAD) {
+			return response;
+		}
+		try {
+			if (response instanceof FileResponse) {
+				return compressFile((FileResponse) response);
+			}
+			long length = response.getContentLength();
+			if (length >= 0 && length < minSize) {
+				return response;
+			}
+			if (length >= 0 && length <= maxCachedBody) {
+				byte[] body = readFully(response.getData(), (int) length);
+				String key = digest(body);
+				byte[] compressed = lookup(key);
+				if (compressed == null) {
+					compressed = gzip(body);
+					if (compressed == null) {
+						response.setData(new ByteArrayInputStream(body));
+						return response;
+					}
+					store(key, compressed);
+				}
+				response.setData(new ByteArrayInputStream(compressed));
+				response.addHeader("Content-Length", String.valueOf(compressed.length));
+				response.addHeader("Content-Encoding", "gzip");
+				return response;
+			}
+			InputStream compressed = newGzipInputStream(response.getData());
+			if (compressed == null) {
+				return response;
+			}
+			response.setData(compressed);
+			response.setChunkedTransfer(true);
+			response.addHeader("Content-Encoding", "gzip");
+			return response;
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Could not compress the response", ex);
+			return NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Checks whether a mime type is worth compressing: text, json, javascript, xml and svg.
+	 *
+	 * @param mimeType
+	 *            the mime type of the response, may be <code>null</code>
+	 * @return <code>true</code> if it's compressible
+	 */
+	protected boolean isCompressible(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		}
+		String mime = mimeType.toLowerCase();
+		return mime.startsWith("text/") || mime.contains("json") || mime.contains("javascript") || mime.contains("xml");
+	}
+
+	private Response compressFile(FileResponse response) throws IOException {
+		File file = response.getFile();
+		String etag = response.getHeader("ETag");
+		File sibling = new File(file.getPath() + ".gz");
+		if (sibling.isFile() && sibling.lastModified() >= file.lastModified()) {
+			return encoded(response, new FileResponse(Status.OK, response.getMimeType(), sibling, 0, sibling.length()), etag);
+		}
+		long length = response.getContentLength();
+		if (length < minSize) {
+			return response;
+		}
+		if (length > maxCachedBody) {
+			InputStream compressed = newGzipInputStream(new FileInputStream(file));
+			if (compressed == null) {
+				return response;
+			}
+			return encoded(response, NanoHTTPD.newFixedLengthResponse(Status.OK, response.getMimeType(), compressed, -1), etag);
+		}
+		byte[] compressed = lookup(etag);
+		if (compressed == null) {
+			compressed = gzip(Files.readAllBytes(file.toPath()));
+			if (compressed == null) {
+				return response;
+			}
+			store(etag, compressed);
+		}
+		return encoded(response,
+				NanoHTTPD.newFixedLengthResponse(Status.OK, response.getMimeType(), new ByteArrayInputStream(compressed), compressed.length),
+				etag);
+	}
+
+	/**
+	 * Copies the validators of a file response to the response of its gzip representation.
+	 */
+	private static Response encoded(Response identity, Response encoded, String etag) {
+		encoded.addHeader("Content-Encoding", "gzip");
+		encoded.addHeader("Vary", "Accept-Encoding");
+		if (etag != null) {
+			encoded.addHeader("ETag", FileResponse.gzipEtag(etag));
+		}
+		String lastModified = identity.getHeader("Last-Modified");
+		if (lastModified != null) {
+			encoded.addHeader("Last-Modified", lastModified);
+		}
+		return encoded;
+	}
+
+	/**
+	 * @return the cached compressed body, <code>null</code> if missing
+	 */
+	private byte[] lookup(String key) {
+		if (cache == null || key == null) {
+			return null;
+		}
+		ValueWrapper ret = cache.get(key);
+		return ret != null ? (byte[]) ret.get() : null;
+	}
+
+	private void store(String key, byte[] compressed) {
+		if (cache != null && key != null) {
+			cache.put(key, compressed);
+		}
+	}
+
+	/**
+	 * @return the gzipped body, <code>null</code> if no deflater could be borrowed
+	 */
+	byte[] gzip(byte[] body) {
+		Lease<Deflater> lease = borrow();
+		if (lease == null) {
+			return null;
+		}
+		Deflater deflater = lease.get();
+		try {
+			deflater.setInput(body);
+			deflater.finish();
+			ByteArrayOutputStream ret = new ByteArrayOutputStream(body.length / 4 + 32);
+			ret.write(HEADER, 0, HEADER.length);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				ret.write(buffer, 0, n);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			byte[] trailer = trailer(crc.getValue(), body.length);
+			ret.write(trailer, 0, trailer.length);
+			return ret.toByteArray();
+		} finally {
+			deflater.reset();
+			lease.close();
+		}
+	}
+
+	/**
+	 * @return a stream gzipping the data while read, which returns its deflater when closed; <code>null</code> if no deflater could be
+	 *         borrowed
+	 */
+	private InputStream newGzipInputStream(InputStream data) {
+		Lease<Deflater> lease = borrow();
+		if (lease == null) {
+			return null;
+		}
+		return new GzipInputStream(data, lease);
+	}
+
+	/**
+	 * @return a deflater, <code>null</code> if the pool is exhausted or closed so the response has to go uncompressed
+	 */
+	private Lease<Deflater> borrow() {
+		try {
+			return deflaters.borrow(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			LOG.fine("No deflater available, sending uncompressed");
+			return null;
+		} catch (IllegalStateException ex) {
+			LOG.fine("Compressor closed, sending uncompressed");
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the pooled deflaters and clears the cache. Responses compressed while sent keep their deflater until they're closed, and
+	 * the responses served afterwards go uncompressed.
+	 */
+	public void close() {
+		deflaters.close();
+		if (cache != null) {
+			cache.close();
+		}
+	}
+
+	private static byte[] trailer(long crc, long size) {
+		return new byte[] { (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24), (byte) size, (byte) (size >> 8),
+				(byte) (size >> 16), (byte) (size >> 24) };
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		try {
+			byte[] ret = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(ret, read, length - read);
+				if (n < 0) {
+					throw new IOException("Body shorter than its length: " + read + " < " + length);
+				}
+				read += n;
+			}
+			return ret;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String digest(byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+			StringBuffer ret = new StringBuffer("sha256:");
+			for (byte b : digest) {
+				ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return ret.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "GzipCompressor [level=" + level + ", minSize=" + minSize + ", maxCachedBody=" + maxCachedBody + ", cache=" + cache + "]";
+	}
+
+	/**
+	 * Gzips a stream while it's read, with a pooled deflater.
+	 */
+	private static final class GzipInputStream extends InputStream {
+
+		private final InputStream in;
+
+		private final Lease<Deflater> lease;
+
+		private final Deflater deflater;
+
+		private final CRC32 crc = new CRC32();
+
+		private final byte[] input = new byte[8192];
+
+		/**
+		 * The header or the trailer, being read.
+		 */
+		private byte[] framing = HEADER;
+
+		private int framingRead;
+
+		private boolean trailer;
+
+		private boolean closed;
+
+		GzipInputStream(InputStream in, Lease<Deflater> lease) {
+			this.in = in;
+			this.lease = lease;
+			this.deflater = lease.get();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				if (framingRead < framing.length) {
+					int n = Math.min(len, framing.length - framingRead);
+					System.arraycopy(framing, framingRead, b, off, n);
+					framingRead += n;
+					return n;
+				}
+				if (trailer) {
+					return -1;
+				}
+				if (!deflater.finished()) {
+					if (deflater.needsInput()) {
+						int read = in.read(input);
+						if (read < 0) {
+							deflater.finish();
+						} else if (read > 0) {
+							crc.update(input, 0, read);
+							deflater.setInput(input, 0, read);
+						}
+					}
+					int n = deflater.deflate(b, off, len);
+					if (n > 0) {
+						return n;
+					}
+					continue;
+				}
+				framing = trailer(crc.getValue(), deflater.getBytesRead());
+				framingRead = 0;
+				trailer = true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			deflater.reset();
+			lease.close();
+			in.close();
+		}
+	}
+}
@@ -4,12 +4,22 @@ import java.io.IOException;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+
 public interface HttpService {
 
 	void addSupportHandler(RequestHandler handler);
 
 	void addHandler(RequestHandler handler);
 
+	/**
+	 * Routes the requests matching a method and path pattern to a handler, before trying the handlers added with
+	 * {@link #addHandler(RequestHandler)}. Path parameters are put into the session parameters.
+	 *
+	 * @see Router#add(Method, String, RequestHandler)
+	 */
+	void addRoute(Method method, String pattern, RequestHandler handler);
+
 	void start() throws IOException;
 
 	void stop();
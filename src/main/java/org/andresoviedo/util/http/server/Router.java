@@ -0,0 +1,446 @@
+package org.andresoviedo.util.http.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+
+/**
+ * Routes requests to handlers by method and path pattern. Patterns are made of segments separated by slashes, each of which can be a
+ * literal (<code>/users</code>), a parameter (<code>/users/{id}</code>) or, as the last one, a wildcard matching the rest of the path
+ * (<code>/static/*</code>). When several routes match, literals win over parameters, and parameters over wildcards.
+ * <p>
+ * Routes are kept in an immutable tree of path segments, rebuilt and replaced when a route is added, so lookups take no locks. A lookup
+ * walks the path without splitting it, and only allocates the values of the parameters and its result.
+ * </p>
+ *
+ * @author aoviedo
+ *
+ */
+public final class Router {
+
+	/**
+	 * The name of the parameter holding the path matched by a wildcard.
+	 */
+	public static final String WILDCARD = "*";
+
+	/**
+	 * The routes added, to rebuild the tree.
+	 */
+	private final List<Route> routes = new ArrayList<Route>();
+
+	/**
+	 * The current tree.
+	 */
+	private volatile Node root = new Node(new MutableNode());
+
+	/**
+	 * The maximum number of parameters of a route.
+	 */
+	private volatile int maxParameters;
+
+	/**
+	 * Adds a route.
+	 *
+	 * @param method
+	 *            the method, <code>null</code> for any
+	 * @param pattern
+	 *            the path pattern, i.e. <code>/users/{id}/orders/*</code>
+	 * @param handler
+	 *            the handler of the matching requests. Its {@link RequestHandler#canHandle(String)} isn't invoked.
+	 * @throws IllegalArgumentException
+	 *             if the pattern is malformed, conflicts with another one or is already routed for the method
+	 */
+	public synchronized void add(Method method, String pattern, RequestHandler handler) {
+		if (handler == null) {
+			throw new IllegalArgumentException("handler is required");
+		}
+		List<Route> newRoutes = new ArrayList<Route>(routes);
+		newRoutes.add(new Route(method, pattern, handler));
+		MutableNode newRoot = new MutableNode();
+		int newMaxParameters = 0;
+		for (Route route : newRoutes) {
+			newRoot.add(route);
+			newMaxParameters = Math.max(newMaxParameters, route.parameterNames.length);
+		}
+		routes.add(newRoutes.get(newRoutes.size() - 1));
+		maxParameters = newMaxParameters;
+		root = new Node(newRoot);
+	}
+
+	/**
+	 * @return whether no route was added
+	 */
+	public boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Finds the handler of a request.
+	 *
+	 * @param method
+	 *            the method of the request
+	 * @param path
+	 *            the decoded path of the request
+	 * @return the match, or <code>null</code> if no route matches
+	 */
+	public Match find(Method method, String path) {
+		Node tree = root;
+		if (tree.isEmpty()) {
+			return null;
+		}
+		int parameters = maxParameters;
+		return match(tree, path, 0, parameters == 0 ? null : new String[parameters], 0, method);
+	}
+
+	/**
+	 * Checks whether a path is routed for some method, to tell a request with an unsupported method from an unknown path.
+	 *
+	 * @param path
+	 *            the decoded path of the request
+	 * @return whether some route matches the path
+	 */
+	public boolean isRouted(String path) {
+		return find(null, path) != null;
+	}
+
+	@Override
+	public String toString() {
+		return "Router " + routes;
+	}
+
+	/**
+	 * Matches the segments of a path from an index, backtracking from literals to parameters to wildcards.
+	 */
+	private static Match match(Node node, String path, int from, String[] values, int count, Method method) {
+		int length = path.length();
+		while (from < length && path.charAt(from) == '/') {
+			from++;
+		}
+		if (from >= length) {
+			Match ret = node.endpoint != null ? node.endpoint.match(method, values, count) : null;
+			if (ret == null && node.wildcard != null) {
+				values[count] = "";
+				ret = node.wildcard.match(method, values, count + 1);
+			}
+			return ret;
+		}
+		int to = path.indexOf('/', from);
+		if (to < 0) {
+			to = length;
+		}
+		int literal = node.findLiteral(path, from, to);
+		if (literal >= 0) {
+			Match ret = match(node.children[literal], path, to, values, count, method);
+			if (ret != null) {
+				return ret;
+			}
+		}
+		if (node.parameterChild != null) {
+			values[count] = path.substring(from, to);
+			Match ret = match(node.parameterChild, path, to, values, count + 1, method);
+			if (ret != null) {
+				return ret;
+			}
+		}
+		if (node.wildcard != null) {
+			values[count] = path.substring(from);
+			return node.wildcard.match(method, values, count + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * A handler found for a request, with the values of the path parameters.
+	 */
+	public static final class Match {
+
+		private final RequestHandler handler;
+
+		private final String[] names;
+
+		private final String[] values;
+
+		private Match(RequestHandler handler, String[] names, String[] values) {
+			this.handler = handler;
+			this.names = names;
+			this.values = values;
+		}
+
+		public RequestHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @param name
+		 *            the name of the parameter, or {@link Router#WILDCARD}
+		 * @return its value, <code>null</code> if the route has no such parameter
+		 */
+		public String getParameter(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Puts the path parameters in a map, i.e. the parameters of the session.
+		 */
+		public void putParameters(Map<String, String> target) {
+			for (int i = 0; i < names.length; i++) {
+				target.put(names[i], values[i]);
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer("Match [handler=").append(handler);
+			for (int i = 0; i < names.length; i++) {
+				sb.append(", ").append(names[i]).append('=').append(values[i]);
+			}
+			return sb.append(']').toString();
+		}
+	}
+
+	/**
+	 * A route as added.
+	 */
+	private static final class Route {
+
+		private final Method method;
+
+		private final String pattern;
+
+		/**
+		 * The segments of the pattern.
+		 */
+		private final String[] segments;
+
+		private final String[] parameterNames;
+
+		private final RequestHandler handler;
+
+		private Route(Method method, String pattern, RequestHandler handler) {
+			if (pattern == null || !pattern.startsWith("/")) {
+				throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+			}
+			this.method = method;
+			this.pattern = pattern;
+			this.handler = handler;
+			List<String> segmentList = new ArrayList<String>();
+			List<String> names = new ArrayList<String>();
+			for (String segment : pattern.split("/")) {
+				if (segment.length() == 0) {
+					continue;
+				}
+				if (!segmentList.isEmpty() && WILDCARD.equals(segmentList.get(segmentList.size() - 1))) {
+					throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+				}
+				if (WILDCARD.equals(segment)) {
+					names.add(WILDCARD);
+				} else if (segment.startsWith("{") && segment.endsWith("}")) {
+					String name = segment.substring(1, segment.length() - 1);
+					if (name.length() == 0 || names.contains(name)) {
+						throw new IllegalArgumentException("Invalid parameter '" + segment + "' in pattern " + pattern);
+					}
+					names.add(name);
+				} else if (segment.contains("{") || segment.contains("}") || segment.contains("*")) {
+					throw new IllegalArgumentException("Invalid segment '" + segment + "' in pattern " + pattern);
+				}
+				segmentList.add(segment);
+			}
+			this.segments = segmentList.toArray(new String[segmentList.size()]);
+			this.parameterNames = names.toArray(new String[names.size()]);
+		}
+
+		@Override
+		public String toString() {
+			return (method != null ? method : "*") + " " + pattern;
+		}
+	}
+
+	/**
+	 * The handlers of a pattern, by method.
+	 */
+	private static final class Endpoint {
+
+		private final String pattern;
+
+		private final String[] parameterNames;
+
+		private final RequestHandler[] byMethod = new RequestHandler[Method.values().length];
+
+		private RequestHandler any;
+
+		private Endpoint(Route route) {
+			this.pattern = route.pattern;
+			this.parameterNames = route.parameterNames;
+		}
+
+		private void add(Route route) {
+			if (route.method == null ? any != null : byMethod[route.method.ordinal()] != null) {
+				throw new IllegalArgumentException("Route already added: " + route);
+			}
+			if (route.method == null) {
+				any = route.handler;
+			} else {
+				byMethod[route.method.ordinal()] = route.handler;
+			}
+		}
+
+		/**
+		 * @param method
+		 *            the method, <code>null</code> to match any handler
+		 */
+		private Match match(Method method, String[] values, int count) {
+			RequestHandler handler = method != null ? byMethod[method.ordinal()] : null;
+			if (handler == null) {
+				handler = any;
+			}
+			if (handler == null && method == null) {
+				for (RequestHandler h : byMethod) {
+					if (h != null) {
+						handler = h;
+						break;
+					}
+				}
+			}
+			if (handler == null) {
+				return null;
+			}
+			String[] matched = new String[count];
+			if (count > 0) {
+				System.arraycopy(values, 0, matched, 0, count);
+			}
+			return new Match(handler, parameterNames, matched);
+		}
+	}
+
+	/**
+	 * A node of the tree being built.
+	 */
+	private static final class MutableNode {
+
+		private final TreeMap<String, MutableNode> literals = new TreeMap<String, MutableNode>();
+
+		private String parameterName;
+
+		private MutableNode parameterChild;
+
+		private Endpoint wildcard;
+
+		private Endpoint endpoint;
+
+		private void add(Route route) {
+			MutableNode node = this;
+			for (int i = 0; i < route.segments.length; i++) {
+				String segment = route.segments[i];
+				if (WILDCARD.equals(segment)) {
+					if (node.wildcard == null) {
+						node.wildcard = new Endpoint(route);
+					}
+					node.wildcard.add(route);
+					return;
+				}
+				if (segment.startsWith("{")) {
+					String name = segment.substring(1, segment.length() - 1);
+					if (node.parameterChild == null) {
+						node.parameterName = name;
+						node.parameterChild = new MutableNode();
+					} else if (!node.parameterName.equals(name)) {
+						throw new IllegalArgumentException("Parameter '" + name + "' of " + route + " conflicts with '" + node.parameterName
+								+ "'");
+					}
+					node = node.parameterChild;
+				} else {
+					MutableNode child = node.literals.get(segment);
+					if (child == null) {
+						child = new MutableNode();
+						node.literals.put(segment, child);
+					}
+					node = child;
+				}
+			}
+			if (node.endpoint == null) {
+				node.endpoint = new Endpoint(route);
+			} else if (!node.endpoint.pattern.equals(route.pattern)) {
+				throw new IllegalArgumentException("Pattern of " + route + " conflicts with " + node.endpoint.pattern);
+			}
+			node.endpoint.add(route);
+		}
+	}
+
+	/**
+	 * An immutable node of the tree.
+	 */
+	private static final class Node {
+
+		/**
+		 * The literal segments of the children, sorted.
+		 */
+		private final String[] literals;
+
+		private final Node[] children;
+
+		private final Node parameterChild;
+
+		private final Endpoint wildcard;
+
+		private final Endpoint endpoint;
+
+		private Node(MutableNode node) {
+			this.literals = node.literals.keySet().toArray(new String[node.literals.size()]);
+			this.children = new Node[literals.length];
+			for (int i = 0; i < literals.length; i++) {
+				children[i] = new Node(node.literals.get(literals[i]));
+			}
+			this.parameterChild = node.parameterChild != null ? new Node(node.parameterChild) : null;
+			this.wildcard = node.wildcard;
+			this.endpoint = node.endpoint;
+		}
+
+		private boolean isEmpty() {
+			return literals.length == 0 && parameterChild == null && wildcard == null && endpoint == null;
+		}
+
+		/**
+		 * Binary searches the literal equal to a region of the path, without extracting it.
+		 *
+		 * @return the index of the literal, or -1 if none
+		 */
+		private int findLiteral(String path, int from, int to) {
+			int low = 0;
+			int high = literals.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = compare(literals[mid], path, from, to);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Compares a literal with a region of the path, as {@link String#compareTo(String)} does.
+		 */
+		private static int compare(String literal, String path, int from, int to) {
+			int length = Math.min(literal.length(), to - from);
+			for (int i = 0; i < length; i++) {
+				int cmp = literal.charAt(i) - path.charAt(from + i);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return literal.length() - (to - from);
+		}
+	}
+}
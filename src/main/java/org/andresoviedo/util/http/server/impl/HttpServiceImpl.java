@@ -1,20 +1,26 @@
 package org.andresoviedo.util.http.server.impl;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.server.GzipCompressor;
 import org.andresoviedo.util.http.server.HttpService;
 import org.andresoviedo.util.http.server.RequestHandler;
+import org.andresoviedo.util.http.server.Router;
 
 /**
  * Http service implementation using nanohttpd as the http server. This class adds support for registering handlers (or
  * servlets).
+ * <p>
+ * By default every connection is served by a new thread. A {@link PooledAsyncRunner} or a {@link VirtualThreadAsyncRunner} can be given
+ * instead to limit the connections, together with the time an idle connection is kept alive.
+ * </p>
  * 
  * @author andres
  *
@@ -23,11 +29,71 @@ public final class HttpServiceImpl extends NanoHTTPD implements HttpService {
 
 	private Logger LOG = Logger.getLogger(HttpServiceImpl.class.getName());
 
-	private final List<RequestHandler> handlers = new ArrayList<RequestHandler>();
-	private final List<RequestHandler> supportHandlers = new ArrayList<RequestHandler>();
+	private final List<RequestHandler> handlers = new CopyOnWriteArrayList<RequestHandler>();
+	private final List<RequestHandler> supportHandlers = new CopyOnWriteArrayList<RequestHandler>();
+	private final Router router = new Router();
+
+	/**
+	 * Compresses the responses, <code>null</code> not to compress them
+	 */
+	private volatile GzipCompressor compressor;
+
+	/**
+	 * Whether the compressor is created when the service is started and closed when it's stopped, i.e. none was set
+	 */
+	private volatile boolean ownsCompressor = true;
+
+	/**
+	 * Millis a connection waits for a request before being closed
+	 */
+	private final int idleTimeout;
 
 	public HttpServiceImpl(int port) {
+		this(port, new DefaultAsyncRunner(), SOCKET_READ_TIMEOUT);
+	}
+
+	/**
+	 * @param port
+	 *            the port to listen to
+	 * @param asyncRunner
+	 *            serves the connections, i.e. a {@link PooledAsyncRunner} or a {@link VirtualThreadAsyncRunner}
+	 * @param idleTimeout
+	 *            millis a connection waits for a request, including the next one of a kept alive connection, before being closed
+	 */
+	public HttpServiceImpl(int port, AsyncRunner asyncRunner, int idleTimeout) {
 		super(port);
+		setAsyncRunner(asyncRunner);
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return the runner serving the connections, to read its counters
+	 */
+	public AsyncRunner getAsyncRunner() {
+		return asyncRunner;
+	}
+
+	@Override
+	public void start() throws IOException {
+		start(idleTimeout);
+	}
+
+	@Override
+	public void start(int timeout, boolean daemon) throws IOException {
+		if (ownsCompressor) {
+			compressor = new GzipCompressor();
+		}
+		super.start(timeout, daemon);
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		GzipCompressor compressor = this.compressor;
+		if (ownsCompressor && compressor != null) {
+			compressor.close();
+			this.compressor = null;
+		}
 	}
 
 	public void addSupportHandler(RequestHandler handler) {
@@ -38,8 +104,36 @@ public final class HttpServiceImpl extends NanoHTTPD implements HttpService {
 		this.handlers.add(handler);
 	}
 
+	public void addRoute(Method method, String pattern, RequestHandler handler) {
+		this.router.add(method, pattern, handler);
+	}
+
+	/**
+	 * @param compressor
+	 *            compresses the responses of the clients accepting gzip, <code>null</code> not to compress them. It's left open when the
+	 *            service is stopped, the caller owns it; otherwise the service creates one of its own on each start.
+	 */
+	public void setCompressor(GzipCompressor compressor) {
+		this.ownsCompressor = false;
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Responses are compressed by the {@link GzipCompressor} when served, not by nanohttpd when sent.
+	 */
+	@Override
+	protected boolean useGzipWhenAccepted(Response r) {
+		return false;
+	}
+
 	@Override
 	public Response serve(IHTTPSession session) {
+		Response response = dispatch(session);
+		GzipCompressor compressor = this.compressor;
+		return compressor != null ? compressor.compress(session, response) : response;
+	}
+
+	private Response dispatch(IHTTPSession session) {
 		try {
 			Map<String, String> files = new HashMap<String, String>();
 			Method method = session.getMethod();
@@ -68,17 +162,27 @@ public final class HttpServiceImpl extends NanoHTTPD implements HttpService {
 				}
 			}
 
-			// INFO: Handle request with the first capable handler
-			synchronized (handlers) {
-				for (RequestHandler handler : handlers) {
+			Router.Match match = router.find(method, session.getUri());
+			if (match != null) {
+				match.putParameters(parms);
+				Response handlerResponse = match.getHandler().handle(session);
+				LOG.fine("Routed response '" + handlerResponse + "'");
+				return handlerResponse;
+			}
 
-					if (!handler.canHandle(session.getUri()))
-						continue;
+			// INFO: Handle request with the first capable handler. Handlers are served concurrently.
+			for (RequestHandler handler : handlers) {
 
-					Response handlerResponse = handler.handle(session);
-					LOG.fine("Response '" + handlerResponse + "'");
-					return handlerResponse;
-				}
+				if (!handler.canHandle(session.getUri()))
+					continue;
+
+				Response handlerResponse = handler.handle(session);
+				LOG.fine("Response '" + handlerResponse + "'");
+				return handlerResponse;
+			}
+
+			if (router.isRouted(session.getUri())) {
+				return newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "text/plain", "Method " + method + " not allowed");
 			}
 
 			// INFO: We don't have a handler for this request. Return error!
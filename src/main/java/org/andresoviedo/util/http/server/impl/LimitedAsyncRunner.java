@@ -0,0 +1,183 @@
+package org.andresoviedo.util.http.server.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.AsyncRunner;
+import org.andresoviedo.util.http.NanoHTTPD.ClientHandler;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+
+/**
+ * Nanohttpd async runner which limits the number of open connections. Connections over the limit, or which the underlying executor
+ * can't take, are rejected with a <code>503 Service Unavailable</code> response instead of being served, so that the server keeps
+ * working under a connection storm.
+ * <p>
+ * It counts the open, active, queued, rejected and completed connections.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public abstract class LimitedAsyncRunner implements AsyncRunner {
+
+	private static final Logger LOG = Logger.getLogger(LimitedAsyncRunner.class.getName());
+
+	/**
+	 * The maximum number of open connections, 0 for no limit.
+	 */
+	private final int maxConnections;
+
+	/**
+	 * The open connections, to close them all.
+	 */
+	private final Set<ClientHandler> connections = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
+
+	/**
+	 * The number of open connections, including the queued ones.
+	 */
+	private final AtomicInteger open = new AtomicInteger();
+
+	/**
+	 * The number of connections being served by a thread.
+	 */
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	/**
+	 * @param maxConnections
+	 *            the maximum number of open connections, 0 for no limit.
+	 */
+	protected LimitedAsyncRunner(int maxConnections) {
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("maxConnections can't be negative: " + maxConnections);
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Runs the task serving a connection.
+	 *
+	 * @param task
+	 *            the task
+	 * @throws RejectedExecutionException
+	 *             if the task can't be taken now
+	 */
+	protected abstract void dispatch(Runnable task);
+
+	@Override
+	public void exec(final ClientHandler clientHandler) {
+		if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+			open.decrementAndGet();
+			reject(clientHandler, "Too many connections");
+			return;
+		}
+		connections.add(clientHandler);
+		try {
+			dispatch(new Runnable() {
+				public void run() {
+					active.incrementAndGet();
+					try {
+						clientHandler.run();
+					} finally {
+						active.decrementAndGet();
+					}
+				}
+			});
+			accepted.incrementAndGet();
+		} catch (RejectedExecutionException ex) {
+			connections.remove(clientHandler);
+			open.decrementAndGet();
+			reject(clientHandler, "Server busy");
+		}
+	}
+
+	@Override
+	public void closed(ClientHandler clientHandler) {
+		if (connections.remove(clientHandler)) {
+			open.decrementAndGet();
+			completed.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void closeAll() {
+		for (ClientHandler clientHandler : connections) {
+			clientHandler.close();
+		}
+	}
+
+	/**
+	 * @return the maximum number of open connections, 0 for no limit.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return the number of open connections, including the queued ones.
+	 */
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	/**
+	 * @return the number of connections being served by a thread.
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of connections waiting for a thread.
+	 */
+	public int getQueuedCount() {
+		return Math.max(0, open.get() - active.get());
+	}
+
+	/**
+	 * @return the number of connections accepted.
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return the number of connections rejected.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of connections closed after being served.
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	private void reject(ClientHandler clientHandler, String reason) {
+		rejected.incrementAndGet();
+		LOG.fine("Rejecting connection: " + reason);
+		Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, reason);
+		response.addHeader("Retry-After", "1");
+		clientHandler.reject(response);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [open=" + open + ", active=" + active + ", rejected=" + rejected + ", completed=" + completed
+				+ "]";
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.andresoviedo.util.http.server.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nanohttpd async runner which serves the connections with a bounded pool of threads. Connections are queued while all the threads are
+ * busy, and rejected with a <code>503</code> once the queue is full.
+ * <p>
+ * A connection holds its thread while it's kept alive, so the idle timeout of the server should be short.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public class PooledAsyncRunner extends LimitedAsyncRunner {
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param threads
+	 *            the maximum number of threads serving connections.
+	 * @param queueCapacity
+	 *            the maximum number of connections waiting for a thread.
+	 * @param maxConnections
+	 *            the maximum number of open connections, 0 for no limit other than the threads and the queue.
+	 */
+	public PooledAsyncRunner(int threads, int queueCapacity, int maxConnections) {
+		super(maxConnections);
+		BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity)
+				: new SynchronousQueue<Runnable>();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+			private final AtomicLong requestCount = new AtomicLong();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NanoHttpd Request Processor (#" + requestCount.incrementAndGet() + ")");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	protected void dispatch(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * @return the number of threads in the pool.
+	 */
+	public int getPoolSize() {
+		return executor.getPoolSize();
+	}
+
+	/**
+	 * Stops the threads once the connections being served are closed. The runner can't be used afterwards.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.andresoviedo.util.http.server.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Nanohttpd async runner which serves every connection with a new virtual thread, so blocked connections cost little memory and no
+ * platform thread. The only limit is the number of open connections.
+ * <p>
+ * Virtual threads are available from JDK 21. As the library is built for older JDKs, they're created through reflection; check
+ * {@link #isAvailable()} before using this runner.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public class VirtualThreadAsyncRunner extends LimitedAsyncRunner {
+
+	private static final Logger LOG = Logger.getLogger(VirtualThreadAsyncRunner.class.getName());
+
+	/**
+	 * Creates the virtual threads, <code>null</code> if they're not available.
+	 */
+	private static final ThreadFactory FACTORY = createFactory();
+
+	/**
+	 * @param maxConnections
+	 *            the maximum number of open connections, 0 for no limit.
+	 * @throws UnsupportedOperationException
+	 *             if the JDK doesn't support virtual threads.
+	 */
+	public VirtualThreadAsyncRunner(int maxConnections) {
+		super(maxConnections);
+		if (FACTORY == null) {
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+		}
+	}
+
+	/**
+	 * @return whether the JDK supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		return FACTORY != null;
+	}
+
+	@Override
+	protected void dispatch(Runnable task) {
+		FACTORY.newThread(task).start();
+	}
+
+	private static ThreadFactory createFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "NanoHttpd Request Processor #", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception ex) {
+			// INFO: Older JDK, or virtual threads still in preview
+			LOG.log(Level.FINE, "Virtual threads not available", ex);
+			return null;
+		}
+	}
+
+}
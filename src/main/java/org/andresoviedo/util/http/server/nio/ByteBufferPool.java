@@ -0,0 +1,62 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers of the same size. Direct buffers are expensive to allocate but are read and written by the channels without
+ * copies, so they're kept for reuse.
+ *
+ * @author andres
+ *
+ */
+final class ByteBufferPool {
+
+	private final int bufferSize;
+
+	/**
+	 * The maximum number of buffers kept.
+	 */
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer ret = buffers.poll();
+		if (ret == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		ret.clear();
+		return ret;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers not from the pool are ignored.
+	 */
+	void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.ResponseException;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+
+/**
+ * Incremental parser of the head of HTTP/1.1 requests. It scans the bytes where they were read, remembering how far it got, so a head
+ * split in several reads is scanned once and never copied; only the tokens are decoded to strings, without regular expressions.
+ * <p>
+ * Leading empty lines between pipelined requests are skipped. Header names are lower cased, as nanohttpd does, and repeated headers are
+ * joined with commas.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+final class HttpRequestParser {
+
+	/**
+	 * The bytes of the current head already scanned for its end, relative to the buffer position.
+	 */
+	private int scanned;
+
+	/**
+	 * The start of the current line, relative to the buffer position.
+	 */
+	private int lineStart;
+
+	private Method method;
+
+	private String target;
+
+	private String protocolVersion;
+
+	private Map<String, String> headers;
+
+	/**
+	 * Parses the head of a request from the bytes between the position and the limit of a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer, in read mode
+	 * @return whether the head is complete, in which case the buffer is positioned after it
+	 * @throws ResponseException
+	 *             if the head is malformed
+	 */
+	boolean parse(ByteBuffer buffer) throws ResponseException {
+		int position = buffer.position();
+		while (position + scanned < buffer.limit()) {
+			byte b = buffer.get(position + scanned++);
+			if (b != '\n') {
+				continue;
+			}
+			int lineEnd = position + scanned - 1;
+			if (lineEnd > position + lineStart && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			if (lineEnd > position + lineStart) {
+				lineStart = scanned;
+			} else if (lineStart == 0) {
+				// Empty line before the request
+				position += scanned;
+				buffer.position(position);
+				scanned = 0;
+			} else {
+				parseHead(buffer, position, position + scanned);
+				buffer.position(position + scanned);
+				scanned = 0;
+				lineStart = 0;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bytes of the current head scanned so far
+	 */
+	int getScanned() {
+		return scanned;
+	}
+
+	Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the request target, with the query string
+	 */
+	String getTarget() {
+		return target;
+	}
+
+	String getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	private void parseHead(ByteBuffer buffer, int from, int to) throws ResponseException {
+		headers = new HashMap<String, String>();
+		boolean requestLine = true;
+		int lineFrom = from;
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) != '\n') {
+				continue;
+			}
+			int lineTo = i > lineFrom && buffer.get(i - 1) == '\r' ? i - 1 : i;
+			if (lineTo > lineFrom) {
+				if (requestLine) {
+					parseRequestLine(buffer, lineFrom, lineTo);
+					requestLine = false;
+				} else {
+					parseHeader(buffer, lineFrom, lineTo);
+				}
+			}
+			lineFrom = i + 1;
+		}
+	}
+
+	private void parseRequestLine(ByteBuffer buffer, int from, int to) throws ResponseException {
+		int methodEnd = indexOf(buffer, from, to, (byte) ' ');
+		if (methodEnd < 0) {
+			throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+		}
+		String methodName = decode(buffer, from, methodEnd, false);
+		method = null;
+		for (Method m : Method.values()) {
+			if (m.name().equals(methodName)) {
+				method = m;
+				break;
+			}
+		}
+		if (method == null) {
+			throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Unsupported method '" + methodName + "'");
+		}
+		int targetStart = methodEnd + 1;
+		int targetEnd = indexOf(buffer, targetStart, to, (byte) ' ');
+		if (targetEnd < 0) {
+			// HTTP/0.9 style, served as HTTP/1.1 as nanohttpd does
+			targetEnd = to;
+			protocolVersion = "HTTP/1.1";
+		} else {
+			protocolVersion = decode(buffer, targetEnd + 1, to, false).trim();
+		}
+		if (targetEnd == targetStart) {
+			throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+		}
+		target = decode(buffer, targetStart, targetEnd, false);
+	}
+
+	private void parseHeader(ByteBuffer buffer, int from, int to) throws ResponseException {
+		int colon = indexOf(buffer, from, to, (byte) ':');
+		if (colon <= from) {
+			throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Malformed header");
+		}
+		int valueFrom = colon + 1;
+		while (valueFrom < to && isWhitespace(buffer.get(valueFrom))) {
+			valueFrom++;
+		}
+		int valueTo = to;
+		while (valueTo > valueFrom && isWhitespace(buffer.get(valueTo - 1))) {
+			valueTo--;
+		}
+		String name = decode(buffer, from, colon, true).trim();
+		String value = decode(buffer, valueFrom, valueTo, false);
+		String previous = headers.put(name, value);
+		if (previous != null) {
+			headers.put(name, previous + ", " + value);
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes ISO-8859-1 bytes, optionally lower casing them.
+	 */
+	private static String decode(ByteBuffer buffer, int from, int to, boolean lowerCase) {
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; i++) {
+			int c = buffer.get(from + i) & 0xFF;
+			if (lowerCase && c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			chars[i] = (char) c;
+		}
+		return new String(chars);
+	}
+}
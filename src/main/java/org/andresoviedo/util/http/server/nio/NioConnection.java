@@ -0,0 +1,631 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.FileOutput;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.ResponseException;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.http.server.GzipCompressor;
+
+/**
+ * A connection of the {@link NioHttpServiceImpl}. The event loop reads and parses its requests and writes its responses, while the
+ * handlers run in the worker threads.
+ * <p>
+ * Requests are served one at a time, in order: the bytes of pipelined requests are kept in the input buffer until the response of the
+ * previous one is written, and then parsed without waiting for the network. Responses are written by the worker to pooled buffers which
+ * the loop writes to the channel; a worker producing faster than the client reads waits once a limit of bytes is queued. Files are queued
+ * as regions the loop transfers to the channel with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * </p>
+ * <p>
+ * Unless noted, methods are invoked by the loop.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+final class NioConnection {
+
+	private static final Logger LOG = Logger.getLogger(NioConnection.class.getName());
+
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+	/**
+	 * The maximum length of the lines of chunked bodies.
+	 */
+	private static final int MAX_CHUNK_LINE = 1024;
+
+	/**
+	 * Marks the end of a response in the write queue, keeping the connection open.
+	 */
+	private static final Object END = new Object();
+
+	/**
+	 * Marks the end of a response in the write queue, closing the connection.
+	 */
+	private static final Object END_CLOSE = new Object();
+
+	/**
+	 * What the loop is reading.
+	 */
+	private enum State {
+		HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER
+	}
+
+	private final NioHttpServiceImpl server;
+
+	private final SocketChannel channel;
+
+	private final SelectionKey key;
+
+	private final ByteBufferPool pool;
+
+	/**
+	 * The bytes read and not processed, in write mode.
+	 */
+	private ByteBuffer in;
+
+	private final HttpRequestParser parser = new HttpRequestParser();
+
+	private State state = State.HEAD;
+
+	/**
+	 * The bytes of the body, or of the chunk, still to read.
+	 */
+	private long bodyRemaining;
+
+	/**
+	 * The body of the request being read.
+	 */
+	private RequestBody body;
+
+	/**
+	 * Whether a request is being served, until its response is written.
+	 */
+	private boolean inFlight;
+
+	/**
+	 * Whether the client shut down its output.
+	 */
+	private boolean inputShutdown;
+
+	/**
+	 * Whether reading is paused until the handler reads the body.
+	 */
+	private boolean readPaused;
+
+	/**
+	 * Millis of the last read or write.
+	 */
+	private long lastActivity = System.currentTimeMillis();
+
+	/**
+	 * Buffers and file regions to write, and end marks.
+	 */
+	private final ConcurrentLinkedQueue<Object> writeQueue = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * Guards the queued bytes, workers wait on it.
+	 */
+	private final Object writeLock = new Object();
+
+	private long queuedBytes;
+
+	private volatile boolean closed;
+
+	/**
+	 * Whether the worker asked the loop to resume reading.
+	 */
+	private final AtomicBoolean resumeRequested = new AtomicBoolean();
+
+	NioConnection(NioHttpServiceImpl server, SocketChannel channel, SelectionKey key, ByteBufferPool pool) {
+		this.server = server;
+		this.channel = channel;
+		this.key = key;
+		this.pool = pool;
+		this.in = pool.acquire();
+	}
+
+	boolean isIdle(long now, int idleTimeout) {
+		return !inFlight && state == State.HEAD && now - lastActivity > idleTimeout;
+	}
+
+	void onReadable() throws IOException {
+		int read = channel.read(in);
+		if (read < 0) {
+			inputShutdown = true;
+			if (body != null && !body.isComplete()) {
+				body.fail(new IOException("Connection closed by the client"));
+			}
+			if (!inFlight) {
+				close();
+				return;
+			}
+		} else if (read > 0) {
+			lastActivity = System.currentTimeMillis();
+		}
+		process();
+		updateInterest();
+	}
+
+	void onWritable() throws IOException {
+		flushWrites();
+		updateInterest();
+	}
+
+	/**
+	 * Invoked when a worker queued bytes or drained the body.
+	 */
+	void onWakeup() throws IOException {
+		if (closed) {
+			return;
+		}
+		if (resumeRequested.getAndSet(false)) {
+			readPaused = false;
+			process();
+		}
+		flushWrites();
+		if (!closed) {
+			updateInterest();
+		}
+	}
+
+	/**
+	 * Processes the bytes read: parses heads, starts requests and feeds bodies.
+	 */
+	private void process() throws IOException {
+		in.flip();
+		try {
+			while (!closed && !readPaused) {
+				if (state == State.HEAD) {
+					if (inFlight || !in.hasRemaining()) {
+						return;
+					}
+					boolean complete;
+					try {
+						complete = parser.parse(in);
+					} catch (ResponseException e) {
+						fail(e.getStatus(), e.getMessage());
+						return;
+					}
+					if (!complete) {
+						if (parser.getScanned() >= in.capacity()) {
+							fail(Status.BAD_REQUEST, "BAD REQUEST: Request header too large");
+						}
+						return;
+					}
+					startRequest();
+				} else if (state == State.BODY || state == State.CHUNK_DATA) {
+					if (!in.hasRemaining()) {
+						return;
+					}
+					int offered = body.offer(in, (int) Math.min(in.remaining(), bodyRemaining));
+					if (offered == 0) {
+						readPaused = true;
+						return;
+					}
+					bodyRemaining -= offered;
+					if (bodyRemaining == 0) {
+						if (state == State.BODY) {
+							body.complete();
+							state = State.HEAD;
+						} else {
+							state = State.CHUNK_END;
+						}
+					}
+				} else {
+					String line = readLine();
+					if (line == null) {
+						return;
+					}
+					processChunkLine(line);
+				}
+			}
+		} finally {
+			in.compact();
+		}
+	}
+
+	private void processChunkLine(String line) {
+		if (state == State.CHUNK_SIZE) {
+			int extension = line.indexOf(';');
+			try {
+				bodyRemaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+			} catch (NumberFormatException e) {
+				fail(Status.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+				return;
+			}
+			state = bodyRemaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+		} else if (state == State.CHUNK_END) {
+			state = State.CHUNK_SIZE;
+		} else if (line.length() == 0) {
+			// End of the trailer
+			body.complete();
+			state = State.HEAD;
+		}
+	}
+
+	/**
+	 * Reads a line of a chunked body.
+	 *
+	 * @return the line, or <code>null</code> if it's not complete
+	 */
+	private String readLine() {
+		int start = in.position();
+		for (int i = start; i < in.limit(); i++) {
+			if (in.get(i) == '\n') {
+				int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+				StringBuilder ret = new StringBuilder(end - start);
+				for (int j = start; j < end; j++) {
+					ret.append((char) (in.get(j) & 0xFF));
+				}
+				in.position(i + 1);
+				return ret.toString();
+			}
+		}
+		if (in.remaining() > MAX_CHUNK_LINE) {
+			fail(Status.BAD_REQUEST, "BAD REQUEST: Chunk line too long");
+		}
+		return null;
+	}
+
+	private void startRequest() {
+		Map<String, String> headers = parser.getHeaders();
+		headers.put("remote-addr", server.getRemoteAddress(channel));
+		String transferEncoding = headers.get("transfer-encoding");
+		String contentLength = headers.get("content-length");
+		if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+			state = State.CHUNK_SIZE;
+		} else if (contentLength != null) {
+			try {
+				bodyRemaining = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				bodyRemaining = -1;
+			}
+			if (bodyRemaining < 0) {
+				fail(Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length");
+				return;
+			}
+			state = bodyRemaining > 0 ? State.BODY : State.HEAD;
+		}
+		body = new RequestBody(server.getBodyWindow(), server.getIdleTimeout(), new Runnable() {
+			public void run() {
+				resumeRequested.set(true);
+				server.wakeup(NioConnection.this);
+			}
+		});
+		if (state == State.HEAD) {
+			body.complete();
+		}
+		String version = parser.getProtocolVersion();
+		String connection = headers.get("connection");
+		boolean keepAlive = "HTTP/1.1".equals(version) ? connection == null || !connection.toLowerCase().contains("close")
+				: connection != null && connection.toLowerCase().contains("keep-alive");
+		if (state != State.HEAD && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+			queueWrite(ByteBuffer.wrap(CONTINUE));
+		}
+		final NioHttpSession session = new NioHttpSession(parser.getMethod(), parser.getTarget(), headers, body,
+				server.getMaxParsedBody());
+		inFlight = true;
+		final boolean finalKeepAlive = keepAlive;
+		try {
+			server.getExecutor().execute(new Runnable() {
+				public void run() {
+					serve(session, finalKeepAlive);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			respond(NanoHTTPD.newFixedLengthResponse(Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "Server busy"), false);
+		}
+	}
+
+	/**
+	 * Serves a request, invoked by a worker.
+	 */
+	private void serve(NioHttpSession session, boolean keepAlive) {
+		Response response = server.handle(session);
+		GzipCompressor compressor = server.getCompressor();
+		if (compressor != null) {
+			response = compressor.compress(session, response);
+		}
+		session.getCookies().unloadQueue(response);
+		response.setRequestMethod(session.getMethod());
+		boolean close = !keepAlive || "close".equalsIgnoreCase(response.getHeader("connection"));
+		response.setKeepAlive(!close);
+		ResponseOutputStream out = new ResponseOutputStream();
+		try {
+			response.send(out);
+		} finally {
+			// INFO: Releases the body, i.e. a pooled deflater, if sending failed
+			try {
+				response.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Could not close the response", e);
+			}
+		}
+		out.finish(close);
+	}
+
+	/**
+	 * Answers a malformed request with an error, closing the connection. If the request is already being served, its body fails and the
+	 * connection is closed after the response.
+	 */
+	private void fail(Status status, String message) {
+		LOG.fine("Bad request from " + server.getRemoteAddress(channel) + ": " + message);
+		readPaused = true;
+		if (inFlight) {
+			body.fail(new IOException(message));
+			inputShutdown = true;
+		} else {
+			respond(NanoHTTPD.newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message), true);
+		}
+	}
+
+	/**
+	 * Queues a response produced by the loop.
+	 */
+	private void respond(Response response, boolean close) {
+		response.setKeepAlive(!close);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		response.send(out);
+		inFlight = true;
+		queueWrite(ByteBuffer.wrap(out.toByteArray()));
+		writeQueue.add(close ? END_CLOSE : END);
+	}
+
+	/**
+	 * Writes the queued buffers until the channel is full.
+	 */
+	private void flushWrites() throws IOException {
+		Object head;
+		while (!closed && (head = writeQueue.peek()) != null) {
+			if (head instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) head;
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					return;
+				}
+				lastActivity = System.currentTimeMillis();
+				writeQueue.poll();
+				pool.release(buffer);
+				synchronized (writeLock) {
+					queuedBytes -= buffer.limit();
+					writeLock.notifyAll();
+				}
+			} else if (head instanceof FileRegion) {
+				FileRegion region = (FileRegion) head;
+				if (!region.transfer(channel)) {
+					return;
+				}
+				lastActivity = System.currentTimeMillis();
+				writeQueue.poll();
+				region.close();
+			} else {
+				writeQueue.poll();
+				endResponse(head == END_CLOSE);
+			}
+		}
+	}
+
+	private void endResponse(boolean close) throws IOException {
+		inFlight = false;
+		if (body != null && !body.isComplete()) {
+			// The handler didn't read the whole body, it's skipped
+			body.discard();
+			readPaused = false;
+		}
+		if (close || inputShutdown) {
+			close();
+			return;
+		}
+		// Pipelined requests already read
+		process();
+	}
+
+	private void updateInterest() {
+		if (closed || !key.isValid()) {
+			return;
+		}
+		int ops = 0;
+		if (!readPaused && !inputShutdown && in.hasRemaining()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!writeQueue.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Queues bytes to write, from any thread.
+	 */
+	private void queueWrite(ByteBuffer buffer) {
+		synchronized (writeLock) {
+			queuedBytes += buffer.limit();
+		}
+		writeQueue.add(buffer);
+	}
+
+	/**
+	 * Closes the connection, failing the body being read and the worker writing.
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		synchronized (writeLock) {
+			closed = true;
+			writeLock.notifyAll();
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Could not close the connection", e);
+		}
+		if (body != null) {
+			body.fail(new IOException("Connection closed"));
+		}
+		Object queued;
+		while ((queued = writeQueue.poll()) != null) {
+			if (queued instanceof ByteBuffer) {
+				pool.release((ByteBuffer) queued);
+			} else if (queued instanceof FileRegion) {
+				((FileRegion) queued).close();
+			}
+		}
+		pool.release(in);
+		server.closed(this);
+	}
+
+	/**
+	 * Writes a response to pooled buffers queued to the connection, used by a worker. It waits when too many bytes are queued.
+	 */
+	private final class ResponseOutputStream extends OutputStream implements FileOutput {
+
+		private ByteBuffer current;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (current == null) {
+					current = pool.acquire();
+				}
+				int n = Math.min(len, current.remaining());
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!current.hasRemaining()) {
+					send();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (current != null && current.position() > 0) {
+				send();
+			}
+		}
+
+		@Override
+		public void sendFile(FileChannel file, long position, long count) throws IOException {
+			FileRegion region = new FileRegion(file, position, count);
+			try {
+				flush();
+			} catch (IOException e) {
+				region.close();
+				throw e;
+			}
+			synchronized (writeLock) {
+				if (closed) {
+					region.close();
+					throw new IOException("Connection closed");
+				}
+				// Regions take no memory, they don't count as queued bytes
+				writeQueue.add(region);
+			}
+			server.wakeup(NioConnection.this);
+		}
+
+		/**
+		 * Queues the rest of the response and its end.
+		 */
+		void finish(boolean close) {
+			try {
+				flush();
+			} catch (IOException e) {
+				// The connection is closed
+				return;
+			}
+			writeQueue.add(close ? END_CLOSE : END);
+			server.wakeup(NioConnection.this);
+		}
+
+		private void send() throws IOException {
+			ByteBuffer buffer = current;
+			current = null;
+			buffer.flip();
+			synchronized (writeLock) {
+				while (!closed && queuedBytes >= server.getMaxQueuedBytes()) {
+					try {
+						writeLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted writing the response");
+					}
+				}
+				if (closed) {
+					pool.release(buffer);
+					throw new IOException("Connection closed");
+				}
+			}
+			queueWrite(buffer);
+			server.wakeup(NioConnection.this);
+		}
+	}
+
+	/**
+	 * A region of a file to write, owning its channel.
+	 */
+	private static final class FileRegion {
+
+		private final FileChannel file;
+
+		private long position;
+
+		private long remaining;
+
+		FileRegion(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		/**
+		 * Transfers the region until the channel is full.
+		 *
+		 * @return whether the whole region was written
+		 */
+		boolean transfer(SocketChannel channel) throws IOException {
+			while (remaining > 0) {
+				long sent = file.transferTo(position, remaining, channel);
+				if (sent <= 0) {
+					if (position >= file.size()) {
+						throw new IOException("File truncated while sending it");
+					}
+					return false;
+				}
+				position += sent;
+				remaining -= sent;
+			}
+			return true;
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Could not close the file", e);
+			}
+		}
+	}
+}
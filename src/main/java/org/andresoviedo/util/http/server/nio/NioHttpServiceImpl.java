@@ -0,0 +1,459 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLServerSocketFactory;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.ResponseException;
+import org.andresoviedo.util.http.server.GzipCompressor;
+import org.andresoviedo.util.http.server.HttpService;
+import org.andresoviedo.util.http.server.RequestHandler;
+import org.andresoviedo.util.http.server.Router;
+
+/**
+ * Http service implementation on a non-blocking event loop. A single selector thread accepts the connections and reads and writes all of
+ * them, so idle and kept alive connections cost no thread; the handlers run in a pool of worker threads and get the same nanohttpd
+ * sessions and responses as in {@link org.andresoviedo.util.http.server.impl.HttpServiceImpl}, so they can be moved over unchanged.
+ * <p>
+ * Request heads are parsed incrementally in pooled direct buffers, pipelined requests are served in order without waiting for the
+ * network, and request bodies are streamed to the handlers instead of being spilled to temp files. Url encoded forms are parsed into the
+ * parameters before invoking the handlers; other bodies are read from {@link IHTTPSession#getInputStream()}.
+ * </p>
+ * <p>
+ * HTTPS isn't supported, {@link #makeSecure(SSLServerSocketFactory)} is rejected: use
+ * {@link org.andresoviedo.util.http.server.impl.HttpServiceImpl} for it.
+ * </p>
+ *
+ * @author andres
+ *
+ */
+public final class NioHttpServiceImpl implements HttpService {
+
+	private static final Logger LOG = Logger.getLogger(NioHttpServiceImpl.class.getName());
+
+	private final String hostname;
+
+	private final int port;
+
+	private final int workerThreads;
+
+	private final List<RequestHandler> handlers = new CopyOnWriteArrayList<RequestHandler>();
+
+	private final List<RequestHandler> supportHandlers = new CopyOnWriteArrayList<RequestHandler>();
+
+	private final Router router = new Router();
+
+	/**
+	 * Compresses the responses, <code>null</code> not to compress them
+	 */
+	private volatile GzipCompressor compressor;
+
+	/**
+	 * Whether the compressor is created when the service is started and closed when it's stopped, i.e. none was set
+	 */
+	private volatile boolean ownsCompressor = true;
+
+	/**
+	 * Millis a connection waits for a request, or a handler for body bytes, before giving up
+	 */
+	private int idleTimeout = NanoHTTPD.SOCKET_READ_TIMEOUT;
+
+	/**
+	 * Size of the pooled buffers, which limits the size of a request head
+	 */
+	private int bufferSize = 16 * 1024;
+
+	/**
+	 * Maximum bytes of a request body buffered until the handler reads them
+	 */
+	private int bodyWindow = 64 * 1024;
+
+	/**
+	 * Maximum bytes of a response queued until the client reads them
+	 */
+	private int maxQueuedBytes = 256 * 1024;
+
+	/**
+	 * Maximum size of a body read by {@link IHTTPSession#parseBody(Map)}
+	 */
+	private int maxParsedBody = 1024 * 1024;
+
+	private ByteBufferPool pool;
+
+	private ExecutorService executor;
+
+	private Selector selector;
+
+	private ServerSocketChannel serverChannel;
+
+	private Thread loop;
+
+	private volatile boolean running;
+
+	/**
+	 * Connections with work queued by the workers
+	 */
+	private final ConcurrentLinkedQueue<NioConnection> wakeups = new ConcurrentLinkedQueue<NioConnection>();
+
+	/**
+	 * Open connections, only accessed by the loop
+	 */
+	private final Set<NioConnection> connections = new HashSet<NioConnection>();
+
+	/**
+	 * @param port
+	 *            the port to listen to, 0 for any
+	 * @param workerThreads
+	 *            the number of threads running the handlers
+	 */
+	public NioHttpServiceImpl(int port, int workerThreads) {
+		this(null, port, workerThreads);
+	}
+
+	/**
+	 * @param hostname
+	 *            the address to listen to, <code>null</code> for all
+	 * @param port
+	 *            the port to listen to, 0 for any
+	 * @param workerThreads
+	 *            the number of threads running the handlers
+	 */
+	public NioHttpServiceImpl(String hostname, int port, int workerThreads) {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException("workerThreads must be positive: " + workerThreads);
+		}
+		this.hostname = hostname;
+		this.port = port;
+		this.workerThreads = workerThreads;
+	}
+
+	public void addSupportHandler(RequestHandler handler) {
+		this.supportHandlers.add(handler);
+	}
+
+	public void addHandler(RequestHandler handler) {
+		this.handlers.add(handler);
+	}
+
+	public void addRoute(Method method, String pattern, RequestHandler handler) {
+		this.router.add(method, pattern, handler);
+	}
+
+	/**
+	 * @param compressor
+	 *            compresses the responses of the clients accepting gzip, <code>null</code> not to compress them. It's left open when the
+	 *            service is stopped, the caller owns it; otherwise the service creates one of its own on each start.
+	 */
+	public void setCompressor(GzipCompressor compressor) {
+		this.ownsCompressor = false;
+		this.compressor = compressor;
+	}
+
+	GzipCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            millis a connection waits for a request, or a handler for body bytes, before giving up
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @param bufferSize
+	 *            size of the pooled buffers, which limits the size of a request head. Set it before starting.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param bodyWindow
+	 *            maximum bytes of a request body buffered until the handler reads them
+	 */
+	public void setBodyWindow(int bodyWindow) {
+		this.bodyWindow = bodyWindow;
+	}
+
+	/**
+	 * @param maxQueuedBytes
+	 *            maximum bytes of a response queued until the client reads them
+	 */
+	public void setMaxQueuedBytes(int maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Not supported: the connections are plain sockets read and written by the selector thread, and the service never falls back to
+	 * serving HTTP when HTTPS was asked for.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always, use {@link org.andresoviedo.util.http.server.impl.HttpServiceImpl} to serve HTTPS
+	 */
+	public void makeSecure(SSLServerSocketFactory makeSSLSocketFactory) {
+		throw new UnsupportedOperationException("HTTPS is not supported by the NIO engine, use HttpServiceImpl");
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			throw new IllegalStateException("Already started");
+		}
+		pool = new ByteBufferPool(bufferSize, 1024);
+		if (ownsCompressor) {
+			compressor = new GzipCompressor();
+		}
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(hostname != null ? new InetSocketAddress(hostname, port) : new InetSocketAddress(port), 1024);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		executor = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicLong count = new AtomicLong();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "NioHttp Worker #" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		running = true;
+		loop = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, "NioHttp Event Loop");
+		loop.setDaemon(true);
+		loop.start();
+		LOG.info("Http service listening at '" + serverChannel.getLocalAddress() + "'");
+	}
+
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			loop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+			connection.close();
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Could not close the server channel", e);
+		}
+		executor.shutdownNow();
+		GzipCompressor compressor = this.compressor;
+		if (ownsCompressor && compressor != null) {
+			compressor.close();
+			this.compressor = null;
+		}
+	}
+
+	/**
+	 * @return the port the service listens to, -1 if it's not started
+	 */
+	public int getListeningPort() {
+		try {
+			return serverChannel != null ? ((InetSocketAddress) serverChannel.getLocalAddress()).getPort() : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	int getBodyWindow() {
+		return bodyWindow;
+	}
+
+	int getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	int getMaxParsedBody() {
+		return maxParsedBody;
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	String getRemoteAddress(SocketChannel channel) {
+		try {
+			return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+		} catch (Exception e) {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Asks the loop to process the work queued by a worker for a connection.
+	 */
+	void wakeup(NioConnection connection) {
+		wakeups.add(connection);
+		selector.wakeup();
+	}
+
+	void closed(NioConnection connection) {
+		connections.remove(connection);
+	}
+
+	/**
+	 * Invokes the handlers, as {@link org.andresoviedo.util.http.server.impl.HttpServiceImpl} does. Invoked by the workers.
+	 */
+	Response handle(NioHttpSession session) {
+		try {
+			if (session.isForm()) {
+				session.parseBody(new HashMap<String, String>());
+			}
+			session.getParms().put(NioHttpSession.QUERY_STRING_PARAMETER, session.getQueryParameterString());
+
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Processing request... uri '" + session.getUri() + ", method '" + session.getMethod() + "', params '"
+						+ session.getParms() + "', headers '" + session.getHeaders() + "'");
+			}
+
+			for (RequestHandler handler : supportHandlers) {
+				if (handler.canHandle(session.getUri())) {
+					return handler.handle(session);
+				}
+			}
+
+			Router.Match match = router.find(session.getMethod(), session.getUri());
+			if (match != null) {
+				match.putParameters(session.getParms());
+				return match.getHandler().handle(session);
+			}
+
+			// INFO: Handle request with the first capable handler
+			for (RequestHandler handler : handlers) {
+				if (handler.canHandle(session.getUri())) {
+					return handler.handle(session);
+				}
+			}
+
+			if (router.isRouted(session.getUri())) {
+				return NanoHTTPD.newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "text/plain",
+						"Method " + session.getMethod() + " not allowed");
+			}
+
+			// INFO: We don't have a handler for this request. Return error!
+			String msg = "No handler can server request";
+			LOG.warning(msg);
+			return NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", msg);
+
+		} catch (ResponseException re) {
+			return NanoHTTPD.newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+		} catch (Exception ex) {
+			// INFO: handle error to return error description to client
+			LOG.log(Level.SEVERE, ex.getMessage(), ex);
+			return NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+		}
+	}
+
+	private void runLoop() {
+		long lastSweep = System.currentTimeMillis();
+		while (running) {
+			try {
+				selector.select(1000);
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Selector failed", e);
+				break;
+			}
+			NioConnection woken;
+			while ((woken = wakeups.poll()) != null) {
+				try {
+					woken.onWakeup();
+				} catch (Exception e) {
+					LOG.log(Level.FINE, "Communication with the client broken", e);
+					woken.close();
+				}
+			}
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (key.isValid() && key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable()) {
+						connection.onWritable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						connection.onReadable();
+					}
+				} catch (Exception e) {
+					LOG.log(Level.FINE, "Communication with the client broken", e);
+					connection.close();
+				}
+			}
+			long now = System.currentTimeMillis();
+			if (now - lastSweep >= 1000) {
+				lastSweep = now;
+				for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+					if (connection.isIdle(now, idleTimeout)) {
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			while ((channel = serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				NioConnection connection = new NioConnection(this, channel, key, pool);
+				key.attach(connection);
+				connections.add(connection);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Could not accept a connection", e);
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.andresoviedo.util.http.NanoHTTPD.CookieHandler;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.ResponseException;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+
+/**
+ * A request read by the event loop, exposed to the handlers as a nanohttpd session. The body is streamed by {@link #getInputStream()};
+ * {@link #parseBody(Map)} reads url encoded forms into the parameters and other bodies into the <code>postData</code> file entry, as
+ * nanohttpd does, but in memory and up to a limit. Multipart bodies must be read from the stream.
+ *
+ * @author andres
+ *
+ */
+final class NioHttpSession implements IHTTPSession {
+
+	/**
+	 * The parameter nanohttpd stores the query string in.
+	 */
+	static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+
+	private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+	private final Method method;
+
+	private final String uri;
+
+	private final String queryString;
+
+	private final Map<String, String> headers;
+
+	private final Map<String, String> parms = new HashMap<String, String>();
+
+	private final InputStream body;
+
+	/**
+	 * The maximum size of a body read by {@link #parseBody(Map)}.
+	 */
+	private final int maxParsedBody;
+
+	private CookieHandler cookies;
+
+	NioHttpSession(Method method, String target, Map<String, String> headers, InputStream body, int maxParsedBody) {
+		this.method = method;
+		this.headers = headers;
+		this.body = body;
+		this.maxParsedBody = maxParsedBody;
+		int query = target.indexOf('?');
+		if (query >= 0) {
+			this.queryString = target.substring(query + 1);
+			decodeParms(queryString, parms);
+			this.uri = decodePercent(target.substring(0, query));
+		} else {
+			this.queryString = null;
+			this.uri = decodePercent(target);
+		}
+	}
+
+	/**
+	 * Not supported: requests are read by the event loop.
+	 */
+	@Override
+	public void execute() {
+		throw new UnsupportedOperationException("Requests are read by the event loop");
+	}
+
+	@Override
+	public synchronized CookieHandler getCookies() {
+		if (cookies == null) {
+			cookies = new CookieHandler(headers);
+		}
+		return cookies;
+	}
+
+	@Override
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return body;
+	}
+
+	@Override
+	public Method getMethod() {
+		return method;
+	}
+
+	@Override
+	public Map<String, String> getParms() {
+		return parms;
+	}
+
+	@Override
+	public String getQueryParameterString() {
+		return queryString;
+	}
+
+	@Override
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return whether the body is a url encoded form, which is parsed before invoking the handlers
+	 */
+	boolean isForm() {
+		String contentType = headers.get("content-type");
+		return contentType != null && contentType.toLowerCase().startsWith(FORM_URLENCODED);
+	}
+
+	@Override
+	public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+		String contentType = headers.get("content-type");
+		if (contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
+			throw new ResponseException(Status.NOT_IMPLEMENTED, "Multipart bodies must be read from the input stream");
+		}
+		String charset = "UTF-8";
+		if (contentType != null && contentType.toLowerCase().contains("charset=")) {
+			charset = contentType.substring(contentType.toLowerCase().indexOf("charset=") + 8).trim();
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = body.read(buffer)) >= 0) {
+			data.write(buffer, 0, read);
+			if (data.size() > maxParsedBody) {
+				body.close();
+				throw new ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Body larger than " + maxParsedBody + " bytes");
+			}
+		}
+		String postLine = data.toString(charset).trim();
+		if (isForm()) {
+			decodeParms(postLine, parms);
+		} else if (postLine.length() != 0) {
+			files.put("postData", postLine);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + uri;
+	}
+
+	private static void decodeParms(String parms, Map<String, String> p) {
+		StringTokenizer st = new StringTokenizer(parms, "&");
+		while (st.hasMoreTokens()) {
+			String e = st.nextToken();
+			int sep = e.indexOf('=');
+			if (sep >= 0) {
+				p.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
+			} else {
+				p.put(decodePercent(e).trim(), "");
+			}
+		}
+	}
+
+	private static String decodePercent(String str) {
+		try {
+			return URLDecoder.decode(str, "UTF8");
+		} catch (UnsupportedEncodingException e) {
+			return str;
+		} catch (IllegalArgumentException e) {
+			// Malformed escapes are kept as they are
+			return str;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The body of a request, streamed from the event loop to the handler as it's received. At most a window of bytes is buffered: when it's
+ * full the loop stops reading the connection until the handler reads, so large bodies take constant memory and aren't spilled to temp
+ * files.
+ *
+ * @author andres
+ *
+ */
+final class RequestBody extends InputStream {
+
+	/**
+	 * The maximum number of bytes buffered.
+	 */
+	private final int window;
+
+	/**
+	 * Millis a read waits for bytes.
+	 */
+	private final int readTimeout;
+
+	/**
+	 * Invoked, without locks, when a full window is drained so that the loop reads again.
+	 */
+	private final Runnable onDrained;
+
+	private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+
+	/**
+	 * The bytes of the first chunk already read.
+	 */
+	private int chunkOffset;
+
+	private int buffered;
+
+	/**
+	 * Whether the loop stopped reading because the window was full.
+	 */
+	private boolean paused;
+
+	private boolean complete;
+
+	/**
+	 * Whether the handler is done, so the rest of the body is skipped.
+	 */
+	private boolean discarded;
+
+	private IOException error;
+
+	RequestBody(int window, int readTimeout, Runnable onDrained) {
+		this.window = window;
+		this.readTimeout = readTimeout;
+		this.onDrained = onDrained;
+	}
+
+	/**
+	 * Takes bytes received by the loop.
+	 *
+	 * @param source
+	 *            the bytes, from its position
+	 * @param max
+	 *            the maximum number of bytes to take
+	 * @return the number of bytes taken, 0 if the window is full and the loop has to stop reading
+	 */
+	synchronized int offer(ByteBuffer source, int max) {
+		if (discarded) {
+			source.position(source.position() + max);
+			return max;
+		}
+		int length = Math.min(max, window - buffered);
+		if (length <= 0) {
+			paused = true;
+			return 0;
+		}
+		byte[] chunk = new byte[length];
+		source.get(chunk);
+		chunks.add(chunk);
+		buffered += length;
+		notifyAll();
+		return length;
+	}
+
+	synchronized void complete() {
+		complete = true;
+		notifyAll();
+	}
+
+	synchronized void fail(IOException error) {
+		if (!complete) {
+			this.error = error;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Drops the buffered bytes and skips the rest of the body.
+	 */
+	void discard() {
+		boolean resume;
+		synchronized (this) {
+			discarded = true;
+			chunks.clear();
+			buffered = 0;
+			resume = paused;
+			paused = false;
+			notifyAll();
+		}
+		if (resume) {
+			onDrained.run();
+		}
+	}
+
+	synchronized boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int ret;
+		boolean resume = false;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + readTimeout;
+			while (chunks.isEmpty()) {
+				if (error != null) {
+					throw error;
+				}
+				if (complete || discarded) {
+					return -1;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("Timed out reading the request body");
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted reading the request body");
+				}
+			}
+			byte[] chunk = chunks.peek();
+			ret = Math.min(len, chunk.length - chunkOffset);
+			System.arraycopy(chunk, chunkOffset, b, off, ret);
+			chunkOffset += ret;
+			if (chunkOffset == chunk.length) {
+				chunks.poll();
+				chunkOffset = 0;
+			}
+			buffered -= ret;
+			if (paused && buffered <= window / 2) {
+				paused = false;
+				resume = true;
+			}
+		}
+		if (resume) {
+			onDrained.run();
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized int available() {
+		return buffered;
+	}
+
+	@Override
+	public void close() {
+		discard();
+	}
+}
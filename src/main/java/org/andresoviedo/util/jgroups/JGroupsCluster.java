@@ -1,5 +1,6 @@
 package org.andresoviedo.util.jgroups;
 
+import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -45,12 +46,21 @@ public final class JGroupsCluster {
 		Reboot
 	}
 
+	/**
+	 * Receives the messages broadcast in the cluster, including the ones sent by this member.
+	 */
+	public interface Listener {
+
+		void received(Address src, Object message);
+	}
+
 	private final InetSocketAddress bind_address;
 	private final List<InetSocketAddress> cluster_members;
 
 	private JChannel ch;
 	private Date start_time;
 	private Timer timer;
+	private volatile Listener listener;
 
 	public JGroupsCluster(InetSocketAddress bind_address, List<InetSocketAddress> cluster_members) {
 		this.bind_address = bind_address;
@@ -112,6 +122,10 @@ public final class JGroupsCluster {
 					}
 
 					LOG.fine("Received message from '" + msg.getSrc() + "' '" + msg.getObject() + "'");
+					Listener current = listener;
+					if (current != null) {
+						current.received(msg.getSrc(), msg.getObject());
+					}
 				}
 			});
 
@@ -128,6 +142,10 @@ public final class JGroupsCluster {
 	}
 
 	public void broadcast(String message) {
+		broadcast((Serializable) message);
+	}
+
+	public void broadcast(Serializable message) {
 		try {
 			ch.send(null, message);
 		} catch (Exception ex) {
@@ -135,6 +153,16 @@ public final class JGroupsCluster {
 		}
 	}
 
+	/**
+	 * Sets the listener of the messages broadcast in the cluster.
+	 * 
+	 * @param listener
+	 *            the listener, <code>null</code> to only log them
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
 	/**
 	 * Reboot periodically (each day) in an ordered manner to have availability.
 	 * 
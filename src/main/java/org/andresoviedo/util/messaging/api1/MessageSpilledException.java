@@ -0,0 +1,20 @@
+package org.andresoviedo.util.messaging.api1;
+
+/**
+ * Thrown when a message couldn't be sent because the peer granted no credits to its service, and it has been left in persistence to be
+ * sent as soon as the peer grants them. Callers of <code>send()</code> don't get it, since the message will be delivered anyway.
+ * 
+ * @author andresoviedo
+ */
+public class MessageSpilledException extends MessengerException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4730925508136254871L;
+
+	public MessageSpilledException(String message) {
+		super(message);
+	}
+
+}
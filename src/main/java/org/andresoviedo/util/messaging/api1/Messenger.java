@@ -1,6 +1,8 @@
 package org.andresoviedo.util.messaging.api1;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EventListener;
 import java.util.Hashtable;
@@ -8,24 +10,45 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.event.EventListenerList;
 
 import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.CreditGrant;
 import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
 import org.andresoviedo.util.messaging.api1.common.data.MessageAck;
 import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
 import org.andresoviedo.util.messaging.api1.common.data.PingRequest;
 import org.andresoviedo.util.messaging.api1.common.data.PingResponse;
+import org.andresoviedo.util.messaging.api1.common.data.SequenceAck;
 import org.andresoviedo.util.messaging.api1.common.data.SignalingCommand;
 import org.andresoviedo.util.messaging.api1.common.io.Persistence;
 import org.andresoviedo.util.messaging.api1.common.io.PersistenceException;
+import org.andresoviedo.util.messaging.api1.common.metrics.MessengerMetrics;
+import org.andresoviedo.util.messaging.api1.common.metrics.ServiceMetrics;
+import org.andresoviedo.util.messaging.api1.common.metrics.SessionMetrics;
+import org.andresoviedo.util.messaging.api1.common.net.CreditWindow;
+import org.andresoviedo.util.messaging.api1.common.net.ResumeState;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSessionController;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSessionException;
+import org.andresoviedo.util.messaging.api1.common.net.TimingWheel;
+import org.andresoviedo.util.messaging.api1.common.service.ServiceDispatcher;
 import org.andresoviedo.util.messaging.api1.common.service.ServiceListener;
 import org.andresoviedo.util.messaging.api1.common.service.ServiceListenerList;
 
@@ -58,9 +81,38 @@ public abstract class Messenger implements SocketSessionController {
 
 	/**
 	 * The map holding lock objects used in synchronous calls.
+	 * 
+	 * @deprecated requests are correlated with {@link #requests}. Locks put here by subclasses are still notified with the response, and
+	 *             when the messenger is stopped.
 	 */
+	@Deprecated
 	protected Map<String, MessageLock> locks;
 
+	/**
+	 * The requests waiting for a response, by message id.
+	 */
+	protected Map<String, PendingRequest> requests;
+
+	/**
+	 * The number of requests waiting for a response, by session.
+	 */
+	private Map<SocketSession, AtomicInteger> requestsInFlight = new ConcurrentHashMap<SocketSession, AtomicInteger>();
+
+	/**
+	 * The number of requests waiting for a response sent by the default {@link #sendAsyncImpl(Message, long)}, not bound to a session.
+	 */
+	private AtomicInteger unboundRequestsInFlight = new AtomicInteger();
+
+	/**
+	 * Maximum number of requests waiting for a response in each session.
+	 */
+	private int maxInFlightRequests = MessengerProperties.getMaxInFlightRequests();
+
+	/**
+	 * Expires the requests not responded in time.
+	 */
+	private TimingWheel requestTimeouts;
+
 	/**
 	 * The map holding <code>Persistence</code> objects, one for each registered service.
 	 */
@@ -87,24 +139,99 @@ public abstract class Messenger implements SocketSessionController {
 	private int maxParallelThreads = MessengerProperties.getMaxParallelThreads();
 
 	/**
-	 * This flag is set to true when all ServiceThreads should pause it's execution
+	 * How received messages are dispatched to services.
+	 */
+	private String dispatchMode = MessengerProperties.getDispatchMode();
+
+	/**
+	 * Whether the messages of a service are processed in order, unless set otherwise for the service.
 	 */
-	private boolean serviceThreadsPaused = false;
+	private boolean orderedDispatch = MessengerProperties.isOrderedDispatch();
 
 	/**
-	 * Number of threads currently executing
+	 * Maximum number of received messages waiting to be processed by each service.
 	 */
-	private int serviceThreadsExecuting = 0;
+	private int serviceQueueCapacity = MessengerProperties.getServiceQueueCapacity();
 
 	/**
-	 * Services thread pool to forward messages
+	 * Service ids (in lower case) whose messages are processed in order, or not, regardless of <code>orderedDispatch</code>.
 	 */
-	private Map<String, List<ServiceThread>> serviceThreads = new Hashtable<String, List<ServiceThread>>();
+	private Map<String, Boolean> orderedServices = new ConcurrentHashMap<String, Boolean>();
 
 	/**
-	 * A list of SessionMessages received by all SocketSessions ready to be processed by service threads
+	 * The dispatchers of received messages, by service id in lower case.
 	 */
-	private Map<String, List<SessionMessage>> serviceMsgs = new Hashtable<String, List<SessionMessage>>();
+	private Map<String, ServiceDispatcher<SessionMessage>> dispatchers = new ConcurrentHashMap<String, ServiceDispatcher<SessionMessage>>();
+
+	/**
+	 * The executor processing received messages. It's created on demand unless set with <code>setServiceExecutor()</code>.
+	 */
+	private Executor serviceExecutor;
+
+	/**
+	 * Whether the service executor has been created by this messenger, and so has to be shut down when it's stopped.
+	 */
+	private boolean serviceExecutorOwned;
+
+	/**
+	 * The metrics of the services. Sessions account their messages to them.
+	 */
+	private final MessengerMetrics metrics = new MessengerMetrics();
+
+	/**
+	 * The persisted ids of the messages which couldn't be sent, by client id. When a session resumes, they're the only persisted messages
+	 * to send again, since the messages sent before are retransmitted by the session itself.
+	 */
+	private Map<String, Set<String>> unsentMessages = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * The number of messages the peer of each session may send to each service before credits are granted back, 0 not to limit them.
+	 */
+	private int serviceCredits = MessengerProperties.getServiceCredits();
+
+	/**
+	 * What happens to a message sent to a service of the peer which has granted no credits.
+	 */
+	private String flowControlPolicy = MessengerProperties.getFlowControlPolicy();
+
+	/**
+	 * The maximum time in milliseconds a sender waits for credits.
+	 */
+	private long creditTimeout = MessengerProperties.getCreditTimeout();
+
+	/**
+	 * Set while messages are sent by a thread which mustn't wait for credits: persisted messages sent again, since they may be sent by the
+	 * thread which receives the credits, and messages forwarded to another peer by a dispatcher worker. They're spilled instead.
+	 */
+	private final ThreadLocal<Boolean> noWait = new ThreadLocal<Boolean>();
+
+	/**
+	 * The name the management interface is registered with, while the messenger is started.
+	 */
+	private ObjectName mbeanName;
+
+	/**
+	 * Processes the messages taken from the dispatchers.
+	 */
+	private ServiceDispatcher.Handler<SessionMessage> serviceHandler = new ServiceDispatcher.Handler<SessionMessage>() {
+		public void handle(SessionMessage msg) {
+			long started = System.currentTimeMillis();
+			long start = System.nanoTime();
+			try {
+				messageReceived(msg.session, msg.message);
+			} catch (Exception ex) {
+				logger.severe("Exception caught while processing the received message: " + ex.getMessage());
+			}
+			ServiceMetrics serviceMetrics = metrics.getService(msg.message.getTargetServiceId());
+			serviceMetrics.processed(msg.message, started, System.nanoTime() - start);
+			ServiceDispatcher<SessionMessage> dispatcher = dispatchers.get(serviceMetrics.getServiceId());
+			if (dispatcher != null) {
+				serviceMetrics.queued(dispatcher.getPending());
+			}
+			// The message has left the queue, the peer may send another one.
+			grantCredit(msg.session, msg.message.getTargetServiceId());
+		}
+	};
 
 	/**
 	 * clientId
@@ -119,6 +246,9 @@ public abstract class Messenger implements SocketSessionController {
 		this.listenerList = new ServiceListenerList();
 		// Create the locks table.
 		this.locks = new Hashtable<String, MessageLock>();
+		// Create the pending requests table.
+		this.requests = new ConcurrentHashMap<String, PendingRequest>();
+		this.requestTimeouts = new TimingWheel("TMS@Request timeouts@" + hashCode(), MessengerProperties.getRequestTimeoutTick(), 512);
 		// Create persistence objects table.
 		this.servicePersistences = new Hashtable<String, Persistence>();
 		// Create the list of messenger listeners.
@@ -159,33 +289,139 @@ public abstract class Messenger implements SocketSessionController {
 	 * Starts this messenger.
 	 */
 	public void start() {
+		if (MessengerProperties.isJmxEnabled()) {
+			registerMBean();
+		}
 	}
 
 	/**
 	 * Stops this messenger.
 	 */
 	public void stop() {
-		// Release all locks.
-		Map<String, MessageLock> copy = new Hashtable<String, MessageLock>(locks);
-		MessageLock lock = null;
-		for (Iterator<MessageLock> it = copy.values().iterator(); it.hasNext();) {
-			lock = (MessageLock) it.next();
+		// Release all callers waiting for a response.
+		for (PendingRequest request : requests.values()) {
+			request.future.completeExceptionally(new MessengerException("Messenger stopped."));
+		}
+		for (MessageLock lock : new ArrayList<MessageLock>(locks.values())) {
 			synchronized (lock) {
 				lock.notify();
 			}
 		}
-		for (List<ServiceThread> l : serviceThreads.values()) {
-			for (ServiceThread st : l) {
-				st.interrupt();
+		requestTimeouts.stop();
+		// Discard the messages not yet processed, they haven't been acknowledged so they will be sent again.
+		ExecutorService executor = null;
+		synchronized (dispatchers) {
+			dispatchers.clear();
+			if (serviceExecutorOwned) {
+				executor = (ExecutorService) serviceExecutor;
+				serviceExecutor = null;
+				serviceExecutorOwned = false;
 			}
 		}
-		for (List<ServiceThread> l : serviceThreads.values()) {
-			for (ServiceThread st : l) {
-				try {
-					st.join(1000);
-				} catch (InterruptedException ex) {
+		if (executor != null) {
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+			}
+		}
+		// Release the persistence logs, they are opened again if the messenger is restarted.
+		if (persistence != null) {
+			persistence.close();
+		}
+		for (Persistence servicePersistence : servicePersistences.values()) {
+			servicePersistence.close();
+		}
+		unregisterMBean();
+	}
+
+	/**
+	 * Registers the management interface of this messenger in the platform MBean server.
+	 */
+	private synchronized void registerMBean() {
+		if (mbeanName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(MessengerProperties.JMX_DOMAIN + ":type=" + getClass().getSimpleName() + ",name="
+					+ ObjectName.quote(String.valueOf(clientId)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Management(), name);
+			mbeanName = name;
+		} catch (JMException e) {
+			logger.warning("Couldn't register the messenger MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Unregisters the management interface of this messenger.
+	 */
+	private synchronized void unregisterMBean() {
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			logger.fine("Couldn't unregister the messenger MBean: " + e.getMessage());
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * Returns the sessions of this messenger, whose metrics are reported.
+	 * 
+	 * @return the sessions of this messenger.
+	 */
+	protected abstract List<SocketSession> getSessions();
+
+	/**
+	 * Returns the metrics of the services of this messenger.
+	 * 
+	 * @return the metrics of the services.
+	 */
+	public MessengerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns a snapshot of the metrics of this messenger, its sessions and its services. Taking it is cheap enough to be polled every few
+	 * seconds.
+	 * 
+	 * @return a snapshot of the metrics of this messenger.
+	 */
+	public MessengerMetrics.Snapshot getMetricsSnapshot() {
+		List<SessionMetrics.Snapshot> sessions = new ArrayList<SessionMetrics.Snapshot>();
+		for (SocketSession session : getSessions()) {
+			Object peer = session.getProperty(SESSION_CLIENT_ID_PROPERTY);
+			sessions.add(session.getMetrics().snapshot((peer != null) ? peer.toString() : null,
+					session.getRemoteHostAddress() + ":" + session.getRemotePort(), session.getPendingCommands()));
+		}
+		// Services with received messages persisted are reported even if nothing has been recorded for them yet.
+		for (String serviceId : new ArrayList<String>(servicePersistences.keySet())) {
+			metrics.getService(serviceId);
+		}
+		List<ServiceMetrics.Snapshot> services = new ArrayList<ServiceMetrics.Snapshot>();
+		for (ServiceMetrics service : metrics.getServices()) {
+			ServiceDispatcher<SessionMessage> dispatcher = dispatchers.get(service.getServiceId());
+			int persisted = 0;
+			for (Map.Entry<String, Persistence> entry : new ArrayList<Map.Entry<String, Persistence>>(servicePersistences.entrySet())) {
+				if (entry.getKey().equalsIgnoreCase(service.getServiceId())) {
+					persisted += entry.getValue().size();
 				}
 			}
+			services.add(service.snapshot((dispatcher != null) ? dispatcher.getPending() : 0, (dispatcher != null) ? dispatcher
+					.getExecuting() : 0, persisted));
+		}
+		return new MessengerMetrics.Snapshot(clientId, persistence.size(), requests.size(), sessions, services);
+	}
+
+	/**
+	 * Clears the latency histograms of this messenger, its sessions and its services, and the watermarks of the queues of the services.
+	 */
+	public void resetMetrics() {
+		metrics.reset();
+		for (SocketSession session : getSessions()) {
+			session.getMetrics().reset();
 		}
 	}
 
@@ -229,7 +465,18 @@ public abstract class Messenger implements SocketSessionController {
 			}
 		}
 		// Invoke the implementation method (throws an exception).
-		sendImpl(message);
+		try {
+			sendImpl(message);
+		} catch (MessageSpilledException e) {
+			// It's sent from persistence once the peer grants credits.
+			logger.fine(e.getMessage());
+			return;
+		} catch (MessengerException e) {
+			if (persist || message.isNeedsAck() || (message.getTimeout() >= 0)) {
+				getUnsentMessages(message.getClientId()).add(persistence.getPersistedMessageId(message));
+			}
+			throw e;
+		}
 		// Try ALWAYS to delete the message from persistence if the message does
 		// not need ACK, since it has been successfully sent.
 		if (!message.isNeedsAck()) {
@@ -239,6 +486,251 @@ public abstract class Messenger implements SocketSessionController {
 		}
 	}
 
+	/**
+	 * Returns the persisted ids of the messages of a client which couldn't be sent.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @return the persisted ids of the messages which couldn't be sent.
+	 */
+	private Set<String> getUnsentMessages(String clientId) {
+		Set<String> unsent = unsentMessages.get(clientId);
+		if (unsent == null) {
+			Set<String> created = ConcurrentHashMap.newKeySet();
+			unsent = unsentMessages.putIfAbsent(clientId, created);
+			if (unsent == null) {
+				unsent = created;
+			}
+		}
+		return unsent;
+	}
+
+	/**
+	 * Sends again the persisted messages of a client which couldn't be sent. It's used instead of sending all persisted messages when a
+	 * session resumes.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	protected void resendUnsentMessages(String clientId) {
+		Set<String> unsent = unsentMessages.remove(clientId);
+		if (unsent == null) {
+			return;
+		}
+		for (String persistedId : unsent) {
+			Message message;
+			try {
+				message = persistence.getMessage(persistedId, false);
+			} catch (Exception e) {
+				logger.warning("Exception caught while reading the message with id '" + persistedId + "': " + e.getMessage());
+				continue;
+			}
+			if (message != null) {
+				logger.fine("Sending unsent message with id '" + message.getMessageId() + "'...");
+				try {
+					resend(message);
+				} catch (MessengerException e) {
+					logger.warning("MessengerException caught: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the messages of a client which couldn't be sent, because all its persisted messages are about to be sent again.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	protected void clearUnsentMessages(String clientId) {
+		unsentMessages.remove(clientId);
+	}
+
+	/**
+	 * Deletes from persistence the messages acknowledged cumulatively by the peer. Messages not needing an acknowledgement were deleted when
+	 * they were sent, and forwarded messages were never persisted.
+	 * 
+	 * @param messages
+	 *            the acknowledged messages.
+	 */
+	protected void deleteAcknowledged(List<Message> messages) {
+		for (Message message : messages) {
+			if ((message != null) && message.isNeedsAck()) {
+				persistence.delete(message);
+			}
+		}
+	}
+
+	/**
+	 * Sends again a persisted message. If the peer granted no credits to its service, the message is spilled rather than waiting for them,
+	 * whatever the flow control policy.
+	 * 
+	 * @param message
+	 *            the persisted message.
+	 * @throws MessengerException
+	 *             if an error occurs while sending the message.
+	 */
+	protected void resend(Message message) throws MessengerException {
+		noWait.set(Boolean.TRUE);
+		try {
+			send(message, false);
+		} finally {
+			noWait.remove();
+		}
+	}
+
+	/**
+	 * Sends a message received from a peer to another one, from a dispatcher worker. If the target peer granted no credits to its service,
+	 * the message is spilled until it grants them rather than blocking the worker, whatever the flow control policy: a worker waiting for
+	 * credits stops the dispatching of the messages which would grant them. Messages which wouldn't be persisted fail instead.
+	 * 
+	 * @param message
+	 *            the received message.
+	 * @throws MessengerException
+	 *             if the target peer granted no credits and the message isn't spilled, or an error occurs while sending the message.
+	 */
+	protected void relay(Message message) throws MessengerException {
+		noWait.set(Boolean.TRUE);
+		try {
+			sendImpl(message);
+		} catch (MessageSpilledException e) {
+			// It's sent from persistence once the peer grants credits.
+			logger.fine(e.getMessage());
+		} finally {
+			noWait.remove();
+		}
+	}
+
+	/**
+	 * Starts the flow control of a session which has just logged in.
+	 * 
+	 * @param session
+	 *            the session.
+	 * @param peerWindow
+	 *            the number of messages the peer allows to each of its services, or 0 if they aren't limited.
+	 * @return the number of messages the peer may send to each service of this messenger, or 0 if they aren't limited.
+	 */
+	protected int openCredits(SocketSession session, int peerWindow) {
+		session.getCredits().open(peerWindow, serviceCredits);
+		return serviceCredits;
+	}
+
+	/**
+	 * Takes a credit of the target service of a message, applying the flow control policy if the peer has granted none. Requests are never
+	 * spilled, their callers wait for the response.
+	 * 
+	 * @param message
+	 *            the message about to be sent.
+	 * @param session
+	 *            the session the message is sent through.
+	 * @param request
+	 *            whether the message is a request waiting for a response.
+	 * @throws MessageSpilledException
+	 *             if the message has been left in persistence until the peer grants credits.
+	 * @throws MessengerException
+	 *             if the peer granted no credits.
+	 */
+	private void acquireCredit(Message message, SocketSession session, boolean request) throws MessengerException {
+		CreditWindow credits = session.getCredits();
+		String serviceId = message.getTargetServiceId();
+		boolean wait = (noWait.get() == null);
+		boolean spill = !request && (!wait || MessengerProperties.FLOW_CONTROL_SPILL.equals(flowControlPolicy));
+		long timeout = (wait && MessengerProperties.FLOW_CONTROL_BLOCK.equals(flowControlPolicy)) ? creditTimeout : 0;
+		try {
+			if (credits.acquire(serviceId, 0)) {
+				return;
+			}
+			metrics.getService(serviceId).stalled();
+			if ((timeout > 0) && credits.acquire(serviceId, timeout)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessengerException("Interrupted while waiting for credits. Cannot send message with id '" + message.getMessageId()
+					+ "'.", e);
+		}
+		// Messages which wouldn't be persisted expire rather than being spilled.
+		if (spill && (message.isNeedsAck() || (message.getTimeout() >= 0))) {
+			try {
+				// Does nothing if it's already persisted.
+				persistence.add(message);
+				String persistedId = persistence.getPersistedMessageId(message);
+				credits.spill(serviceId, new CreditWindow.Spilled(message.getClientId(), persistedId));
+				// If the session closes meanwhile, it's sent again as any other unsent message.
+				getUnsentMessages(message.getClientId()).add(persistedId);
+				throw new MessageSpilledException("No credits for service '" + serviceId + "', message with id '" + message.getMessageId()
+						+ "' spilled.");
+			} catch (PersistenceException e) {
+				logger.severe("Error persisting message with id '" + message.getMessageId() + "': " + e.getMessage());
+			}
+		}
+		throw new MessengerException("No credits for service '" + serviceId + "'. Cannot send message with id '" + message.getMessageId()
+				+ "'.");
+	}
+
+	/**
+	 * Takes note of a message of a session processed by a service, granting credits back to the peer if enough messages have been
+	 * processed.
+	 * 
+	 * @param session
+	 *            the session the message was received through.
+	 * @param serviceId
+	 *            the id of the service the message was sent to.
+	 */
+	private void grantCredit(SocketSession session, String serviceId) {
+		if (session == null) {
+			return;
+		}
+		int granted = session.getCredits().consumed(serviceId);
+		if (granted > 0) {
+			try {
+				session.send(new CreditGrant(clientId, serviceId, granted));
+			} catch (SocketSessionException e) {
+				// The peer gets a full window when it logs in again.
+			}
+		}
+	}
+
+	/**
+	 * Sends the messages of a service spilled for lack of credits, as far as the credits granted by the peer allow.
+	 * 
+	 * @param session
+	 *            the session the messages have to be sent through.
+	 * @param serviceId
+	 *            the service id.
+	 */
+	private void sendSpilledMessages(SocketSession session, String serviceId) {
+		CreditWindow credits = session.getCredits();
+		CreditWindow.Spilled spilled;
+		while ((spilled = credits.nextSpilled(serviceId)) != null) {
+			Set<String> unsent = unsentMessages.get(spilled.getClientId());
+			Message message = null;
+			if ((unsent != null) && unsent.remove(spilled.getPersistedId())) {
+				try {
+					message = persistence.getMessage(spilled.getPersistedId(), false);
+				} catch (Exception e) {
+					logger.warning("Exception caught while reading the message with id '" + spilled.getPersistedId() + "': " + e.getMessage());
+				}
+			}
+			if (message == null) {
+				// Already sent again, acknowledged or expired.
+				credits.release(serviceId);
+				continue;
+			}
+			logger.fine("Sending spilled message with id '" + message.getMessageId() + "'...");
+			try {
+				session.send(message);
+			} catch (SocketSessionException e) {
+				logger.warning("SocketSessionException caught: " + e.getMessage());
+				getUnsentMessages(spilled.getClientId()).add(spilled.getPersistedId());
+				return;
+			}
+			if (!message.isNeedsAck()) {
+				persistence.delete(message);
+			}
+		}
+	}
+
 	/**
 	 * The method inherited classes have to implement to send the message.
 	 * 
@@ -256,14 +748,17 @@ public abstract class Messenger implements SocketSessionController {
 	 *            the message to send.
 	 * @param session
 	 *            the session to send the message through.
+	 * @throws MessageSpilledException
+	 *             if the peer granted no credits to the target service and the message has been left in persistence until it does.
 	 * @throws MessengerException
-	 *             if an error occurs while sending the message.
+	 *             if an error occurs while sending the message, or the peer granted no credits to the target service.
 	 */
 	protected void send(Message message, SocketSession session) throws MessengerException {
 		// Check whether this session is authenticated or not.
 		if (!session.containsProperty(SESSION_AUTHENTICATED_PROPERTY)) {
 			throw new MessengerException("Session is not authenticated. Cannot send message with id '" + message.getMessageId() + "'.");
 		}
+		acquireCredit(message, session, false);
 		try {
 			session.send(message);
 		} catch (SocketSessionException e) {
@@ -339,36 +834,275 @@ public abstract class Messenger implements SocketSessionController {
 	 *            the session to send the message through.
 	 * @param timeout
 	 *            the maximum number of milliseconds to wait until a message is received.
-	 * @return the response message.
+	 * @return the response message, or <code>null</code> if no response is received in time.
 	 * @throws MessengerException
 	 *             if an error occurs while performing the operation.
 	 * @throws InterruptedException
 	 *             if the current thread is interrupted waiting for a response.
 	 */
 	protected Message sendAndReceive(Message message, SocketSession session, long timeout) throws MessengerException, InterruptedException {
+		CompletableFuture<Message> future = sendAsync(message, session, timeout);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			// Stop waiting for the response.
+			future.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				return null;
+			}
+			if (e.getCause() instanceof MessengerException) {
+				throw (MessengerException) e.getCause();
+			}
+			throw new MessengerException(e.getCause());
+		}
+	}
+
+	/**
+	 * Sends a message and returns a future completed when the response is received. The future never times out, unless it's cancelled or
+	 * the session is closed.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @return a future completed with the response message.
+	 * @throws MessengerException
+	 *             if the message is not valid or it cannot be sent.
+	 * @see #sendAsync(Message, long)
+	 */
+	public CompletableFuture<Message> sendAsync(Message message) throws MessengerException {
+		return sendAsync(message, 0);
+	}
+
+	/**
+	 * Sends a message and returns a future completed when the response is received, without blocking the caller. The future is completed
+	 * exceptionally with a <code>TimeoutException</code> if no response is received in time, or with a <code>MessengerException</code> if
+	 * the session is closed or the messenger stopped meanwhile. Cancelling the future discards the response.
+	 * <p>
+	 * Notice the future is completed in the thread that receives the response, so dependent actions that may block or take long should be
+	 * run with the async methods of the future.
+	 * </p>
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait until a message is received. Zero means infinite timeout.
+	 * @return a future completed with the response message.
+	 * @throws IllegalArgumentException
+	 *             if timeout is less than zero.
+	 * @throws MessengerException
+	 *             if the message is not valid, it cannot be sent, or there are already too many requests waiting for a response in the
+	 *             session.
+	 */
+	public CompletableFuture<Message> sendAsync(Message message, long timeout) throws MessengerException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout less than zero.");
+		}
+		// First of all, validate the message.
+		validate(message);
+		// Although the socket session will set message's sent date, set it
+		// there just in case an exception is thrown.
+		message.setTimeSent(new Date());
+		// Invoke the implementation method.
+		return sendAsyncImpl(message, timeout);
+	}
+
+	/**
+	 * Sends a message and returns a future completed when the response is received. By default the message is sent with
+	 * {@link #sendImpl(Message)} and its response is correlated as any other, so existing subclasses get asynchronous requests as they are.
+	 * Subclasses knowing the session a message goes through override it with {@link #sendAsync(Message, SocketSession, long)}, so the
+	 * request fails as soon as the session is closed and counts against the requests in flight of the session.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait until a message is received. Zero means infinite timeout.
+	 * @return a future completed with the response message.
+	 * @throws MessengerException
+	 *             if there are already too many requests waiting for a response, or an error occurs while sending the message.
+	 */
+	protected CompletableFuture<Message> sendAsyncImpl(Message message, long timeout) throws MessengerException {
+		PendingRequest request = register(message, null, unboundRequestsInFlight, timeout);
+		try {
+			sendImpl(message);
+		} catch (MessageSpilledException e) {
+			// The response is received once the peer grants credits and the request is sent.
+			logger.fine(e.getMessage());
+		} catch (MessengerException e) {
+			request.future.completeExceptionally(e);
+			throw e;
+		}
+		return request.future;
+	}
+
+	/**
+	 * Sends a message through the specified socket session and returns a future completed when the response is received.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @param session
+	 *            the session to send the message through.
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait until a message is received. Zero means infinite timeout.
+	 * @return a future completed with the response message.
+	 * @throws MessengerException
+	 *             if the session is not authenticated, it has too many requests waiting for a response or an error occurs while sending the
+	 *             message.
+	 */
+	protected CompletableFuture<Message> sendAsync(Message message, SocketSession session, long timeout) throws MessengerException {
 		// Check whether this session is authenticated or not.
 		if (!session.containsProperty(SESSION_AUTHENTICATED_PROPERTY)) {
 			throw new MessengerException("Session is not authenticated. Cannot send message with id '" + message.getMessageId() + "'.");
 		}
-		// Wait for the message response with a lock object.
-		MessageLock lock = new MessageLock();
-		locks.put(message.getMessageId(), lock);
-		synchronized (lock) {
-			try {
-				// Send the message.
-				session.send(message);
-				// Wait until a message is received.
-				lock.wait(timeout);
-				// We've been notified, so return the response message.
-				return lock.result;
-			} catch (SocketSessionException e) {
-				logger.warning("Exception caught while sending the message: " + e.getMessage());
-				throw new MessengerException("Exception caught while sending the message.", e);
-			} finally {
-				// Ensure the lock is always removed from table.
-				locks.remove(message.getMessageId());
+		AtomicInteger inFlight = requestsInFlight.get(session);
+		if (inFlight == null) {
+			requestsInFlight.putIfAbsent(session, new AtomicInteger());
+			inFlight = requestsInFlight.get(session);
+		}
+		PendingRequest request = register(message, session, inFlight, timeout);
+		try {
+			acquireCredit(message, session, true);
+		} catch (MessengerException e) {
+			request.future.completeExceptionally(e);
+			throw e;
+		}
+		try {
+			session.send(message);
+		} catch (SocketSessionException e) {
+			logger.warning("Exception caught while sending the message: " + e.getMessage());
+			MessengerException ex = new MessengerException("Exception caught while sending the message.", e);
+			request.future.completeExceptionally(ex);
+			throw ex;
+		}
+		return request.future;
+	}
+
+	/**
+	 * Registers a request about to be sent, so that its response completes its future. It's registered before it's sent, since the response
+	 * may be received before the send returns.
+	 * 
+	 * @param message
+	 *            the request message.
+	 * @param session
+	 *            the session the request is sent through, or <code>null</code> if it isn't known.
+	 * @param inFlight
+	 *            the counter of requests in flight the request counts against.
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait until a message is received. Zero means infinite timeout.
+	 * @return the registered request.
+	 * @throws MessengerException
+	 *             if there are already too many requests in flight, or a request with the same id is waiting for a response.
+	 */
+	private PendingRequest register(Message message, SocketSession session, AtomicInteger inFlight, long timeout) throws MessengerException {
+		if (inFlight.incrementAndGet() > maxInFlightRequests) {
+			inFlight.decrementAndGet();
+			throw new MessengerException("Too many requests waiting for a response. Cannot send message with id '" + message.getMessageId()
+					+ "'.");
+		}
+		final PendingRequest request = new PendingRequest(message.getMessageId(), session, inFlight);
+		if (requests.putIfAbsent(request.messageId, request) != null) {
+			inFlight.decrementAndGet();
+			throw new MessengerException("A request with id '" + message.getMessageId() + "' is already waiting for a response.");
+		}
+		// However the request ends, release it.
+		request.future.whenComplete(new BiConsumer<Message, Throwable>() {
+			public void accept(Message response, Throwable t) {
+				request.release();
 			}
+		});
+		if (timeout > 0) {
+			request.timeout = requestTimeouts.schedule(new Runnable() {
+				public void run() {
+					request.future.completeExceptionally(new TimeoutException("No response received for message with id '"
+							+ request.messageId + "'."));
+				}
+			}, timeout);
+			if (request.future.isDone()) {
+				// The response was faster than the timeout scheduling.
+				request.timeout.cancel();
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Returns the maximum number of requests waiting for a response in each session.
+	 * 
+	 * @return the maximum number of requests waiting for a response in each session.
+	 */
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	/**
+	 * Sets the maximum number of requests waiting for a response in each session. Further requests are rejected until responses are received,
+	 * so that a slow peer doesn't make callers pile up requests without limit.
+	 * 
+	 * @param maxInFlightRequests
+	 *            the maximum number of requests waiting for a response in each session.
+	 */
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		if (maxInFlightRequests < 1) {
+			throw new IllegalArgumentException("Invalid maximum: " + maxInFlightRequests);
+		}
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	/**
+	 * Returns the number of messages the peer of a session may send to each service before credits are granted back.
+	 * 
+	 * @return the credit window of each service, or 0 if messages aren't limited.
+	 */
+	public int getServiceCredits() {
+		return serviceCredits;
+	}
+
+	/**
+	 * Sets the number of messages the peer of a session may send to each service before credits are granted back, so that a fast peer
+	 * doesn't fill the queues of the services. It's announced to the peers when they log in.
+	 * 
+	 * @param serviceCredits
+	 *            the credit window of each service, or 0 not to limit messages.
+	 */
+	public void setServiceCredits(int serviceCredits) {
+		if (serviceCredits < 0) {
+			throw new IllegalArgumentException("Invalid credits: " + serviceCredits);
 		}
+		this.serviceCredits = serviceCredits;
+	}
+
+	/**
+	 * Returns what happens to a message sent to a service of the peer which has granted no credits.
+	 * 
+	 * @return one of <code>MessengerProperties.FLOW_CONTROL_BLOCK</code>, <code>FLOW_CONTROL_FAIL</code> or <code>FLOW_CONTROL_SPILL</code>.
+	 */
+	public String getFlowControlPolicy() {
+		return flowControlPolicy;
+	}
+
+	/**
+	 * Sets what happens to a message sent to a service of the peer which has granted no credits: the sender waits for them, fails at once,
+	 * or leaves the message in persistence to be sent when they're granted.
+	 * 
+	 * @param flowControlPolicy
+	 *            one of <code>MessengerProperties.FLOW_CONTROL_BLOCK</code>, <code>FLOW_CONTROL_FAIL</code> or
+	 *            <code>FLOW_CONTROL_SPILL</code>.
+	 */
+	public void setFlowControlPolicy(String flowControlPolicy) {
+		if (!MessengerProperties.FLOW_CONTROL_BLOCK.equals(flowControlPolicy) && !MessengerProperties.FLOW_CONTROL_FAIL.equals(flowControlPolicy)
+				&& !MessengerProperties.FLOW_CONTROL_SPILL.equals(flowControlPolicy)) {
+			throw new IllegalArgumentException("Invalid flow control policy: " + flowControlPolicy);
+		}
+		this.flowControlPolicy = flowControlPolicy;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a response.
+	 * 
+	 * @return the number of requests waiting for a response.
+	 */
+	public int currentRequestsPending() {
+		return requests.size();
 	}
 
 	/**
@@ -443,19 +1177,19 @@ public abstract class Messenger implements SocketSessionController {
 	 *            the listener to be added.
 	 */
 	public void setServiceListener(String serviceId, ServiceListener l) {
-		synchronized (ServiceThread.class) {
-			serviceThreadsPaused = true;
-			try {
-				while (serviceThreadsExecuting > 0) {
-					ServiceThread.class.wait();
-				}
-				listenerList.setServiceListener(serviceId, l);
-			} catch (InterruptedException ex) {
-				logger.warning("Thread interrupted while waiting for threads to finish.");
-				return;
-			} finally {
-				serviceThreadsPaused = false;
-				ServiceThread.class.notifyAll();
+		// Wait for the messages the service is processing, other services keep running.
+		ServiceDispatcher<SessionMessage> dispatcher = (serviceId != null) ? dispatchers.get(serviceId.toLowerCase()) : null;
+		try {
+			if (dispatcher != null) {
+				dispatcher.pause();
+			}
+			listenerList.setServiceListener(serviceId, l);
+		} catch (InterruptedException ex) {
+			logger.warning("Thread interrupted while waiting for threads to finish.");
+			return;
+		} finally {
+			if (dispatcher != null) {
+				dispatcher.resume();
 			}
 		}
 
@@ -491,20 +1225,70 @@ public abstract class Messenger implements SocketSessionController {
 	 *            the service id.
 	 */
 	public void removeServiceListener(String serviceId) {
-		synchronized (ServiceThread.class) {
-			serviceThreadsPaused = true;
-			try {
-				while (serviceThreadsExecuting > 0) {
-					ServiceThread.class.wait();
+		ServiceDispatcher<SessionMessage> dispatcher = (serviceId != null) ? dispatchers.get(serviceId.toLowerCase()) : null;
+		try {
+			if (dispatcher != null) {
+				dispatcher.pause();
+			}
+			this.listenerList.removeServiceListener(serviceId);
+		} catch (InterruptedException ex) {
+			logger.warning("Thread interrupted while waiting for threads to finish.");
+		} finally {
+			if (dispatcher != null) {
+				dispatcher.resume();
+			}
+		}
+	}
+
+	/**
+	 * Sets whether the messages of the specified service are processed one at a time and in the order they were received, instead of in
+	 * parallel.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @param ordered
+	 *            <code>true</code> to process the messages of the service in order.
+	 */
+	public void setOrderedDispatch(String serviceId, boolean ordered) {
+		if (serviceId == null) {
+			throw new IllegalArgumentException("Null service id.");
+		}
+		String key = serviceId.toLowerCase();
+		orderedServices.put(key, Boolean.valueOf(ordered));
+		ServiceDispatcher<SessionMessage> dispatcher = dispatchers.get(key);
+		if (dispatcher != null) {
+			dispatcher.setMaxConcurrency(getMaxConcurrency(key));
+		}
+	}
+
+	/**
+	 * Sets the executor processing received messages, e.g. to share a thread pool with the application. The executor is not shut down when
+	 * the messenger is stopped.
+	 * 
+	 * @param executor
+	 *            the executor, or <code>null</code> to let the messenger create one according to the dispatch mode.
+	 */
+	public void setServiceExecutor(Executor executor) {
+		ExecutorService previous = null;
+		synchronized (dispatchers) {
+			if (serviceExecutorOwned) {
+				previous = (ExecutorService) serviceExecutor;
+			}
+			serviceExecutor = executor;
+			serviceExecutorOwned = false;
+			if (executor != null) {
+				for (ServiceDispatcher<SessionMessage> dispatcher : dispatchers.values()) {
+					dispatcher.setExecutor(executor);
 				}
-				this.listenerList.removeServiceListener(serviceId);
-			} catch (InterruptedException ex) {
-				logger.warning("Thread interrupted while waiting for threads to finish.");
-			} finally {
-				serviceThreadsPaused = false;
-				ServiceThread.class.notifyAll();
+			} else {
+				// Recreate the dispatchers on demand, with a new executor.
+				dispatchers.clear();
 			}
 		}
+		if (previous != null) {
+			// Let it finish what's been already scheduled.
+			previous.shutdown();
+		}
 	}
 
 	public void commandReceived(SocketSession session, Command command) {
@@ -514,32 +1298,97 @@ public abstract class Messenger implements SocketSessionController {
 			signalingCommandReceived(session, (SignalingCommand) command);
 		} else {
 			Message message = (Message) command;
-			String targetServiceId = message.getTargetServiceId().toLowerCase();
-
-			List<SessionMessage> smsgsList = serviceMsgs.get(targetServiceId);
-			// get service message list like this for getting optimized
-			// performance
-			if (smsgsList == null) {
-				synchronized (serviceMsgs) {
-					smsgsList = serviceMsgs.get(targetServiceId);
-					if (smsgsList == null) {
-						List<ServiceThread> serviceThreadsList = new Vector<ServiceThread>(maxParallelThreads);
-						serviceMsgs.put(targetServiceId, smsgsList = new Vector<SessionMessage>());
-						serviceThreads.put(targetServiceId, serviceThreadsList);
-						for (int i = 0; i < maxParallelThreads; i++) {
-							ServiceThread st = new ServiceThread(smsgsList, targetServiceId + "_" + i);
-							serviceThreadsList.add(st);
-							st.start();
-						}
+			if ((session != null) && !session.accept(message)) {
+				logger.fine("Message with id '" + message.getMessageId() + "' already received, dropping it...");
+				grantCredit(session, message.getTargetServiceId());
+				return;
+			}
+			if ((message.getCorrelationMessageId() != null)
+					&& (requests.containsKey(message.getCorrelationMessageId()) || locks.containsKey(message.getCorrelationMessageId()))) {
+				// A response someone is waiting for. Don't queue it behind the messages of the service, that could be waiting for it.
+				messageReceived(session, message);
+				grantCredit(session, message.getTargetServiceId());
+				return;
+			}
+			ServiceDispatcher<SessionMessage> dispatcher = getDispatcher(message.getTargetServiceId().toLowerCase());
+			SessionMessage element = new SessionMessage(session, message);
+			if (session == null) {
+				dispatcher.dispatch(element);
+			} else if (!dispatcher.offer(element)) {
+				// The thread reading the session may serve other sessions too, so it doesn't wait for the service to catch up: the session
+				// stops reading, which makes the peer wait, until the message is queued.
+				logger.fine("Queue of service '" + message.getTargetServiceId() + "' full, suspending reading from the session...");
+				session.suspendReading();
+				dispatcher.whenRoom(new Redispatcher(dispatcher, element));
+			}
+			metrics.getService(message.getTargetServiceId()).queued(dispatcher.getPending());
+		}
+	}
+
+	/**
+	 * Returns the dispatcher of the messages received for the specified service, creating it if needed.
+	 * 
+	 * @param serviceId
+	 *            the service id, in lower case.
+	 * @return the dispatcher of the messages received for the service.
+	 */
+	private ServiceDispatcher<SessionMessage> getDispatcher(String serviceId) {
+		ServiceDispatcher<SessionMessage> dispatcher = dispatchers.get(serviceId);
+		if (dispatcher == null) {
+			synchronized (dispatchers) {
+				dispatcher = dispatchers.get(serviceId);
+				if (dispatcher == null) {
+					if (serviceExecutor == null) {
+						serviceExecutor = createServiceExecutor();
+						serviceExecutorOwned = true;
 					}
+					dispatcher = new ServiceDispatcher<SessionMessage>(serviceId, serviceQueueCapacity, getMaxConcurrency(serviceId),
+							serviceExecutor, serviceHandler);
+					dispatchers.put(serviceId, dispatcher);
 				}
 			}
-			SessionMessage smsg = new SessionMessage(session, message);
-			synchronized (smsgsList) {
-				smsgsList.add(smsg);
-				smsgsList.notify();
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Returns the maximum number of messages of the specified service processed at the same time.
+	 * 
+	 * @param serviceId
+	 *            the service id, in lower case.
+	 * @return the maximum number of messages of the service processed at the same time.
+	 */
+	private int getMaxConcurrency(String serviceId) {
+		Boolean ordered = orderedServices.get(serviceId);
+		if ((ordered != null) ? ordered.booleanValue() : orderedDispatch) {
+			return 1;
+		}
+		return MessengerProperties.DISPATCH_VIRTUAL.equals(dispatchMode) ? Integer.MAX_VALUE : maxParallelThreads;
+	}
+
+	/**
+	 * Creates the executor processing received messages according to the dispatch mode.
+	 * 
+	 * @return the executor processing received messages.
+	 */
+	private ExecutorService createServiceExecutor() {
+		if (MessengerProperties.DISPATCH_VIRTUAL.equals(dispatchMode)) {
+			try {
+				// Looked up by reflection to keep running on JVMs without virtual threads.
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				logger.warning("Virtual threads not available, using a thread pool: " + e);
+				dispatchMode = MessengerProperties.DISPATCH_POOL;
 			}
 		}
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TMS@Service@" + Messenger.this.hashCode() + "_" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 
 	/*
@@ -547,14 +1396,20 @@ public abstract class Messenger implements SocketSessionController {
 	 * (org.andresoviedo.util.messaging.api1.common.net.SocketSession, org.andresoviedo.util.messaging.api1.common.data.Command)
 	 */
 	public void messageReceived(SocketSession session, Message message) {
+		// Taken now, forwarding the message to another client numbers it in the stream of that client.
+		long sequence = ((session != null) && session.isSequencing()) ? message.getSequence() : 0;
 		// This flag will let us know if an ACK has to be sent.
 		boolean sendAck = message.isNeedsAck();
+		boolean processed = true;
 		try {
 			if (message.getCorrelationMessageId() == null) {
 				forwardMessage(message, message.getTargetServiceId());
 			} else {
-				MessageLock lock = (MessageLock) locks.get(message.getCorrelationMessageId());
-				if (lock != null) {
+				PendingRequest request = requests.remove(message.getCorrelationMessageId());
+				MessageLock lock = (request == null) ? locks.get(message.getCorrelationMessageId()) : null;
+				if (request != null) {
+					request.future.complete(message);
+				} else if (lock != null) {
 					synchronized (lock) {
 						lock.result = message;
 						lock.notify();
@@ -576,7 +1431,20 @@ public abstract class Messenger implements SocketSessionController {
 				// The message has not been persisted, so don't send the ACK to
 				// let the client resend it.
 				sendAck = false;
+				processed = false;
+			}
+		}
+		if (sequence > 0) {
+			// Numbered messages are acknowledged cumulatively by the session.
+			if (processed) {
+				session.acknowledge(sequence);
+				if (sendAck) {
+					forwardMessageToSecondaryServices(message, message.getTargetServiceId());
+				}
+			} else {
+				session.reject(sequence);
 			}
+			return;
 		}
 		// Send the ACK if needed.
 		if (sendAck) {
@@ -605,11 +1473,36 @@ public abstract class Messenger implements SocketSessionController {
 			// Notice that the server will never enter here.
 			LoginResponse response = (LoginResponse) command;
 			if (response.getResult() == LoginResponse.LOGIN_OK) {
+				openCredits(session, response.getCreditWindow());
+				// Resume the streams if the server agreed to. The missed messages are queued before any other.
+				ResumeState state = session.getResumeState();
+				List<Message> missed = null;
+				if ((state != null) && (response.getStreamId() != 0)) {
+					List<Message> acknowledged = new ArrayList<Message>();
+					missed = state.resume(response, acknowledged);
+					session.setSequencing(true);
+					deleteAcknowledged(acknowledged);
+					if ((missed != null) && !missed.isEmpty()) {
+						logger.fine("Session resumed, retransmitting " + missed.size() + " messages...");
+						try {
+							session.send(missed);
+						} catch (SocketSessionException e) {
+							logger.warning("SocketSessionException caught: " + e.getMessage());
+						}
+					}
+				}
 				// Set the session as authenticated.
 				session.putProperty(SESSION_AUTHENTICATED_PROPERTY, Boolean.TRUE);
+				if (missed != null) {
+					// Only the messages which couldn't be sent are missing.
+					resendUnsentMessages(clientId);
+					fireSessionOpened(session);
+					return;
+				}
 				// We're now connected, then send all persisted messages. Notice
 				// the messages are not removed from persistence.
 				logger.fine("Login OK, getting messages from persistence...");
+				clearUnsentMessages(clientId);
 				Message message = null;
 				for (Iterator<?> it = persistence.iterator(clientId, false); it.hasNext();) {
 					message = (Message) it.next();
@@ -618,7 +1511,7 @@ public abstract class Messenger implements SocketSessionController {
 						// This method will remove this message from persistence
 						// if needed.
 						try {
-							send(message, false);
+							resend(message);
 						} catch (MessengerException e) {
 							logger.warning("MessengerException caught: " + e.getMessage());
 						}
@@ -629,9 +1522,18 @@ public abstract class Messenger implements SocketSessionController {
 			}
 		} else if (command instanceof MessageAck) {
 			MessageAck ack = (MessageAck) command;
-			logger.fine("Message with id '" + ack.getMessageId() + "' acknowledged, deleting it from persistence...");
-			if (!persistence.delete(ack.getClientId(), ack.getMessageId())) {
-				logger.warning("Message with id '" + ack.getMessageId() + "' could not be deleted.");
+			for (String messageId : ack.getMessageIds()) {
+				logger.fine("Message with id '" + messageId + "' acknowledged, deleting it from persistence...");
+				if (!persistence.delete(ack.getClientId(), messageId)) {
+					logger.warning("Message with id '" + messageId + "' could not be deleted.");
+				}
+			}
+		} else if (command instanceof SequenceAck) {
+			deleteAcknowledged(session.acknowledged((SequenceAck) command));
+		} else if (command instanceof CreditGrant) {
+			CreditGrant grant = (CreditGrant) command;
+			if (session.getCredits().grant(grant.getServiceId(), grant.getCredits())) {
+				sendSpilledMessages(session, grant.getServiceId());
 			}
 		} else if (command instanceof PingRequest) {
 			PingRequest request = (PingRequest) command;
@@ -657,12 +1559,22 @@ public abstract class Messenger implements SocketSessionController {
 	 */
 	public void sessionClosed(SocketSession session, boolean forced) {
 		logger.fine("Session closed: " + session.getRemoteHostName());
+		// Senders waiting for credits fail as the session is closed.
+		session.getCredits().close();
 		// Session is no longer authenticated. Notice that the event is fired if
 		// the session was authenticated.
 		if (session.containsProperty(SESSION_AUTHENTICATED_PROPERTY)) {
 			session.removeProperty(SESSION_AUTHENTICATED_PROPERTY);
 			fireSessionClosed(session, forced);
 		}
+		// Responses won't be received through this session anymore.
+		if (requestsInFlight.remove(session) != null) {
+			for (PendingRequest request : requests.values()) {
+				if (request.session == session) {
+					request.future.completeExceptionally(new MessengerException("Session closed: " + session.getRemoteHostName()));
+				}
+			}
+		}
 	}
 
 	/*
@@ -776,25 +1688,27 @@ public abstract class Messenger implements SocketSessionController {
 	 * @return the maximum number of parallel Reader threads that can run at same time.
 	 */
 	public int getMaxParallelThreads() {
-		return maxParallelThreads * serviceThreads.size();
+		return maxParallelThreads * dispatchers.size();
 	}
 
 	/**
-	 * @return the number of Reader threads that are currently owning a lock.
+	 * @return the number of received messages currently being processed.
 	 */
 	public int currentThreadsRunning() {
-		return serviceThreadsExecuting;
+		int ret = 0;
+		for (ServiceDispatcher<SessionMessage> dispatcher : dispatchers.values()) {
+			ret += dispatcher.getExecuting();
+		}
+		return ret;
 	}
 
 	/**
-	 * @return the number of Reader threads that are currently owning a lock.
+	 * @return the number of received messages waiting to be processed.
 	 */
 	public int currentMessagesPending() {
 		int ret = 0;
-		synchronized (serviceMsgs) {
-			for (List<SessionMessage> sml : serviceMsgs.values()) {
-				ret += sml.size();
-			}
+		for (ServiceDispatcher<SessionMessage> dispatcher : dispatchers.values()) {
+			ret += dispatcher.getPending();
 		}
 		return ret;
 	}
@@ -868,11 +1782,126 @@ public abstract class Messenger implements SocketSessionController {
 
 	/**
 	 * A simple object holding a message used for synchronous calls.
+	 * 
+	 * @deprecated see {@link Messenger#locks}.
 	 */
+	@Deprecated
 	protected static class MessageLock {
 		public Message result;
 	}
 
+	/**
+	 * A request waiting for a response.
+	 */
+	protected class PendingRequest {
+
+		/**
+		 * The id of the request message.
+		 */
+		final String messageId;
+
+		/**
+		 * The session the request was sent through.
+		 */
+		final SocketSession session;
+
+		/**
+		 * The counter of requests in flight of the session.
+		 */
+		final AtomicInteger inFlight;
+
+		/**
+		 * The future completed with the response.
+		 */
+		final CompletableFuture<Message> future = new CompletableFuture<Message>();
+
+		/**
+		 * The timeout of the request, if any.
+		 */
+		volatile TimingWheel.Timeout timeout;
+
+		PendingRequest(String messageId, SocketSession session, AtomicInteger inFlight) {
+			this.messageId = messageId;
+			this.session = session;
+			this.inFlight = inFlight;
+		}
+
+		/**
+		 * Releases the resources held by the request once its future is completed.
+		 */
+		void release() {
+			requests.remove(messageId, this);
+			inFlight.decrementAndGet();
+			TimingWheel.Timeout t = timeout;
+			if (t != null) {
+				t.cancel();
+			}
+		}
+	}
+
+	/**
+	 * The management interface of the messenger.
+	 */
+	private class Management implements MessengerMXBean {
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getClientId()
+		 */
+		public String getClientId() {
+			return clientId;
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getThreadsRunning()
+		 */
+		public int getThreadsRunning() {
+			return currentThreadsRunning();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getMessagesPending()
+		 */
+		public int getMessagesPending() {
+			return currentMessagesPending();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getRequestsPending()
+		 */
+		public int getRequestsPending() {
+			return currentRequestsPending();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getPersistenceBacklog()
+		 */
+		public int getPersistenceBacklog() {
+			return persistence.size();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getSessions()
+		 */
+		public List<SessionMetrics.Snapshot> getSessions() {
+			return getMetricsSnapshot().getSessions();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#getServices()
+		 */
+		public List<ServiceMetrics.Snapshot> getServices() {
+			return getMetricsSnapshot().getServices();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.MessengerMXBean#resetMetrics()
+		 */
+		public void resetMetrics() {
+			Messenger.this.resetMetrics();
+		}
+
+	}
+
 	/**
 	 * A received Message sent through a SocketSession
 	 */
@@ -887,50 +1916,24 @@ public abstract class Messenger implements SocketSessionController {
 	}
 
 	/**
-	 * A Thread that process a messages list received through a SocketSession for a specified registered service.
-	 * 
-	 * @author andresoviedo
-	 * 
+	 * Queues a message that didn't fit in the queue of its service once there's room, and resumes reading from its session.
 	 */
-	private class ServiceThread extends Thread {
-
-		List<SessionMessage> msgs;
+	private class Redispatcher implements Runnable {
+		private final ServiceDispatcher<SessionMessage> dispatcher;
+		private final SessionMessage element;
 
-		ServiceThread(List<SessionMessage> msgs, String threadName) {
-			super(threadName);
-			this.msgs = msgs;
+		public Redispatcher(ServiceDispatcher<SessionMessage> dispatcher, SessionMessage element) {
+			this.dispatcher = dispatcher;
+			this.element = element;
 		}
 
-		@Override
 		public void run() {
-			try {
-				while (true) {
-					SessionMessage msg;
-					synchronized (msgs) {
-						while (msgs.isEmpty())
-							msgs.wait();
-						msg = msgs.remove(0);
-					}
-					synchronized (ServiceThread.class) {
-						while (serviceThreadsPaused)
-							ServiceThread.class.wait();
-						serviceThreadsExecuting++;
-						ServiceThread.class.notifyAll();
-					}
-					try {
-						messageReceived(msg.session, msg.message);
-					} catch (Exception ex) {
-						logger.severe("Exception caught while processing the received message: " + ex.getMessage());
-					}
-					synchronized (ServiceThread.class) {
-						serviceThreadsExecuting--;
-						ServiceThread.class.notifyAll();
-					}
-				}
-			} catch (InterruptedException ex) {
-				logger.info("Thread interrupted while waiting to deliver messages");
+			if (dispatcher.offer(element)) {
+				element.session.resumeReading();
+			} else {
+				dispatcher.whenRoom(this);
 			}
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package org.andresoviedo.util.messaging.api1;
+
+import java.util.List;
+
+import org.andresoviedo.util.messaging.api1.common.metrics.ServiceMetrics;
+import org.andresoviedo.util.messaging.api1.common.metrics.SessionMetrics;
+
+/**
+ * The management interface of a messenger, registered in the platform MBean server while the messenger is started. Latencies are reported
+ * in microseconds.
+ *
+ * @author andresoviedo
+ */
+public interface MessengerMXBean {
+
+	/**
+	 * Returns the client id of the messenger.
+	 *
+	 * @return the client id of the messenger.
+	 */
+	public String getClientId();
+
+	/**
+	 * Returns the number of received messages being processed.
+	 *
+	 * @return the number of received messages being processed.
+	 */
+	public int getThreadsRunning();
+
+	/**
+	 * Returns the number of received messages waiting to be processed.
+	 *
+	 * @return the number of received messages waiting to be processed.
+	 */
+	public int getMessagesPending();
+
+	/**
+	 * Returns the number of requests waiting for a response.
+	 *
+	 * @return the number of requests waiting for a response.
+	 */
+	public int getRequestsPending();
+
+	/**
+	 * Returns the number of sent messages persisted until they're acknowledged.
+	 *
+	 * @return the number of sent messages waiting to be acknowledged.
+	 */
+	public int getPersistenceBacklog();
+
+	/**
+	 * Returns the metrics of the sessions.
+	 *
+	 * @return the metrics of the sessions.
+	 */
+	public List<SessionMetrics.Snapshot> getSessions();
+
+	/**
+	 * Returns the metrics of the services.
+	 *
+	 * @return the metrics of the services.
+	 */
+	public List<ServiceMetrics.Snapshot> getServices();
+
+	/**
+	 * Clears the latency histograms, e.g. to report the latencies of fixed intervals.
+	 */
+	public void resetMetrics();
+
+}
@@ -25,12 +25,338 @@ public class MessengerProperties {
 	public static String SYSTEM_PROPERTY_MAX_PARALLEL_THREADS = "messaging.maxParallelThreads";
 
 	/**
-	 * Returns the client id for the messaging service.
+	 * The system property holding how received messages are dispatched to services: "pool" runs them in a shared thread pool, at most
+	 * <code>messaging.maxParallelThreads</code> at the same time for each service, and "virtual" runs each message in a virtual thread of
+	 * its own (falling back to "pool" if the JVM has no virtual threads). Defaults to "pool".
+	 */
+	public static String SYSTEM_PROPERTY_DISPATCH_MODE = "messaging.dispatchMode";
+
+	/**
+	 * The system property telling whether the messages of a service are processed one at a time and in the order they were received.
+	 * Defaults to false.
+	 */
+	public static String SYSTEM_PROPERTY_ORDERED_DISPATCH = "messaging.orderedDispatch";
+
+	/**
+	 * The system property holding the maximum number of received messages waiting to be processed by each service. Defaults to 8192.
+	 */
+	public static String SYSTEM_PROPERTY_SERVICE_QUEUE_CAPACITY = "messaging.serviceQueueCapacity";
+
+	/**
+	 * The system property holding the maximum number of requests waiting for a response in each session. Defaults to 4096.
+	 */
+	public static String SYSTEM_PROPERTY_MAX_IN_FLIGHT_REQUESTS = "messaging.maxInFlightRequests";
+
+	/**
+	 * The system property holding the resolution of request timeouts, in milliseconds. Defaults to 10.
+	 */
+	public static String SYSTEM_PROPERTY_REQUEST_TIMEOUT_TICK = "messaging.requestTimeoutTick";
+
+	/**
+	 * The system property holding the maximum number of bytes a session writes to its socket in a single batch. Defaults to 65536.
+	 */
+	public static String SYSTEM_PROPERTY_MAX_BATCH_BYTES = "messaging.maxBatchBytes";
+
+	/**
+	 * The system property holding the maximum time a session waits for more commands before writing a batch, in microseconds. Defaults
+	 * to 0.
+	 */
+	public static String SYSTEM_PROPERTY_MAX_LINGER = "messaging.maxLinger";
+
+	/**
+	 * The system property holding the minimum size in bytes of the body of a text or object message to be compressed when it's sent with
+	 * the binary codec. Bodies of messages flagged as compressed are always compressed. Defaults to 0, which disables automatic
+	 * compression.
+	 */
+	public static String SYSTEM_PROPERTY_COMPRESSION_THRESHOLD = "messaging.compressionThreshold";
+
+	/**
+	 * The system property holding the Deflate level (1 to 9) used to compress message bodies. Defaults to 1, the fastest.
+	 */
+	public static String SYSTEM_PROPERTY_COMPRESSION_LEVEL = "messaging.compressionLevel";
+
+	/**
+	 * The system property holding the maximum number of commands queued to a topic subscriber before it's considered slow. Defaults to
+	 * 1024.
+	 */
+	public static String SYSTEM_PROPERTY_MAX_SUBSCRIBER_BACKLOG = "messaging.maxSubscriberBacklog";
+
+	/**
+	 * The system property holding what happens to messages published to a slow subscriber: "dropOldest" discards the oldest message queued
+	 * to it, "disconnect" closes its session and "spill" stores messages in a persistence of its own until it catches up. Defaults to
+	 * "dropOldest".
+	 */
+	public static String SYSTEM_PROPERTY_SLOW_SUBSCRIBER_POLICY = "messaging.slowSubscriberPolicy";
+
+	/**
+	 * The system property holding whether messengers register their metrics in the platform MBean server while they're started. Defaults
+	 * to true.
+	 */
+	public static String SYSTEM_PROPERTY_JMX_ENABLED = "messaging.jmxEnabled";
+
+	/**
+	 * The system property holding whether sessions number their messages so that a reconnecting client resumes its streams, retransmitting
+	 * only the messages the peer missed. Defaults to true.
+	 */
+	public static String SYSTEM_PROPERTY_RESUME_ENABLED = "messaging.resumeEnabled";
+
+	/**
+	 * The system property holding the maximum number of sent messages kept to be retransmitted when a session resumes. Defaults to 8192.
+	 */
+	public static String SYSTEM_PROPERTY_RETRANSMIT_WINDOW = "messaging.retransmitWindow";
+
+	/**
+	 * The system property holding the number of processed messages after which a resumed session acknowledges them. Defaults to 64.
+	 */
+	public static String SYSTEM_PROPERTY_ACK_INTERVAL = "messaging.ackInterval";
+
+	/**
+	 * The system property holding the maximum time in milliseconds a resumed session waits before acknowledging processed messages. Defaults
+	 * to 50.
+	 */
+	public static String SYSTEM_PROPERTY_ACK_DELAY = "messaging.ackDelay";
+
+	/**
+	 * The system property holding the number of messages a peer may send to each service of a session before credits are granted back, 0
+	 * not to limit them. Defaults to 1000.
+	 */
+	public static String SYSTEM_PROPERTY_SERVICE_CREDITS = "messaging.serviceCredits";
+
+	/**
+	 * The system property holding what happens to a message sent to a service of the peer which has granted no credits: one of
+	 * <code>FLOW_CONTROL_BLOCK</code>, <code>FLOW_CONTROL_FAIL</code> or <code>FLOW_CONTROL_SPILL</code>. Defaults to
+	 * <code>FLOW_CONTROL_BLOCK</code>. Messages a server forwards from a client to another are always spilled, they never wait.
+	 */
+	public static String SYSTEM_PROPERTY_FLOW_CONTROL_POLICY = "messaging.flowControlPolicy";
+
+	/**
+	 * The system property holding the maximum time in milliseconds a sender waits for credits with <code>FLOW_CONTROL_BLOCK</code>.
+	 * Defaults to 30000.
+	 */
+	public static String SYSTEM_PROPERTY_CREDIT_TIMEOUT = "messaging.creditTimeout";
+
+	/**
+	 * The domain of the MBeans registered by messengers.
+	 */
+	public static final String JMX_DOMAIN = "org.andresoviedo.util.messaging";
+
+	/**
+	 * Dispatch mode running messages in a shared thread pool.
+	 */
+	public static final String DISPATCH_POOL = "pool";
+
+	/**
+	 * Dispatch mode running each message in a virtual thread.
+	 */
+	public static final String DISPATCH_VIRTUAL = "virtual";
+
+	/**
+	 * Slow subscriber policy discarding the oldest message queued to the subscriber.
+	 */
+	public static final String SLOW_SUBSCRIBER_DROP_OLDEST = "dropOldest";
+
+	/**
+	 * Slow subscriber policy closing the session of the subscriber.
+	 */
+	public static final String SLOW_SUBSCRIBER_DISCONNECT = "disconnect";
+
+	/**
+	 * Slow subscriber policy storing messages in a persistence until the subscriber catches up.
+	 */
+	public static final String SLOW_SUBSCRIBER_SPILL = "spill";
+
+	/**
+	 * Flow control policy waiting for the peer to grant credits.
+	 */
+	public static final String FLOW_CONTROL_BLOCK = "block";
+
+	/**
+	 * Flow control policy failing at once when the peer has granted no credits.
+	 */
+	public static final String FLOW_CONTROL_FAIL = "fail";
+
+	/**
+	 * Flow control policy leaving messages in persistence until the peer grants credits. Messages which aren't persisted fail instead.
+	 */
+	public static final String FLOW_CONTROL_SPILL = "spill";
+
+	/**
+	 * Returns the maximum number of parallel threads invoking the listener of a service.
 	 * 
-	 * @return the client id for the messaging service.
+	 * @return the maximum number of parallel threads invoking the listener of a service.
 	 */
 	public static int getMaxParallelThreads() {
 		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_MAX_PARALLEL_THREADS, "10"));
 	}
 
+	/**
+	 * Returns how received messages are dispatched to services.
+	 * 
+	 * @return either <code>DISPATCH_POOL</code> or <code>DISPATCH_VIRTUAL</code>.
+	 */
+	public static String getDispatchMode() {
+		return System.getProperty(SYSTEM_PROPERTY_DISPATCH_MODE, DISPATCH_POOL);
+	}
+
+	/**
+	 * Returns whether the messages of a service are processed in order by default.
+	 * 
+	 * @return whether the messages of a service are processed in order by default.
+	 */
+	public static boolean isOrderedDispatch() {
+		return Boolean.valueOf(System.getProperty(SYSTEM_PROPERTY_ORDERED_DISPATCH, "false"));
+	}
+
+	/**
+	 * Returns the maximum number of received messages waiting to be processed by each service.
+	 * 
+	 * @return the maximum number of received messages waiting to be processed by each service.
+	 */
+	public static int getServiceQueueCapacity() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_SERVICE_QUEUE_CAPACITY, "8192"));
+	}
+
+	/**
+	 * Returns the maximum number of requests waiting for a response in each session.
+	 * 
+	 * @return the maximum number of requests waiting for a response in each session.
+	 */
+	public static int getMaxInFlightRequests() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_MAX_IN_FLIGHT_REQUESTS, "4096"));
+	}
+
+	/**
+	 * Returns the resolution of request timeouts, in milliseconds.
+	 * 
+	 * @return the resolution of request timeouts, in milliseconds.
+	 */
+	public static long getRequestTimeoutTick() {
+		return Long.valueOf(System.getProperty(SYSTEM_PROPERTY_REQUEST_TIMEOUT_TICK, "10"));
+	}
+
+	/**
+	 * Returns the maximum number of bytes a session writes to its socket in a single batch.
+	 * 
+	 * @return the maximum number of bytes a session writes to its socket in a single batch.
+	 */
+	public static int getMaxBatchBytes() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_MAX_BATCH_BYTES, "65536"));
+	}
+
+	/**
+	 * Returns the maximum time a session waits for more commands before writing a batch, in microseconds.
+	 * 
+	 * @return the maximum time a session waits for more commands before writing a batch, in microseconds.
+	 */
+	public static long getMaxLinger() {
+		return Long.valueOf(System.getProperty(SYSTEM_PROPERTY_MAX_LINGER, "0"));
+	}
+
+	/**
+	 * Returns the minimum size in bytes of a message body to be compressed automatically.
+	 * 
+	 * @return the minimum size in bytes of a message body to be compressed automatically, 0 or less if disabled.
+	 */
+	public static int getCompressionThreshold() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_COMPRESSION_THRESHOLD, "0"));
+	}
+
+	/**
+	 * Returns the Deflate level used to compress message bodies.
+	 * 
+	 * @return the Deflate level used to compress message bodies.
+	 */
+	public static int getCompressionLevel() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_COMPRESSION_LEVEL, "1"));
+	}
+
+	/**
+	 * Returns the maximum number of commands queued to a topic subscriber before it's considered slow.
+	 * 
+	 * @return the maximum number of commands queued to a topic subscriber.
+	 */
+	public static int getMaxSubscriberBacklog() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_MAX_SUBSCRIBER_BACKLOG, "1024"));
+	}
+
+	/**
+	 * Returns what happens to messages published to a slow subscriber.
+	 * 
+	 * @return one of <code>SLOW_SUBSCRIBER_DROP_OLDEST</code>, <code>SLOW_SUBSCRIBER_DISCONNECT</code> or <code>SLOW_SUBSCRIBER_SPILL</code>.
+	 */
+	public static String getSlowSubscriberPolicy() {
+		return System.getProperty(SYSTEM_PROPERTY_SLOW_SUBSCRIBER_POLICY, SLOW_SUBSCRIBER_DROP_OLDEST);
+	}
+
+	/**
+	 * Returns whether messengers register their metrics in the platform MBean server.
+	 * 
+	 * @return whether messengers register their metrics in the platform MBean server.
+	 */
+	public static boolean isJmxEnabled() {
+		return Boolean.valueOf(System.getProperty(SYSTEM_PROPERTY_JMX_ENABLED, "true"));
+	}
+
+	/**
+	 * Returns whether sessions number their messages so that reconnecting clients resume their streams.
+	 * 
+	 * @return whether sessions resume their streams when reconnecting.
+	 */
+	public static boolean isResumeEnabled() {
+		return Boolean.valueOf(System.getProperty(SYSTEM_PROPERTY_RESUME_ENABLED, "true"));
+	}
+
+	/**
+	 * Returns the maximum number of sent messages kept to be retransmitted when a session resumes.
+	 * 
+	 * @return the maximum number of sent messages kept to be retransmitted.
+	 */
+	public static int getRetransmitWindow() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_RETRANSMIT_WINDOW, "8192"));
+	}
+
+	/**
+	 * Returns the number of processed messages after which a resumed session acknowledges them.
+	 * 
+	 * @return the number of processed messages acknowledged at once.
+	 */
+	public static int getAckInterval() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_ACK_INTERVAL, "64"));
+	}
+
+	/**
+	 * Returns the maximum time a resumed session waits before acknowledging processed messages.
+	 * 
+	 * @return the maximum acknowledgement delay, in milliseconds.
+	 */
+	public static long getAckDelay() {
+		return Long.valueOf(System.getProperty(SYSTEM_PROPERTY_ACK_DELAY, "50"));
+	}
+
+	/**
+	 * Returns the number of messages a peer may send to each service of a session before credits are granted back.
+	 * 
+	 * @return the credit window of each service, or 0 if messages aren't limited.
+	 */
+	public static int getServiceCredits() {
+		return Integer.valueOf(System.getProperty(SYSTEM_PROPERTY_SERVICE_CREDITS, "1000"));
+	}
+
+	/**
+	 * Returns what happens to a message sent to a service of the peer which has granted no credits.
+	 * 
+	 * @return one of <code>FLOW_CONTROL_BLOCK</code>, <code>FLOW_CONTROL_FAIL</code> or <code>FLOW_CONTROL_SPILL</code>.
+	 */
+	public static String getFlowControlPolicy() {
+		return System.getProperty(SYSTEM_PROPERTY_FLOW_CONTROL_POLICY, FLOW_CONTROL_BLOCK);
+	}
+
+	/**
+	 * Returns the maximum time a sender waits for credits.
+	 * 
+	 * @return the maximum time to wait for credits, in milliseconds.
+	 */
+	public static long getCreditTimeout() {
+		return Long.valueOf(System.getProperty(SYSTEM_PROPERTY_CREDIT_TIMEOUT, "30000"));
+	}
 }
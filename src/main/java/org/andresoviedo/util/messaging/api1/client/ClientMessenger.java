@@ -2,6 +2,11 @@ package org.andresoviedo.util.messaging.api1.client;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import org.andresoviedo.util.messaging.api1.Messenger;
@@ -9,7 +14,11 @@ import org.andresoviedo.util.messaging.api1.MessengerException;
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
 import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.SubscriptionRequest;
 import org.andresoviedo.util.messaging.api1.common.io.Persistence;
+import org.andresoviedo.util.messaging.api1.common.net.NioReactor;
+import org.andresoviedo.util.messaging.api1.common.net.NioSocketSession;
+import org.andresoviedo.util.messaging.api1.common.net.ResumeState;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSessionException;
 
@@ -39,6 +48,11 @@ public class ClientMessenger extends Messenger {
 	 */
 	private ClientMessengerConfiguration configuration;
 
+	/**
+	 * The topics this client is subscribed to, sent again every time the client logs in.
+	 */
+	private Set<String> topics = new LinkedHashSet<String>();
+
 	/**
 	 * Returns the single instance of this class.
 	 * 
@@ -75,10 +89,21 @@ public class ClientMessenger extends Messenger {
 
 		super.setClientId(configuration.getClientId());
 		// Create the socket session.
-		this.session = new SocketSession(this.configuration.getClientId(), this.configuration.getAddresses(), this);
+		if (ClientMessengerConfiguration.TRANSPORT_NIO.equals(this.configuration.getTransport())) {
+			this.session = new NioSocketSession(this.configuration.getClientId(), this.configuration.getAddresses(), this,
+					NioReactor.getDefault());
+		} else {
+			this.session = new SocketSession(this.configuration.getClientId(), this.configuration.getAddresses(), this);
+		}
 		logger.info("Server addresses: " + Arrays.toString(this.configuration.getAddresses()));
 
 		this.session.setReconnectionDelay(this.configuration.getReconnectionDelay());
+		this.session.setCodec(ClientMessengerConfiguration.createCodec(this.configuration.getCodec()));
+		this.session.getMetrics().setMessengerMetrics(getMetrics());
+		if (MessengerProperties.isResumeEnabled()) {
+			// Kept across reconnections, so that only the messages missed meanwhile are sent again.
+			this.session.setResumeState(new ResumeState());
+		}
 		// Create the persistence object.
 		this.persistence = new Persistence(this.configuration.getPersistenceDirectory());
 	}
@@ -108,6 +133,13 @@ public class ClientMessenger extends Messenger {
 		logger.info("Client messenger stopped.");
 	}
 
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#getSessions()
+	 */
+	protected List<SocketSession> getSessions() {
+		return Collections.singletonList(session);
+	}
+
 	/*
 	 * @see org.andresoviedo.util.messaging.api1.Messenger#sendImpl(org.andresoviedo .util.messaging.api1.common .data.Message)
 	 */
@@ -122,6 +154,10 @@ public class ClientMessenger extends Messenger {
 		super.sessionOpened(session);
 		// The session has been opened, send a login command first.
 		LoginRequest logon = new LoginRequest(this.configuration.getClientId());
+		logon.setCreditWindow(getServiceCredits());
+		if (session.getResumeState() != null) {
+			session.getResumeState().offer(logon);
+		}
 		try {
 			session.send(logon);
 		} catch (SocketSessionException e) {
@@ -129,6 +165,61 @@ public class ClientMessenger extends Messenger {
 		}
 	}
 
+	/**
+	 * Subscribes to a topic published by the server. Messages published to the topic are delivered to the listener of their target service.
+	 * The subscription is kept across reconnections.
+	 * 
+	 * @param topic
+	 *            the topic.
+	 */
+	public void subscribe(String topic) {
+		synchronized (topics) {
+			if (topics.add(topic)) {
+				sendSubscription(topic, true);
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes from a topic published by the server.
+	 * 
+	 * @param topic
+	 *            the topic.
+	 */
+	public void unsubscribe(String topic) {
+		synchronized (topics) {
+			if (topics.remove(topic)) {
+				sendSubscription(topic, false);
+			}
+		}
+	}
+
+	/**
+	 * Sends a subscription request if the session is authenticated. Otherwise it's sent once the client logs in.
+	 */
+	private void sendSubscription(String topic, boolean subscribe) {
+		if (session.containsProperty(SESSION_AUTHENTICATED_PROPERTY)) {
+			try {
+				session.send(new SubscriptionRequest(this.configuration.getClientId(), topic, subscribe));
+			} catch (SocketSessionException e) {
+				logger.info(e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#fireSessionOpened(org.andresoviedo.util.messaging.api1.common.net.SocketSession)
+	 */
+	public void fireSessionOpened(SocketSession session) {
+		// The client has just logged in, subscriptions were lost with the previous connection.
+		synchronized (topics) {
+			for (String topic : topics) {
+				sendSubscription(topic, true);
+			}
+		}
+		super.fireSessionOpened(session);
+	}
+
 	/*
 	 * @see org.andresoviedo.util.messaging.api1.Messenger#sendAndReceiveImpl(org .andresoviedo.util.messaging.api1 .common.data.Message,
 	 * long)
@@ -139,6 +230,13 @@ public class ClientMessenger extends Messenger {
 		return super.sendAndReceive(message, session, timeout);
 	}
 
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#sendAsyncImpl(org.andresoviedo.util.messaging.api1.common.data.Message, long)
+	 */
+	protected CompletableFuture<Message> sendAsyncImpl(Message message, long timeout) throws MessengerException {
+		return super.sendAsync(message, session, timeout);
+	}
+
 	/*
 	 * @see org.andresoviedo.util.messaging.api1.Messenger#getServicePersistenceDirectory ()
 	 */
@@ -42,6 +42,16 @@ public class ClientMessengerConfiguration extends BasicConfiguration {
 	 */
 	public static final String SYSTEM_PROPERTY_RECONNECTION_DELAY = "messaging.client.reconnectionDelay";
 
+	/**
+	 * Transport system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_TRANSPORT = "messaging.client.transport";
+
+	/**
+	 * Codec system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_CODEC = "messaging.client.codec";
+
 	/**
 	 * Remote host configuration file property name.
 	 */
@@ -57,6 +67,16 @@ public class ClientMessengerConfiguration extends BasicConfiguration {
 	 */
 	private static final String PROPERTY_RECONNECTION_DELAY = "reconnection-delay";
 
+	/**
+	 * Transport configuration file property name.
+	 */
+	private static final String PROPERTY_TRANSPORT = "transport";
+
+	/**
+	 * Codec configuration file property name.
+	 */
+	private static final String PROPERTY_CODEC = "codec";
+
 	/**
 	 * Configuration file's default value.
 	 */
@@ -83,6 +103,16 @@ public class ClientMessengerConfiguration extends BasicConfiguration {
 	 */
 	private InetSocketAddress[] addresses;
 
+	/**
+	 * The transport used to connect to the server, either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 */
+	private String transport;
+
+	/**
+	 * The codec offered at login, either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 */
+	private String codec;
+
 	/**
 	 * The time to wait before trying to reconnect after a failed connection attempt.
 	 */
@@ -140,6 +170,10 @@ public class ClientMessengerConfiguration extends BasicConfiguration {
 		// Set the persistence direetory.
 		persistenceDirectory = new File(getProperty(PROPERTY_PERSISTENCE_DIRECTORY, SYSTEM_PROPERTY_PERSISTENCE_DIRECTORY,
 				DEFAULT_PERSISTENCE_DIRECTORY));
+		// Set the transport.
+		transport = getProperty(PROPERTY_TRANSPORT, SYSTEM_PROPERTY_TRANSPORT, TRANSPORT_BLOCKING);
+		// Set the codec.
+		codec = getProperty(PROPERTY_CODEC, SYSTEM_PROPERTY_CODEC, CODEC_BINARY);
 	}
 
 	/**
@@ -199,6 +233,44 @@ public class ClientMessengerConfiguration extends BasicConfiguration {
 		this.reconnectionDelay = reconnectionDelay;
 	}
 
+	/**
+	 * Returns the transport used to connect to the server, either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 * 
+	 * @return the transport.
+	 */
+	public String getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the transport used to connect to the server. Must be set before the messenger is created.
+	 * 
+	 * @param transport
+	 *            either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 */
+	public void setTransport(String transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the codec offered at login, either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 * 
+	 * @return the codec.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec offered at login. Commands are sent with Java serialization unless both peers offer the binary codec.
+	 * 
+	 * @param codec
+	 *            either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 */
+	public void setCodec(String codec) {
+		this.codec = codec;
+	}
+
 	public String getClientId() {
 		return clientId;
 	}
@@ -9,6 +9,8 @@ import java.util.Properties;
 import java.util.logging.Logger;
 
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.BinaryMessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
 
 /**
  * A basic configuration object.
@@ -22,6 +24,26 @@ public class BasicConfiguration {
 	 */
 	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
 
+	/**
+	 * Transport using blocking sockets with dedicated threads per session.
+	 */
+	public static final String TRANSPORT_BLOCKING = "blocking";
+
+	/**
+	 * Transport multiplexing all sessions on a small pool of selector threads.
+	 */
+	public static final String TRANSPORT_NIO = "nio";
+
+	/**
+	 * Codec sending every command with Java serialization.
+	 */
+	public static final String CODEC_SERIALIZATION = "serialization";
+
+	/**
+	 * Codec sending built-in commands with a compact binary encoding, if the peer supports it.
+	 */
+	public static final String CODEC_BINARY = "binary";
+
 	/**
 	 * The properties map.
 	 */
@@ -82,6 +104,23 @@ public class BasicConfiguration {
 		return result;
 	}
 
+	/**
+	 * Creates the codec with the specified name.
+	 * 
+	 * @param codec
+	 *            either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 * @return the codec to offer at login, or <code>null</code> if commands have to be sent with Java serialization.
+	 */
+	public static MessageCodec createCodec(String codec) {
+		if (CODEC_BINARY.equals(codec)) {
+			return new BinaryMessageCodec();
+		}
+		if (!CODEC_SERIALIZATION.equals(codec)) {
+			logger.warning("Unknown codec '" + codec + "', using Java serialization.");
+		}
+		return null;
+	}
+
 	/**
 	 * Loads the properties from a file which name is read from a system property.
 	 * 
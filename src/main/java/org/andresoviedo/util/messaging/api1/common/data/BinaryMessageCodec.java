@@ -0,0 +1,728 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.andresoviedo.util.messaging.api1.common.net.CommandInputStream;
+
+/**
+ * A hand-written binary codec for the built-in commands. Lengths and numbers are written as varints, timestamps as epoch milliseconds and
+ * client and service ids are interned per connection, so after the first message they take one or two bytes. Only <code>ObjectMessage</code>
+ * payloads, property values of unknown types and unknown command classes fall back to Java serialization.
+ * <p>
+ * Bodies of text and object messages are compressed with a <code>PayloadCompressor</code> when the message is flagged as compressed or the
+ * body reaches the threshold of the compressor.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+	/**
+	 * The version of this codec.
+	 */
+	public static final int VERSION = 4;
+
+	/**
+	 * Command types.
+	 */
+	static final int TYPE_SERIALIZED = 0;
+	static final int TYPE_TEXT_MESSAGE = 1;
+	static final int TYPE_OBJECT_MESSAGE = 2;
+	static final int TYPE_MESSAGE_ACK = 3;
+	static final int TYPE_PING_REQUEST = 4;
+	static final int TYPE_PING_RESPONSE = 5;
+	static final int TYPE_LOGIN_REQUEST = 6;
+	static final int TYPE_LOGIN_RESPONSE = 7;
+	static final int TYPE_MESSAGE_ACKS = 8;
+	static final int TYPE_SEQUENCE_ACK = 9;
+	static final int TYPE_CREDIT_GRANT = 10;
+
+	/**
+	 * Message flags.
+	 */
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int FLAG_NEEDS_ACK = 2;
+	private static final int FLAG_TIME_CREATED = 4;
+	private static final int FLAG_TIME_SENT = 8;
+	private static final int FLAG_PROPERTIES = 16;
+	private static final int FLAG_SEQUENCE = 32;
+
+	/**
+	 * String references. Values greater or equal to <code>REF_INDEX</code> refer to an interned string.
+	 */
+	private static final int REF_NULL = 0;
+	private static final int REF_LITERAL = 1;
+	private static final int REF_DEFINE = 2;
+	private static final int REF_INDEX = 3;
+
+	/**
+	 * Property value types.
+	 */
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_STRING = 1;
+	private static final int VALUE_INTEGER = 2;
+	private static final int VALUE_LONG = 3;
+	private static final int VALUE_TRUE = 4;
+	private static final int VALUE_FALSE = 5;
+	private static final int VALUE_SERIALIZED = 6;
+
+	/**
+	 * The maximum number of interned strings per connection.
+	 */
+	private static final int MAX_INTERNED = 4096;
+
+	/**
+	 * The maximum number of messages acknowledged by a single command.
+	 */
+	static final int MAX_ACKS = 4096;
+
+	/**
+	 * The maximum length accepted for a length prefixed field.
+	 */
+	private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * The charset used for strings.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The compressor of message bodies.
+	 */
+	private final PayloadCompressor compressor;
+
+	/**
+	 * Creates a new codec compressing message bodies with the shared compressor.
+	 */
+	public BinaryMessageCodec() {
+		this(PayloadCompressor.getInstance());
+	}
+
+	/**
+	 * Creates a new codec compressing message bodies with the specified compressor.
+	 *
+	 * @param compressor
+	 *            the compressor of message bodies.
+	 */
+	public BinaryMessageCodec(PayloadCompressor compressor) {
+		if (compressor == null) {
+			throw new IllegalArgumentException("Null compressor.");
+		}
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Returns the compressor of message bodies.
+	 *
+	 * @return the compressor of message bodies.
+	 */
+	public PayloadCompressor getCompressor() {
+		return compressor;
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec#getVersion()
+	 */
+	public int getVersion() {
+		return VERSION;
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec#newEncoder()
+	 */
+	public MessageCodec.Encoder newEncoder() {
+		return new Encoder(compressor, false);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec#newSharedEncoder()
+	 */
+	public MessageCodec.Encoder newSharedEncoder() {
+		return new Encoder(compressor, true);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec#newDecoder()
+	 */
+	public MessageCodec.Decoder newDecoder() {
+		return new Decoder(compressor);
+	}
+
+	/**
+	 * The encoder of a connection.
+	 */
+	static class Encoder implements MessageCodec.Encoder {
+
+		/**
+		 * Interned strings mapped to their index, or <code>null</code> if strings are always written as literals.
+		 */
+		private Map<String, Integer> interned;
+
+		/**
+		 * The compressor of message bodies.
+		 */
+		private final PayloadCompressor compressor;
+
+		/**
+		 * Creates a new encoder.
+		 */
+		Encoder(PayloadCompressor compressor, boolean shared) {
+			this.compressor = compressor;
+			// Interning would define strings the decoders of other connections don't know about.
+			this.interned = shared ? null : new HashMap<String, Integer>();
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec.Encoder#encode(org.andresoviedo.util.messaging.api1.common.data
+		 * .Command, java.io.DataOutput)
+		 */
+		public void encode(Command command, DataOutput out) throws IOException {
+			Class<?> clazz = command.getClass();
+			if (clazz == TextMessage.class) {
+				out.writeByte(TYPE_TEXT_MESSAGE);
+				String text = ((TextMessage) command).getText();
+				writeMessage((Message) command, (text != null) ? text.getBytes(UTF8) : null, out);
+			} else if (clazz == ObjectMessage.class) {
+				out.writeByte(TYPE_OBJECT_MESSAGE);
+				Object object = ((ObjectMessage) command).getObject();
+				writeMessage((Message) command, (object != null) ? serialize(object) : null, out);
+			} else if (clazz == MessageAck.class) {
+				List<String> ids = ((MessageAck) command).getMessageIds();
+				if (ids.size() == 1) {
+					out.writeByte(TYPE_MESSAGE_ACK);
+					writeInterned(((MessageAck) command).getClientId(), out);
+					writeString(ids.get(0), out);
+				} else {
+					out.writeByte(TYPE_MESSAGE_ACKS);
+					writeInterned(((MessageAck) command).getClientId(), out);
+					writeVarInt(ids.size(), out);
+					for (String id : ids) {
+						writeString(id, out);
+					}
+				}
+			} else if (clazz == SequenceAck.class) {
+				out.writeByte(TYPE_SEQUENCE_ACK);
+				writeInterned(((SequenceAck) command).getClientId(), out);
+				out.writeLong(((SequenceAck) command).getStreamId());
+				writeVarLong(((SequenceAck) command).getSequence(), out);
+			} else if (clazz == CreditGrant.class) {
+				out.writeByte(TYPE_CREDIT_GRANT);
+				writeInterned(((CreditGrant) command).getClientId(), out);
+				writeInterned(((CreditGrant) command).getServiceId(), out);
+				writeVarInt(((CreditGrant) command).getCredits(), out);
+			} else if (clazz == PingRequest.class) {
+				out.writeByte(TYPE_PING_REQUEST);
+				writeInterned(((PingRequest) command).getClientId(), out);
+			} else if (clazz == PingResponse.class) {
+				out.writeByte(TYPE_PING_RESPONSE);
+				writeInterned(((PingResponse) command).getClientId(), out);
+			} else if (clazz == LoginRequest.class) {
+				out.writeByte(TYPE_LOGIN_REQUEST);
+				writeInterned(((LoginRequest) command).getClientId(), out);
+				writeVarInt(((LoginRequest) command).getCodecVersion(), out);
+				out.writeLong(((LoginRequest) command).getStreamId());
+				writeVarLong(((LoginRequest) command).getNextSequence(), out);
+				writeVarLong(((LoginRequest) command).getFirstSequence(), out);
+				out.writeLong(((LoginRequest) command).getPeerStreamId());
+				writeVarLong(((LoginRequest) command).getAckedSequence(), out);
+				writeVarInt(((LoginRequest) command).getCreditWindow(), out);
+			} else if (clazz == LoginResponse.class) {
+				out.writeByte(TYPE_LOGIN_RESPONSE);
+				writeInterned(((LoginResponse) command).getClientId(), out);
+				writeVarInt(((LoginResponse) command).getResult(), out);
+				writeVarInt(((LoginResponse) command).getCodecVersion(), out);
+				out.writeLong(((LoginResponse) command).getStreamId());
+				writeVarLong(((LoginResponse) command).getNextSequence(), out);
+				out.writeBoolean(((LoginResponse) command).isResumed());
+				writeVarLong(((LoginResponse) command).getAckedSequence(), out);
+				writeVarInt(((LoginResponse) command).getCreditWindow(), out);
+			} else {
+				// Subclasses may have fields of their own, so serialize them.
+				out.writeByte(TYPE_SERIALIZED);
+				writeBytes(serialize(command), out);
+			}
+		}
+
+		/**
+		 * Writes the header fields and the body of a message.
+		 */
+		private void writeMessage(Message message, byte[] body, DataOutput out) throws IOException {
+			// Compressed bodies are flagged in the header, so decide beforehand.
+			boolean compressed = (body != null) && compressor.isCompressible(message, body.length);
+			int flags = 0;
+			if (compressed) {
+				flags |= FLAG_COMPRESSED;
+			}
+			if (message.isNeedsAck()) {
+				flags |= FLAG_NEEDS_ACK;
+			}
+			if (message.getTimeCreated() != null) {
+				flags |= FLAG_TIME_CREATED;
+			}
+			if (message.getTimeSent() != null) {
+				flags |= FLAG_TIME_SENT;
+			}
+			if (!message.getProperties().isEmpty()) {
+				flags |= FLAG_PROPERTIES;
+			}
+			if (message.getSequence() > 0) {
+				flags |= FLAG_SEQUENCE;
+			}
+			out.writeByte(flags);
+			writeInterned(message.getClientId(), out);
+			writeString(message.getMessageId(), out);
+			writeInterned(message.getServiceId(), out);
+			writeInterned(message.getTargetClientId(), out);
+			writeInterned(message.getTargetServiceId(), out);
+			writeInterned(message.getCorrelationClientId(), out);
+			writeString(message.getCorrelationMessageId(), out);
+			writeVarLong(zigZag(message.getTimeout()), out);
+			long base = 0;
+			if (message.getTimeCreated() != null) {
+				base = message.getTimeCreated().getTime();
+				writeVarLong(zigZag(base), out);
+			}
+			if (message.getTimeSent() != null) {
+				// Usually a few milliseconds after creation.
+				writeVarLong(zigZag(message.getTimeSent().getTime() - base), out);
+			}
+			if (message.getSequence() > 0) {
+				writeVarLong(message.getSequence(), out);
+			}
+			if (!message.getProperties().isEmpty()) {
+				writeVarInt(message.getProperties().size(), out);
+				for (Map.Entry<String, Serializable> entry : message.getProperties().entrySet()) {
+					writeInterned(entry.getKey(), out);
+					writeValue(entry.getValue(), out);
+				}
+			}
+			writeBody(message.getServiceId(), body, compressed, out);
+		}
+
+		/**
+		 * Writes the body of a message, compressing it if requested. A <code>null</code> body is written as a zero length.
+		 */
+		private void writeBody(String serviceId, byte[] body, boolean compressed, DataOutput out) throws IOException {
+			if (body == null) {
+				writeVarInt(0, out);
+				return;
+			}
+			writeVarInt(body.length + 1, out);
+			if (compressed) {
+				writeBytes(compressor.compress(serviceId, body), out);
+			} else {
+				out.write(body);
+			}
+		}
+
+		/**
+		 * Writes a property value.
+		 */
+		private void writeValue(Serializable value, DataOutput out) throws IOException {
+			if (value == null) {
+				out.writeByte(VALUE_NULL);
+			} else if (value instanceof String) {
+				out.writeByte(VALUE_STRING);
+				writeString((String) value, out);
+			} else if (value instanceof Integer) {
+				out.writeByte(VALUE_INTEGER);
+				writeVarLong(zigZag(((Integer) value).intValue()), out);
+			} else if (value instanceof Long) {
+				out.writeByte(VALUE_LONG);
+				writeVarLong(zigZag(((Long) value).longValue()), out);
+			} else if (value instanceof Boolean) {
+				out.writeByte(((Boolean) value).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+			} else {
+				out.writeByte(VALUE_SERIALIZED);
+				writeBytes(serialize(value), out);
+			}
+		}
+
+		/**
+		 * Writes a string which is likely to be repeated, defining it the first time it's seen.
+		 */
+		private void writeInterned(String s, DataOutput out) throws IOException {
+			if (s == null) {
+				writeVarInt(REF_NULL, out);
+				return;
+			}
+			Integer index = (interned != null) ? interned.get(s) : null;
+			if (index != null) {
+				writeVarInt(REF_INDEX + index.intValue(), out);
+			} else if ((interned != null) && (interned.size() < MAX_INTERNED)) {
+				interned.put(s, Integer.valueOf(interned.size()));
+				writeVarInt(REF_DEFINE, out);
+				writeBytes(s.getBytes(UTF8), out);
+			} else {
+				writeVarInt(REF_LITERAL, out);
+				writeBytes(s.getBytes(UTF8), out);
+			}
+		}
+
+	}
+
+	/**
+	 * The decoder of a connection.
+	 */
+	static class Decoder implements MessageCodec.Decoder {
+
+		/**
+		 * Interned strings, by index.
+		 */
+		private List<String> interned = new ArrayList<String>();
+
+		/**
+		 * The compressor of message bodies.
+		 */
+		private final PayloadCompressor compressor;
+
+		/**
+		 * Creates a new decoder.
+		 */
+		Decoder(PayloadCompressor compressor) {
+			this.compressor = compressor;
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.data.MessageCodec.Decoder#decode(java.io.DataInput)
+		 */
+		public Command decode(DataInput in) throws IOException, ClassNotFoundException {
+			int type = in.readUnsignedByte();
+			switch (type) {
+			case TYPE_TEXT_MESSAGE: {
+				TextMessage message = new TextMessage();
+				readMessage(message, in);
+				byte[] body = readBody(message, in);
+				if (body != null) {
+					message.setText(new String(body, UTF8));
+				}
+				return message;
+			}
+			case TYPE_OBJECT_MESSAGE: {
+				ObjectMessage message = new ObjectMessage();
+				readMessage(message, in);
+				byte[] body = readBody(message, in);
+				if (body != null) {
+					message.setObject((Serializable) deserialize(body));
+				}
+				return message;
+			}
+			case TYPE_MESSAGE_ACK:
+				return new MessageAck(readInterned(in), readString(in));
+			case TYPE_MESSAGE_ACKS: {
+				String clientId = readInterned(in);
+				int count = readVarInt(in);
+				if ((count < 1) || (count > MAX_ACKS)) {
+					throw new StreamCorruptedException("Invalid acknowledgement count: " + count);
+				}
+				List<String> ids = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					ids.add(readString(in));
+				}
+				return new MessageAck(clientId, ids);
+			}
+			case TYPE_SEQUENCE_ACK:
+				return new SequenceAck(readInterned(in), in.readLong(), readVarLong(in));
+			case TYPE_CREDIT_GRANT:
+				return new CreditGrant(readInterned(in), readInterned(in), readVarInt(in));
+			case TYPE_PING_REQUEST:
+				return new PingRequest(readInterned(in));
+			case TYPE_PING_RESPONSE:
+				return new PingResponse(readInterned(in));
+			case TYPE_LOGIN_REQUEST: {
+				LoginRequest request = new LoginRequest(readInterned(in));
+				request.setCodecVersion(readVarInt(in));
+				request.setStreamId(in.readLong());
+				request.setNextSequence(readVarLong(in));
+				request.setFirstSequence(readVarLong(in));
+				request.setPeerStreamId(in.readLong());
+				request.setAckedSequence(readVarLong(in));
+				request.setCreditWindow(readVarInt(in));
+				return request;
+			}
+			case TYPE_LOGIN_RESPONSE: {
+				LoginResponse response = new LoginResponse(readInterned(in), readVarInt(in));
+				response.setCodecVersion(readVarInt(in));
+				response.setStreamId(in.readLong());
+				response.setNextSequence(readVarLong(in));
+				response.setResumed(in.readBoolean());
+				response.setAckedSequence(readVarLong(in));
+				response.setCreditWindow(readVarInt(in));
+				return response;
+			}
+			case TYPE_SERIALIZED:
+				return (Command) deserialize(readBytes(in));
+			default:
+				throw new StreamCorruptedException("Unknown command type: " + type);
+			}
+		}
+
+		/**
+		 * Reads the header fields of a message.
+		 */
+		private void readMessage(Message message, DataInput in) throws IOException, ClassNotFoundException {
+			int flags = in.readUnsignedByte();
+			message.setCompressed((flags & FLAG_COMPRESSED) != 0);
+			message.setNeedsAck((flags & FLAG_NEEDS_ACK) != 0);
+			message.setClientId(readInterned(in));
+			message.setMessageId(readString(in));
+			message.setServiceId(readInterned(in));
+			message.setTargetClientId(readInterned(in));
+			message.setTargetServiceId(readInterned(in));
+			message.setCorrelationClientId(readInterned(in));
+			message.setCorrelationMessageId(readString(in));
+			message.setTimeout(unZigZag(readVarLong(in)));
+			long base = 0;
+			if ((flags & FLAG_TIME_CREATED) != 0) {
+				base = unZigZag(readVarLong(in));
+				message.setTimeCreated(new Date(base));
+			} else {
+				message.setTimeCreated(null);
+			}
+			if ((flags & FLAG_TIME_SENT) != 0) {
+				message.setTimeSent(new Date(base + unZigZag(readVarLong(in))));
+			}
+			if ((flags & FLAG_SEQUENCE) != 0) {
+				message.setSequence(readVarLong(in));
+			}
+			if ((flags & FLAG_PROPERTIES) != 0) {
+				int count = readVarInt(in);
+				checkLength(count);
+				for (int i = 0; i < count; i++) {
+					String key = readInterned(in);
+					message.putProperty(key, readValue(in));
+				}
+			}
+		}
+
+		/**
+		 * Reads a property value.
+		 */
+		private Serializable readValue(DataInput in) throws IOException, ClassNotFoundException {
+			int type = in.readUnsignedByte();
+			switch (type) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_STRING:
+				return readString(in);
+			case VALUE_INTEGER:
+				return Integer.valueOf((int) unZigZag(readVarLong(in)));
+			case VALUE_LONG:
+				return Long.valueOf(unZigZag(readVarLong(in)));
+			case VALUE_TRUE:
+				return Boolean.TRUE;
+			case VALUE_FALSE:
+				return Boolean.FALSE;
+			case VALUE_SERIALIZED:
+				return (Serializable) deserialize(readBytes(in));
+			default:
+				throw new StreamCorruptedException("Unknown property type: " + type);
+			}
+		}
+
+		/**
+		 * Reads the body of a message written with <code>writeBody()</code>.
+		 */
+		private byte[] readBody(Message message, DataInput in) throws IOException {
+			int length = readVarInt(in);
+			if (length == 0) {
+				return null;
+			}
+			length--;
+			checkLength(length);
+			if (message.isCompressed()) {
+				return compressor.decompress(message.getServiceId(), readBytes(in), length);
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			return body;
+		}
+
+		/**
+		 * Reads a string written with <code>writeInterned()</code>.
+		 */
+		private String readInterned(DataInput in) throws IOException {
+			int ref = readVarInt(in);
+			switch (ref) {
+			case REF_NULL:
+				return null;
+			case REF_LITERAL:
+				return new String(readBytes(in), UTF8);
+			case REF_DEFINE:
+				// The encoder stops defining strings at the limit, so a peer going beyond it is broken or hostile.
+				if (interned.size() >= MAX_INTERNED) {
+					throw new StreamCorruptedException("Too many interned strings: " + interned.size());
+				}
+				String s = new String(readBytes(in), UTF8);
+				interned.add(s);
+				return s;
+			default:
+				int index = ref - REF_INDEX;
+				if (index >= interned.size()) {
+					throw new StreamCorruptedException("Unknown interned string: " + index);
+				}
+				return interned.get(index);
+			}
+		}
+
+	}
+
+	/**
+	 * Serializes an object with Java serialization.
+	 */
+	static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes an object serialized with <code>serialize()</code>.
+	 */
+	static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new CommandInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a string prefixed with its length. A <code>null</code> string is written as a zero length.
+	 */
+	static void writeString(String s, DataOutput out) throws IOException {
+		if (s == null) {
+			writeVarInt(0, out);
+		} else {
+			byte[] bytes = s.getBytes(UTF8);
+			writeVarInt(bytes.length + 1, out);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads a string written with <code>writeString()</code>.
+	 */
+	static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length == 0) {
+			return null;
+		}
+		checkLength(length - 1);
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes a byte array prefixed with its length.
+	 */
+	static void writeBytes(byte[] bytes, DataOutput out) throws IOException {
+		writeVarInt(bytes.length, out);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a byte array written with <code>writeBytes()</code>.
+	 */
+	static byte[] readBytes(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		checkLength(length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes a non-negative integer using 7 bits per byte.
+	 */
+	static void writeVarInt(int value, DataOutput out) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads an integer written with <code>writeVarInt()</code>.
+	 */
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint.");
+	}
+
+	/**
+	 * Writes a long using 7 bits per byte.
+	 */
+	static void writeVarLong(long value, DataOutput out) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a long written with <code>writeVarLong()</code>.
+	 */
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varlong.");
+	}
+
+	/**
+	 * Maps signed numbers to unsigned ones so that small negative numbers take few bytes.
+	 */
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Reverses <code>zigZag()</code>.
+	 */
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Checks a length read from the wire.
+	 */
+	private static void checkLength(int length) throws IOException {
+		if ((length < 0) || (length > MAX_LENGTH)) {
+			throw new StreamCorruptedException("Invalid length: " + length);
+		}
+	}
+
+}
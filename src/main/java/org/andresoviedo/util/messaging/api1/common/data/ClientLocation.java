@@ -0,0 +1,73 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+/**
+ * A command sent between the nodes of a cluster of servers to tell the node owning a client which node the client is connected to, or that
+ * it isn't connected to it anymore.
+ * 
+ * @author andresoviedo
+ */
+public class ClientLocation extends SignalingCommand {
+
+	private static final long serialVersionUID = 3829101264307745516L;
+
+	/**
+	 * The id of the client located. This field is immutable.
+	 */
+	private String locatedClientId;
+
+	/**
+	 * Indicates whether the client has logged in or out of the sending node. This field is immutable.
+	 */
+	private boolean present;
+
+	/**
+	 * Creates a new client location command.
+	 * 
+	 * @param clientId
+	 *            the id of the node sending the command.
+	 * @param locatedClientId
+	 *            the id of the client located.
+	 * @param present
+	 *            <code>true</code> if the client has logged in the sending node, <code>false</code> if it has logged out.
+	 */
+	public ClientLocation(String clientId, String locatedClientId, boolean present) {
+		super(clientId);
+		if (locatedClientId == null) {
+			throw new IllegalArgumentException("The located client id is null.");
+		}
+		this.locatedClientId = locatedClientId;
+		this.present = present;
+	}
+
+	/**
+	 * Returns the id of the client located.
+	 * 
+	 * @return the id of the client located.
+	 */
+	public String getLocatedClientId() {
+		return locatedClientId;
+	}
+
+	/**
+	 * Returns whether the client has logged in or out of the sending node.
+	 * 
+	 * @return <code>true</code> if the client has logged in the sending node, <code>false</code> if it has logged out.
+	 */
+	public boolean isPresent() {
+		return present;
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("ClientLocation [");
+		sb.append("clientId=").append(getClientId()).append(", ");
+		sb.append("locatedClientId=").append(locatedClientId).append(", ");
+		sb.append("present=").append(present).append("]");
+
+		return sb.toString();
+	}
+
+}
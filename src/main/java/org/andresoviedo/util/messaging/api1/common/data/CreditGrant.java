@@ -0,0 +1,71 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+/**
+ * A flow control command: the peer may send as many more messages to a service as the credits granted. Receivers grant credits as the
+ * messages of the service are processed, so a fast sender can't fill their queues.
+ * 
+ * @author andresoviedo
+ */
+public class CreditGrant extends SignalingCommand {
+
+	private static final long serialVersionUID = -6417529120384773245L;
+
+	/**
+	 * The id of the service the credits are granted for. This field is immutable.
+	 */
+	private String serviceId;
+
+	/**
+	 * The number of credits granted. This field is immutable.
+	 */
+	private int credits;
+
+	/**
+	 * Creates a new credit grant command.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @param serviceId
+	 *            the id of the service the credits are granted for.
+	 * @param credits
+	 *            the number of credits granted.
+	 */
+	public CreditGrant(String clientId, String serviceId, int credits) {
+		super(clientId);
+		this.serviceId = serviceId;
+		this.credits = credits;
+	}
+
+	/**
+	 * Returns the id of the service the credits are granted for.
+	 * 
+	 * @return the service id.
+	 */
+	public String getServiceId() {
+		return serviceId;
+	}
+
+	/**
+	 * Returns the number of credits granted, that is, the number of messages the peer may send to the service in addition to the ones it was
+	 * already allowed to.
+	 * 
+	 * @return the number of credits granted.
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("CreditGrant [");
+		sb.append("clientId=").append(getClientId()).append(", ");
+		sb.append("serviceId=").append(serviceId).append(", ");
+		sb.append("credits=").append(credits).append("]");
+
+		return sb.toString();
+	}
+
+}
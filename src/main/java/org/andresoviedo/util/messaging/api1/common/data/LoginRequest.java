@@ -9,6 +9,44 @@ public class LoginRequest extends SignalingCommand {
 
 	private static final long serialVersionUID = 5647993415529384248L;
 
+	/**
+	 * The version of the binary codec the client is able to use, or 0 if only Java serialization is supported. Older clients don't send
+	 * this field, so it defaults to 0 when deserialized by newer servers.
+	 */
+	private int codecVersion;
+
+	/**
+	 * The id of the stream of messages the client sends, or 0 if the client doesn't resume its streams. Older clients don't send this
+	 * field, so they're never resumed.
+	 */
+	private long streamId;
+
+	/**
+	 * The sequence number the client will give to its next message.
+	 */
+	private long nextSequence;
+
+	/**
+	 * The lowest sequence number of the sent messages the client is still able to retransmit.
+	 */
+	private long firstSequence;
+
+	/**
+	 * The id of the stream of messages the client received from the server before reconnecting, or 0 if none.
+	 */
+	private long peerStreamId;
+
+	/**
+	 * The sequence number up to which the client has processed the messages of the server stream.
+	 */
+	private long ackedSequence;
+
+	/**
+	 * The number of messages the server may send to each service of the client before the client grants more credits, or 0 if the client doesn't
+	 * limit them. Older peers don't send this field, so they aren't limited.
+	 */
+	private int creditWindow;
+
 	/**
 	 * Creates a new login request command.
 	 * 
@@ -19,13 +57,151 @@ public class LoginRequest extends SignalingCommand {
 		super(clientId);
 	}
 
+	/**
+	 * Returns the version of the binary codec the client is able to use.
+	 * 
+	 * @return the codec version, or 0 if only Java serialization is supported.
+	 */
+	public int getCodecVersion() {
+		return codecVersion;
+	}
+
+	/**
+	 * Sets the version of the binary codec the client is able to use.
+	 * 
+	 * @param codecVersion
+	 *            the codec version, or 0 if only Java serialization is supported.
+	 */
+	public void setCodecVersion(int codecVersion) {
+		this.codecVersion = codecVersion;
+	}
+
+	/**
+	 * Returns the id of the stream of messages the client sends.
+	 * 
+	 * @return the stream id, or 0 if the client doesn't resume its streams.
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Sets the id of the stream of messages the client sends.
+	 * 
+	 * @param streamId
+	 *            the stream id, or 0 if the client doesn't resume its streams.
+	 */
+	public void setStreamId(long streamId) {
+		this.streamId = streamId;
+	}
+
+	/**
+	 * Returns the sequence number the client will give to its next message.
+	 * 
+	 * @return the next sequence number.
+	 */
+	public long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Sets the sequence number the client will give to its next message.
+	 * 
+	 * @param nextSequence
+	 *            the next sequence number.
+	 */
+	public void setNextSequence(long nextSequence) {
+		this.nextSequence = nextSequence;
+	}
+
+	/**
+	 * Returns the lowest sequence number of the sent messages the client is still able to retransmit.
+	 * 
+	 * @return the lowest sequence number the client is able to retransmit.
+	 */
+	public long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * Sets the lowest sequence number of the sent messages the client is still able to retransmit.
+	 * 
+	 * @param firstSequence
+	 *            the lowest sequence number the client is able to retransmit.
+	 */
+	public void setFirstSequence(long firstSequence) {
+		this.firstSequence = firstSequence;
+	}
+
+	/**
+	 * Returns the id of the stream of messages the client received from the server before reconnecting.
+	 * 
+	 * @return the id of the server stream, or 0 if none.
+	 */
+	public long getPeerStreamId() {
+		return peerStreamId;
+	}
+
+	/**
+	 * Sets the id of the stream of messages the client received from the server before reconnecting.
+	 * 
+	 * @param peerStreamId
+	 *            the id of the server stream, or 0 if none.
+	 */
+	public void setPeerStreamId(long peerStreamId) {
+		this.peerStreamId = peerStreamId;
+	}
+
+	/**
+	 * Returns the sequence number up to which the client has processed the messages of the server stream.
+	 * 
+	 * @return the last sequence number processed by the client.
+	 */
+	public long getAckedSequence() {
+		return ackedSequence;
+	}
+
+	/**
+	 * Sets the sequence number up to which the client has processed the messages of the server stream.
+	 * 
+	 * @param ackedSequence
+	 *            the last sequence number processed by the client.
+	 */
+	public void setAckedSequence(long ackedSequence) {
+		this.ackedSequence = ackedSequence;
+	}
+
+	/**
+	 * Returns the number of messages the server may send to each service of the client without being granted more credits.
+	 * 
+	 * @return the credit window, or 0 if the messages aren't limited.
+	 */
+	public int getCreditWindow() {
+		return creditWindow;
+	}
+
+	/**
+	 * Sets the number of messages the server may send to each service of the client without being granted more credits.
+	 * 
+	 * @param creditWindow
+	 *            the credit window, or 0 if the messages aren't limited.
+	 */
+	public void setCreditWindow(int creditWindow) {
+		this.creditWindow = creditWindow;
+	}
+
 	/*
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append("LoginRequest [");
-		sb.append("clientId=").append(getClientId()).append("]");
+		sb.append("clientId=").append(getClientId()).append(", ");
+		sb.append("codecVersion=").append(codecVersion).append(", ");
+		sb.append("streamId=").append(streamId).append(", ");
+		sb.append("nextSequence=").append(nextSequence).append(", ");
+		sb.append("ackedSequence=").append(ackedSequence).append(", ");
+		sb.append("creditWindow=").append(creditWindow).append("]");
 
 		return sb.toString();
 	}
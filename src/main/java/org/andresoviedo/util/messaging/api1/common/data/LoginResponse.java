@@ -24,6 +24,40 @@ public class LoginResponse extends SignalingCommand {
 	 */
 	private int result;
 
+	/**
+	 * The version of the binary codec both peers agreed to use from now on, or 0 to keep using Java serialization. Older servers don't
+	 * send this field, so it defaults to 0 when deserialized by newer clients.
+	 */
+	private int codecVersion;
+
+	/**
+	 * The id of the stream of messages the server sends, or 0 if the server doesn't resume the streams of this client. Older servers don't
+	 * send this field, so they're never resumed.
+	 */
+	private long streamId;
+
+	/**
+	 * The sequence number the server will give to its next message.
+	 */
+	private long nextSequence;
+
+	/**
+	 * Whether the server resumed the stream of the client, in which case it has processed its messages up to the acked sequence number.
+	 * Otherwise the client stream starts again at the next sequence number of the login request.
+	 */
+	private boolean resumed;
+
+	/**
+	 * The sequence number up to which the server has processed the messages of the client stream, if resumed.
+	 */
+	private long ackedSequence;
+
+	/**
+	 * The number of messages the client may send to each service of the server before the server grants more credits, or 0 if the server doesn't
+	 * limit them. Older peers don't send this field, so they aren't limited.
+	 */
+	private int creditWindow;
+
 	/**
 	 * Creates a new login response command.
 	 * 
@@ -49,6 +83,120 @@ public class LoginResponse extends SignalingCommand {
 		return result;
 	}
 
+	/**
+	 * Returns the version of the binary codec both peers agreed to use.
+	 * 
+	 * @return the codec version, or 0 to keep using Java serialization.
+	 */
+	public int getCodecVersion() {
+		return codecVersion;
+	}
+
+	/**
+	 * Sets the version of the binary codec both peers agreed to use.
+	 * 
+	 * @param codecVersion
+	 *            the codec version, or 0 to keep using Java serialization.
+	 */
+	public void setCodecVersion(int codecVersion) {
+		this.codecVersion = codecVersion;
+	}
+
+	/**
+	 * Returns the id of the stream of messages the server sends.
+	 * 
+	 * @return the stream id, or 0 if the server doesn't resume the streams of this client.
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Sets the id of the stream of messages the server sends.
+	 * 
+	 * @param streamId
+	 *            the stream id, or 0 if the server doesn't resume the streams of this client.
+	 */
+	public void setStreamId(long streamId) {
+		this.streamId = streamId;
+	}
+
+	/**
+	 * Returns the sequence number the server will give to its next message.
+	 * 
+	 * @return the next sequence number.
+	 */
+	public long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Sets the sequence number the server will give to its next message.
+	 * 
+	 * @param nextSequence
+	 *            the next sequence number.
+	 */
+	public void setNextSequence(long nextSequence) {
+		this.nextSequence = nextSequence;
+	}
+
+	/**
+	 * Returns whether the server resumed the stream of the client.
+	 * 
+	 * @return <code>true</code> if the server resumed the stream of the client, <code>false</code> if it starts again.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Sets whether the server resumed the stream of the client.
+	 * 
+	 * @param resumed
+	 *            <code>true</code> if the server resumed the stream of the client, <code>false</code> if it starts again.
+	 */
+	public void setResumed(boolean resumed) {
+		this.resumed = resumed;
+	}
+
+	/**
+	 * Returns the sequence number up to which the server has processed the messages of the client stream.
+	 * 
+	 * @return the last sequence number processed by the server, if resumed.
+	 */
+	public long getAckedSequence() {
+		return ackedSequence;
+	}
+
+	/**
+	 * Sets the sequence number up to which the server has processed the messages of the client stream.
+	 * 
+	 * @param ackedSequence
+	 *            the last sequence number processed by the server.
+	 */
+	public void setAckedSequence(long ackedSequence) {
+		this.ackedSequence = ackedSequence;
+	}
+
+	/**
+	 * Returns the number of messages the client may send to each service of the server without being granted more credits.
+	 * 
+	 * @return the credit window, or 0 if the messages aren't limited.
+	 */
+	public int getCreditWindow() {
+		return creditWindow;
+	}
+
+	/**
+	 * Sets the number of messages the client may send to each service of the server without being granted more credits.
+	 * 
+	 * @param creditWindow
+	 *            the credit window, or 0 if the messages aren't limited.
+	 */
+	public void setCreditWindow(int creditWindow) {
+		this.creditWindow = creditWindow;
+	}
+
 	/*
 	 * @see java.lang.Object#toString()
 	 */
@@ -56,7 +204,12 @@ public class LoginResponse extends SignalingCommand {
 		StringBuffer sb = new StringBuffer();
 		sb.append("LoginResponse [");
 		sb.append("clientId=").append(getClientId()).append(", ");
-		sb.append("result=").append(result).append("]");
+		sb.append("result=").append(result).append(", ");
+		sb.append("codecVersion=").append(codecVersion).append(", ");
+		sb.append("streamId=").append(streamId).append(", ");
+		sb.append("resumed=").append(resumed).append(", ");
+		sb.append("ackedSequence=").append(ackedSequence).append(", ");
+		sb.append("creditWindow=").append(creditWindow).append("]");
 
 		return sb.toString();
 	}
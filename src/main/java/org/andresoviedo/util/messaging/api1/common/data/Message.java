@@ -11,7 +11,7 @@ import java.util.Map;
  * 
  * @author andresoviedo
  */
-public abstract class Message implements Command {
+public abstract class Message implements Command, Cloneable {
 
 	/**
 	 * 
@@ -73,6 +73,12 @@ public abstract class Message implements Command {
 	 */
 	protected Date timeReceived;
 
+	/**
+	 * The sequence number of this message in the stream of the session it was last sent through, or 0 if the session doesn't number its
+	 * messages.
+	 */
+	protected long sequence;
+
 	/**
 	 * Indicates wheter the body of this message is compressed.
 	 */
@@ -328,6 +334,26 @@ public abstract class Message implements Command {
 		this.timeReceived = timeReceived;
 	}
 
+	/**
+	 * Returns the sequence number of this message in the stream of the session it was last sent through.
+	 * 
+	 * @return the sequence number, or 0 if the message isn't numbered.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Sets the sequence number of this message. Sessions number the messages they send once the peers have agreed to resume their
+	 * streams.
+	 * 
+	 * @param sequence
+	 *            the sequence number, or 0 if the message isn't numbered.
+	 */
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
 	/**
 	 * Returns the timestamp this message was sent.
 	 * 
@@ -412,6 +438,23 @@ public abstract class Message implements Command {
 		this.needsAck = needsAck;
 	}
 
+	/**
+	 * Returns a copy of this message, to be sent with different delivery fields. The copy has its own properties map, but shares the body
+	 * and the property values.
+	 * 
+	 * @return the copy.
+	 */
+	@SuppressWarnings("unchecked")
+	public Message copy() {
+		try {
+			Message ret = (Message) super.clone();
+			ret.properties = (Map<String, Serializable>) ((HashMap<String, Serializable>) properties).clone();
+			return ret;
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/*
 	 * @see java.lang.Object#toString()
 	 */
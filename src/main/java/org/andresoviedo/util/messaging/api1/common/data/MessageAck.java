@@ -1,7 +1,12 @@
 package org.andresoviedo.util.messaging.api1.common.data;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
- * A message acknowledgement command.
+ * A message acknowledgement command. A single command may acknowledge a batch of messages.
  * 
  * @author andresoviedo
  */
@@ -14,6 +19,11 @@ public class MessageAck extends SignalingCommand {
 	 */
 	private String messageId;
 
+	/**
+	 * The ids of further acknowledged messages when acknowledging a batch, <code>null</code> otherwise. This field is immutable.
+	 */
+	private String[] moreMessageIds;
+
 	/**
 	 * Constructs a new message acknowledgement command.
 	 * 
@@ -29,7 +39,27 @@ public class MessageAck extends SignalingCommand {
 	}
 
 	/**
-	 * Returns acknowledged message's id.
+	 * Constructs a new message acknowledgement command for a batch of messages.
+	 * 
+	 * @param messageIds
+	 *            the ids of the acknowledged messages.
+	 * @throws IllegalArgumentException
+	 *             if no ids are specified or any of them is <code>null</code>.
+	 */
+	public MessageAck(String clientId, List<String> messageIds) {
+		this(clientId, (messageIds != null) && !messageIds.isEmpty() ? messageIds.get(0) : null);
+		if (messageIds.size() > 1) {
+			this.moreMessageIds = messageIds.subList(1, messageIds.size()).toArray(new String[messageIds.size() - 1]);
+			for (int i = 0; i < moreMessageIds.length; i++) {
+				if (moreMessageIds[i] == null) {
+					throw new IllegalArgumentException("The message id is null.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns acknowledged message's id, the first one if a batch of messages is acknowledged.
 	 * 
 	 * @return acknowledged message's id.
 	 */
@@ -37,13 +67,32 @@ public class MessageAck extends SignalingCommand {
 		return messageId;
 	}
 
+	/**
+	 * Returns the ids of all acknowledged messages.
+	 * 
+	 * @return the ids of all acknowledged messages.
+	 */
+	public List<String> getMessageIds() {
+		if (moreMessageIds == null) {
+			return Collections.singletonList(messageId);
+		}
+		List<String> ret = new ArrayList<String>(moreMessageIds.length + 1);
+		ret.add(messageId);
+		ret.addAll(Arrays.asList(moreMessageIds));
+		return ret;
+	}
+
 	/*
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
 		StringBuffer sb = new StringBuffer("MessageAck [");
 		sb.append("clientId=").append(getClientId()).append(", ");
-		sb.append("messageId=").append(messageId).append("]");
+		sb.append("messageId=").append(messageId);
+		if (moreMessageIds != null) {
+			sb.append(", moreMessageIds=").append(moreMessageIds.length);
+		}
+		sb.append("]");
 
 		return sb.toString();
 	}
@@ -0,0 +1,88 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A wire codec for commands. Codecs are negotiated at login: the client offers its codec version in the <code>LoginRequest</code> and the
+ * server answers with the agreed version in the <code>LoginResponse</code>. Until then, and whenever no agreement is reached, commands are
+ * sent with Java serialization.
+ * <p>
+ * Encoders and decoders may keep state between commands (e.g. interned strings), so each connection direction needs its own instance and
+ * commands have to be decoded in the same order they were encoded.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public interface MessageCodec {
+
+	/**
+	 * Returns the version of this codec. It's sent on the wire, so it must be between 1 and 127.
+	 *
+	 * @return the version of this codec.
+	 */
+	public int getVersion();
+
+	/**
+	 * Creates a new encoder for a connection.
+	 *
+	 * @return a new encoder.
+	 */
+	public Encoder newEncoder();
+
+	/**
+	 * Creates a new encoder keeping no state between commands, so that what it encodes can be read by the decoder of any connection
+	 * regardless of the commands decoded before. It's used to encode a command once and send it through several connections.
+	 *
+	 * @return a new stateless encoder.
+	 */
+	public Encoder newSharedEncoder();
+
+	/**
+	 * Creates a new decoder for a connection.
+	 *
+	 * @return a new decoder.
+	 */
+	public Decoder newDecoder();
+
+	/**
+	 * Encodes commands for a single connection.
+	 */
+	public interface Encoder {
+
+		/**
+		 * Encodes the specified command.
+		 *
+		 * @param command
+		 *            the command to encode.
+		 * @param out
+		 *            the output to write to.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		public void encode(Command command, DataOutput out) throws IOException;
+
+	}
+
+	/**
+	 * Decodes commands for a single connection.
+	 */
+	public interface Decoder {
+
+		/**
+		 * Decodes the next command.
+		 *
+		 * @param in
+		 *            the input to read from.
+		 * @return the decoded command.
+		 * @throws IOException
+		 *             if an I/O error occurs or the input is corrupted.
+		 * @throws ClassNotFoundException
+		 *             if the class of a serialized payload cannot be found.
+		 */
+		public Command decode(DataInput in) throws IOException, ClassNotFoundException;
+
+	}
+
+}
@@ -0,0 +1,476 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+
+/**
+ * Compresses and decompresses message bodies with Deflate. <code>Deflater</code> and <code>Inflater</code> instances hold native memory
+ * and are expensive to create, so they're pooled and reused.
+ * <p>
+ * A preset dictionary can be registered for a service: bodies of its messages are then compressed with it, which greatly improves the ratio
+ * of small bodies sharing a structure (e.g. XML or JSON documents). The dictionary is identified in the compressed stream by its checksum,
+ * so both peers have to register the same dictionary for the service.
+ * </p>
+ * <p>
+ * Compression statistics are kept per service, to help tuning the threshold, level and dictionaries.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class PayloadCompressor {
+
+	/**
+	 * The key of the statistics of messages with no service id.
+	 */
+	public static final String NO_SERVICE = "";
+
+	/**
+	 * The maximum number of idle deflaters and inflaters kept in each pool.
+	 */
+	private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	/**
+	 * The maximum ratio of Deflate, a 258 byte match in two bits.
+	 */
+	private static final int MAX_RATIO = 1032;
+
+	/**
+	 * The compressor shared by the sessions, configured with the messaging properties.
+	 */
+	private static PayloadCompressor instance;
+
+	/**
+	 * The minimum size of a body to be compressed automatically, 0 or less if disabled.
+	 */
+	private volatile int threshold;
+
+	/**
+	 * The Deflate level.
+	 */
+	private final int level;
+
+	/**
+	 * The idle deflaters.
+	 */
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * The number of idle deflaters.
+	 */
+	private final AtomicInteger idleDeflaters = new AtomicInteger();
+
+	/**
+	 * The idle inflaters.
+	 */
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	/**
+	 * The number of idle inflaters.
+	 */
+	private final AtomicInteger idleInflaters = new AtomicInteger();
+
+	/**
+	 * The dictionaries, by service id.
+	 */
+	private final Map<String, Dictionary> dictionaries = new ConcurrentHashMap<String, Dictionary>();
+
+	/**
+	 * The statistics, by service id.
+	 */
+	private final ConcurrentHashMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+	/**
+	 * A preset dictionary.
+	 */
+	private static final class Dictionary {
+
+		/**
+		 * The contents of the dictionary.
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * The Adler-32 checksum identifying the dictionary in compressed streams.
+		 */
+		private final int id;
+
+		/**
+		 * Creates a new dictionary.
+		 */
+		private Dictionary(byte[] bytes) {
+			this.bytes = bytes.clone();
+			Adler32 adler = new Adler32();
+			adler.update(this.bytes);
+			this.id = (int) adler.getValue();
+		}
+
+	}
+
+	/**
+	 * The compression statistics of a service.
+	 */
+	public static final class Statistics {
+
+		/**
+		 * The number of bodies compressed.
+		 */
+		private final AtomicLong compressed = new AtomicLong();
+
+		/**
+		 * The size of the compressed bodies before compression.
+		 */
+		private final AtomicLong bytesIn = new AtomicLong();
+
+		/**
+		 * The size of the compressed bodies after compression.
+		 */
+		private final AtomicLong bytesOut = new AtomicLong();
+
+		/**
+		 * The time spent compressing, in nanoseconds.
+		 */
+		private final AtomicLong compressTime = new AtomicLong();
+
+		/**
+		 * The number of bodies decompressed.
+		 */
+		private final AtomicLong decompressed = new AtomicLong();
+
+		/**
+		 * The time spent decompressing, in nanoseconds.
+		 */
+		private final AtomicLong decompressTime = new AtomicLong();
+
+		/**
+		 * Returns the number of bodies compressed.
+		 *
+		 * @return the number of bodies compressed.
+		 */
+		public long getCompressed() {
+			return compressed.get();
+		}
+
+		/**
+		 * Returns the size of the compressed bodies before compression.
+		 *
+		 * @return the size of the compressed bodies before compression, in bytes.
+		 */
+		public long getBytesIn() {
+			return bytesIn.get();
+		}
+
+		/**
+		 * Returns the size of the compressed bodies after compression.
+		 *
+		 * @return the size of the compressed bodies after compression, in bytes.
+		 */
+		public long getBytesOut() {
+			return bytesOut.get();
+		}
+
+		/**
+		 * Returns the compression ratio, the size of the bodies before compression divided by their size after compression.
+		 *
+		 * @return the compression ratio, or 0 if nothing has been compressed.
+		 */
+		public double getRatio() {
+			long out = bytesOut.get();
+			return (out == 0) ? 0 : (double) bytesIn.get() / out;
+		}
+
+		/**
+		 * Returns the time spent compressing.
+		 *
+		 * @return the time spent compressing, in nanoseconds.
+		 */
+		public long getCompressTime() {
+			return compressTime.get();
+		}
+
+		/**
+		 * Returns the number of bodies decompressed.
+		 *
+		 * @return the number of bodies decompressed.
+		 */
+		public long getDecompressed() {
+			return decompressed.get();
+		}
+
+		/**
+		 * Returns the time spent decompressing.
+		 *
+		 * @return the time spent decompressing, in nanoseconds.
+		 */
+		public long getDecompressTime() {
+			return decompressTime.get();
+		}
+
+		/*
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			return "Statistics [compressed=" + getCompressed() + ", bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut() + ", compressTime="
+					+ getCompressTime() + ", decompressed=" + getDecompressed() + ", decompressTime=" + getDecompressTime() + "]";
+		}
+
+	}
+
+	/**
+	 * Returns the compressor shared by the sessions, created with the threshold and level of the messaging properties.
+	 *
+	 * @return the shared compressor.
+	 */
+	public static synchronized PayloadCompressor getInstance() {
+		if (instance == null) {
+			instance = new PayloadCompressor(MessengerProperties.getCompressionThreshold(), MessengerProperties.getCompressionLevel());
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new compressor.
+	 *
+	 * @param threshold
+	 *            the minimum size of a body to be compressed automatically, 0 or less to disable automatic compression.
+	 * @param level
+	 *            the Deflate level, from 1 (fastest) to 9 (smallest).
+	 */
+	public PayloadCompressor(int threshold, int level) {
+		if ((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid level: " + level);
+		}
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	/**
+	 * Returns the minimum size of a body to be compressed automatically.
+	 *
+	 * @return the minimum size of a body to be compressed automatically, 0 or less if disabled.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the minimum size of a body to be compressed automatically.
+	 *
+	 * @param threshold
+	 *            the minimum size of a body to be compressed automatically, 0 or less to disable automatic compression.
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Returns the Deflate level.
+	 *
+	 * @return the Deflate level.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Registers the preset dictionary used to compress the bodies of the messages of a service. A good dictionary is made of the strings
+	 * most likely to be found in the bodies, the most frequent ones at the end.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @param dictionary
+	 *            the dictionary, or <code>null</code> to remove it.
+	 */
+	public void setDictionary(String serviceId, byte[] dictionary) {
+		String key = (serviceId != null) ? serviceId : NO_SERVICE;
+		if (dictionary == null) {
+			dictionaries.remove(key);
+		} else {
+			dictionaries.put(key, new Dictionary(dictionary));
+		}
+	}
+
+	/**
+	 * Returns whether a message body has to be compressed.
+	 *
+	 * @param message
+	 *            the message.
+	 * @param length
+	 *            the size of the body.
+	 * @return <code>true</code> if the message is flagged as compressed or the body reaches the threshold.
+	 */
+	public boolean isCompressible(Message message, int length) {
+		int threshold = this.threshold;
+		return message.isCompressed() || ((threshold > 0) && (length >= threshold));
+	}
+
+	/**
+	 * Compresses the body of a message of a service, with the dictionary of the service if it has one.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @param body
+	 *            the body to compress.
+	 * @return the compressed body.
+	 */
+	public byte[] compress(String serviceId, byte[] body) {
+		String key = (serviceId != null) ? serviceId : NO_SERVICE;
+		long start = System.nanoTime();
+		Deflater deflater = deflaters.poll();
+		if (deflater != null) {
+			idleDeflaters.decrementAndGet();
+		} else {
+			deflater = new Deflater(level);
+		}
+		try {
+			Dictionary dictionary = dictionaries.get(key);
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary.bytes);
+			}
+			deflater.setInput(body);
+			deflater.finish();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, body.length / 2));
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				bytes.write(buffer, 0, deflater.deflate(buffer));
+			}
+			byte[] compressed = bytes.toByteArray();
+
+			Statistics stats = getStatistics(key);
+			stats.compressed.incrementAndGet();
+			stats.bytesIn.addAndGet(body.length);
+			stats.bytesOut.addAndGet(compressed.length);
+			stats.compressTime.addAndGet(System.nanoTime() - start);
+			return compressed;
+		} finally {
+			release(deflater);
+		}
+	}
+
+	/**
+	 * Decompresses the body of a message of a service compressed with <code>compress()</code>.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @param compressed
+	 *            the compressed body.
+	 * @param length
+	 *            the size of the body.
+	 * @return the body.
+	 * @throws StreamCorruptedException
+	 *             if the compressed body is invalid, it can't inflate to the size given or it needs a dictionary that's not registered for
+	 *             the service.
+	 */
+	public byte[] decompress(String serviceId, byte[] compressed, int length) throws StreamCorruptedException {
+		// The size comes from the wire, so it's checked before allocating the body.
+		if ((long) compressed.length * MAX_RATIO < length) {
+			throw new StreamCorruptedException("Compressed body of " + compressed.length + " bytes can't inflate to " + length + " bytes.");
+		}
+		String key = (serviceId != null) ? serviceId : NO_SERVICE;
+		long start = System.nanoTime();
+		Inflater inflater = inflaters.poll();
+		if (inflater != null) {
+			idleInflaters.decrementAndGet();
+		} else {
+			inflater = new Inflater();
+		}
+		byte[] body = new byte[length];
+		try {
+			inflater.setInput(compressed);
+			int read = 0;
+			while (read < length) {
+				int n = inflater.inflate(body, read, length - read);
+				if ((n == 0) && inflater.needsDictionary()) {
+					Dictionary dictionary = dictionaries.get(key);
+					if ((dictionary == null) || (dictionary.id != inflater.getAdler())) {
+						throw new StreamCorruptedException("Unknown compression dictionary for service '" + key + "'.");
+					}
+					inflater.setDictionary(dictionary.bytes);
+					continue;
+				}
+				if ((n == 0) && (inflater.finished() || inflater.needsInput())) {
+					throw new StreamCorruptedException("Truncated compressed body.");
+				}
+				read += n;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Invalid compressed body: " + e.getMessage());
+		} finally {
+			release(inflater);
+		}
+
+		Statistics stats = getStatistics(key);
+		stats.decompressed.incrementAndGet();
+		stats.decompressTime.addAndGet(System.nanoTime() - start);
+		return body;
+	}
+
+	/**
+	 * Returns the statistics of a service, creating them if needed.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @return the statistics of the service.
+	 */
+	public Statistics getStatistics(String serviceId) {
+		String key = (serviceId != null) ? serviceId : NO_SERVICE;
+		Statistics stats = statistics.get(key);
+		if (stats == null) {
+			Statistics created = new Statistics();
+			stats = statistics.putIfAbsent(key, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics of all the services that have compressed or decompressed a body.
+	 *
+	 * @return the statistics, by service id.
+	 */
+	public Map<String, Statistics> getStatistics() {
+		return Collections.unmodifiableMap(new HashMap<String, Statistics>(statistics));
+	}
+
+	/**
+	 * Returns a deflater to the pool, or frees it if the pool is full.
+	 */
+	private void release(Deflater deflater) {
+		if (idleDeflaters.incrementAndGet() <= MAX_POOLED) {
+			deflater.reset();
+			deflaters.add(deflater);
+		} else {
+			idleDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns an inflater to the pool, or frees it if the pool is full.
+	 */
+	private void release(Inflater inflater) {
+		if (idleInflaters.incrementAndGet() <= MAX_POOLED) {
+			inflater.reset();
+			inflaters.add(inflater);
+		} else {
+			idleInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+/**
+ * A cumulative acknowledgement command: all the messages of a stream up to a sequence number have been processed by the peer. Sessions
+ * send it instead of a message acknowledgement per message once both peers have agreed to resume their streams.
+ * 
+ * @author andresoviedo
+ */
+public class SequenceAck extends SignalingCommand {
+
+	private static final long serialVersionUID = 3408561948710355721L;
+
+	/**
+	 * The id of the acknowledged stream. This field is immutable.
+	 */
+	private long streamId;
+
+	/**
+	 * The sequence number of the last acknowledged message. This field is immutable.
+	 */
+	private long sequence;
+
+	/**
+	 * Creates a new sequence acknowledgement command.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @param streamId
+	 *            the id of the acknowledged stream.
+	 * @param sequence
+	 *            the sequence number of the last acknowledged message.
+	 */
+	public SequenceAck(String clientId, long streamId, long sequence) {
+		super(clientId);
+		this.streamId = streamId;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Returns the id of the acknowledged stream.
+	 * 
+	 * @return the id of the acknowledged stream.
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns the sequence number of the last acknowledged message. The messages with lower numbers are acknowledged as well.
+	 * 
+	 * @return the sequence number of the last acknowledged message.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SequenceAck [");
+		sb.append("clientId=").append(getClientId()).append(", ");
+		sb.append("streamId=").append(streamId).append(", ");
+		sb.append("sequence=").append(sequence).append("]");
+
+		return sb.toString();
+	}
+
+}
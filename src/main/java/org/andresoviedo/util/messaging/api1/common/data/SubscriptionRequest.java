@@ -0,0 +1,72 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+/**
+ * A command sent by clients to subscribe to or unsubscribe from a topic published by the server.
+ * 
+ * @author andresoviedo
+ */
+public class SubscriptionRequest extends SignalingCommand {
+
+	private static final long serialVersionUID = -2416035186290754203L;
+
+	/**
+	 * The topic.
+	 */
+	private String topic;
+
+	/**
+	 * Indicates whether the client subscribes to the topic or unsubscribes from it.
+	 */
+	private boolean subscribe;
+
+	/**
+	 * Creates a new subscription request.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @param topic
+	 *            the topic.
+	 * @param subscribe
+	 *            <code>true</code> to subscribe to the topic, <code>false</code> to unsubscribe from it.
+	 */
+	public SubscriptionRequest(String clientId, String topic, boolean subscribe) {
+		super(clientId);
+		if (topic == null) {
+			throw new IllegalArgumentException("The topic is null.");
+		}
+		this.topic = topic;
+		this.subscribe = subscribe;
+	}
+
+	/**
+	 * Returns the topic.
+	 * 
+	 * @return the topic.
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * Returns whether the client subscribes to the topic or unsubscribes from it.
+	 * 
+	 * @return <code>true</code> if the client subscribes to the topic, <code>false</code> if it unsubscribes from it.
+	 */
+	public boolean isSubscribe() {
+		return subscribe;
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SubscriptionRequest [");
+		sb.append("clientId=").append(getClientId());
+		sb.append(", topic=").append(topic);
+		sb.append(", subscribe=").append(subscribe).append("]");
+
+		return sb.toString();
+	}
+
+}
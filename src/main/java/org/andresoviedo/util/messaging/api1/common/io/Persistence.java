@@ -1,56 +1,64 @@
 package org.andresoviedo.util.messaging.api1.common.io;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OptionalDataException;
-import java.io.StreamCorruptedException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.BinaryMessageCodec;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.PayloadCompressor;
+import org.andresoviedo.util.messaging.api1.common.net.CommandInputStream;
 
 /**
  * The persistence class allows saving and getting messages from disk.
- * 
+ * <p>
+ * Messages are appended to memory-mapped segment files and indexed in memory by their persisted id (client id and message id). Deleting a
+ * message appends a tombstone, and a background task copies the records still needed out of segments holding mostly deleted or expired
+ * messages, to a new segment which is swapped for them. Each record is CRC
+ * checked, so a torn write at the end of the log is detected and discarded when the log is recovered. Whether appends are forced to disk
+ * is decided by the sync policy.
+ * </p>
+ * <p>
+ * The log is recovered on first use and released by <code>close()</code>. A directory must not be shared by two persistence objects at the
+ * same time. Message files written by older versions are imported into the log when it's recovered.
+ * </p>
+ *
  * @author andresoviedo
  */
 public class Persistence {
 
-	/**
-	 * A file filter used to retrieve message related to a specific client.
-	 */
-	private class ClientFileFilter implements FileFilter {
-
-		private String clientId;
-
-		public ClientFileFilter(String clientId) {
-			this.clientId = clientId;
-		}
-
-		/*
-		 * @see java.io.FileFilter#accept(java.io.File)
-		 */
-		public boolean accept(File pathname) {
-			return (pathname.isFile() && pathname.getName().startsWith(clientId + "-"));
-		}
-
-	}
-
 	/**
 	 * Iterator to be able to read messages one by one.
 	 */
@@ -62,25 +70,25 @@ public class Persistence {
 		private int cursor = 0;
 
 		/**
-		 * A flag indicating whether files should be deleted after the message is deserialized.
+		 * A flag indicating whether messages should be deleted after they are read.
 		 */
 		private boolean delete;
 
 		/**
-		 * The list of files, each one containing a serialized message.
+		 * The persisted ids of the messages to iterate through.
 		 */
-		private File[] files;
+		private String[] ids;
 
 		/**
 		 * Constructs a new iterator.
-		 * 
-		 * @param files
-		 *            the list of files.
+		 *
+		 * @param ids
+		 *            the persisted ids of the messages.
 		 * @param delete
-		 *            indicates whether files should be deleted after the message is deserialized.
+		 *            indicates whether messages should be deleted after they are read.
 		 */
-		public Itr(File[] files, boolean delete) {
-			this.files = files;
+		public Itr(String[] ids, boolean delete) {
+			this.ids = ids;
 			this.delete = delete;
 		}
 
@@ -88,22 +96,16 @@ public class Persistence {
 		 * @see java.util.Iterator#hasNext()
 		 */
 		public boolean hasNext() {
-			return (cursor != files.length);
+			return (cursor != ids.length);
 		}
 
 		/*
 		 * @see java.util.Iterator#next()
 		 */
 		public Object next() {
-			long now = System.currentTimeMillis();
 			try {
-				Message message = get(files[cursor++], delete);
-				// Add the message if it hasn't expired.
-				if ((message.getTimeout() == 0) || ((message.getTimeSent().getTime() + message.getTimeout()) >= now)) {
-					return message;
-				} else if (!delete(message)) {
-					logger.warning("Message with id '" + message.getMessageId() + "' could not be deleted.");
-				}
+				// Returns null if the message has been deleted or has expired meanwhile.
+				return getMessage(ids[cursor++], delete);
 			} catch (Exception e) {
 			}
 			return null;
@@ -119,23 +121,199 @@ public class Persistence {
 	}
 
 	/**
-	 * A task to delete a message when its timeout is reached.
+	 * A segment file of the log.
 	 */
-	private class MessageDeletionTask extends TimerTask {
+	private static class Segment {
+
+		/**
+		 * The segment id. Ids grow as segments are created and are never reused.
+		 */
+		private long id;
+
+		/**
+		 * The segment file.
+		 */
+		private File file;
+
+		/**
+		 * The mapped contents of the file.
+		 */
+		private MappedByteBuffer buffer;
+
+		/**
+		 * The position where the next record will be appended.
+		 */
+		private int position;
+
+		/**
+		 * The number of bytes of tombstones.
+		 */
+		private int tombstoneBytes;
+
+		/**
+		 * The ids of the segments holding the puts deleted by the tombstones of this segment.
+		 */
+		private Set<Long> tombstoneTargets = new HashSet<Long>();
 
-		private Message message;
+		/**
+		 * Creates a new segment.
+		 */
+		Segment(long id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
 
-		public MessageDeletionTask(Message message) {
-			this.message = message;
+		/**
+		 * Returns the number of bytes left.
+		 */
+		int remaining() {
+			return buffer.capacity() - position;
 		}
 
-		/*
-		 * @see java.util.TimerTask#run()
+	}
+
+	/**
+	 * An index entry pointing to the record of a message.
+	 */
+	private static class Entry {
+
+		/**
+		 * The client id the message is persisted for.
 		 */
-		public void run() {
-			if (!delete(message)) {
-				logger.warning("Message with id '" + message.getMessageId() + "' could not be deleted.");
-			}
+		private String clientId;
+
+		/**
+		 * The segment holding the record.
+		 */
+		private Segment segment;
+
+		/**
+		 * The offset of the record in the segment.
+		 */
+		private int offset;
+
+		/**
+		 * The length of the record, including its header.
+		 */
+		private int length;
+
+		/**
+		 * The time after which the message has expired.
+		 */
+		private long expiry;
+
+		/**
+		 * The sequence number of the message, which gives the order messages are returned in.
+		 */
+		private long sequence;
+
+		/**
+		 * Creates a new entry.
+		 */
+		Entry(String clientId, Segment segment, int offset, int length, long expiry) {
+			this.clientId = clientId;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expiry = expiry;
+		}
+
+	}
+
+	/**
+	 * A compaction in progress: the segments rewritten and the new segment the records still needed are copied to.
+	 */
+	private static class Compaction {
+
+		/**
+		 * The segments rewritten, sorted by id.
+		 */
+		private List<Segment> sources = new ArrayList<Segment>();
+
+		/**
+		 * The index entries pointing to the segments rewritten when the compaction started, by segment id and offset.
+		 */
+		private Map<Long, Map<Integer, Entry>> entries = new HashMap<Long, Map<Integer, Entry>>();
+
+		/**
+		 * The ids of the segments not rewritten. Tombstones are kept if the put they delete is in one of them.
+		 */
+		private Set<Long> kept = new HashSet<Long>();
+
+		/**
+		 * The time puts are considered expired at.
+		 */
+		private long now;
+
+		/**
+		 * The size of the new segment.
+		 */
+		private int size;
+
+		/**
+		 * The id of the new segment.
+		 */
+		private long id;
+
+		/**
+		 * The new segment, <code>null</code> until a record is copied.
+		 */
+		private Segment target;
+
+		/**
+		 * The puts copied to the new segment.
+		 */
+		private List<Move> moves = new ArrayList<Move>();
+
+		/**
+		 * The expired puts, dropped along with the segments rewritten.
+		 */
+		private List<Move> expired = new ArrayList<Move>();
+
+	}
+
+	/**
+	 * A put found by a compaction.
+	 */
+	private static class Move {
+
+		/**
+		 * The persisted id of the message.
+		 */
+		private String persistedId;
+
+		/**
+		 * The index entry of the message when the compaction started.
+		 */
+		private Entry entry;
+
+		/**
+		 * The segment and offset of the put.
+		 */
+		private Segment segment;
+		private int offset;
+
+		/**
+		 * The offset of the copy in the new segment.
+		 */
+		private int copy;
+
+		/**
+		 * Creates a new move.
+		 */
+		Move(String persistedId, Entry entry, Segment segment, int offset) {
+			this.persistedId = persistedId;
+			this.entry = entry;
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		/**
+		 * Returns whether the message is still indexed at the put, i.e. it hasn't been deleted or added again meanwhile.
+		 */
+		boolean isCurrent(Map<String, Entry> index) {
+			return (index.get(persistedId) == entry) && (entry.segment == segment) && (entry.offset == offset);
 		}
 
 	}
@@ -145,19 +323,164 @@ public class Persistence {
 	 */
 	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
 
+	/**
+	 * The system property holding the size of new segment files, in bytes. Defaults to 16MB.
+	 */
+	public static final String SYSTEM_PROPERTY_SEGMENT_SIZE = "messaging.persistence.segmentSize";
+
+	/**
+	 * The system property holding the sync policy, one of <code>SYNC_NEVER</code>, <code>SYNC_GROUP</code> or <code>SYNC_ALWAYS</code>.
+	 * Defaults to <code>SYNC_NEVER</code>.
+	 */
+	public static final String SYSTEM_PROPERTY_SYNC = "messaging.persistence.sync";
+
+	/**
+	 * The system property holding the delay between compactions, in milliseconds. Defaults to 30 seconds.
+	 */
+	public static final String SYSTEM_PROPERTY_COMPACTION_INTERVAL = "messaging.persistence.compactionInterval";
+
+	/**
+	 * Appends are never forced to disk, the operating system writes them back when it sees fit. Messages survive a crash of the process but
+	 * not of the machine.
+	 */
+	public static final String SYNC_NEVER = "never";
+
+	/**
+	 * <code>add()</code> returns once the message has been forced to disk. Callers adding messages concurrently share a single force.
+	 */
+	public static final String SYNC_GROUP = "group";
+
+	/**
+	 * Every append is forced to disk before <code>add()</code> returns.
+	 */
+	public static final String SYNC_ALWAYS = "always";
+
+	/**
+	 * The default size of segment files.
+	 */
+	private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default delay between compactions.
+	 */
+	private static final long DEFAULT_COMPACTION_INTERVAL = 30000;
+
+	/**
+	 * Record types.
+	 */
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_DELETE = 2;
+
+	/**
+	 * The length of the record header: body length and body CRC.
+	 */
+	private static final int HEADER_LENGTH = 8;
+
+	/**
+	 * The prefix and suffix of segment file names.
+	 */
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The suffix of a segment being written by a compaction. It's renamed once complete.
+	 */
+	private static final String COMPACTION_SUFFIX = ".compacting";
+
+	/**
+	 * A file filter accepting segment files.
+	 */
+	private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+		public boolean accept(File pathname) {
+			return pathname.isFile() && pathname.getName().startsWith(SEGMENT_PREFIX) && pathname.getName().endsWith(SEGMENT_SUFFIX);
+		}
+	};
+
+	/**
+	 * The codec used to encode messages in records. It has a compressor of its own, so that records don't depend on the compression
+	 * dictionaries registered when they were written.
+	 */
+	private static final MessageCodec CODEC = new BinaryMessageCodec(new PayloadCompressor(0, Deflater.BEST_SPEED));
+
 	/**
 	 * The directory to read messages from and store messages to.
 	 */
 	private File directory;
 
 	/**
-	 * The timer to use to schedule message deletion tasks.
+	 * The size of new segment files.
+	 */
+	private int segmentSize;
+
+	/**
+	 * The sync policy.
+	 */
+	private volatile String syncPolicy;
+
+	/**
+	 * The delay between compactions.
+	 */
+	private long compactionInterval;
+
+	/**
+	 * The segments of the log, sorted by id. <code>null</code> while the log is not opened.
+	 */
+	private TreeMap<Long, Segment> segments;
+
+	/**
+	 * The segment records are appended to.
+	 */
+	private Segment active;
+
+	/**
+	 * The id of the next segment created.
+	 */
+	private long nextSegmentId;
+
+	/**
+	 * Index of persisted messages, by persisted id, in log order.
+	 */
+	private Map<String, Entry> index;
+
+	/**
+	 * Persisted ids of messages, by client id.
+	 */
+	private Map<String, Map<String, Entry>> clients;
+
+	/**
+	 * The total number of bytes appended to the log since it was opened, used to know which appends are already synced.
+	 */
+	private long appended;
+
+	/**
+	 * The value of <code>appended</code> covered by the last force.
+	 */
+	private long synced;
+
+	/**
+	 * The sequence number of the next message added.
+	 */
+	private long sequence;
+
+	/**
+	 * Lock held by the caller forcing the log in group sync mode.
+	 */
+	private Object syncLock = new Object();
+
+	/**
+	 * Lock held while compacting, so that compactions don't overlap. The lock of this object is only held to choose the segments and to
+	 * swap them.
+	 */
+	private final Object compactLock = new Object();
+
+	/**
+	 * The timer used to schedule compactions.
 	 */
 	private Timer timer;
 
 	/**
 	 * Creates a new persistence object which will use the specified directory to store and retrieve message.
-	 * 
+	 *
 	 * @param directory
 	 *            the directory to use.
 	 */
@@ -167,97 +490,120 @@ public class Persistence {
 		if (!this.directory.isDirectory()) {
 			this.directory.mkdirs();
 		}
-		// Create the timer.
-		this.timer = new Timer(true);
+		try {
+			this.segmentSize = Integer.parseInt(System.getProperty(SYSTEM_PROPERTY_SEGMENT_SIZE, String.valueOf(DEFAULT_SEGMENT_SIZE)));
+		} catch (NumberFormatException e) {
+			this.segmentSize = DEFAULT_SEGMENT_SIZE;
+		}
+		try {
+			this.compactionInterval = Long.parseLong(System.getProperty(SYSTEM_PROPERTY_COMPACTION_INTERVAL,
+					String.valueOf(DEFAULT_COMPACTION_INTERVAL)));
+		} catch (NumberFormatException e) {
+			this.compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+		}
+		this.syncPolicy = System.getProperty(SYSTEM_PROPERTY_SYNC, SYNC_NEVER);
 	}
 
 	/**
 	 * Saves the specified message to disk. If the message has already been saved, this method does nothing.
-	 * 
+	 *
 	 * @param message
 	 *            the message to add.
 	 * @throws PersistenceException
 	 *             if an error occurs while performing the operation.
 	 */
-	public synchronized void add(Message message) throws PersistenceException {
-		Exception throwable = null;
-		// Determine the filename.
-		File file = new File(directory, getFilename(message));
-		// If the file already exists, we're attempting to add the message twice or a duplicate message has been created.
-		if (file.exists()) {
-			// throw new PersistenceException("The message has already been added to the persistence mechanism.");
-			return;
-		}
+	public void add(Message message) throws PersistenceException {
+		String persistedId = getPersistedMessageId(message);
+		long expiry = getExpiry(message);
 
-		// Save the message.
-		ObjectOutputStream oos = null;
+		// Encode the record out of the lock, the sequence number is set once it's known.
+		byte[] body;
 		try {
-			oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
-			oos.writeObject(message);
-			oos.flush();
-		} catch (FileNotFoundException e) {
-			throwable = e;
+			body = encode(persistedId, message, expiry);
 		} catch (IOException e) {
-			throwable = e;
-		} finally {
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (IOException e) {
-				}
-				oos = null;
-			}
+			throw new PersistenceException(e);
 		}
 
-		if (throwable != null) {
-			throw new PersistenceException(throwable);
+		long position;
+		synchronized (this) {
+			open();
+			// If the message is already indexed, we're attempting to add the message twice or a duplicate message has been created.
+			if (index.containsKey(persistedId)) {
+				return;
+			}
+			try {
+				Entry entry = append(body, sequence++);
+				entry.clientId = message.getClientId();
+				entry.expiry = expiry;
+				index(persistedId, entry);
+				if (SYNC_ALWAYS.equals(syncPolicy)) {
+					active.buffer.force();
+					synced = appended;
+				}
+			} catch (IOException e) {
+				throw new PersistenceException(e);
+			}
+			position = appended;
 		}
 
-		// No exception caught, so schedule the task to delete the message (if needed).
-		if (message.getTimeout() > 0) {
-			timer.schedule(new MessageDeletionTask(message), message.getTimeout());
+		if (SYNC_GROUP.equals(syncPolicy)) {
+			sync(position);
 		}
 	}
 
 	/**
 	 * Deletes the specified file from the persistence mechanism.
-	 * 
+	 *
 	 * @param message
 	 *            the message to be deleted.
 	 * @return <code>true</code> if the message was successfully deleted, <code>false</code> if the message wasn't stored in the persistence
 	 *         mechanism or an error occured while performing the operation.
 	 */
 	public synchronized boolean delete(Message message) {
-		return new File(directory, getFilename(message)).delete();
+		return delete(getFilename(message));
 	}
 
 	/**
 	 * Deletes the referred message from the persistence mechanism.
-	 * 
-	 * @param messageId
+	 *
+	 * @param persistedMessageId
 	 *            the global identifier of the message.
 	 * @return <code>true</code> if the message was successfully deleted, <code>false</code> if the message wasn't stored in the persistence
 	 *         mechanism or an error occured while performing the operation.
 	 */
 	public synchronized boolean delete(String persistedMessageId) {
-		return new File(directory, persistedMessageId).delete();
+		if (!tryOpen()) {
+			return false;
+		}
+		Entry entry = index.get(persistedMessageId);
+		if (entry == null) {
+			return false;
+		}
+		try {
+			append(tombstone(persistedMessageId, entry.segment.id));
+		} catch (IOException e) {
+			logger.warning("Couldn't delete message '" + persistedMessageId + "': " + e.getMessage());
+			return false;
+		}
+		unindex(persistedMessageId);
+		return true;
 	}
 
 	/**
 	 * Deletes the referred message from the persistence mechanism.
-	 * 
+	 *
 	 * @param clientId
 	 * @param messageId
 	 * @return <code>true</code> if the message was successfully deleted, <code>false</code> if the message wasn't stored in the persistence
 	 *         mechanism or an error occured while performing the operation.
 	 */
 	public synchronized boolean delete(String clientId, String messageId) {
-		return new File(directory, getFilename(clientId, messageId)).delete();
+		return delete(getFilename(clientId, messageId));
 	}
 
 	/**
-	 * Returns a list with all saved messages. Removes the files after the objects have been read.
-	 * 
+	 * Returns a list with all saved messages. Removes the messages after they have been read.
+	 *
 	 * @return a list with all saved messages.
 	 */
 	public synchronized List<Message> get() {
@@ -266,103 +612,33 @@ public class Persistence {
 
 	/**
 	 * Returns a list with all saved messages. Notice that expired messages won't be included.
-	 * 
+	 *
 	 * @param delete
-	 *            indicates whether files have to be deleted after the objects have been read.
+	 *            indicates whether messages have to be deleted after they have been read.
 	 * @return a list with all saved messages.
 	 */
 	public synchronized List<Message> get(boolean delete) {
-		List<Message> result = new Vector<Message>();
-		Message message = null;
-		long now = System.currentTimeMillis();
-
-		File[] files = directory.listFiles();
-		// Sort files by name.
-		Arrays.sort(files);
-		for (int i = 0; i < files.length; i++) {
-			try {
-				// Notice the file is deleted if successfully read.
-				message = get(files[i], delete);
-				// Add the message if it hasn't expired.
-				if ((message.getTimeout() == 0) || ((message.getTimeSent().getTime() + message.getTimeout()) >= now)) {
-					result.add(message);
-				}
-			} catch (Exception e) {
-			}
+		if (!tryOpen()) {
+			return new Vector<Message>();
 		}
-
-		return result;
+		return get(index.keySet().toArray(new String[index.size()]), delete);
 	}
 
 	/**
-	 * Gets the message read from the specified file. The file will be automatically deleted after read if <code>delete</code> is
-	 * <code>true</code>.
-	 * 
-	 * @param file
-	 *            the file to read the message from.
-	 * @param delete
-	 *            indicates whether the file has to be deleted after the object has been read from it.
-	 * @return the message.
-	 * @throws Exception
-	 *             if an error occurs while performing the operation.
+	 * Gets the filename based on message information. The filename is constructed using message's id and client id separated by '.'.
+	 *
+	 * @param message
+	 *            the message.
+	 * @return the filename.
 	 */
-	private Message get(File file, boolean delete) throws Exception {
-		Message result = null;
-		Exception throwable = null;
-
-		// Get the message.
-		ObjectInputStream ois = null;
-		try {
-			ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
-			result = (Message) ois.readObject();
-		} catch (FileNotFoundException e) {
-			throwable = e;
-		} catch (ClassNotFoundException e) {
-			throwable = e;
-		} catch (InvalidClassException e) {
-			throwable = e;
-		} catch (StreamCorruptedException e) {
-			throwable = e;
-		} catch (OptionalDataException e) {
-			throwable = e;
-		} catch (IOException e) {
-			throwable = e;
-		} finally {
-			if (ois != null) {
-				try {
-					ois.close();
-				} catch (IOException e) {
-				}
-				ois = null;
-			}
-		}
-
-		// Delete the file.
-		if (delete) {
-			file.delete();
-		}
-
-		if (throwable != null) {
-			throw throwable;
-		}
-		return result;
-	}
-
-	/**
-	 * Gets the filename based on message information. The filename is constructed using message's id and client id separated by '.'.
-	 * 
-	 * @param message
-	 *            the message.
-	 * @return the filename.
-	 */
-	public String get(Message message) {
-		return getFilename((message.getTargetClientId() != null) ? message.getTargetClientId() : message.getClientId(),
-				message.getMessageId());
-	}
+	public String get(Message message) {
+		return getFilename((message.getTargetClientId() != null) ? message.getTargetClientId() : message.getClientId(),
+				message.getMessageId());
+	}
 
 	/**
 	 * Returns the list of persisted messages for a given client id. Notice that expired messages won't be included.
-	 * 
+	 *
 	 * @param clientId
 	 *            the client id.
 	 * @return the list of persisted messages for the specified client id.
@@ -373,78 +649,57 @@ public class Persistence {
 
 	/**
 	 * Returns the list of persisted messages for a given client id. Notice that expired messages won't be included.
-	 * 
+	 *
 	 * @param clientId
 	 *            the client id.
 	 * @param delete
-	 *            indicates whether files have to be deleted after the objects have been read.
+	 *            indicates whether messages have to be deleted after they have been read.
 	 * @return the list of persisted messages for the specified client id.
 	 */
 	public synchronized List<Message> get(String clientId, boolean delete) {
-		List<Message> result = new Vector<Message>();
-		Message message = null;
-		long now = System.currentTimeMillis();
+		if (!tryOpen()) {
+			return new Vector<Message>();
+		}
+		return get(getIds(clientId), delete);
+	}
 
-		File[] files = directory.listFiles(new ClientFileFilter(clientId));
-		// Sort files by name.
-		Arrays.sort(files);
-		for (int i = 0; i < files.length; i++) {
+	/**
+	 * Returns the messages with the specified persisted ids, skipping the ones not found, expired or unreadable.
+	 */
+	private List<Message> get(String[] ids, boolean delete) {
+		List<Message> result = new Vector<Message>();
+		Message message;
+		for (int i = 0; i < ids.length; i++) {
 			try {
-				// Notice the file is deleted if successfully read.
-				message = get(files[i], delete);
-				// Add the message if it hasn't expired.
-				if ((message.getTimeout() == 0) || ((message.getTimeSent().getTime() + message.getTimeout()) >= now)) {
+				message = getMessage(ids[i], delete);
+				if (message != null) {
 					result.add(message);
 				}
 			} catch (Exception e) {
 				// Do nothing for the moment.
 			}
 		}
-
 		return result;
 	}
 
 	/**
 	 * Returns the message with the specified id stored in the underlying persistence mechanism.
-	 * 
-	 * @param clientId
-	 *            the client id.
-	 * @param messageId
-	 *            the id of the message to be retrieved.
-	 * @return the message with the specified id stored in the underlying persistence mechanism, or <code>null</code> if not found.
-	 */
-	@SuppressWarnings("unused")
-	private String get(String clientId, String messageId) {
-		StringBuffer sb = new StringBuffer();
-		sb.append(clientId);
-		sb.append('-');
-		sb.append(messageId);
-		return sb.toString();
-	}
-
-	/**
-	 * Returns the message with the specified id stored in the underlying persistence mechanism.
-	 * 
+	 *
 	 * @param clientId
 	 *            the client id.
 	 * @param messageId
 	 *            the id of the message to be retrieved.
 	 * @param delete
-	 *            indicates whether the file have to be deleted after the object have been read.
+	 *            indicates whether the message has to be deleted after it has been read.
 	 * @return the message with the specified id stored in the underlying persistence mechanism, or <code>null</code> if not found.
 	 */
 	public synchronized Message get(String clientId, String messageId, boolean delete) throws Exception {
-		File messageFile = new File(directory, getFilename(clientId, messageId));
-		if (messageFile.exists() && messageFile.isFile()) {
-			return get(messageFile, delete);
-		} else {
-			return null;
-		}
+		return getMessage(getFilename(clientId, messageId), delete);
 	}
 
 	/**
 	 * Gets the filename based on message information. The filename is constructed using message's id and client id separated by '.'.
-	 * 
+	 *
 	 * @param message
 	 *            the message.
 	 * @return the filename.
@@ -454,13 +709,13 @@ public class Persistence {
 	}
 
 	/**
-	 * Returns the message with the specified id stored in the underlying persistence mechanism.
-	 * 
+	 * Returns the persisted id of a message.
+	 *
 	 * @param clientId
 	 *            the client id.
 	 * @param messageId
-	 *            the id of the message to be retrieved.
-	 * @return the message with the specified id stored in the underlying persistence mechanism, or <code>null</code> if not found.
+	 *            the message id.
+	 * @return the persisted id.
 	 */
 	private String getFilename(String clientId, String messageId) {
 		StringBuffer sb = new StringBuffer();
@@ -471,28 +726,44 @@ public class Persistence {
 	}
 
 	/**
-	 * Returns the list of persisted messages for a given client id. Notice that expired messages won't be included.
-	 * 
+	 * Returns the message with the specified persisted id. Notice that expired messages won't be returned, but deleted.
+	 *
 	 * @param messageId
 	 *            the global message id
 	 * @param delete
-	 *            indicates whether the file have to be deleted after the object have been read
-	 * @return the Message identified by id or <code>null</code> if message doesn't exists or it's not a File.
+	 *            indicates whether the message has to be deleted after it has been read
+	 * @return the Message identified by id or <code>null</code> if message doesn't exists or has expired.
 	 * @throws Exception
 	 *             if there is a problem reading the message
 	 */
 	public synchronized Message getMessage(String messageId, boolean delete) throws Exception {
-		File messageFile = new File(directory, messageId);
-		if (messageFile.exists() && messageFile.isFile()) {
-			return get(messageFile, delete);
-		} else {
+		if (!tryOpen()) {
+			return null;
+		}
+		Entry entry = index.get(messageId);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiry < System.currentTimeMillis()) {
+			if (!delete(messageId)) {
+				logger.warning("Message with id '" + messageId + "' could not be deleted.");
+			}
 			return null;
 		}
+		Message result;
+		try {
+			result = read(entry);
+		} finally {
+			if (delete) {
+				delete(messageId);
+			}
+		}
+		return result;
 	}
 
 	/**
 	 * Returns the global message id of the given message.
-	 * 
+	 *
 	 * @param message
 	 *            the message.
 	 * @return the global message id.
@@ -505,38 +776,768 @@ public class Persistence {
 
 	/**
 	 * Returns an iterator to iterate through all persisted messages. Notice that expired messages won't be included. Calls to
-	 * <code>next()</code> may return <code>null</code> if problems are encountered when deserializing the message or if the message has
-	 * expired.
-	 * 
+	 * <code>next()</code> may return <code>null</code> if problems are encountered when reading the message, or if the message has expired
+	 * or has been deleted since the iterator was created.
+	 *
 	 * @param delete
-	 *            indicates whether files have to be deleted after the objects have been read.
+	 *            indicates whether messages have to be deleted after they have been read.
 	 * @return an iterator to iterate through all persisted messages.
 	 * @since 2.0.5
 	 */
 	public synchronized Iterator<?> iterator(boolean delete) {
-		File[] files = directory.listFiles();
-		// Sort files by name.
-		Arrays.sort(files);
-		return new Itr(files, delete);
+		if (!tryOpen()) {
+			return new Itr(new String[0], delete);
+		}
+		return new Itr(index.keySet().toArray(new String[index.size()]), delete);
 	}
 
 	/**
 	 * Returns an iterator to iterate through persisted messages for a given client id. Notice that expired messages won't be included.
-	 * Calls to <code>next()</code> may return <code>null</code> if problems are encountered when deserializing the message or if the
-	 * message has expired.
-	 * 
+	 * Calls to <code>next()</code> may return <code>null</code> if problems are encountered when reading the message, or if the message
+	 * has expired or has been deleted since the iterator was created.
+	 *
 	 * @param clientId
 	 *            the client id.
 	 * @param delete
-	 *            indicates whether files have to be deleted after the objects have been read.
+	 *            indicates whether messages have to be deleted after they have been read.
 	 * @return an iterator to iterate through persisted messages for a given client id.
 	 * @since 2.0.5
 	 */
 	public synchronized Iterator<?> iterator(String clientId, boolean delete) {
-		File[] files = directory.listFiles(new ClientFileFilter(clientId));
-		// Sort files by name.
+		if (!tryOpen()) {
+			return new Itr(new String[0], delete);
+		}
+		return new Itr(getIds(clientId), delete);
+	}
+
+	/**
+	 * Returns the number of persisted messages, including the ones expired but not deleted yet.
+	 *
+	 * @return the number of persisted messages.
+	 */
+	public synchronized int size() {
+		return tryOpen() ? index.size() : 0;
+	}
+
+	/**
+	 * Returns the sync policy.
+	 *
+	 * @return one of <code>SYNC_NEVER</code>, <code>SYNC_GROUP</code> or <code>SYNC_ALWAYS</code>.
+	 */
+	public String getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	/**
+	 * Sets the sync policy, deciding whether <code>add()</code> waits for messages to be forced to disk.
+	 *
+	 * @param syncPolicy
+	 *            one of <code>SYNC_NEVER</code>, <code>SYNC_GROUP</code> or <code>SYNC_ALWAYS</code>.
+	 */
+	public void setSyncPolicy(String syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Sets the size of new segment files. Messages bigger than that get a segment of their own.
+	 *
+	 * @param segmentSize
+	 *            the size of new segment files, in bytes.
+	 */
+	public synchronized void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Rewrites the segments where most records have been deleted or have expired, and removes the segments with no records left. This is
+	 * done periodically in the background, but may be invoked at any time. The records still needed are copied to a new segment without
+	 * holding the lock of this object, so messages can be added and deleted meanwhile.
+	 */
+	public void compact() {
+		compact(true);
+	}
+
+	/**
+	 * Forces pending appends to disk and releases the log. The log is recovered again if this object is used afterwards.
+	 */
+	public synchronized void close() {
+		if (segments == null) {
+			return;
+		}
+		timer.cancel();
+		timer = null;
+		if (!SYNC_NEVER.equals(syncPolicy)) {
+			active.buffer.force();
+		}
+		// Mapped buffers are released by the garbage collector, unmapping them explicitly is not safe while a group sync may be running.
+		segments = null;
+		active = null;
+		index = null;
+		clients = null;
+		synchronized (syncLock) {
+			syncLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the expiry time of the specified message.
+	 */
+	private long getExpiry(Message message) {
+		if (message.getTimeout() == 0) {
+			return Long.MAX_VALUE;
+		}
+		long sent = (message.getTimeSent() != null) ? message.getTimeSent().getTime() : System.currentTimeMillis();
+		return sent + message.getTimeout();
+	}
+
+	/**
+	 * Returns the persisted ids of the messages of the specified client.
+	 */
+	private String[] getIds(String clientId) {
+		Map<String, Entry> entries = clients.get(clientId);
+		if (entries == null) {
+			return new String[0];
+		}
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+
+	/**
+	 * Opens the log if it's not opened yet, logging any error.
+	 *
+	 * @return <code>true</code> if the log is opened.
+	 */
+	private boolean tryOpen() {
+		try {
+			open();
+			return true;
+		} catch (PersistenceException e) {
+			logger.warning("Couldn't open the persistence log: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the log if it's not opened yet, recovering the index from the segment files.
+	 *
+	 * @throws PersistenceException
+	 *             if the log cannot be opened.
+	 */
+	private void open() throws PersistenceException {
+		if (segments != null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		segments = new TreeMap<Long, Segment>();
+		index = new LinkedHashMap<String, Entry>();
+		clients = new LinkedHashMap<String, Map<String, Entry>>();
+		appended = 0;
+		synced = 0;
+		sequence = 0;
+		try {
+			deleteUnfinishedCompactions();
+			File[] files = directory.listFiles(SEGMENT_FILTER);
+			if (files == null) {
+				throw new IOException("Couldn't list directory " + directory);
+			}
+			for (int i = 0; i < files.length; i++) {
+				String name = files[i].getName();
+				long id;
+				try {
+					id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					logger.warning("Ignoring unexpected file " + files[i]);
+					continue;
+				}
+				segments.put(id, new Segment(id, files[i], map(files[i], 0)));
+			}
+			for (Segment segment : segments.values()) {
+				recover(segment);
+			}
+			sort();
+			if (!segments.isEmpty()) {
+				active = segments.lastEntry().getValue();
+				nextSegmentId = active.id + 1;
+				clearTail(active);
+			} else {
+				nextSegmentId = 1;
+				active = createSegment(nextSegmentId++, segmentSize);
+			}
+			importLegacyFiles();
+		} catch (IOException e) {
+			segments = null;
+			index = null;
+			clients = null;
+			active = null;
+			throw new PersistenceException(e);
+		}
+		logger.info("Persistence log " + directory + " opened in " + (System.currentTimeMillis() - start) + "ms: " + index.size()
+				+ " messages in " + segments.size() + " segments.");
+
+		timer = new Timer("TMS@Persistence compactor@" + directory.getName(), true);
+		if (compactionInterval > 0) {
+			timer.schedule(new TimerTask() {
+				public void run() {
+					// Don't reopen the log if it has been closed meanwhile.
+					compact(false);
+				}
+			}, compactionInterval, compactionInterval);
+		}
+	}
+
+	/**
+	 * Reads the records of a segment into the index. Reading stops at the first zeroed or corrupted record.
+	 */
+	private void recover(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		long now = System.currentTimeMillis();
+		int position = 0;
+		while (position + HEADER_LENGTH <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				break;
+			}
+			if ((length < 0) || (length > buffer.capacity() - position - HEADER_LENGTH)) {
+				logger.warning("Invalid record length " + length + " at " + segment.file + ":" + position);
+				break;
+			}
+			byte[] body = get(buffer, position + HEADER_LENGTH, length);
+			if (crc(body) != buffer.getInt(position + 4)) {
+				logger.warning("CRC mismatch at " + segment.file + ":" + position);
+				break;
+			}
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = in.readByte();
+				if (type == RECORD_PUT) {
+					long sequence = in.readLong();
+					String persistedId = in.readUTF();
+					String clientId = in.readUTF();
+					long expiry = in.readLong();
+					Entry indexed = index.get(persistedId);
+					// A compaction may have copied a message which was deleted and added again meanwhile, the newer put wins.
+					if ((indexed == null) || (indexed.sequence <= sequence)) {
+						unindex(persistedId);
+						if (expiry >= now) {
+							Entry entry = new Entry(clientId, segment, position, HEADER_LENGTH + length, expiry);
+							entry.sequence = sequence;
+							index(persistedId, entry);
+						}
+					}
+					this.sequence = Math.max(this.sequence, sequence + 1);
+				} else if (type == RECORD_DELETE) {
+					String persistedId = in.readUTF();
+					long target = in.readLong();
+					segment.tombstoneBytes += HEADER_LENGTH + length;
+					segment.tombstoneTargets.add(target);
+					Entry entry = index.get(persistedId);
+					if ((entry != null) && (entry.segment.id == target)) {
+						unindex(persistedId);
+					}
+				}
+			} catch (IOException e) {
+				logger.warning("Invalid record at " + segment.file + ":" + position + ": " + e.getMessage());
+				break;
+			}
+			position += HEADER_LENGTH + length;
+		}
+		segment.position = position;
+	}
+
+	/**
+	 * Rebuilds the index in sequence order, as compaction moves records of older messages after newer ones.
+	 */
+	private void sort() {
+		List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+			public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+				long s1 = o1.getValue().sequence;
+				long s2 = o2.getValue().sequence;
+				return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+			}
+		});
+		index.clear();
+		clients.clear();
+		for (Map.Entry<String, Entry> entry : entries) {
+			index(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Clears whatever follows the last valid record of the active segment, so that a torn write is not mistaken for records after further
+	 * appends.
+	 */
+	private void clearTail(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		for (int i = segment.position; i < buffer.capacity(); i++) {
+			if (buffer.get(i) != 0) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Imports message files written by older versions, which stored each message in a file of its own, and deletes them.
+	 */
+	private void importLegacyFiles() throws IOException {
+		File[] files = directory.listFiles();
 		Arrays.sort(files);
-		return new Itr(files, delete);
+		List<File> imported = new ArrayList<File>();
+		for (int i = 0; i < files.length; i++) {
+			if (!files[i].isFile() || SEGMENT_FILTER.accept(files[i])) {
+				continue;
+			}
+			Message message;
+			ObjectInputStream ois = null;
+			try {
+				ois = new CommandInputStream(new BufferedInputStream(new FileInputStream(files[i])));
+				message = (Message) ois.readObject();
+			} catch (Exception e) {
+				logger.warning("Ignoring unexpected file " + files[i] + ": " + e);
+				continue;
+			} finally {
+				if (ois != null) {
+					try {
+						ois.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			String persistedId = files[i].getName();
+			if (!index.containsKey(persistedId)) {
+				Entry entry = append(encode(persistedId, message, getExpiry(message)), sequence++);
+				entry.clientId = message.getClientId();
+				entry.expiry = getExpiry(message);
+				index(persistedId, entry);
+			}
+			imported.add(files[i]);
+		}
+		if (!imported.isEmpty()) {
+			active.buffer.force();
+			for (File file : imported) {
+				file.delete();
+			}
+			logger.info(imported.size() + " message files imported into the persistence log.");
+		}
+	}
+
+	/**
+	 * Sets the sequence number of a put body and appends it.
+	 */
+	private Entry append(byte[] body, long sequence) throws IOException {
+		ByteBuffer.wrap(body).putLong(1, sequence);
+		Entry entry = append(body);
+		entry.sequence = sequence;
+		return entry;
+	}
+
+	/**
+	 * Appends a record to the active segment, creating a new segment if it doesn't fit.
+	 *
+	 * @return an entry pointing to the record, with no client id nor expiry.
+	 */
+	private Entry append(byte[] body) throws IOException {
+		int length = HEADER_LENGTH + body.length;
+		if (active.remaining() < length) {
+			// Seal the active segment.
+			if (!SYNC_NEVER.equals(syncPolicy)) {
+				active.buffer.force();
+			}
+			active = createSegment(nextSegmentId++, Math.max(segmentSize, length));
+		}
+		int offset = write(active, body);
+		appended += length;
+		return new Entry(null, active, offset, length, 0);
+	}
+
+	/**
+	 * Writes a record at the end of a segment, which must have room for it.
+	 *
+	 * @return the offset of the record.
+	 */
+	private static int write(Segment segment, byte[] body) throws IOException {
+		int length = HEADER_LENGTH + body.length;
+		MappedByteBuffer buffer = segment.buffer;
+		int offset = segment.position;
+		// Write the body before the length, so a partially written record reads as the end of the log.
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset + HEADER_LENGTH);
+		slice.put(body);
+		buffer.putInt(offset + 4, crc(body));
+		buffer.putInt(offset, body.length);
+		segment.position += length;
+		if (body[0] == RECORD_DELETE) {
+			segment.tombstoneBytes += length;
+			segment.tombstoneTargets.add(getTarget(body));
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads the message pointed by an index entry.
+	 */
+	private Message read(Entry entry) throws IOException, ClassNotFoundException {
+		byte[] body = get(entry.segment.buffer, entry.offset + HEADER_LENGTH, entry.length - HEADER_LENGTH);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		in.readByte();
+		in.readLong();
+		in.readUTF();
+		in.readUTF();
+		in.readLong();
+		long timeReceived = in.readLong();
+		Message message = (Message) CODEC.newDecoder().decode(in);
+		if (timeReceived >= 0) {
+			message.setTimeReceived(new Date(timeReceived));
+		}
+		return message;
+	}
+
+	/**
+	 * Compacts the log: the segments are chosen and swapped for the new one holding the lock of this object, and the records still needed
+	 * are copied to the new segment without holding it.
+	 *
+	 * @param open
+	 *            whether to open the log if it's not opened.
+	 */
+	private void compact(boolean open) {
+		synchronized (compactLock) {
+			Compaction compaction;
+			synchronized (this) {
+				if (open ? !tryOpen() : (segments == null)) {
+					return;
+				}
+				compaction = prepareCompaction();
+			}
+			if (compaction == null) {
+				return;
+			}
+			try {
+				copy(compaction);
+				synchronized (this) {
+					swap(compaction);
+				}
+			} catch (IOException e) {
+				logger.warning("Couldn't compact the persistence log: " + e.getMessage());
+				if ((compaction.target != null) && !compaction.target.file.delete()) {
+					compaction.target.file.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chooses the segments where most records have been deleted or have expired, and takes note of the index entries pointing to them.
+	 *
+	 * @return the compaction, or <code>null</code> if there's nothing to compact.
+	 */
+	private Compaction prepareCompaction() {
+		Compaction compaction = new Compaction();
+		compaction.now = System.currentTimeMillis();
+		// Count the bytes still worth keeping in each segment.
+		Map<Long, Integer> keep = new TreeMap<Long, Integer>();
+		for (Entry entry : index.values()) {
+			if (entry.expiry >= compaction.now) {
+				Integer bytes = keep.get(entry.segment.id);
+				keep.put(entry.segment.id, (bytes != null ? bytes.intValue() : 0) + entry.length);
+			}
+		}
+		long total = 0;
+		for (Segment segment : segments.values()) {
+			if (segment == active) {
+				continue;
+			}
+			int bytes = keep.containsKey(segment.id) ? keep.get(segment.id).intValue() : 0;
+			// Tombstones have to be kept while the segments holding the puts they delete exist. Those are older, so if they're compacted
+			// they've been chosen already.
+			for (Long target : segment.tombstoneTargets) {
+				if ((target.longValue() != segment.id) && segments.containsKey(target) && !compaction.entries.containsKey(target)) {
+					bytes += segment.tombstoneBytes;
+					break;
+				}
+			}
+			// The rest of the segments are compacted next time if the new one would get too big.
+			if ((bytes * 2 < segment.position) && (total + bytes < Integer.MAX_VALUE / 2)) {
+				compaction.sources.add(segment);
+				compaction.entries.put(segment.id, new HashMap<Integer, Entry>());
+				total += bytes;
+			}
+		}
+		if (compaction.sources.isEmpty()) {
+			return null;
+		}
+		for (Entry entry : index.values()) {
+			Map<Integer, Entry> entries = compaction.entries.get(entry.segment.id);
+			if (entries != null) {
+				entries.put(entry.offset, entry);
+			}
+		}
+		compaction.kept.addAll(segments.keySet());
+		compaction.kept.removeAll(compaction.entries.keySet());
+		// Room for a tombstone of every put copied, smaller than the put, in case it's deleted meanwhile.
+		compaction.size = (int) Math.max(segmentSize, total * 2);
+		compaction.id = nextSegmentId++;
+		return compaction;
+	}
+
+	/**
+	 * Copies the records of the segments compacted still needed to the new segment. Puts are needed if they were indexed when the compaction
+	 * started and haven't expired, tombstones if the segment of the put they delete is not compacted. The segments compacted are sealed, so
+	 * they're read without holding the lock of this object.
+	 */
+	private void copy(Compaction compaction) throws IOException {
+		for (Segment segment : compaction.sources) {
+			Map<Integer, Entry> entries = compaction.entries.get(segment.id);
+			int position = 0;
+			while (position < segment.position) {
+				int length = segment.buffer.getInt(position);
+				byte[] body = get(segment.buffer, position + HEADER_LENGTH, length);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = in.readByte();
+				if (type == RECORD_PUT) {
+					Entry entry = entries.get(position);
+					if (entry != null) {
+						in.readLong();
+						Move move = new Move(in.readUTF(), entry, segment, position);
+						if (entry.expiry >= compaction.now) {
+							move.copy = write(getCompactedSegment(compaction), body);
+							compaction.moves.add(move);
+						} else {
+							compaction.expired.add(move);
+						}
+					}
+				} else if (type == RECORD_DELETE) {
+					in.readUTF();
+					if (compaction.kept.contains(in.readLong())) {
+						write(getCompactedSegment(compaction), body);
+					}
+				}
+				position += HEADER_LENGTH + length;
+			}
+		}
+	}
+
+	/**
+	 * Swaps the segments compacted for the new one, pointing the index entries to the copies, and removes them.
+	 */
+	private void swap(Compaction compaction) throws IOException {
+		if (segments == null) {
+			throw new IOException("Log closed while compacting.");
+		}
+		Segment target = compaction.target;
+		int moved = 0;
+		if (target != null) {
+			// Messages deleted while they were copied are deleted in the new segment too, so they aren't recovered from it.
+			for (Move move : compaction.moves) {
+				if (!move.isCurrent(index)) {
+					write(target, tombstone(move.persistedId, target.id));
+				}
+			}
+			if (!SYNC_NEVER.equals(syncPolicy)) {
+				target.buffer.force();
+			}
+			File file = new File(directory, getSegmentName(target.id));
+			if (!target.file.renameTo(file)) {
+				throw new IOException("Couldn't rename " + target.file + " to " + file);
+			}
+			target.file = file;
+			segments.put(target.id, target);
+			if (target.id > active.id) {
+				// Appends go after the copies, so that the log is recovered in order.
+				if (!SYNC_NEVER.equals(syncPolicy)) {
+					active.buffer.force();
+				}
+				active = target;
+			}
+			for (Move move : compaction.moves) {
+				if (move.isCurrent(index)) {
+					move.entry.segment = target;
+					move.entry.offset = move.copy;
+					moved++;
+				}
+			}
+		}
+		for (Move move : compaction.expired) {
+			if (move.isCurrent(index)) {
+				// Dropped along with the segment, no tombstone needed.
+				unindex(move.persistedId);
+			}
+		}
+		for (Segment segment : compaction.sources) {
+			segments.remove(segment.id);
+			if (!segment.file.delete()) {
+				logger.warning("Couldn't delete segment " + segment.file);
+				segment.file.deleteOnExit();
+			}
+		}
+		logger.fine(compaction.sources.size() + " segments compacted, " + moved + " messages moved.");
+	}
+
+	/**
+	 * Returns the new segment of a compaction, creating it when the first record is copied.
+	 */
+	private Segment getCompactedSegment(Compaction compaction) throws IOException {
+		if (compaction.target == null) {
+			File file = new File(directory, getSegmentName(compaction.id) + COMPACTION_SUFFIX);
+			compaction.target = new Segment(compaction.id, file, map(file, compaction.size));
+		}
+		return compaction.target;
+	}
+
+	/**
+	 * Deletes the segments left by compactions which didn't complete. The segments they were compacting are still there.
+	 */
+	private void deleteUnfinishedCompactions() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(COMPACTION_SUFFIX) && !files[i].delete()) {
+				logger.warning("Couldn't delete unfinished compaction " + files[i]);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the log has been forced to disk at least up to the specified position. The first caller forces the log and the ones
+	 * waiting meanwhile usually find their appends already covered.
+	 */
+	private void sync(long position) throws PersistenceException {
+		synchronized (syncLock) {
+			MappedByteBuffer buffer;
+			long upTo;
+			synchronized (this) {
+				if ((synced >= position) || (segments == null)) {
+					return;
+				}
+				buffer = active.buffer;
+				upTo = appended;
+			}
+			buffer.force();
+			synchronized (this) {
+				if (upTo > synced) {
+					synced = upTo;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry to the index.
+	 */
+	private void index(String persistedId, Entry entry) {
+		index.put(persistedId, entry);
+		Map<String, Entry> entries = clients.get(entry.clientId);
+		if (entries == null) {
+			clients.put(entry.clientId, entries = new LinkedHashMap<String, Entry>());
+		}
+		entries.put(persistedId, entry);
+	}
+
+	/**
+	 * Removes an entry from the index.
+	 */
+	private void unindex(String persistedId) {
+		Entry entry = index.remove(persistedId);
+		if (entry != null) {
+			Map<String, Entry> entries = clients.get(entry.clientId);
+			entries.remove(persistedId);
+			if (entries.isEmpty()) {
+				clients.remove(entry.clientId);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new segment file.
+	 */
+	private Segment createSegment(long id, int size) throws IOException {
+		File file = new File(directory, getSegmentName(id));
+		Segment segment = new Segment(id, file, map(file, size));
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Returns the file name of a segment.
+	 */
+	private static String getSegmentName(long id) {
+		return SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * Maps a file in read-write mode, setting its size first if <code>size</code> is greater than 0.
+	 */
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size > 0) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			// The mapping remains valid after the file is closed.
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encodes the body of a put record, leaving its sequence number to be set when it's appended.
+	 */
+	private static byte[] encode(String persistedId, Message message, long expiry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_PUT);
+		out.writeLong(0);
+		out.writeUTF(persistedId);
+		out.writeUTF(message.getClientId());
+		out.writeLong(expiry);
+		out.writeLong((message.getTimeReceived() != null) ? message.getTimeReceived().getTime() : -1);
+		CODEC.newEncoder().encode(message, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes the body of a tombstone deleting the put of a message in the specified segment.
+	 */
+	private static byte[] tombstone(String persistedId, long target) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_DELETE);
+		out.writeUTF(persistedId);
+		out.writeLong(target);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns the target segment id of a tombstone body.
+	 */
+	private static long getTarget(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		in.readByte();
+		in.readUTF();
+		return in.readLong();
+	}
+
+	/**
+	 * Copies bytes from a mapped buffer.
+	 */
+	private static byte[] get(MappedByteBuffer buffer, int position, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(position);
+		slice.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns the CRC32 of the specified bytes.
+	 */
+	private static int crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return (int) crc.getValue();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+package org.andresoviedo.util.messaging.api1.common.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics of a messenger, holding the metrics of its services. The metrics of its sessions are held by the sessions themselves.
+ *
+ * @author andresoviedo
+ */
+public class MessengerMetrics {
+
+	/**
+	 * The metrics of the services, by service id in lower case.
+	 */
+	private final ConcurrentHashMap<String, ServiceMetrics> services = new ConcurrentHashMap<String, ServiceMetrics>();
+
+	/**
+	 * An immutable view of the metrics of a messenger at some point in time.
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * The time the snapshot was taken.
+		 */
+		private final Date time;
+
+		/**
+		 * The client id of the messenger.
+		 */
+		private final String clientId;
+
+		/**
+		 * The number of sent messages waiting to be acknowledged.
+		 */
+		private final int persistenceBacklog;
+
+		/**
+		 * The number of requests waiting for a response.
+		 */
+		private final int requestsPending;
+
+		/**
+		 * The snapshots of the sessions.
+		 */
+		private final List<SessionMetrics.Snapshot> sessions;
+
+		/**
+		 * The snapshots of the services.
+		 */
+		private final List<ServiceMetrics.Snapshot> services;
+
+		/**
+		 * Creates a new snapshot.
+		 *
+		 * @param clientId
+		 *            the client id of the messenger.
+		 * @param persistenceBacklog
+		 *            the number of sent messages waiting to be acknowledged.
+		 * @param requestsPending
+		 *            the number of requests waiting for a response.
+		 * @param sessions
+		 *            the snapshots of the sessions.
+		 * @param services
+		 *            the snapshots of the services.
+		 */
+		public Snapshot(String clientId, int persistenceBacklog, int requestsPending, List<SessionMetrics.Snapshot> sessions,
+				List<ServiceMetrics.Snapshot> services) {
+			this.time = new Date();
+			this.clientId = clientId;
+			this.persistenceBacklog = persistenceBacklog;
+			this.requestsPending = requestsPending;
+			this.sessions = Collections.unmodifiableList(new ArrayList<SessionMetrics.Snapshot>(sessions));
+			this.services = Collections.unmodifiableList(new ArrayList<ServiceMetrics.Snapshot>(services));
+		}
+
+		/**
+		 * Returns the time the snapshot was taken.
+		 *
+		 * @return the time the snapshot was taken.
+		 */
+		public Date getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the client id of the messenger.
+		 *
+		 * @return the client id of the messenger.
+		 */
+		public String getClientId() {
+			return clientId;
+		}
+
+		/**
+		 * Returns the number of sent messages persisted until they're acknowledged.
+		 *
+		 * @return the number of sent messages waiting to be acknowledged.
+		 */
+		public int getPersistenceBacklog() {
+			return persistenceBacklog;
+		}
+
+		/**
+		 * Returns the number of requests waiting for a response.
+		 *
+		 * @return the number of requests waiting for a response.
+		 */
+		public int getRequestsPending() {
+			return requestsPending;
+		}
+
+		/**
+		 * Returns the snapshots of the sessions.
+		 *
+		 * @return the snapshots of the sessions.
+		 */
+		public List<SessionMetrics.Snapshot> getSessions() {
+			return sessions;
+		}
+
+		/**
+		 * Returns the snapshots of the services.
+		 *
+		 * @return the snapshots of the services.
+		 */
+		public List<ServiceMetrics.Snapshot> getServices() {
+			return services;
+		}
+
+		/**
+		 * Returns the snapshot of a service.
+		 *
+		 * @param serviceId
+		 *            the service id.
+		 * @return the snapshot of the service, or <code>null</code> if nothing has been recorded for it.
+		 */
+		public ServiceMetrics.Snapshot getService(String serviceId) {
+			for (ServiceMetrics.Snapshot service : services) {
+				if (service.getServiceId().equalsIgnoreCase(serviceId)) {
+					return service;
+				}
+			}
+			return null;
+		}
+
+		/*
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("Messenger: ");
+			sb.append("clientId[").append(clientId).append("] ");
+			sb.append("persistenceBacklog[").append(persistenceBacklog).append("] ");
+			sb.append("requestsPending[").append(requestsPending).append("] ");
+			sb.append("sessions").append(sessions).append(" ");
+			sb.append("services").append(services);
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Returns the metrics of a service, creating them if needed.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @return the metrics of the service.
+	 */
+	public ServiceMetrics getService(String serviceId) {
+		String key = (serviceId != null) ? serviceId.toLowerCase() : "";
+		ServiceMetrics metrics = services.get(key);
+		if (metrics == null) {
+			ServiceMetrics created = new ServiceMetrics(key);
+			metrics = services.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics of all the services.
+	 *
+	 * @return the metrics of all the services.
+	 */
+	public List<ServiceMetrics> getServices() {
+		return new ArrayList<ServiceMetrics>(services.values());
+	}
+
+	/**
+	 * Clears the latency histograms of the services.
+	 */
+	public void reset() {
+		for (ServiceMetrics service : services.values()) {
+			service.reset();
+		}
+	}
+
+}
@@ -0,0 +1,437 @@
+package org.andresoviedo.util.messaging.api1.common.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.metrics.LatencyHistogram;
+import org.andresoviedo.util.metrics.Meter;
+
+/**
+ * The metrics of a service: the messages it sends and receives, how long the ones it receives take to be processed, how deep their queue
+ * gets and how often the peers run out of credits to send it more.
+ *
+ * @author andresoviedo
+ */
+public class ServiceMetrics {
+
+	/**
+	 * The service id.
+	 */
+	private final String serviceId;
+
+	/**
+	 * The messages sent by the service.
+	 */
+	private final Meter messagesSent = new Meter();
+
+	/**
+	 * The messages received for the service.
+	 */
+	private final Meter messagesReceived = new Meter();
+
+	/**
+	 * The bytes of the messages sent by the service.
+	 */
+	private final Meter bytesSent = new Meter();
+
+	/**
+	 * The bytes of the messages received for the service.
+	 */
+	private final Meter bytesReceived = new Meter();
+
+	/**
+	 * The time from the creation of a received message to the end of its processing.
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * The time received messages wait to be processed.
+	 */
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+
+	/**
+	 * The time the service takes to process a message.
+	 */
+	private final LatencyHistogram processingTime = new LatencyHistogram();
+
+	/**
+	 * The messages which found no credits to be sent to the service of the peer.
+	 */
+	private final Meter creditStalls = new Meter();
+
+	/**
+	 * The highest number of received messages waiting to be processed since the metrics were reset.
+	 */
+	private final AtomicInteger queueHighWatermark = new AtomicInteger();
+
+	/**
+	 * The lowest number of received messages waiting to be processed since the metrics were reset, or <code>Integer.MAX_VALUE</code> if
+	 * none has been recorded.
+	 */
+	private final AtomicInteger queueLowWatermark = new AtomicInteger(Integer.MAX_VALUE);
+
+	/**
+	 * An immutable view of the metrics of a service at some point in time.
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * The service id.
+		 */
+		private final String serviceId;
+
+		/**
+		 * The counts of messages and bytes.
+		 */
+		private final long messagesSent, messagesReceived, bytesSent, bytesReceived;
+
+		/**
+		 * The rates of messages and bytes.
+		 */
+		private final double messagesSentRate, messagesReceivedRate, bytesSentRate, bytesReceivedRate;
+
+		/**
+		 * The latency histograms.
+		 */
+		private final LatencyHistogram.Snapshot latency, waitTime, processingTime;
+
+		/**
+		 * The received messages not processed yet.
+		 */
+		private final int pending, executing, persisted;
+
+		/**
+		 * The watermarks of the queue of received messages.
+		 */
+		private final int queueHighWatermark, queueLowWatermark;
+
+		/**
+		 * The messages which found no credits to be sent.
+		 */
+		private final long creditStalls;
+
+		/**
+		 * Creates a new snapshot.
+		 */
+		private Snapshot(ServiceMetrics metrics, int pending, int executing, int persisted) {
+			this.serviceId = metrics.serviceId;
+			this.messagesSent = metrics.messagesSent.getCount();
+			this.messagesReceived = metrics.messagesReceived.getCount();
+			this.bytesSent = metrics.bytesSent.getCount();
+			this.bytesReceived = metrics.bytesReceived.getCount();
+			this.messagesSentRate = metrics.messagesSent.getRate();
+			this.messagesReceivedRate = metrics.messagesReceived.getRate();
+			this.bytesSentRate = metrics.bytesSent.getRate();
+			this.bytesReceivedRate = metrics.bytesReceived.getRate();
+			this.latency = metrics.latency.snapshot();
+			this.waitTime = metrics.waitTime.snapshot();
+			this.processingTime = metrics.processingTime.snapshot();
+			this.pending = pending;
+			this.executing = executing;
+			this.persisted = persisted;
+			this.queueHighWatermark = metrics.queueHighWatermark.get();
+			int low = metrics.queueLowWatermark.get();
+			this.queueLowWatermark = (low == Integer.MAX_VALUE) ? 0 : low;
+			this.creditStalls = metrics.creditStalls.getCount();
+		}
+
+		/**
+		 * Returns the service id, in lower case.
+		 *
+		 * @return the service id.
+		 */
+		public String getServiceId() {
+			return serviceId;
+		}
+
+		/**
+		 * Returns the number of messages sent by the service.
+		 *
+		 * @return the number of messages sent.
+		 */
+		public long getMessagesSent() {
+			return messagesSent;
+		}
+
+		/**
+		 * Returns the number of messages received for the service.
+		 *
+		 * @return the number of messages received.
+		 */
+		public long getMessagesReceived() {
+			return messagesReceived;
+		}
+
+		/**
+		 * Returns the number of bytes of the messages sent by the service.
+		 *
+		 * @return the number of bytes sent.
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * Returns the number of bytes of the messages received for the service.
+		 *
+		 * @return the number of bytes received.
+		 */
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		/**
+		 * Returns the number of messages sent per second.
+		 *
+		 * @return the number of messages sent per second.
+		 */
+		public double getMessagesSentRate() {
+			return messagesSentRate;
+		}
+
+		/**
+		 * Returns the number of messages received per second.
+		 *
+		 * @return the number of messages received per second.
+		 */
+		public double getMessagesReceivedRate() {
+			return messagesReceivedRate;
+		}
+
+		/**
+		 * Returns the number of bytes sent per second.
+		 *
+		 * @return the number of bytes sent per second.
+		 */
+		public double getBytesSentRate() {
+			return bytesSentRate;
+		}
+
+		/**
+		 * Returns the number of bytes received per second.
+		 *
+		 * @return the number of bytes received per second.
+		 */
+		public double getBytesReceivedRate() {
+			return bytesReceivedRate;
+		}
+
+		/**
+		 * Returns the time from the creation of received messages to the end of their processing, in microseconds. It includes the clock
+		 * skew between the hosts.
+		 *
+		 * @return the end to end latency of received messages.
+		 */
+		public LatencyHistogram.Snapshot getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Returns the time received messages wait to be processed, in microseconds.
+		 *
+		 * @return the time received messages wait to be processed.
+		 */
+		public LatencyHistogram.Snapshot getWaitTime() {
+			return waitTime;
+		}
+
+		/**
+		 * Returns the time the service takes to process a message, in microseconds.
+		 *
+		 * @return the time the service takes to process a message.
+		 */
+		public LatencyHistogram.Snapshot getProcessingTime() {
+			return processingTime;
+		}
+
+		/**
+		 * Returns the number of received messages waiting to be processed.
+		 *
+		 * @return the number of received messages waiting to be processed.
+		 */
+		public int getPending() {
+			return pending;
+		}
+
+		/**
+		 * Returns the number of received messages being processed.
+		 *
+		 * @return the number of received messages being processed.
+		 */
+		public int getExecuting() {
+			return executing;
+		}
+
+		/**
+		 * Returns the number of received messages persisted until a listener is available.
+		 *
+		 * @return the number of received messages persisted.
+		 */
+		public int getPersisted() {
+			return persisted;
+		}
+
+		/**
+		 * Returns the highest number of received messages waiting to be processed since the metrics were reset.
+		 *
+		 * @return the high watermark of the queue.
+		 */
+		public int getQueueHighWatermark() {
+			return queueHighWatermark;
+		}
+
+		/**
+		 * Returns the lowest number of received messages waiting to be processed since the metrics were reset. It's above 0 if the service
+		 * didn't catch up with its messages in the meantime.
+		 *
+		 * @return the low watermark of the queue.
+		 */
+		public int getQueueLowWatermark() {
+			return queueLowWatermark;
+		}
+
+		/**
+		 * Returns the number of messages which found no credits to be sent to the service of the peer, whether they waited, failed or
+		 * were spilled.
+		 *
+		 * @return the number of messages stalled by flow control.
+		 */
+		public long getCreditStalls() {
+			return creditStalls;
+		}
+
+		/*
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("Service: ");
+			sb.append("serviceId[").append(serviceId).append("] ");
+			sb.append("sent[").append(messagesSent).append("] ");
+			sb.append("received[").append(messagesReceived).append("] ");
+			sb.append("pending[").append(pending).append("] ");
+			sb.append("persisted[").append(persisted).append("] ");
+			sb.append("queue[").append(queueLowWatermark).append("-").append(queueHighWatermark).append("] ");
+			sb.append("creditStalls[").append(creditStalls).append("] ");
+			sb.append("latency[").append(latency).append("]");
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Creates the metrics of a service.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 */
+	public ServiceMetrics(String serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * Returns the service id.
+	 *
+	 * @return the service id.
+	 */
+	public String getServiceId() {
+		return serviceId;
+	}
+
+	/**
+	 * Records a message sent by the service.
+	 *
+	 * @param bytes
+	 *            the bytes written to send the message.
+	 */
+	public void sent(int bytes) {
+		messagesSent.mark();
+		bytesSent.mark(bytes);
+	}
+
+	/**
+	 * Records a message received for the service.
+	 *
+	 * @param bytes
+	 *            the bytes read to receive the message.
+	 */
+	public void received(int bytes) {
+		messagesReceived.mark();
+		bytesReceived.mark(bytes);
+	}
+
+	/**
+	 * Records the processing of a received message.
+	 *
+	 * @param message
+	 *            the message.
+	 * @param started
+	 *            the time its processing started, in milliseconds.
+	 * @param elapsed
+	 *            the time its processing took, in nanoseconds.
+	 */
+	public void processed(Message message, long started, long elapsed) {
+		processingTime.record(elapsed / 1000);
+		if (message.getTimeReceived() != null) {
+			waitTime.record((started - message.getTimeReceived().getTime()) * 1000);
+		}
+		if (message.getTimeCreated() != null) {
+			latency.record((started - message.getTimeCreated().getTime()) * 1000 + elapsed / 1000);
+		}
+	}
+
+	/**
+	 * Records the number of received messages waiting to be processed, updating the watermarks of the queue.
+	 *
+	 * @param depth
+	 *            the number of received messages waiting to be processed.
+	 */
+	public void queued(int depth) {
+		int high;
+		while (depth > (high = queueHighWatermark.get())) {
+			if (queueHighWatermark.compareAndSet(high, depth)) {
+				break;
+			}
+		}
+		int low;
+		while (depth < (low = queueLowWatermark.get())) {
+			if (queueLowWatermark.compareAndSet(low, depth)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records a message which found no credits to be sent to the service of the peer.
+	 */
+	public void stalled() {
+		creditStalls.mark();
+	}
+
+	/**
+	 * Takes a snapshot of the metrics.
+	 *
+	 * @param pending
+	 *            the number of received messages waiting to be processed.
+	 * @param executing
+	 *            the number of received messages being processed.
+	 * @param persisted
+	 *            the number of received messages persisted until a listener is available.
+	 * @return the snapshot.
+	 */
+	public Snapshot snapshot(int pending, int executing, int persisted) {
+		return new Snapshot(this, pending, executing, persisted);
+	}
+
+	/**
+	 * Clears the latency histograms and the watermarks of the queue.
+	 */
+	public void reset() {
+		latency.reset();
+		waitTime.reset();
+		processingTime.reset();
+		queueHighWatermark.set(0);
+		queueLowWatermark.set(Integer.MAX_VALUE);
+	}
+
+}
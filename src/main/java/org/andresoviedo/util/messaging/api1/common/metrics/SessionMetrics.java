@@ -0,0 +1,343 @@
+package org.andresoviedo.util.messaging.api1.common.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.metrics.LatencyHistogram;
+import org.andresoviedo.util.metrics.Meter;
+
+/**
+ * The metrics of a socket session: the messages and bytes it sends and receives, how long received messages took to arrive and how many
+ * times it has connected. Messages are also accounted to the services sending and receiving them if the session is given the metrics of
+ * its messenger.
+ * <p>
+ * Bytes are counted as they're written to or read from the socket. With the blocking transport, several commands may share a write or a
+ * read, so the bytes of a message are only approximately accounted to its service, but the totals are exact.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class SessionMetrics {
+
+	/**
+	 * The messages sent through the session.
+	 */
+	private final Meter messagesSent = new Meter();
+
+	/**
+	 * The messages received through the session.
+	 */
+	private final Meter messagesReceived = new Meter();
+
+	/**
+	 * The bytes sent through the session.
+	 */
+	private final Meter bytesSent = new Meter();
+
+	/**
+	 * The bytes received through the session.
+	 */
+	private final Meter bytesReceived = new Meter();
+
+	/**
+	 * The time from the sending of a message by the peer to its reception.
+	 */
+	private final LatencyHistogram transitTime = new LatencyHistogram();
+
+	/**
+	 * The number of times the session has connected.
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * The metrics of the messenger the session belongs to, if any.
+	 */
+	private volatile MessengerMetrics messengerMetrics;
+
+	/**
+	 * An immutable view of the metrics of a session at some point in time.
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * The id of the peer.
+		 */
+		private final String clientId;
+
+		/**
+		 * The address of the peer.
+		 */
+		private final String remoteAddress;
+
+		/**
+		 * The counts of messages and bytes.
+		 */
+		private final long messagesSent, messagesReceived, bytesSent, bytesReceived;
+
+		/**
+		 * The rates of messages and bytes.
+		 */
+		private final double messagesSentRate, messagesReceivedRate, bytesSentRate, bytesReceivedRate;
+
+		/**
+		 * The transit time of received messages.
+		 */
+		private final LatencyHistogram.Snapshot transitTime;
+
+		/**
+		 * The number of reconnections.
+		 */
+		private final int reconnections;
+
+		/**
+		 * The number of commands queued to be sent.
+		 */
+		private final int queueDepth;
+
+		/**
+		 * Creates a new snapshot.
+		 */
+		private Snapshot(SessionMetrics metrics, String clientId, String remoteAddress, int queueDepth) {
+			this.clientId = clientId;
+			this.remoteAddress = remoteAddress;
+			this.messagesSent = metrics.messagesSent.getCount();
+			this.messagesReceived = metrics.messagesReceived.getCount();
+			this.bytesSent = metrics.bytesSent.getCount();
+			this.bytesReceived = metrics.bytesReceived.getCount();
+			this.messagesSentRate = metrics.messagesSent.getRate();
+			this.messagesReceivedRate = metrics.messagesReceived.getRate();
+			this.bytesSentRate = metrics.bytesSent.getRate();
+			this.bytesReceivedRate = metrics.bytesReceived.getRate();
+			this.transitTime = metrics.transitTime.snapshot();
+			this.reconnections = Math.max(0, metrics.connections.get() - 1);
+			this.queueDepth = queueDepth;
+		}
+
+		/**
+		 * Returns the id of the peer.
+		 *
+		 * @return the id of the peer.
+		 */
+		public String getClientId() {
+			return clientId;
+		}
+
+		/**
+		 * Returns the address of the peer.
+		 *
+		 * @return the address of the peer.
+		 */
+		public String getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		/**
+		 * Returns the number of messages sent.
+		 *
+		 * @return the number of messages sent.
+		 */
+		public long getMessagesSent() {
+			return messagesSent;
+		}
+
+		/**
+		 * Returns the number of messages received.
+		 *
+		 * @return the number of messages received.
+		 */
+		public long getMessagesReceived() {
+			return messagesReceived;
+		}
+
+		/**
+		 * Returns the number of bytes sent.
+		 *
+		 * @return the number of bytes sent.
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * Returns the number of bytes received.
+		 *
+		 * @return the number of bytes received.
+		 */
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		/**
+		 * Returns the number of messages sent per second.
+		 *
+		 * @return the number of messages sent per second.
+		 */
+		public double getMessagesSentRate() {
+			return messagesSentRate;
+		}
+
+		/**
+		 * Returns the number of messages received per second.
+		 *
+		 * @return the number of messages received per second.
+		 */
+		public double getMessagesReceivedRate() {
+			return messagesReceivedRate;
+		}
+
+		/**
+		 * Returns the number of bytes sent per second.
+		 *
+		 * @return the number of bytes sent per second.
+		 */
+		public double getBytesSentRate() {
+			return bytesSentRate;
+		}
+
+		/**
+		 * Returns the number of bytes received per second.
+		 *
+		 * @return the number of bytes received per second.
+		 */
+		public double getBytesReceivedRate() {
+			return bytesReceivedRate;
+		}
+
+		/**
+		 * Returns the time from the sending of received messages by the peer to their reception, in microseconds. It includes the clock
+		 * skew between the hosts.
+		 *
+		 * @return the transit time of received messages.
+		 */
+		public LatencyHistogram.Snapshot getTransitTime() {
+			return transitTime;
+		}
+
+		/**
+		 * Returns the number of times the session has connected again.
+		 *
+		 * @return the number of reconnections.
+		 */
+		public int getReconnections() {
+			return reconnections;
+		}
+
+		/**
+		 * Returns the number of commands queued to be sent.
+		 *
+		 * @return the number of commands queued to be sent.
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/*
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("Session: ");
+			sb.append("clientId[").append(clientId).append("] ");
+			sb.append("sent[").append(messagesSent).append("] ");
+			sb.append("received[").append(messagesReceived).append("] ");
+			sb.append("bytesSent[").append(bytesSent).append("] ");
+			sb.append("bytesReceived[").append(bytesReceived).append("] ");
+			sb.append("queueDepth[").append(queueDepth).append("] ");
+			sb.append("transitTime[").append(transitTime).append("]");
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Returns the metrics of the messenger the session belongs to.
+	 *
+	 * @return the metrics of the messenger, or <code>null</code> if none.
+	 */
+	public MessengerMetrics getMessengerMetrics() {
+		return messengerMetrics;
+	}
+
+	/**
+	 * Sets the metrics of the messenger the session belongs to, so that messages are also accounted to their services.
+	 *
+	 * @param messengerMetrics
+	 *            the metrics of the messenger (<code>null</code> permitted).
+	 */
+	public void setMessengerMetrics(MessengerMetrics messengerMetrics) {
+		this.messengerMetrics = messengerMetrics;
+	}
+
+	/**
+	 * Records a connection of the session.
+	 */
+	public void connected() {
+		connections.incrementAndGet();
+	}
+
+	/**
+	 * Records a command sent.
+	 *
+	 * @param command
+	 *            the command, or <code>null</code> to record bytes not accounted to a command yet.
+	 * @param bytes
+	 *            the bytes written.
+	 */
+	public void sent(Command command, int bytes) {
+		bytesSent.mark(bytes);
+		if (command instanceof Message) {
+			messagesSent.mark();
+			MessengerMetrics current = messengerMetrics;
+			if (current != null) {
+				current.getService(((Message) command).getServiceId()).sent(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Records a command received.
+	 *
+	 * @param command
+	 *            the command.
+	 * @param bytes
+	 *            the bytes read.
+	 */
+	public void received(Command command, int bytes) {
+		bytesReceived.mark(bytes);
+		if (command instanceof Message) {
+			Message message = (Message) command;
+			messagesReceived.mark();
+			if ((message.getTimeSent() != null) && (message.getTimeReceived() != null)) {
+				transitTime.record((message.getTimeReceived().getTime() - message.getTimeSent().getTime()) * 1000);
+			}
+			MessengerMetrics current = messengerMetrics;
+			if (current != null) {
+				current.getService(message.getTargetServiceId()).received(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the metrics.
+	 *
+	 * @param clientId
+	 *            the id of the peer.
+	 * @param remoteAddress
+	 *            the address of the peer.
+	 * @param queueDepth
+	 *            the number of commands queued to be sent.
+	 * @return the snapshot.
+	 */
+	public Snapshot snapshot(String clientId, String remoteAddress, int queueDepth) {
+		return new Snapshot(this, clientId, remoteAddress, queueDepth);
+	}
+
+	/**
+	 * Clears the latency histograms.
+	 */
+	public void reset() {
+		transitTime.reset();
+	}
+
+}
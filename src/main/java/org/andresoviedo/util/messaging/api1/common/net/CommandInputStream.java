@@ -0,0 +1,47 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+import org.andresoviedo.util.messaging.api1.Messenger;
+
+/**
+ * An object input stream that falls back to classes registered in the messenger when a class cannot be resolved (needed when using
+ * different class loaders).
+ *
+ * @author andresoviedo
+ */
+public class CommandInputStream extends ObjectInputStream {
+
+	/**
+	 * Creates a new command input stream.
+	 *
+	 * @param in
+	 *            the input stream to read from.
+	 * @throws IOException
+	 *             if the serialization stream header cannot be read.
+	 */
+	public CommandInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	/*
+	 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass )
+	 */
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		String name = desc.getName();
+		try {
+			return super.resolveClass(desc);
+		} catch (ClassNotFoundException e) {
+			Class<?> clazz = (Class<?>) Messenger.getRegisteredClass(name);
+			if (clazz != null) {
+				return clazz;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+}
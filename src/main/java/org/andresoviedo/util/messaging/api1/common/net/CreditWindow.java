@@ -0,0 +1,318 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The credits of the services of a session. Each side of a connection announces at login how many messages the peer may send to each of
+ * its services; the sender takes a credit per message, and the receiver grants them back as it processes the messages. So a fast sender
+ * can't queue more than a window of messages per service in the receiver.
+ * <p>
+ * Messages which couldn't be sent for lack of credits may be spilled: they're kept aside, by their id in persistence, and sent in order as
+ * soon as credits are granted again. Meanwhile, new messages to the service are spilled as well.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public class CreditWindow {
+
+	/**
+	 * A message spilled for lack of credits.
+	 */
+	public static final class Spilled {
+
+		/**
+		 * The client id the message is persisted for.
+		 */
+		private final String clientId;
+
+		/**
+		 * The id of the message in persistence.
+		 */
+		private final String persistedId;
+
+		/**
+		 * Creates a new spilled message.
+		 * 
+		 * @param clientId
+		 *            the client id the message is persisted for.
+		 * @param persistedId
+		 *            the id of the message in persistence.
+		 */
+		public Spilled(String clientId, String persistedId) {
+			this.clientId = clientId;
+			this.persistedId = persistedId;
+		}
+
+		/**
+		 * Returns the client id the message is persisted for.
+		 * 
+		 * @return the client id.
+		 */
+		public String getClientId() {
+			return clientId;
+		}
+
+		/**
+		 * Returns the id of the message in persistence.
+		 * 
+		 * @return the persisted id.
+		 */
+		public String getPersistedId() {
+			return persistedId;
+		}
+
+	}
+
+	/**
+	 * The credits of a service.
+	 */
+	private static final class Credits {
+
+		/**
+		 * The number of messages which may be sent to the service of the peer.
+		 */
+		private int available;
+
+		/**
+		 * The number of messages of the peer processed since credits were last granted.
+		 */
+		private int consumed;
+
+		/**
+		 * The messages spilled for lack of credits, in the order they have to be sent.
+		 */
+		private final LinkedList<Spilled> spilled = new LinkedList<Spilled>();
+
+	}
+
+	/**
+	 * The number of messages the peer allows to each service, or 0 if they aren't limited.
+	 */
+	private int peerWindow;
+
+	/**
+	 * The number of messages the peer may send to each service of this side, or 0 if they aren't limited.
+	 */
+	private int window;
+
+	/**
+	 * Whether the connection is closed, so nobody has to wait for credits.
+	 */
+	private boolean closed;
+
+	/**
+	 * The credits of the services, by service id in lower case.
+	 */
+	private final Map<String, Credits> services = new HashMap<String, Credits>();
+
+	/**
+	 * Starts the credits of a new connection: every service may be sent a full window of messages. Spilled messages are forgotten, they're
+	 * sent again from persistence once the session is authenticated.
+	 * 
+	 * @param peerWindow
+	 *            the number of messages the peer allows to each service, or 0 if they aren't limited.
+	 * @param window
+	 *            the number of messages the peer may send to each service of this side, or 0 if they aren't limited.
+	 */
+	public synchronized void open(int peerWindow, int window) {
+		this.peerWindow = Math.max(0, peerWindow);
+		this.window = Math.max(0, window);
+		this.closed = false;
+		services.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Releases the senders waiting for credits, because the connection is closed.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of messages the peer allows to each service.
+	 * 
+	 * @return the window of the peer, or 0 if messages aren't limited.
+	 */
+	public synchronized int getPeerWindow() {
+		return peerWindow;
+	}
+
+	/**
+	 * Returns the number of messages the peer may send to each service of this side.
+	 * 
+	 * @return the window of this side, or 0 if messages aren't limited.
+	 */
+	public synchronized int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Returns the number of messages which may be sent to a service right now.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @return the available credits, or <code>Integer.MAX_VALUE</code> if messages aren't limited.
+	 */
+	public synchronized int getCredits(String serviceId) {
+		return (peerWindow == 0) ? Integer.MAX_VALUE : getService(serviceId).available;
+	}
+
+	/**
+	 * Takes a credit to send a message to a service, waiting for the peer to grant it if needed. There's no credit to take while messages of
+	 * the service are spilled, so they're sent first.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @param timeout
+	 *            the maximum number of milliseconds to wait, 0 not to wait.
+	 * @return <code>true</code> if the message can be sent, which is also the case when the connection is closed, so the send fails as
+	 *         usual. <code>false</code> if no credit has been granted in time.
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting.
+	 */
+	public synchronized boolean acquire(String serviceId, long timeout) throws InterruptedException {
+		if (peerWindow == 0) {
+			return true;
+		}
+		Credits credits = getService(serviceId);
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!closed && ((credits.available <= 0) || !credits.spilled.isEmpty())) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+			// The connection may have been opened again meanwhile.
+			if (peerWindow == 0) {
+				return true;
+			}
+			credits = getService(serviceId);
+		}
+		if (!closed) {
+			credits.available--;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back a credit taken for a message which hasn't been sent after all.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 */
+	public synchronized void release(String serviceId) {
+		grant(serviceId, 1);
+	}
+
+	/**
+	 * Adds the credits granted by the peer to a service. The credits never exceed the window of the peer, so grants for messages sent
+	 * through a previous connection, or not limited, don't add up.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @param granted
+	 *            the number of credits granted.
+	 * @return <code>true</code> if there are spilled messages waiting for the credits.
+	 */
+	public synchronized boolean grant(String serviceId, int granted) {
+		if (peerWindow == 0) {
+			return false;
+		}
+		Credits credits = getService(serviceId);
+		credits.available = (int) Math.min((long) credits.available + granted, peerWindow);
+		notifyAll();
+		return !credits.spilled.isEmpty();
+	}
+
+	/**
+	 * Keeps aside a message which couldn't be sent for lack of credits, to send it when the peer grants them.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @param spilled
+	 *            the spilled message.
+	 */
+	public synchronized void spill(String serviceId, Spilled spilled) {
+		getService(serviceId).spilled.add(spilled);
+	}
+
+	/**
+	 * Takes the next spilled message of a service, along with a credit to send it.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @return the next spilled message, or <code>null</code> if there's none or no credit to send it.
+	 */
+	public synchronized Spilled nextSpilled(String serviceId) {
+		Credits credits = getService(serviceId);
+		if (credits.spilled.isEmpty() || ((peerWindow > 0) && (credits.available <= 0))) {
+			return null;
+		}
+		if (peerWindow > 0) {
+			credits.available--;
+		}
+		Spilled next = credits.spilled.removeFirst();
+		if (credits.spilled.isEmpty()) {
+			// Senders waiting behind the spilled messages may go on.
+			notifyAll();
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the number of spilled messages waiting for credits.
+	 * 
+	 * @return the number of spilled messages.
+	 */
+	public synchronized int getSpilled() {
+		int ret = 0;
+		for (Credits credits : services.values()) {
+			ret += credits.spilled.size();
+		}
+		return ret;
+	}
+
+	/**
+	 * Takes note of a processed message of the peer. Credits are granted back in batches of a quarter of the window, so the peer never runs
+	 * out of them while the messages are processed as fast as they arrive.
+	 * 
+	 * @param serviceId
+	 *            the id of the service the message was sent to.
+	 * @return the number of credits to grant to the peer now, or 0 to wait for more messages.
+	 */
+	public synchronized int consumed(String serviceId) {
+		if (window == 0) {
+			return 0;
+		}
+		Credits credits = getService(serviceId);
+		if (++credits.consumed < Math.max(1, window / 4)) {
+			return 0;
+		}
+		int granted = credits.consumed;
+		credits.consumed = 0;
+		return granted;
+	}
+
+	/**
+	 * Returns the credits of a service, creating them if needed.
+	 * 
+	 * @param serviceId
+	 *            the service id.
+	 * @return the credits of the service.
+	 */
+	private Credits getService(String serviceId) {
+		String key = (serviceId != null) ? serviceId.toLowerCase() : "";
+		Credits credits = services.get(key);
+		if (credits == null) {
+			credits = new Credits();
+			credits.available = peerWindow;
+			services.put(key, credits);
+		}
+		return credits;
+	}
+
+}
@@ -0,0 +1,423 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+
+/**
+ * A small pool of selector event loops multiplexing any number of non-blocking channels. Channels are assigned to loops in a round-robin
+ * fashion and stay on the same loop for their whole life, so handlers are never invoked concurrently for the same channel. A single
+ * scheduler thread is shared for timed tasks such as pings and reconnections.
+ *
+ * @author andresoviedo
+ */
+public class NioReactor {
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The system property holding the number of selector threads of the default reactor. Defaults to the number of available processors.
+	 */
+	public static final String SYSTEM_PROPERTY_SELECTOR_THREADS = "messaging.nio.selectorThreads";
+
+	/**
+	 * The reactor shared by all sessions not providing their own.
+	 */
+	private static NioReactor defaultReactor;
+
+	/**
+	 * The name used to build thread names.
+	 */
+	private String name;
+
+	/**
+	 * The event loops.
+	 */
+	private EventLoop[] loops;
+
+	/**
+	 * The scheduler used for timed tasks.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Round-robin counter used to pick the next loop.
+	 */
+	private AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * The number of selector threads.
+	 */
+	private int threads;
+
+	/**
+	 * Indicates whether this reactor is started or not.
+	 */
+	private boolean started;
+
+	/**
+	 * The interface objects attached to registered channels have to implement.
+	 */
+	public interface Handler {
+
+		/**
+		 * Invoked from the loop thread when the channel is ready for any of its interest operations. Implementations must not block.
+		 *
+		 * @param key
+		 *            the selection key of the channel.
+		 */
+		public void ready(SelectionKey key);
+
+		/**
+		 * Invoked from the loop thread when the reactor is stopped while the channel is still registered.
+		 */
+		public void stopped();
+
+	}
+
+	/**
+	 * Returns the reactor shared by all sessions not providing their own. The reactor is started on first use and never stopped.
+	 *
+	 * @return the default reactor.
+	 */
+	public static synchronized NioReactor getDefault() {
+		if (defaultReactor == null) {
+			int threads;
+			try {
+				threads = Integer.parseInt(System.getProperty(SYSTEM_PROPERTY_SELECTOR_THREADS,
+						String.valueOf(Runtime.getRuntime().availableProcessors())));
+			} catch (NumberFormatException e) {
+				threads = Runtime.getRuntime().availableProcessors();
+			}
+			defaultReactor = new NioReactor("Default", threads);
+		}
+		return defaultReactor;
+	}
+
+	/**
+	 * Creates a new reactor.
+	 *
+	 * @param name
+	 *            the name used to build thread names.
+	 * @param threads
+	 *            the number of selector threads.
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is less than 1.
+	 */
+	public NioReactor(String name, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of selector threads: " + threads);
+		}
+		this.name = name;
+		this.threads = threads;
+	}
+
+	/**
+	 * Starts this reactor. This method does nothing if the reactor is already started.
+	 *
+	 * @throws IOException
+	 *             if a selector cannot be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (started) {
+			return;
+		}
+		logger.info("Starting reactor '" + name + "' with " + threads + " selector threads...");
+		EventLoop[] temp = new EventLoop[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				temp[i] = new EventLoop("TMS@Selector@" + name + "_" + i);
+			}
+		} catch (IOException e) {
+			for (int i = 0; i < threads; i++) {
+				if (temp[i] != null) {
+					temp[i].shutdown();
+				}
+			}
+			throw e;
+		}
+		for (int i = 0; i < threads; i++) {
+			temp[i].start();
+		}
+		this.loops = temp;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TMS@Scheduler@" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.started = true;
+	}
+
+	/**
+	 * Stops this reactor. Handlers of channels still registered are notified and the channels closed. This method does nothing if the
+	 * reactor is not started.
+	 */
+	public synchronized void stop() {
+		if (!started) {
+			return;
+		}
+		logger.info("Stopping reactor '" + name + "'...");
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].shutdown();
+		}
+		scheduler.shutdownNow();
+		loops = null;
+		scheduler = null;
+		started = false;
+	}
+
+	/**
+	 * Returns whether this reactor is started or not.
+	 *
+	 * @return <code>true</code> if this reactor is started, <code>false</code> otherwise.
+	 */
+	public synchronized boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Returns the loop the next channel should be registered with.
+	 *
+	 * @return the next loop.
+	 * @throws IllegalStateException
+	 *             if the reactor is not started.
+	 */
+	synchronized EventLoop next() {
+		if (!started) {
+			throw new IllegalStateException("Reactor '" + name + "' is not started.");
+		}
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Registers the specified channel with the next loop. The channel is switched to non-blocking mode.
+	 *
+	 * @param channel
+	 *            the channel to register.
+	 * @param ops
+	 *            the interest operations.
+	 * @param handler
+	 *            the handler to invoke when the channel is ready.
+	 * @throws IOException
+	 *             if the channel cannot be switched to non-blocking mode.
+	 */
+	public void register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		next().register(channel, ops, handler);
+	}
+
+	/**
+	 * Schedules a one-shot task.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay in milliseconds.
+	 * @return the scheduled future, which can be used to cancel the task.
+	 */
+	public synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+		if (!started) {
+			throw new IllegalStateException("Reactor '" + name + "' is not started.");
+		}
+		return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules a periodic task.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the initial delay and the delay between executions, in milliseconds.
+	 * @return the scheduled future, which can be used to cancel the task.
+	 */
+	public synchronized ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay) {
+		if (!started) {
+			throw new IllegalStateException("Reactor '" + name + "' is not started.");
+		}
+		return scheduler.scheduleWithFixedDelay(task, delay, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A selector thread.
+	 */
+	static class EventLoop extends Thread {
+
+		/**
+		 * The selector.
+		 */
+		private Selector selector;
+
+		/**
+		 * Tasks to be run from the loop thread.
+		 */
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * Control flag to let the thread work.
+		 */
+		private volatile boolean started = true;
+
+		/**
+		 * Creates a new event loop.
+		 *
+		 * @param name
+		 *            the thread name.
+		 * @throws IOException
+		 *             if the selector cannot be opened.
+		 */
+		EventLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Runs the specified task from the loop thread.
+		 *
+		 * @param task
+		 *            the task to run.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Returns whether the current thread is this loop.
+		 *
+		 * @return <code>true</code> if the caller is running in this loop.
+		 */
+		boolean inLoop() {
+			return Thread.currentThread() == this;
+		}
+
+		/**
+		 * Returns the key of the specified channel in this loop, or <code>null</code> if the channel is not registered yet.
+		 *
+		 * @param channel
+		 *            the channel.
+		 * @return the selection key of the channel.
+		 */
+		SelectionKey keyFor(SelectableChannel channel) {
+			return channel.keyFor(selector);
+		}
+
+		/**
+		 * Registers the specified channel with this loop.
+		 */
+		void register(final SelectableChannel channel, final int ops, final Handler handler) throws IOException {
+			channel.configureBlocking(false);
+			execute(new Runnable() {
+				public void run() {
+					try {
+						channel.register(selector, ops, handler);
+					} catch (ClosedChannelException e) {
+						handler.stopped();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Stops this loop.
+		 */
+		void shutdown() {
+			started = false;
+			if (isAlive()) {
+				selector.wakeup();
+			} else {
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		/*
+		 * @see java.lang.Thread#run()
+		 */
+		public void run() {
+			logger.fine("Thread '" + getName() + "' starts.");
+			while (started) {
+				try {
+					if (tasks.isEmpty()) {
+						selector.select();
+					} else {
+						selector.selectNow();
+					}
+				} catch (IOException e) {
+					logger.warning("IOException caught: " + e.getMessage());
+					break;
+				}
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid()) {
+						try {
+							((Handler) key.attachment()).ready(key);
+						} catch (RuntimeException e) {
+							logger.severe("Exception caught while handling channel event: " + e);
+						}
+					}
+				}
+			}
+			// Run pending tasks so nothing is left behind, then release every channel.
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				try {
+					((Handler) key.attachment()).stopped();
+				} catch (RuntimeException e) {
+					logger.warning("Exception caught while stopping channel: " + e);
+				}
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+			logger.fine("Thread '" + getName() + "' dies.");
+		}
+
+		/**
+		 * Runs all pending tasks.
+		 */
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.severe("Exception caught while running loop task: " + e);
+				}
+			}
+		}
+
+	}
+
+}
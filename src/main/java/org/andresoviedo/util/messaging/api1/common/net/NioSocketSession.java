@@ -0,0 +1,1030 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.PingRequest;
+
+/**
+ * A socket session multiplexed on a <code>NioReactor</code>. Instead of dedicated reader, writer, tester and connector threads, the session
+ * uses a non-blocking socket channel served by one of the reactor's selector threads, and the reactor's scheduler for pings and
+ * reconnections. Commands are exchanged as length-prefixed frames and outgoing frames are queued per session. A frame payload either holds
+ * a serialized command or, once a codec has been agreed at login, the codec version followed by the encoded command.
+ * <p>
+ * Notice that <code>SocketSessionController</code> callbacks for received commands are invoked from the selector thread, so controllers
+ * must not block on them.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class NioSocketSession extends SocketSession {
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The maximum accepted frame length. Bigger frames are considered to be a corrupted stream.
+	 */
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * The initial size of the read buffer.
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The maximum number of frames written with a single gathering write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * The first byte of a Java serialization stream. Codec versions are always below it.
+	 */
+	private static final int STREAM_MAGIC_BYTE = 0xAC;
+
+	/**
+	 * The reactor serving this session.
+	 */
+	private NioReactor reactor;
+
+	/**
+	 * The loop this session is registered with.
+	 */
+	private NioReactor.EventLoop loop;
+
+	/**
+	 * The socket channel.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The frames pending to be written.
+	 */
+	private Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The number of frames pending to be written, as the size of the queue is not a constant time operation.
+	 */
+	private AtomicInteger pendingFrames = new AtomicInteger();
+
+	/**
+	 * Indicates whether a flush is pending in the loop, so that producers don't schedule it more than once.
+	 */
+	private AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	/**
+	 * The buffers used for gathering writes. Only accessed from the loop.
+	 */
+	private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	/**
+	 * The read buffer. Only accessed from the loop.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * The length of the frame being read, or -1 if the length hasn't been read yet. Only accessed from the loop.
+	 */
+	private int frameLength = -1;
+
+	/**
+	 * The number of callers that suspended reading and haven't resumed it yet.
+	 */
+	private AtomicInteger readSuspensions = new AtomicInteger();
+
+	/**
+	 * The encoder agreed at login, or <code>null</code> while commands are sent with Java serialization. Guarded by the session lock.
+	 */
+	private MessageCodec.Encoder encoder;
+
+	/**
+	 * The decoder of the current connection. Only accessed from the loop.
+	 */
+	private MessageCodec.Decoder decoder;
+
+	/**
+	 * The task testing the connection.
+	 */
+	private ScheduledFuture<?> tester;
+
+	/**
+	 * The task managing reconnections.
+	 */
+	private ScheduledFuture<?> connector;
+
+	/**
+	 * The connection attempt in progress, or <code>null</code> if none. Guarded by the session lock.
+	 */
+	private Connect connecting;
+
+	/**
+	 * The handler attached to the channel.
+	 */
+	private ChannelHandler handler = new ChannelHandler();
+
+	/**
+	 * The task flushing the write queue from the loop.
+	 */
+	private Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * The task resuming reading from the loop.
+	 */
+	private Runnable resumeTask = new Runnable() {
+		public void run() {
+			SelectionKey key = loop.keyFor(channel);
+			if ((key != null) && key.isValid() && (readSuspensions.get() == 0)) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				// Frames already buffered won't make the channel readable.
+				read();
+			}
+		}
+	};
+
+	/**
+	 * Creates a new session connecting to the specified addresses.
+	 *
+	 * @param clientId
+	 *            the client id.
+	 * @param addresses
+	 *            the list of addresses to connect to.
+	 * @param controller
+	 *            the controller whishing to receive session events.
+	 * @param reactor
+	 *            the reactor serving this session.
+	 * @throws IllegalArgumentException
+	 *             if <code>addresses</code> is <code>null</code>, no addresses are specified, the addresses array contains nulls, or
+	 *             either <code>controller</code> or <code>reactor</code> are null.
+	 */
+	public NioSocketSession(String clientId, InetSocketAddress[] addresses, SocketSessionController controller, NioReactor reactor) {
+		super(clientId, controller);
+		if (addresses == null) {
+			throw new IllegalArgumentException("The list of addresses is null.");
+		}
+		if (addresses.length == 0) {
+			throw new IllegalArgumentException("No addresses specified.");
+		}
+		for (int i = 0; i < addresses.length; i++) {
+			if (addresses[i] == null) {
+				throw new IllegalArgumentException("No null addresses allowed in the addresses array.");
+			}
+		}
+		if (reactor == null) {
+			throw new IllegalArgumentException("Reactor is null.");
+		}
+		this.addresses = addresses;
+		this.reactor = reactor;
+	}
+
+	/**
+	 * Creates a new session for an already connected channel (i.e. an accepted one).
+	 *
+	 * @param clientId
+	 *            the client id.
+	 * @param channel
+	 *            the connected channel.
+	 * @param controller
+	 *            the controller whishing to receive session events.
+	 * @param reactor
+	 *            the reactor serving this session.
+	 * @throws IllegalArgumentException
+	 *             if any of <code>channel</code>, <code>controller</code> or <code>reactor</code> are <code>null</code>.
+	 */
+	public NioSocketSession(String clientId, SocketChannel channel, SocketSessionController controller, NioReactor reactor) {
+		super(clientId, controller);
+		if (channel == null) {
+			throw new IllegalArgumentException("Channel is null.");
+		}
+		if (reactor == null) {
+			throw new IllegalArgumentException("Reactor is null.");
+		}
+		this.channel = channel;
+		this.reactor = reactor;
+		synchronized (socketLock) {
+			this.socket = channel.socket();
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#open()
+	 */
+	public void open() throws SocketSessionException {
+		Connect connect;
+		synchronized (this) {
+			if (!closed) {
+				return;
+			}
+			if (addresses == null) {
+				// Accepted channels are already connected.
+				try {
+					reactor.start();
+					opened(channel, reactor.next());
+				} catch (IOException e) {
+					logger.warning("Couldn't open the session: " + e.getMessage());
+					// Accepted channels cannot be reopened.
+					try {
+						channel.close();
+					} catch (IOException e1) {
+					}
+					throw new SocketSessionException(e);
+				}
+				return;
+			}
+			connect = connect();
+		}
+		// The channel connects in the loop, which needs the session lock to open it.
+		connect.await();
+	}
+
+	/**
+	 * Starts connecting to the addresses of this session, unless it's already being connected.
+	 *
+	 * @return the connection attempt.
+	 * @throws SocketSessionException
+	 *             if the reactor cannot be started.
+	 */
+	private synchronized Connect connect() throws SocketSessionException {
+		if (connecting == null) {
+			try {
+				reactor.start();
+			} catch (IOException e) {
+				logger.warning("Couldn't open the session: " + e.getMessage());
+				startConnector();
+				throw new SocketSessionException(e);
+			}
+			connecting = new Connect(reactor.next());
+			connecting.loop.execute(connecting);
+		}
+		return connecting;
+	}
+
+	/**
+	 * Opens this session on a connected channel.
+	 *
+	 * @param channel
+	 *            the connected channel.
+	 * @param loop
+	 *            the loop serving the channel.
+	 * @throws IOException
+	 *             if the channel cannot be configured.
+	 */
+	private synchronized void opened(SocketChannel channel, NioReactor.EventLoop loop) throws IOException {
+		channel.socket().setTcpNoDelay(true);
+		this.channel = channel;
+		synchronized (socketLock) {
+			this.socket = channel.socket();
+		}
+		// Reset the per connection state and register the channel.
+		writeQueue.clear();
+		pendingFrames.set(0);
+		flushScheduled.set(false);
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		frameLength = -1;
+		readSuspensions.set(0);
+		encoder = null;
+		sequencing = false;
+		decoder = (codec != null) ? codec.newDecoder() : null;
+		this.loop = loop;
+		loop.register(channel, SelectionKey.OP_READ, handler);
+		logger.info("Session opened: " + getRemoteHostName() + "@" + getRemotePort());
+
+		// Stop reconnecting.
+		stopConnector();
+
+		// Start testing the connection.
+		tester = reactor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					send(new PingRequest(clientId));
+				} catch (SocketSessionException e) {
+				}
+			}
+		}, DEFAULT_PING_DELAY);
+
+		// Store the last connection date.
+		lastConnection = System.currentTimeMillis();
+		metrics.connected();
+
+		// The session is now considered to be opened.
+		closed = false;
+
+		// Notify the controller.
+		controller.sessionOpened(this);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#close()
+	 */
+	public synchronized void close() {
+		close(true);
+	}
+
+	/**
+	 * Closes this session. This method does nothing if the session is already closed.
+	 *
+	 * @param forced
+	 *            indicates whether the session has been closed by explicitly calling <code>close()</code> from the outside.
+	 */
+	private synchronized void close(boolean forced) {
+		if (closed) {
+			return;
+		}
+		logger.info("Closing session " + getRemoteHostName() + "@" + getRemotePort() + "...");
+
+		// Stop testing the connection.
+		if (tester != null) {
+			tester.cancel(false);
+			tester = null;
+		}
+
+		// Closing the channel cancels its key, so the loop will ignore it from now on.
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		writeQueue.clear();
+		pendingFrames.set(0);
+
+		// The session is now considered to be closed.
+		closed = true;
+
+		// Notify the controller.
+		controller.sessionClosed(this, forced);
+
+		// If the session hasn't been explicitly closed, start reconnecting.
+		if (!forced) {
+			startConnector();
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#send(org.andresoviedo.util.messaging.api1.common.data.Command)
+	 */
+	public void send(Command command) throws SocketSessionException {
+		if (!isOpened()) {
+			throw new SocketSessionException("This session is closed.");
+		}
+
+		// Update message's sent date BEFORE sending it.
+		if (command instanceof Message) {
+			((Message) command).setTimeSent(new Date());
+		}
+
+		NioReactor.EventLoop target;
+		synchronized (this) {
+			if (closed) {
+				throw new SocketSessionException("This session is closed.");
+			}
+			// Encoders keep state between commands, so commands are encoded in the same order they are queued.
+			int agreed = stampCodecVersion(command);
+			stampSequence(command);
+			try {
+				ByteBuffer frame = encode(command);
+				writeQueue.add(frame);
+				pendingFrames.incrementAndGet();
+				metrics.sent(command, frame.capacity());
+			} catch (IOException e) {
+				throw new SocketSessionException(e);
+			}
+			if (agreed > 0) {
+				// The peer switches to the agreed codec as soon as it reads this response.
+				encoder = codec.newEncoder();
+			}
+			target = loop;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			target.execute(flushTask);
+		}
+
+		// Notify the controller.
+		controller.commandSent(this, command);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#send(java.util.List)
+	 */
+	public void send(List<? extends Command> commands) throws SocketSessionException {
+		if (!isOpened()) {
+			throw new SocketSessionException("This session is closed.");
+		}
+
+		Date now = new Date();
+		NioReactor.EventLoop target;
+		synchronized (this) {
+			if (closed) {
+				throw new SocketSessionException("This session is closed.");
+			}
+			// Queued at once, so the loop writes them together with a single gathering write.
+			for (Command command : commands) {
+				if (command instanceof Message) {
+					((Message) command).setTimeSent(now);
+				}
+				int agreed = stampCodecVersion(command);
+				stampSequence(command);
+				try {
+					ByteBuffer frame = encode(command);
+					writeQueue.add(frame);
+					pendingFrames.incrementAndGet();
+					metrics.sent(command, frame.capacity());
+				} catch (IOException e) {
+					throw new SocketSessionException(e);
+				}
+				if (agreed > 0) {
+					encoder = codec.newEncoder();
+				}
+			}
+			target = loop;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			target.execute(flushTask);
+		}
+
+		// Notify the controller.
+		for (Command command : commands) {
+			controller.commandSent(this, command);
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#send(org.andresoviedo.util.messaging.api1.common.net.SharedFrame)
+	 */
+	public void send(SharedFrame frame) throws SocketSessionException {
+		if (!isOpened()) {
+			throw new SocketSessionException("This session is closed.");
+		}
+
+		NioReactor.EventLoop target;
+		synchronized (this) {
+			if (closed) {
+				throw new SocketSessionException("This session is closed.");
+			}
+			ByteBuffer buffer;
+			if ((encoder != null) && (frame.getVersion() == codec.getVersion())) {
+				// Shared frames are queued as read-only buffers, which tells them apart when the oldest one is dropped.
+				buffer = frame.buffer();
+			} else {
+				try {
+					buffer = encode(frame.getCommand());
+				} catch (IOException e) {
+					throw new SocketSessionException(e);
+				}
+			}
+			writeQueue.add(buffer);
+			pendingFrames.incrementAndGet();
+			metrics.sent(frame.getCommand(), buffer.capacity());
+			target = loop;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			target.execute(flushTask);
+		}
+
+		// Notify the controller.
+		controller.commandSent(this, frame.getCommand());
+	}
+
+	/**
+	 * Stops reading from the channel once the command being received has been processed, without blocking the loop: the loop stops
+	 * selecting the channel for reading and keeps the frames already read until <code>resumeReading()</code> is called.
+	 * 
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#suspendReading()
+	 */
+	public void suspendReading() {
+		readSuspensions.incrementAndGet();
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#resumeReading()
+	 */
+	public void resumeReading() {
+		int current;
+		do {
+			current = readSuspensions.get();
+			if (current == 0) {
+				return;
+			}
+		} while (!readSuspensions.compareAndSet(current, current - 1));
+		if (current == 1) {
+			NioReactor.EventLoop target;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				target = loop;
+			}
+			target.execute(resumeTask);
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSession#getPendingCommands()
+	 */
+	public int getPendingCommands() {
+		return Math.max(0, pendingFrames.get());
+	}
+
+	/**
+	 * Discards the oldest shared frame queued to be written, unless it's already being written. Frames are only removed from the queue by
+	 * the loop, so the frame is discarded asynchronously and this method returns whether a frame may be discarded.
+	 *
+	 * @return <code>true</code> if there may be a shared frame to discard.
+	 */
+	public boolean dropOldestFrame() {
+		NioReactor.EventLoop target;
+		synchronized (this) {
+			if (closed || (pendingFrames.get() == 0)) {
+				return false;
+			}
+			target = loop;
+		}
+		target.execute(new Runnable() {
+			public void run() {
+				boolean head = true;
+				for (Iterator<ByteBuffer> it = writeQueue.iterator(); it.hasNext(); head = false) {
+					ByteBuffer frame = it.next();
+					// The head may have been partially written already.
+					if (frame.isReadOnly() && !(head && (frame.position() > 0))) {
+						it.remove();
+						pendingFrames.decrementAndGet();
+						return;
+					}
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Encodes a command as a length-prefixed frame, with the agreed codec if any. Must be called holding the session lock.
+	 *
+	 * @param command
+	 *            the command to encode.
+	 * @return the frame, ready to be written.
+	 * @throws IOException
+	 *             if the command cannot be encoded.
+	 */
+	private ByteBuffer encode(Command command) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		// Reserve room for the frame length.
+		bytes.write(new byte[4]);
+		if (encoder != null) {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(codec.getVersion());
+			encoder.encode(command, out);
+			out.flush();
+		} else {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(command);
+			out.close();
+		}
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.capacity() - 4);
+		return frame;
+	}
+
+	/**
+	 * Decodes a command from a frame payload.
+	 *
+	 * @param payload
+	 *            the frame payload (without the length prefix).
+	 * @return the command.
+	 * @throws IOException
+	 *             if the payload is not a valid command.
+	 * @throws ClassNotFoundException
+	 *             if the command class cannot be found.
+	 */
+	private Command decode(byte[] payload) throws IOException, ClassNotFoundException {
+		if ((payload.length > 0) && ((payload[0] & 0xFF) != STREAM_MAGIC_BYTE)) {
+			return decode(payload[0] & 0xFF, decoder, new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1)));
+		}
+		ObjectInputStream in = new CommandInputStream(new ByteArrayInputStream(payload));
+		try {
+			return (Command) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads available bytes and dispatches every complete frame, until reading is suspended. Invoked from the loop.
+	 */
+	private void read() {
+		try {
+			// The channel may have been selected before reading was suspended.
+			if ((readSuspensions.get() == 0) && (channel.read(readBuffer) < 0)) {
+				logger.fine("End of stream reached.");
+				close(false);
+				return;
+			}
+			readBuffer.flip();
+			while (readSuspensions.get() == 0) {
+				if (frameLength < 0) {
+					if (readBuffer.remaining() < 4) {
+						break;
+					}
+					frameLength = readBuffer.getInt();
+					if ((frameLength < 0) || (frameLength > MAX_FRAME_LENGTH)) {
+						logger.warning("Invalid frame length: " + frameLength);
+						close(false);
+						return;
+					}
+				}
+				if (readBuffer.remaining() < frameLength) {
+					break;
+				}
+				byte[] payload = new byte[frameLength];
+				readBuffer.get(payload);
+				frameLength = -1;
+
+				Command command = decode(payload);
+				if (acceptCodecVersion(command) > 0) {
+					synchronized (this) {
+						encoder = codec.newEncoder();
+					}
+				}
+				if (command instanceof Message) {
+					((Message) command).setTimeReceived(new Date());
+				}
+				metrics.received(command, payload.length + 4);
+				// Notify the controller.
+				controller.commandReceived(this, command);
+				if (!isOpened()) {
+					// The controller closed the session.
+					return;
+				}
+			}
+			readBuffer.compact();
+			if (frameLength > readBuffer.capacity()) {
+				// Grow the buffer to hold the whole frame.
+				ByteBuffer temp = ByteBuffer.allocate(frameLength);
+				readBuffer.flip();
+				temp.put(readBuffer);
+				readBuffer = temp;
+			} else if ((frameLength < 0) && (readBuffer.capacity() > READ_BUFFER_SIZE) && (readBuffer.position() <= READ_BUFFER_SIZE)) {
+				// Shrink the buffer after a big frame.
+				ByteBuffer temp = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				readBuffer.flip();
+				temp.put(readBuffer);
+				readBuffer = temp;
+			}
+			if (readSuspensions.get() > 0) {
+				// Resuming runs in the loop too, so it always restores the interest after this.
+				SelectionKey key = loop.keyFor(channel);
+				if ((key != null) && key.isValid()) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			logger.severe("ClassNotFoundException caught: " + e.getMessage());
+			close(false);
+		} catch (IOException e) {
+			logger.warning("IOException caught: " + e.getMessage());
+			close(false);
+		}
+	}
+
+	/**
+	 * Writes as many queued frames as possible, and asks the loop for write readiness if the socket buffer gets full. Invoked from the
+	 * loop.
+	 */
+	private void flush() {
+		SelectionKey key = loop.keyFor(channel);
+		if ((key == null) || !key.isValid()) {
+			flushScheduled.set(false);
+			return;
+		}
+		try {
+			if (writeQueued()) {
+				flushScheduled.set(false);
+				key.interestOps(readInterest());
+				// A producer may have queued a frame after the queue was drained but before the flag was cleared.
+				if (!writeQueue.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+					loop.execute(flushTask);
+				}
+			} else {
+				key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			logger.warning("IOException caught: " + e.getMessage());
+			close(false);
+		}
+	}
+
+	/**
+	 * Returns the read interest of the channel, none while reading is suspended.
+	 */
+	private int readInterest() {
+		return (readSuspensions.get() > 0) ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Writes queued frames with gathering writes.
+	 *
+	 * @return <code>true</code> if the queue has been drained, <code>false</code> if the socket buffer is full.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private boolean writeQueued() throws IOException {
+		try {
+			while (true) {
+				int count = 0;
+				for (ByteBuffer frame : writeQueue) {
+					gather[count++] = frame;
+					if (count == gather.length) {
+						break;
+					}
+				}
+				if (count == 0) {
+					return true;
+				}
+				channel.write(gather, 0, count);
+				for (int i = 0; i < count; i++) {
+					if (gather[i].hasRemaining()) {
+						return false;
+					}
+					writeQueue.poll();
+					pendingFrames.decrementAndGet();
+				}
+			}
+		} finally {
+			for (int i = 0; i < gather.length; i++) {
+				gather[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts the reconnecting task.
+	 */
+	private void startConnector() {
+		if ((connector == null) && (addresses != null) && (getReconnectionDelay() > 0)) {
+			logger.info("Starting connector...");
+			connector = reactor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					// Only starts connecting, the scheduler thread is shared by all the sessions of the reactor.
+					synchronized (NioSocketSession.this) {
+						if (!closed) {
+							return;
+						}
+						try {
+							connect();
+						} catch (SocketSessionException e) {
+							logger.warning("Couldn't open the session: " + e.getMessage());
+						}
+					}
+				}
+			}, getReconnectionDelay());
+		}
+	}
+
+	/**
+	 * Stops the reconnecting task.
+	 */
+	private void stopConnector() {
+		if (connector != null) {
+			logger.info("Stopping connector...");
+			connector.cancel(false);
+			connector = null;
+		}
+	}
+
+	/**
+	 * An attempt to connect to the addresses of the session, tried in turn. Channels connect in non-blocking mode from the loop, and each
+	 * address is given up after <code>DEFAULT_CONNECTION_TIMEOUT</code> milliseconds by a task of the reactor's scheduler, so neither the
+	 * loop nor the scheduler block while connecting.
+	 */
+	private class Connect implements NioReactor.Handler, Runnable {
+
+		/**
+		 * The loop the channel is connected from, which serves the session once it's opened.
+		 */
+		private final NioReactor.EventLoop loop;
+
+		/**
+		 * Completed once the session is opened, or exceptionally once all the addresses failed.
+		 */
+		private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+		/**
+		 * The index of the address being tried. Only accessed from the loop.
+		 */
+		private int index = -1;
+
+		/**
+		 * The channel connecting to the address being tried. Only accessed from the loop.
+		 */
+		private SocketChannel pending;
+
+		/**
+		 * The task giving up the address being tried. Only accessed from the loop.
+		 */
+		private ScheduledFuture<?> timeout;
+
+		Connect(NioReactor.EventLoop loop) {
+			this.loop = loop;
+		}
+
+		/**
+		 * Waits for the attempt to finish.
+		 *
+		 * @throws SocketSessionException
+		 *             if the session couldn't be opened.
+		 */
+		void await() throws SocketSessionException {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				throw (SocketSessionException) e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SocketSessionException("Interrupted while connecting.", e);
+			}
+		}
+
+		/*
+		 * Tries the next address, from the loop.
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			abandon();
+			while (++index < addresses.length) {
+				logger.info("Opening session [" + index + "]: " + addresses[index].getHostName() + "@" + addresses[index].getPort());
+				try {
+					pending = SocketChannel.open();
+					pending.configureBlocking(false);
+					if (pending.connect(addresses[index])) {
+						connected();
+					} else {
+						loop.register(pending, SelectionKey.OP_CONNECT, this);
+						final int attempt = index;
+						timeout = reactor.schedule(new Runnable() {
+							public void run() {
+								loop.execute(new Runnable() {
+									public void run() {
+										if ((index == attempt) && (pending != null)) {
+											logger.warning("Connect exception: connect timed out");
+											Connect.this.run();
+										}
+									}
+								});
+							}
+						}, DEFAULT_CONNECTION_TIMEOUT);
+					}
+					return;
+				} catch (IOException e) {
+					logger.warning("Connect exception: " + e.getMessage());
+					abandon();
+				}
+			}
+			// We've tried all possible addresses.
+			failed(new IOException("unable to connect to any of the supplied addresses."));
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#ready(java.nio.channels.SelectionKey)
+		 */
+		public void ready(SelectionKey key) {
+			if ((pending == null) || !key.isConnectable()) {
+				return;
+			}
+			try {
+				if (pending.finishConnect()) {
+					connected();
+				}
+			} catch (IOException e) {
+				logger.warning("Connect exception: " + e.getMessage());
+				run();
+			}
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#stopped()
+		 */
+		public void stopped() {
+			if (result.isDone()) {
+				// The key is being handed over to the session.
+				return;
+			}
+			abandon();
+			failed(new IOException("The reactor has been stopped."));
+		}
+
+		/**
+		 * Opens the session on the connected channel, whose key is handed over to the session.
+		 *
+		 * @throws IOException
+		 *             if the channel cannot be configured.
+		 */
+		private void connected() throws IOException {
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+			SocketChannel channel = pending;
+			SelectionKey key = loop.keyFor(channel);
+			if (key != null) {
+				// Until the session registers it for reading.
+				key.interestOps(0);
+			}
+			synchronized (NioSocketSession.this) {
+				opened(channel, loop);
+				connecting = null;
+			}
+			pending = null;
+			result.complete(null);
+		}
+
+		/**
+		 * Closes the channel connecting to the address being tried, if any.
+		 */
+		private void abandon() {
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+			if (pending != null) {
+				try {
+					// Cancels its key too.
+					pending.close();
+				} catch (IOException e) {
+				}
+				pending = null;
+			}
+		}
+
+		/**
+		 * Finishes the attempt when no address could be connected, and keeps reconnecting.
+		 *
+		 * @param e
+		 *            the cause.
+		 */
+		private void failed(IOException e) {
+			logger.warning("Couldn't open the session: " + e.getMessage());
+			synchronized (NioSocketSession.this) {
+				if (connecting == this) {
+					connecting = null;
+				}
+				startConnector();
+			}
+			result.completeExceptionally(new SocketSessionException(e));
+		}
+
+	}
+
+	/**
+	 * The handler attached to the channel.
+	 */
+	private class ChannelHandler implements NioReactor.Handler {
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#ready(java.nio.channels.SelectionKey)
+		 */
+		public void ready(SelectionKey key) {
+			if (key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#stopped()
+		 */
+		public void stopped() {
+			close(true);
+		}
+
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.andresoviedo.util.messaging.api1.common.data.SequenceAck;
+
+/**
+ * The state of a stream of messages received from the peer: the messages already received, to drop the ones retransmitted after a
+ * reconnection, and the sequence number up to which all of them have been processed, which is acknowledged cumulatively.
+ * <p>
+ * Messages of a stream arrive in order, but services may process them in parallel, so they're completed out of order. A message that
+ * couldn't be processed isn't acknowledged, nor are the ones after it, so the peer retransmits it when the session resumes.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public class ReceiveWindow {
+
+	/**
+	 * The id of the stream, or 0 before the first login.
+	 */
+	private long streamId;
+
+	/**
+	 * The sequence number up to which all messages have been processed.
+	 */
+	private long contiguous;
+
+	/**
+	 * The highest sequence number received.
+	 */
+	private long highest;
+
+	/**
+	 * The sequence number last acknowledged to the peer.
+	 */
+	private long acknowledged;
+
+	/**
+	 * The number of messages processed since the last acknowledgement.
+	 */
+	private int pending;
+
+	/**
+	 * The messages processed above <code>contiguous</code>.
+	 */
+	private final TreeSet<Long> completed = new TreeSet<Long>();
+
+	/**
+	 * The messages received above <code>contiguous</code> which couldn't be processed, and so are accepted again.
+	 */
+	private final Set<Long> failed = new HashSet<Long>();
+
+	/**
+	 * Returns the id of the stream.
+	 * 
+	 * @return the id of the stream, or 0 before the first login.
+	 */
+	public synchronized long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns the sequence number up to which all messages have been processed.
+	 * 
+	 * @return the sequence number up to which all messages have been processed.
+	 */
+	public synchronized long getContiguousSequence() {
+		return contiguous;
+	}
+
+	/**
+	 * Takes note of a received message.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the message.
+	 * @return <code>false</code> if the message had already been received, so it's a retransmission to drop.
+	 */
+	public synchronized boolean accept(long sequence) {
+		if (sequence <= contiguous) {
+			return false;
+		}
+		if (sequence <= highest) {
+			return failed.remove(Long.valueOf(sequence));
+		}
+		highest = sequence;
+		return true;
+	}
+
+	/**
+	 * Takes note of a processed message.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the message.
+	 * @return the number of messages processed since the last acknowledgement.
+	 */
+	public synchronized int complete(long sequence) {
+		if (sequence == contiguous + 1) {
+			contiguous++;
+			while (!completed.isEmpty() && (completed.first().longValue() == contiguous + 1)) {
+				completed.pollFirst();
+				contiguous++;
+			}
+		} else if (sequence > contiguous) {
+			completed.add(Long.valueOf(sequence));
+		}
+		return ++pending;
+	}
+
+	/**
+	 * Takes note of a message which couldn't be processed. It's accepted again when retransmitted.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the message.
+	 */
+	public synchronized void fail(long sequence) {
+		if (sequence > contiguous) {
+			failed.add(Long.valueOf(sequence));
+		}
+	}
+
+	/**
+	 * Returns the acknowledgement of the messages processed since the last one.
+	 * 
+	 * @param clientId
+	 *            the client id of the acknowledgement.
+	 * @return the acknowledgement, or <code>null</code> if no more messages have been processed since the last one.
+	 */
+	public synchronized SequenceAck acknowledge(String clientId) {
+		pending = 0;
+		if (contiguous <= acknowledged) {
+			return null;
+		}
+		acknowledged = contiguous;
+		return new SequenceAck(clientId, streamId, contiguous);
+	}
+
+	/**
+	 * Starts receiving a stream from scratch.
+	 * 
+	 * @param streamId
+	 *            the id of the stream.
+	 * @param sequence
+	 *            the sequence number preceding the first message of the stream.
+	 */
+	public synchronized void reset(long streamId, long sequence) {
+		this.streamId = streamId;
+		this.contiguous = sequence;
+		this.highest = sequence;
+		this.acknowledged = sequence;
+		this.pending = 0;
+		completed.clear();
+		failed.clear();
+	}
+
+}
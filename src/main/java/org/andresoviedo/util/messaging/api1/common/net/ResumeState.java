@@ -0,0 +1,143 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.List;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+
+/**
+ * The state of the two streams of messages between a client and the server, which outlives the connections so that a reconnecting client
+ * resumes them: each peer retransmits only the messages the other one missed, instead of everything persisted.
+ * <p>
+ * The client keeps it in its session and the server keeps one per client id. The handshake is carried by the login commands: the client
+ * offers the position of both streams in its request, and the server answers which ones it resumed in its response. A stream the peer
+ * cannot resume, e.g. because a peer restarted or the messages it missed are no longer in the window, starts again from scratch, and
+ * persisted messages are sent again as when resumption isn't supported.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public class ResumeState {
+
+	/**
+	 * The stream of messages sent to the peer.
+	 */
+	private final RetransmitWindow outbound;
+
+	/**
+	 * The stream of messages received from the peer.
+	 */
+	private final ReceiveWindow inbound = new ReceiveWindow();
+
+	/**
+	 * Creates a new state, holding up to <code>MessengerProperties.getRetransmitWindow()</code> sent messages.
+	 */
+	public ResumeState() {
+		this(MessengerProperties.getRetransmitWindow());
+	}
+
+	/**
+	 * Creates a new state.
+	 * 
+	 * @param capacity
+	 *            the maximum number of sent messages held to be retransmitted.
+	 */
+	public ResumeState(int capacity) {
+		this.outbound = new RetransmitWindow(capacity);
+	}
+
+	/**
+	 * Returns the stream of messages sent to the peer.
+	 * 
+	 * @return the stream of messages sent to the peer.
+	 */
+	public RetransmitWindow getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Returns the stream of messages received from the peer.
+	 * 
+	 * @return the stream of messages received from the peer.
+	 */
+	public ReceiveWindow getInbound() {
+		return inbound;
+	}
+
+	/**
+	 * Offers the client streams to be resumed in a login request.
+	 * 
+	 * @param request
+	 *            the login request about to be sent.
+	 */
+	public void offer(LoginRequest request) {
+		request.setStreamId(outbound.getStreamId());
+		request.setNextSequence(outbound.getNextSequence());
+		request.setFirstSequence(outbound.getFirstSequence());
+		request.setPeerStreamId(inbound.getStreamId());
+		request.setAckedSequence(inbound.getContiguousSequence());
+	}
+
+	/**
+	 * Answers the streams offered by a client: the client stream is resumed if no message processed by the server is missing from the
+	 * client window, and the server stream if no message missed by the client is missing from the server window.
+	 * 
+	 * @param request
+	 *            the login request of the client.
+	 * @param response
+	 *            the login response about to be sent.
+	 * @param acknowledged
+	 *            the list the messages acknowledged by the client are added to.
+	 * @return the messages to retransmit to the client, or <code>null</code> if the server stream starts again.
+	 */
+	public List<Message> accept(LoginRequest request, LoginResponse response, List<Message> acknowledged) {
+		synchronized (inbound) {
+			long contiguous = inbound.getContiguousSequence();
+			boolean resumed = (inbound.getStreamId() == request.getStreamId()) && (contiguous + 1 >= request.getFirstSequence())
+					&& (contiguous < request.getNextSequence());
+			if (!resumed) {
+				inbound.reset(request.getStreamId(), request.getNextSequence() - 1);
+			}
+			response.setResumed(resumed);
+			response.setAckedSequence(inbound.getContiguousSequence());
+		}
+		List<Message> missed = null;
+		if (request.getPeerStreamId() == outbound.getStreamId()) {
+			missed = outbound.resume(request.getAckedSequence(), acknowledged);
+		}
+		if (missed == null) {
+			// The client starts receiving a new stream.
+			outbound.reset();
+		}
+		response.setStreamId(outbound.getStreamId());
+		response.setNextSequence(outbound.getNextSequence());
+		return missed;
+	}
+
+	/**
+	 * Resumes the client streams as answered by the server.
+	 * 
+	 * @param response
+	 *            the login response of the server.
+	 * @param acknowledged
+	 *            the list the messages acknowledged by the server are added to.
+	 * @return the messages to retransmit to the server, or <code>null</code> if the client stream starts again.
+	 */
+	public List<Message> resume(LoginResponse response, List<Message> acknowledged) {
+		if (inbound.getStreamId() != response.getStreamId()) {
+			inbound.reset(response.getStreamId(), response.getNextSequence() - 1);
+		}
+		List<Message> missed = null;
+		if (response.isResumed()) {
+			missed = outbound.resume(response.getAckedSequence(), acknowledged);
+		}
+		if (missed == null) {
+			// The server has already started receiving the stream from the next sequence number.
+			outbound.clear();
+		}
+		return missed;
+	}
+
+}
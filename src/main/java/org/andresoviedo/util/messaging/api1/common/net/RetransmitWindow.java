@@ -0,0 +1,183 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+
+/**
+ * The messages sent through a stream and not acknowledged by the peer yet, kept to be retransmitted if the session resumes after a
+ * reconnection. Messages are numbered as they're sent, and held in a ring buffer indexed by their sequence number until a cumulative
+ * acknowledgement removes them. When the window is full the oldest message is dropped, so a session can only be resumed if the peer
+ * missed fewer messages than the capacity of the window.
+ * 
+ * @author andresoviedo
+ */
+public class RetransmitWindow {
+
+	/**
+	 * The messages held, indexed by their sequence number modulo the capacity.
+	 */
+	private final Message[] messages;
+
+	/**
+	 * The id of the stream, a random number other than 0.
+	 */
+	private long streamId;
+
+	/**
+	 * The lowest sequence number held. The window is empty if it's equal to <code>next</code>.
+	 */
+	private long first = 1;
+
+	/**
+	 * The sequence number of the next message.
+	 */
+	private long next = 1;
+
+	/**
+	 * Creates a new window with a new stream id.
+	 * 
+	 * @param capacity
+	 *            the maximum number of messages held.
+	 */
+	public RetransmitWindow(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.messages = new Message[capacity];
+		this.streamId = newStreamId();
+	}
+
+	/**
+	 * Returns the id of the stream.
+	 * 
+	 * @return the id of the stream.
+	 */
+	public synchronized long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns the lowest sequence number held, which is the next one if the window is empty.
+	 * 
+	 * @return the lowest sequence number held.
+	 */
+	public synchronized long getFirstSequence() {
+		return first;
+	}
+
+	/**
+	 * Returns the sequence number of the next message.
+	 * 
+	 * @return the sequence number of the next message.
+	 */
+	public synchronized long getNextSequence() {
+		return next;
+	}
+
+	/**
+	 * Returns the number of messages held.
+	 * 
+	 * @return the number of messages held.
+	 */
+	public synchronized int size() {
+		return (int) (next - first);
+	}
+
+	/**
+	 * Numbers a message about to be sent and holds it until it's acknowledged, dropping the oldest message if the window is full. A message
+	 * held by the window is being retransmitted, so it keeps its number.
+	 * 
+	 * @param message
+	 *            the message about to be sent.
+	 */
+	public synchronized void stamp(Message message) {
+		long sequence = message.getSequence();
+		if ((sequence >= first) && (sequence < next) && (messages[index(sequence)] == message)) {
+			return;
+		}
+		if (next - first == messages.length) {
+			messages[index(first)] = null;
+			first++;
+		}
+		message.setSequence(next);
+		messages[index(next)] = message;
+		next++;
+	}
+
+	/**
+	 * Removes the messages acknowledged by the peer.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the last message acknowledged.
+	 * @return the messages removed, in sequence order.
+	 */
+	public synchronized List<Message> acknowledge(long sequence) {
+		List<Message> acknowledged = new ArrayList<Message>();
+		while ((first <= sequence) && (first < next)) {
+			acknowledged.add(messages[index(first)]);
+			messages[index(first)] = null;
+			first++;
+		}
+		return acknowledged;
+	}
+
+	/**
+	 * Resumes the stream after a reconnection: removes the messages acknowledged by the peer and returns the ones it missed.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the last message processed by the peer.
+	 * @param acknowledged
+	 *            the list the removed messages are added to.
+	 * @return the messages to retransmit, in sequence order, or <code>null</code> if the window no longer holds all of them, in which case
+	 *         it's left untouched.
+	 */
+	public synchronized List<Message> resume(long sequence, List<Message> acknowledged) {
+		if ((sequence + 1 < first) || (sequence >= next)) {
+			return null;
+		}
+		acknowledged.addAll(acknowledge(sequence));
+		List<Message> missed = new ArrayList<Message>((int) (next - first));
+		for (long i = first; i < next; i++) {
+			missed.add(messages[index(i)]);
+		}
+		return missed;
+	}
+
+	/**
+	 * Drops all the messages held, keeping the stream id and the numbering.
+	 */
+	public synchronized void clear() {
+		for (; first < next; first++) {
+			messages[index(first)] = null;
+		}
+	}
+
+	/**
+	 * Drops all the messages held and starts a new stream, so that the peer starts receiving it from scratch.
+	 */
+	public synchronized void reset() {
+		clear();
+		streamId = newStreamId();
+	}
+
+	/**
+	 * Returns the slot of a sequence number.
+	 */
+	private int index(long sequence) {
+		return (int) (sequence % messages.length);
+	}
+
+	/**
+	 * Returns a random stream id other than 0.
+	 */
+	private static long newStreamId() {
+		long id;
+		while ((id = ThreadLocalRandom.current().nextLong()) == 0) {
+		}
+		return id;
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
+
+/**
+ * A command encoded once to be sent through several sessions, e.g. a message published to the subscribers of a topic. The frame is encoded
+ * with a stateless encoder of the codec, so any session agreeing on the same codec version writes it as is. Sessions using Java
+ * serialization or another codec send the command instead.
+ * <p>
+ * Frames are immutable, so they're shared by all the sessions they're sent through.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public final class SharedFrame {
+
+	/**
+	 * The command.
+	 */
+	private final Command command;
+
+	/**
+	 * The version of the codec the command was encoded with.
+	 */
+	private final int version;
+
+	/**
+	 * The length-prefixed frame: the length, the codec version and the encoded command.
+	 */
+	private final byte[] bytes;
+
+	/**
+	 * Creates a new frame.
+	 */
+	private SharedFrame(Command command, int version, byte[] bytes) {
+		this.command = command;
+		this.version = version;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Encodes a command with a stateless encoder of the specified codec. Messages are encoded without a sequence number, since frames
+	 * aren't part of the stream of any session; a numbered message is copied rather than modified.
+	 * 
+	 * @param codec
+	 *            the codec.
+	 * @param command
+	 *            the command to encode.
+	 * @return the frame.
+	 * @throws IOException
+	 *             if the command cannot be encoded.
+	 */
+	public static SharedFrame encode(MessageCodec codec, Command command) throws IOException {
+		if ((command instanceof Message) && (((Message) command).getSequence() != 0)) {
+			Message copy = ((Message) command).copy();
+			copy.setSequence(0);
+			command = copy;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		// Reserve room for the frame length.
+		bytes.write(new byte[4]);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(codec.getVersion());
+		codec.newSharedEncoder().encode(command, out);
+		out.flush();
+		byte[] frame = bytes.toByteArray();
+		ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+		return new SharedFrame(command, codec.getVersion(), frame);
+	}
+
+	/**
+	 * Returns the command.
+	 * 
+	 * @return the command.
+	 */
+	public Command getCommand() {
+		return command;
+	}
+
+	/**
+	 * Returns the version of the codec the command was encoded with.
+	 * 
+	 * @return the codec version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the size of the frame.
+	 * 
+	 * @return the size of the frame, in bytes.
+	 */
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Returns a read-only buffer over the whole frame, length prefix included, with a position of its own.
+	 */
+	ByteBuffer buffer() {
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the frame bytes. They must not be modified.
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+}
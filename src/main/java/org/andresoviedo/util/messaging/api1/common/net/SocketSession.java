@@ -1,28 +1,42 @@
 package org.andresoviedo.util.messaging.api1.common.net;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
 import java.io.OptionalDataException;
+import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-import org.andresoviedo.util.messaging.api1.Messenger;
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
 import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageAck;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
 import org.andresoviedo.util.messaging.api1.common.data.PingRequest;
+import org.andresoviedo.util.messaging.api1.common.data.SequenceAck;
+import org.andresoviedo.util.messaging.api1.common.metrics.SessionMetrics;
 
 /**
  * A socket session used to connect to a remote server and exchange message objects.
@@ -39,17 +53,17 @@ public class SocketSession {
 	/**
 	 * The default connection timeout.
 	 */
-	private static final int DEFAULT_CONNECTION_TIMEOUT = 20000;
+	static final int DEFAULT_CONNECTION_TIMEOUT = 20000;
 
 	/**
 	 * The amount of time to wait before pings are sent to check the connection.
 	 */
-	private static final int DEFAULT_PING_DELAY = 10000;
+	static final int DEFAULT_PING_DELAY = 10000;
 
 	/**
 	 * The default reconnection delay (30 seconds).
 	 */
-	private static final int DEFAULT_RECONNECTION_DELAY = 30000;
+	static final int DEFAULT_RECONNECTION_DELAY = 30000;
 
 	/**
 	 * The time to wait until the object input serialization stream header is read.
@@ -61,20 +75,30 @@ public class SocketSession {
 	 */
 	private static final int RESET_FREQUENCY = 1;
 
+	/**
+	 * The maximum number of messages acknowledged by a single coalesced acknowledgement.
+	 */
+	private static final int MAX_COALESCED_ACKS = 1024;
+
+	/**
+	 * The timer sending the delayed cumulative acknowledgements of all sessions.
+	 */
+	private static final TimingWheel ACK_TIMER = new TimingWheel("TMS@Sequence acks", 10, 256);
+
 	/**
 	 * The socket session controller.
 	 */
-	private SocketSessionController controller;
+	protected SocketSessionController controller;
 
 	/**
 	 * The client socket.
 	 */
-	private Socket socket;
+	protected Socket socket;
 
 	/**
 	 * Lock to access the socket.
 	 */
-	private Object socketLock = new Object();
+	protected Object socketLock = new Object();
 
 	/**
 	 * The input stream to read from.
@@ -86,6 +110,16 @@ public class SocketSession {
 	 */
 	private ObjectOutputStream oos;
 
+	/**
+	 * The buffered stream below the output stream.
+	 */
+	private BatchOutputStream bos;
+
+	/**
+	 * The stream below the object input stream, counting the bytes read.
+	 */
+	private CountingInputStream in;
+
 	/**
 	 * The reader thread.
 	 */
@@ -114,7 +148,7 @@ public class SocketSession {
 	/**
 	 * The list of socket addresses to connect to. Will be <code>null</code> if the socket constructor is used.
 	 */
-	private InetSocketAddress[] addresses;
+	protected InetSocketAddress[] addresses;
 
 	/**
 	 * The reconnection delay.
@@ -124,7 +158,7 @@ public class SocketSession {
 	/**
 	 * A flag indicating whether the session is closed or not.
 	 */
-	private boolean closed = true;
+	protected boolean closed = true;
 
 	/**
 	 * Counter used to reset the object output stream every <code>RESET_FREQUENCY</code> write calls.
@@ -134,12 +168,111 @@ public class SocketSession {
 	/**
 	 * The date when this session was successfully opened for the last time.
 	 */
-	private long lastConnection = 0;
+	protected long lastConnection = 0;
 
 	/**
 	 * client id. unique for all clients
 	 */
-	private String clientId;
+	protected String clientId;
+
+	/**
+	 * The codec offered at login, or <code>null</code> to always use Java serialization.
+	 */
+	protected MessageCodec codec;
+
+	/**
+	 * The codec version offered by the peer in its login request, or 0 if none.
+	 */
+	private volatile int peerCodecVersion;
+
+	/**
+	 * The encoder agreed at login, or <code>null</code> while commands are sent with Java serialization.
+	 */
+	private volatile MessageCodec.Encoder encoder;
+
+	/**
+	 * The maximum number of bytes written to the socket in a single batch.
+	 */
+	protected int maxBatchBytes = MessengerProperties.getMaxBatchBytes();
+
+	/**
+	 * The maximum time the writer waits for more commands before flushing a batch, in microseconds.
+	 */
+	protected long maxLinger = MessengerProperties.getMaxLinger();
+
+	/**
+	 * The metrics of the session.
+	 */
+	protected final SessionMetrics metrics = new SessionMetrics();
+
+	/**
+	 * The state of the streams of messages, which outlives the connections, or <code>null</code> if messages aren't numbered.
+	 */
+	private volatile ResumeState resumeState;
+
+	/**
+	 * Whether the peers agreed at login to number the messages of this connection.
+	 */
+	protected volatile boolean sequencing;
+
+	/**
+	 * The credits of the services of this connection.
+	 */
+	private final CreditWindow credits = new CreditWindow();
+
+	/**
+	 * The number of processed messages after which they're acknowledged.
+	 */
+	protected int ackInterval = MessengerProperties.getAckInterval();
+
+	/**
+	 * The maximum time processed messages wait to be acknowledged, in milliseconds.
+	 */
+	protected long ackDelay = MessengerProperties.getAckDelay();
+
+	/**
+	 * The number of callers that suspended reading and haven't resumed it yet. Guarded by <code>readLock</code>.
+	 */
+	private int readSuspensions;
+
+	/**
+	 * The lock the reader waits on while reading is suspended.
+	 */
+	private final Object readLock = new Object();
+
+	/**
+	 * Whether a delayed acknowledgement is scheduled.
+	 */
+	private final AtomicBoolean ackScheduled = new AtomicBoolean();
+
+	/**
+	 * Sends the delayed acknowledgement.
+	 */
+	private final Runnable ackTask = new Runnable() {
+		public void run() {
+			ackScheduled.set(false);
+			sendAck();
+		}
+	};
+
+	/**
+	 * Constructor for subclasses providing their own transport. Neither an address list nor a socket is set.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @param controller
+	 *            the controller whishing to receive session events.
+	 * @throws IllegalArgumentException
+	 *             if <code>controller</code> is <code>null</code>.
+	 */
+	protected SocketSession(String clientId, SocketSessionController controller) {
+		this.clientId = clientId;
+		if (controller == null) {
+			throw new IllegalArgumentException("Controller is null.");
+		}
+		this.controller = controller;
+		this.properties = new HashMap<Object, Object>();
+	}
 
 	/**
 	 * Creates a new socket session.
@@ -303,9 +436,10 @@ public class SocketSession {
 			}
 			// Note the socket is guaranteed to be non-null.
 			logger.fine("Opening output stream...");
-			// Get the output stream (using new
-			// BufferedOutputStream(socket.getOutputStream()) hangs up!).
-			oos = new ObjectOutputStream(socket.getOutputStream());
+			// Buffer the output so that the writer sends a batch of commands
+			// with a single write.
+			bos = new BatchOutputStream(socket.getOutputStream(), maxBatchBytes);
+			oos = new ObjectOutputStream(bos);
 			// Flush the stream so that the serialization header is sent, since
 			// the constructor writes the serialization stream header to the
 			// underlying stream. If we don't do that, getting the input stream
@@ -316,24 +450,8 @@ public class SocketSession {
 			// to read the serialization stream header.
 			this.socket.setSoTimeout(INITIAL_RECEIVE_TIMEOUT);
 			logger.fine("Opening input stream...");
-			ois = new ObjectInputStream(new BufferedInputStream(socket.getInputStream())) {
-				/*
-				 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass )
-				 */
-				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-					String name = desc.getName();
-					try {
-						return super.resolveClass(desc);
-					} catch (ClassNotFoundException e) {
-						Class<?> clazz = (Class<?>) Messenger.getRegisteredClass(name);
-						if (clazz != null) {
-							return clazz;
-						} else {
-							throw e;
-						}
-					}
-				}
-			};
+			in = new CountingInputStream(new BufferedInputStream(socket.getInputStream()));
+			ois = new CommandInputStream(in);
 			logger.fine("Input stream opened.");
 			// Clear the timeout so further read() calls will block forever.
 			this.socket.setSoTimeout(0);
@@ -363,12 +481,20 @@ public class SocketSession {
 		// Stop reconnecting.
 		stopConnector();
 
+		// Codecs and sequencing are negotiated again on every connection.
+		synchronized (readLock) {
+			readSuspensions = 0;
+		}
+		peerCodecVersion = 0;
+		encoder = null;
+		sequencing = false;
+
 		// Start the writer.
-		writer = new Writer(oos);
+		writer = new Writer(oos, bos);
 		writer.start();
 
 		// Start the reader.
-		reader = new Reader(ois);
+		reader = new Reader(ois, in);
 		reader.start();
 
 		// Start the connection tester thread.
@@ -377,6 +503,7 @@ public class SocketSession {
 
 		// Store the last connection date.
 		lastConnection = System.currentTimeMillis();
+		metrics.connected();
 
 		// The session is now considered to be opened.
 		closed = false;
@@ -467,6 +594,8 @@ public class SocketSession {
 		if (command instanceof Message) {
 			((Message) command).setTimeSent(new Date());
 		}
+		stampCodecVersion(command);
+		stampSequence(command);
 
 		// Add the command to the sender.
 		writer.add(command);
@@ -475,6 +604,402 @@ public class SocketSession {
 		controller.commandSent(this, command);
 	}
 
+	/**
+	 * Sends a list of commands. The commands are queued at once, so they're sent together and no other command is sent in between.
+	 * 
+	 * @param commands
+	 *            the commands to send.
+	 * @throws SocketSessionException
+	 *             if the session hasn't been opened yet, or the session is closed.
+	 */
+	public synchronized void send(List<? extends Command> commands) throws SocketSessionException {
+		if (closed) {
+			throw new SocketSessionException("This session is closed.");
+		}
+
+		Date now = new Date();
+		for (Command command : commands) {
+			// Update message's sent date BEFORE sending it.
+			if (command instanceof Message) {
+				((Message) command).setTimeSent(now);
+			}
+			stampCodecVersion(command);
+			stampSequence(command);
+		}
+
+		// Add the commands to the sender.
+		writer.addAll(commands);
+
+		// Notify the controller.
+		for (Command command : commands) {
+			controller.commandSent(this, command);
+		}
+	}
+
+	/**
+	 * Sends a frame shared with other sessions. It's written as is if this session agreed on the codec version it was encoded with,
+	 * otherwise its command is encoded as any other command.
+	 * 
+	 * @param frame
+	 *            the frame to send.
+	 * @throws SocketSessionException
+	 *             if the session hasn't been opened yet, or the session is closed.
+	 */
+	public synchronized void send(SharedFrame frame) throws SocketSessionException {
+		if (closed) {
+			throw new SocketSessionException("This session is closed.");
+		}
+
+		// Add the frame to the sender, the version is checked when it's written.
+		writer.add(new SharedCommand(frame));
+
+		// Notify the controller.
+		controller.commandSent(this, frame.getCommand());
+	}
+
+	/**
+	 * Returns the number of commands queued to be sent, which grows when the peer doesn't read as fast as commands are sent.
+	 * 
+	 * @return the number of commands queued to be sent.
+	 */
+	public int getPendingCommands() {
+		Writer current = writer;
+		return (current != null) ? current.messages.size() : 0;
+	}
+
+	/**
+	 * Discards the oldest shared frame queued to be sent, unless it's already being written.
+	 * 
+	 * @return <code>true</code> if a frame has been discarded.
+	 */
+	public boolean dropOldestFrame() {
+		Writer current = writer;
+		if (current == null) {
+			return false;
+		}
+		for (Iterator<Command> it = current.messages.iterator(); it.hasNext();) {
+			if (it.next() instanceof SharedCommand) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops reading commands once the one being received has been processed, i.e. because the service it's addressed to can't queue it.
+	 * Every call has to be followed by a call to <code>resumeReading()</code>. Must be called while processing a received command.
+	 */
+	public void suspendReading() {
+		synchronized (readLock) {
+			readSuspensions++;
+		}
+	}
+
+	/**
+	 * Resumes reading commands, if no one else suspended it. Can be called from any thread.
+	 */
+	public void resumeReading() {
+		synchronized (readLock) {
+			if ((readSuspensions > 0) && (--readSuspensions == 0)) {
+				readLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits while reading is suspended. Invoked by the reader after every command.
+	 * 
+	 * @throws InterruptedException
+	 *             if the session is closed meanwhile.
+	 */
+	private void awaitReading() throws InterruptedException {
+		synchronized (readLock) {
+			while (readSuspensions > 0) {
+				readLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Returns the metrics of this session.
+	 * 
+	 * @return the metrics of this session.
+	 */
+	public SessionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the maximum number of bytes written to the socket in a single batch.
+	 * 
+	 * @return the maximum number of bytes written to the socket in a single batch.
+	 */
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Sets the maximum number of bytes written to the socket in a single batch. Changes take effect on the next connection.
+	 * 
+	 * @param maxBatchBytes
+	 *            the maximum number of bytes written in a single batch.
+	 */
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		if (maxBatchBytes <= 0) {
+			throw new IllegalArgumentException("Invalid batch size: " + maxBatchBytes);
+		}
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * Returns the maximum time the writer waits for more commands before sending a batch, in microseconds.
+	 * 
+	 * @return the maximum linger time, in microseconds.
+	 */
+	public long getMaxLinger() {
+		return maxLinger;
+	}
+
+	/**
+	 * Sets the maximum time the writer waits for more commands before sending a batch, in microseconds. Lingering trades latency for fewer
+	 * and bigger writes under load. The default is 0: commands queued while a batch is being written go in the next batch, but the writer
+	 * never waits for them.
+	 * 
+	 * @param maxLinger
+	 *            the maximum linger time, in microseconds.
+	 */
+	public void setMaxLinger(long maxLinger) {
+		this.maxLinger = Math.max(0, maxLinger);
+	}
+
+	/**
+	 * Returns the codec offered at login.
+	 * 
+	 * @return the codec offered at login, or <code>null</code> if commands are always sent with Java serialization.
+	 */
+	public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec offered at login. Both peers must offer the same codec version for it to be used, otherwise commands are sent with Java
+	 * serialization. Changes take effect on the next connection.
+	 * 
+	 * @param codec
+	 *            the codec to offer (<code>null</code> permitted).
+	 */
+	public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Stamps the codec version on login commands about to be sent: the offered version on requests and the agreed one on responses.
+	 * 
+	 * @param command
+	 *            the command about to be sent.
+	 * @return the agreed codec version if <code>command</code> is a login response agreeing on a codec, 0 otherwise.
+	 */
+	protected int stampCodecVersion(Command command) {
+		if (command instanceof LoginRequest) {
+			((LoginRequest) command).setCodecVersion((codec != null) ? codec.getVersion() : 0);
+		} else if (command instanceof LoginResponse) {
+			LoginResponse response = (LoginResponse) command;
+			boolean agreed = (codec != null) && (response.getResult() == LoginResponse.LOGIN_OK) && (peerCodecVersion == codec.getVersion());
+			response.setCodecVersion(agreed ? codec.getVersion() : 0);
+			return response.getCodecVersion();
+		}
+		return 0;
+	}
+
+	/**
+	 * Takes note of the codec versions of received login commands.
+	 * 
+	 * @param command
+	 *            the command received.
+	 * @return the agreed codec version if <code>command</code> is a login response agreeing on our codec, 0 otherwise.
+	 */
+	protected int acceptCodecVersion(Command command) {
+		if (command instanceof LoginRequest) {
+			peerCodecVersion = ((LoginRequest) command).getCodecVersion();
+		} else if (command instanceof LoginResponse) {
+			int version = ((LoginResponse) command).getCodecVersion();
+			if ((version > 0) && (codec != null) && (version == codec.getVersion())) {
+				return version;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Decodes a command encoded with the agreed codec.
+	 * 
+	 * @param version
+	 *            the codec version read from the wire.
+	 * @param decoder
+	 *            the decoder of the connection.
+	 * @param in
+	 *            the input to read from.
+	 * @return the decoded command.
+	 * @throws IOException
+	 *             if the version is unknown or the input is corrupted.
+	 * @throws ClassNotFoundException
+	 *             if the class of a serialized payload cannot be found.
+	 */
+	protected Command decode(int version, MessageCodec.Decoder decoder, DataInput in) throws IOException, ClassNotFoundException {
+		if ((decoder == null) || (version != codec.getVersion())) {
+			throw new StreamCorruptedException("Unexpected codec version: " + version);
+		}
+		return decoder.decode(in);
+	}
+
+	/**
+	 * Returns the state of the streams of messages of this session.
+	 * 
+	 * @return the state of the streams, or <code>null</code> if messages aren't numbered.
+	 */
+	public ResumeState getResumeState() {
+		return resumeState;
+	}
+
+	/**
+	 * Sets the state of the streams of messages of this session. Clients set it once to offer resuming their streams at every login, the
+	 * server sets the one of the client at login.
+	 * 
+	 * @param resumeState
+	 *            the state of the streams (<code>null</code> permitted).
+	 */
+	public void setResumeState(ResumeState resumeState) {
+		this.resumeState = resumeState;
+	}
+
+	/**
+	 * Returns the credits of the services of this connection, which limit the messages sent to each service of the peer.
+	 * 
+	 * @return the credits of the services.
+	 */
+	public CreditWindow getCredits() {
+		return credits;
+	}
+
+	/**
+	 * Returns whether the messages of this connection are numbered.
+	 * 
+	 * @return <code>true</code> if the peers agreed at login to number the messages of this connection.
+	 */
+	public boolean isSequencing() {
+		return sequencing && (resumeState != null);
+	}
+
+	/**
+	 * Sets whether the messages of this connection are numbered, once the peers have agreed at login. Messages are then acknowledged
+	 * cumulatively. It's reset when the session connects again.
+	 * 
+	 * @param sequencing
+	 *            <code>true</code> to number the messages of this connection.
+	 */
+	public void setSequencing(boolean sequencing) {
+		this.sequencing = sequencing;
+	}
+
+	/**
+	 * Numbers a message about to be sent if the peers agreed to. Otherwise the number the message may have been received with is cleared.
+	 * 
+	 * @param command
+	 *            the command about to be sent.
+	 */
+	protected void stampSequence(Command command) {
+		if (command instanceof Message) {
+			ResumeState state = resumeState;
+			if (sequencing && (state != null)) {
+				state.getOutbound().stamp((Message) command);
+			} else {
+				((Message) command).setSequence(0);
+			}
+		}
+	}
+
+	/**
+	 * Takes note of a received message, telling whether it's a retransmission of a message already received.
+	 * 
+	 * @param message
+	 *            the received message.
+	 * @return <code>false</code> if the message has already been received and has to be dropped.
+	 */
+	public boolean accept(Message message) {
+		ResumeState state = resumeState;
+		if (!sequencing || (state == null) || (message.getSequence() <= 0)) {
+			return true;
+		}
+		return state.getInbound().accept(message.getSequence());
+	}
+
+	/**
+	 * Takes note of a processed message. Processed messages are acknowledged at once every <code>ackInterval</code> messages, or after
+	 * <code>ackDelay</code> milliseconds.
+	 * 
+	 * @param sequence
+	 *            the sequence number the message was received with.
+	 */
+	public void acknowledge(long sequence) {
+		ResumeState state = resumeState;
+		if (!sequencing || (state == null) || (sequence <= 0)) {
+			return;
+		}
+		if (state.getInbound().complete(sequence) >= ackInterval) {
+			sendAck();
+		} else if (ackScheduled.compareAndSet(false, true)) {
+			ACK_TIMER.schedule(ackTask, ackDelay);
+		}
+	}
+
+	/**
+	 * Takes note of a message which couldn't be processed. Neither it nor the following messages are acknowledged, so the peer retransmits
+	 * it when the session resumes.
+	 * 
+	 * @param sequence
+	 *            the sequence number the message was received with.
+	 */
+	public void reject(long sequence) {
+		ResumeState state = resumeState;
+		if (sequencing && (state != null) && (sequence > 0)) {
+			state.getInbound().fail(sequence);
+		}
+	}
+
+	/**
+	 * Removes the messages acknowledged by the peer from the retransmission window.
+	 * 
+	 * @param ack
+	 *            the acknowledgement received.
+	 * @return the acknowledged messages, in sequence order.
+	 */
+	public List<Message> acknowledged(SequenceAck ack) {
+		ResumeState state = resumeState;
+		if ((state == null) || (ack.getStreamId() != state.getOutbound().getStreamId())) {
+			return new ArrayList<Message>(0);
+		}
+		return state.getOutbound().acknowledge(ack.getSequence());
+	}
+
+	/**
+	 * Sends the acknowledgement of the messages processed since the last one, if any.
+	 */
+	private void sendAck() {
+		ResumeState state = resumeState;
+		if (state == null) {
+			return;
+		}
+		SequenceAck ack = state.getInbound().acknowledge(clientId);
+		if (ack != null) {
+			try {
+				send(ack);
+			} catch (SocketSessionException e) {
+				// The peer learns what has been processed when the session resumes.
+			}
+		}
+	}
+
 	/**
 	 * Adds a new property to the table.
 	 * 
@@ -724,15 +1249,23 @@ public class SocketSession {
 		 */
 		private ObjectInputStream ois;
 
+		/**
+		 * The stream below the object input stream, counting the bytes read.
+		 */
+		private CountingInputStream in;
+
 		/**
 		 * Creates a new reader.
 		 * 
 		 * @param ois
 		 *            the object input stream to read objects from.
+		 * @param in
+		 *            the stream below the object input stream, counting the bytes read.
 		 */
-		public Reader(ObjectInputStream ois) {
+		public Reader(ObjectInputStream ois, CountingInputStream in) {
 			super("TMS@Reader@" + SocketSession.this.hashCode());
 			this.ois = ois;
+			this.in = in;
 		}
 
 		/*
@@ -740,17 +1273,39 @@ public class SocketSession {
 		 */
 		public void run() {
 			logger.fine("Thread '" + Thread.currentThread().getName() + "' starts.");
+			MessageCodec.Decoder decoder = (codec != null) ? codec.newDecoder() : null;
+			// The bytes read up to the last command, the object input stream may read ahead.
+			long accounted = in.getCount();
 			try {
 				// Set the initial timeout.
 				while (started) {
 					// Get the message.
-					Command command = (Command) ois.readObject();
+					Command command;
+					try {
+						command = (Command) ois.readObject();
+					} catch (OptionalDataException e) {
+						if (e.eof) {
+							throw e;
+						}
+						// Primitive data: a command encoded with the agreed codec, prefixed with its version.
+						command = decode(ois.readUnsignedByte(), decoder, ois);
+					}
+					if (acceptCodecVersion(command) > 0) {
+						encoder = codec.newEncoder();
+					}
 					if (command instanceof Message) {
 						((Message) command).setTimeReceived(new Date());
 					}
+					long read = in.getCount();
+					metrics.received(command, (int) (read - accounted));
+					accounted = read;
 					// Notify the controller.
 					controller.commandReceived(SocketSession.this, command);
+					// Let the peer wait, instead of the controller, if the command couldn't be queued.
+					awaitReading();
 				}
+			} catch (InterruptedException e) {
+				logger.fine("Reader interrupted while reading was suspended.");
 			} catch (ClassNotFoundException e) {
 				logger.severe("ClassNotFoundException caught: " + e.getMessage());
 			} catch (InvalidClassException e) {
@@ -770,30 +1325,44 @@ public class SocketSession {
 	}
 
 	/**
-	 * The writer thread.
+	 * The writer thread. It drains the queue of commands and writes them to a buffered stream, which is flushed once the queue is empty, so
+	 * bursts of commands are sent with few writes.
 	 */
 	private class Writer extends Thread {
 
 		/**
-		 * The list of messages.
+		 * The queue of commands.
 		 */
-		private List<Command> messages;
+		private BlockingQueue<Command> messages;
 
 		/**
 		 * The object output stream to write objects to.
 		 */
 		private ObjectOutputStream oos;
 
+		/**
+		 * The buffered stream below the object output stream.
+		 */
+		private BatchOutputStream out;
+
+		/**
+		 * The bytes written up to the last command accounted in the metrics.
+		 */
+		private long accounted;
+
 		/**
 		 * Creates a new writer.
 		 * 
 		 * @param oos
 		 *            the object output stream to write objects to.
+		 * @param out
+		 *            the buffered stream below the object output stream.
 		 */
-		public Writer(ObjectOutputStream oos) {
+		public Writer(ObjectOutputStream oos, BatchOutputStream out) {
 			super("TMS@Writer@" + SocketSession.this.hashCode());
-			this.messages = new Vector<Command>();
+			this.messages = new LinkedBlockingQueue<Command>();
 			this.oos = oos;
+			this.out = out;
 		}
 
 		/**
@@ -804,9 +1373,16 @@ public class SocketSession {
 		 */
 		public void add(Command command) {
 			messages.add(command);
-			synchronized (messages) {
-				messages.notify();
-			}
+		}
+
+		/**
+		 * Adds a list of commands to the list of commands that have to be sent.
+		 * 
+		 * @param commands
+		 *            the commands to send.
+		 */
+		public void addAll(List<? extends Command> commands) {
+			messages.addAll(commands);
 		}
 
 		/*
@@ -817,27 +1393,26 @@ public class SocketSession {
 
 			try {
 				while (true) {
-					synchronized (messages) {
-						while (messages.size() == 0) {
-							messages.wait();
+					Command command = messages.take();
+					long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxLinger);
+					while (command != null) {
+						account(write(command));
+						if (out.getPending() >= maxBatchBytes) {
+							// The batch is full, the buffer has already written most of it.
+							break;
 						}
-					}
-					// For sure there are messages to send
-					Command command;
-					while (messages.size() > 0) {
-						command = (Command) messages.remove(0);
-						// Send the message.
-						// logger.finest("About to write object to socket...");
-						oos.writeObject(command);
-						// logger.finest("Object written.");
-						oos.flush();
-						// logger.finest("Object flushed.");
-						// Reset the stream.
-						if (++counter >= RESET_FREQUENCY) {
-							counter = 0;
-							oos.reset();
+						command = messages.poll();
+						if ((command == null) && (maxLinger > 0)) {
+							long wait = deadline - System.nanoTime();
+							if (wait > 0) {
+								command = messages.poll(wait, TimeUnit.NANOSECONDS);
+							}
 						}
 					}
+					oos.flush();
+					// Account the bytes the object output stream was still buffering.
+					account(null);
+					out.resetPending();
 				}
 			} catch (InterruptedException e) {
 				logger.fine("Thread '" + Thread.currentThread().getName() + "' interrupted.");
@@ -851,6 +1426,235 @@ public class SocketSession {
 			logger.fine("Thread '" + Thread.currentThread().getName() + "' dies.");
 		}
 
+		/**
+		 * Records the bytes written since the last command accounted in the metrics.
+		 * 
+		 * @param command
+		 *            the command written, or <code>null</code> if none.
+		 */
+		private void account(Command command) {
+			long written = out.getWritten();
+			metrics.sent(command, (int) (written - accounted));
+			accounted = written;
+		}
+
+		/**
+		 * Writes a command without flushing the stream.
+		 * 
+		 * @param command
+		 *            the command to write.
+		 * @return the command written, which may differ from the queued one.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		private Command write(Command command) throws IOException {
+			MessageCodec.Encoder current = encoder;
+			if (command instanceof SharedCommand) {
+				SharedFrame frame = ((SharedCommand) command).frame;
+				if ((current != null) && (frame.getVersion() == codec.getVersion())) {
+					// Skip the frame length, the codec version is written as primitive data like below.
+					oos.write(frame.bytes(), 4, frame.size() - 4);
+					return frame.getCommand();
+				}
+				command = frame.getCommand();
+			}
+			if (current != null) {
+				if (command instanceof MessageAck) {
+					command = coalesce((MessageAck) command);
+				}
+				// Write the command as primitive data, so the peer can tell it from serialized objects.
+				oos.writeByte(codec.getVersion());
+				current.encode(command, oos);
+			} else {
+				// Send the message.
+				oos.writeObject(command);
+				// Reset the stream.
+				if (++counter >= RESET_FREQUENCY) {
+					counter = 0;
+					oos.reset();
+				}
+			}
+			if ((command instanceof LoginResponse) && (((LoginResponse) command).getCodecVersion() > 0)) {
+				// The peer switches to the agreed codec as soon as it reads this response.
+				encoder = codec.newEncoder();
+			}
+			return command;
+		}
+
+		/**
+		 * Merges the acknowledgements queued right after the specified one into a single command. Only peers agreeing on a codec understand
+		 * acknowledgements of several messages.
+		 * 
+		 * @param ack
+		 *            the acknowledgement about to be written.
+		 * @return the acknowledgement to write.
+		 */
+		private MessageAck coalesce(MessageAck ack) {
+			List<String> ids = null;
+			Command next;
+			while (((next = messages.peek()) instanceof MessageAck) && ack.getClientId().equals(((MessageAck) next).getClientId())) {
+				if (ids == null) {
+					ids = new ArrayList<String>(ack.getMessageIds());
+				}
+				List<String> more = ((MessageAck) next).getMessageIds();
+				if (ids.size() + more.size() > MAX_COALESCED_ACKS) {
+					break;
+				}
+				ids.addAll(more);
+				messages.poll();
+			}
+			return (ids != null) ? new MessageAck(ack.getClientId(), ids) : ack;
+		}
+
+	}
+
+	/**
+	 * A shared frame queued in the writer.
+	 */
+	private static class SharedCommand implements Command {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The frame.
+		 */
+		private final transient SharedFrame frame;
+
+		/**
+		 * Creates a new shared command.
+		 */
+		SharedCommand(SharedFrame frame) {
+			this.frame = frame;
+		}
+
+	}
+
+	/**
+	 * A buffered output stream counting the bytes written since the last batch was sent.
+	 */
+	private static class BatchOutputStream extends BufferedOutputStream {
+
+		/**
+		 * The number of bytes written since the counter was reset.
+		 */
+		private int pending;
+
+		/**
+		 * The total number of bytes written.
+		 */
+		private volatile long written;
+
+		/**
+		 * Creates a new batch output stream.
+		 * 
+		 * @param out
+		 *            the underlying output stream.
+		 * @param size
+		 *            the buffer size.
+		 */
+		BatchOutputStream(OutputStream out, int size) {
+			super(out, size);
+		}
+
+		/*
+		 * @see java.io.BufferedOutputStream#write(int)
+		 */
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			pending++;
+			written++;
+		}
+
+		/*
+		 * @see java.io.BufferedOutputStream#write(byte[], int, int)
+		 */
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			pending += len;
+			written += len;
+		}
+
+		/**
+		 * Returns the number of bytes written since the counter was reset.
+		 */
+		int getPending() {
+			return pending;
+		}
+
+		/**
+		 * Resets the counter of bytes written.
+		 */
+		void resetPending() {
+			pending = 0;
+		}
+
+		/**
+		 * Returns the total number of bytes written.
+		 */
+		long getWritten() {
+			return written;
+		}
+
+	}
+
+	/**
+	 * An input stream counting the bytes read.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		/**
+		 * The total number of bytes read. Only the reader thread reads from the stream.
+		 */
+		private long count;
+
+		/**
+		 * Creates a new counting input stream.
+		 * 
+		 * @param in
+		 *            the underlying input stream.
+		 */
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		/*
+		 * @see java.io.FilterInputStream#read()
+		 */
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		/*
+		 * @see java.io.FilterInputStream#read(byte[], int, int)
+		 */
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		/*
+		 * @see java.io.FilterInputStream#skip(long)
+		 */
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		/**
+		 * Returns the total number of bytes read.
+		 */
+		long getCount() {
+			return count;
+		}
+
 	}
 
 	/**
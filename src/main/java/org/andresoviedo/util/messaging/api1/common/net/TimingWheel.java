@@ -0,0 +1,294 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+
+/**
+ * A hashed timing wheel running large numbers of timeouts, most of which are cancelled before they expire, with a single thread. Scheduling
+ * and cancelling a timeout are constant time and take no lock: new timeouts are handed to the wheel thread through a queue, and it places
+ * them in the slot they expire in, counting how many turns of the wheel are left. On each tick the thread runs the expired timeouts of the
+ * current slot, so timeouts expire up to one tick late.
+ * <p>
+ * Tasks are run by the wheel thread, so they must be short.
+ * </p>
+ * <p>
+ * Each run of the wheel thread has its own slots and queue of new timeouts, so a thread being stopped only discards its own timeouts,
+ * never those of a run started meanwhile.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class TimingWheel {
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The name of the wheel thread.
+	 */
+	private final String name;
+
+	/**
+	 * The duration of a tick, in milliseconds.
+	 */
+	private final long tick;
+
+	/**
+	 * The number of slots of the wheel.
+	 */
+	private final int size;
+
+	/**
+	 * The current run of the wheel thread, started on demand, <code>null</code> if stopped.
+	 */
+	private volatile Run current;
+
+	/**
+	 * A run of the wheel thread, with its own state.
+	 */
+	private final class Run extends Thread {
+
+		/**
+		 * The slots of the wheel. They're only accessed by this thread.
+		 */
+		private final List<List<Timeout>> slots;
+
+		/**
+		 * Timeouts scheduled since the last tick.
+		 */
+		private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+		/**
+		 * The time the run started, in nanoseconds.
+		 */
+		private final long startTime = System.nanoTime();
+
+		/**
+		 * Creates a new run.
+		 */
+		private Run() {
+			super(name);
+			this.slots = new ArrayList<List<Timeout>>(size);
+			for (int i = 0; i < size; i++) {
+				slots.add(new ArrayList<Timeout>());
+			}
+			setDaemon(true);
+		}
+
+		public void run() {
+			TimingWheel.this.run(this);
+		}
+
+	}
+
+	/**
+	 * A timeout scheduled in the wheel.
+	 */
+	public static final class Timeout {
+
+		/**
+		 * The task to run when the timeout expires.
+		 */
+		private final Runnable task;
+
+		/**
+		 * The tick the timeout expires at.
+		 */
+		private long deadline;
+
+		/**
+		 * The number of turns of the wheel left before the timeout expires.
+		 */
+		private long rounds;
+
+		/**
+		 * Set once the timeout has been cancelled or has expired.
+		 */
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		/**
+		 * Creates a new timeout.
+		 */
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the timeout, so that its task is not run.
+		 *
+		 * @return <code>true</code> if the timeout was cancelled, <code>false</code> if it had already expired or been cancelled.
+		 */
+		public boolean cancel() {
+			return done.compareAndSet(false, true);
+		}
+
+		/**
+		 * Returns whether the timeout has expired or has been cancelled.
+		 *
+		 * @return whether the timeout has expired or has been cancelled.
+		 */
+		public boolean isDone() {
+			return done.get();
+		}
+
+	}
+
+	/**
+	 * Creates a new timing wheel.
+	 *
+	 * @param name
+	 *            the name of the wheel thread.
+	 * @param tick
+	 *            the duration of a tick, in milliseconds.
+	 * @param size
+	 *            the number of slots of the wheel. Timeouts longer than <code>tick * size</code> take several turns.
+	 */
+	public TimingWheel(String name, long tick, int size) {
+		if ((tick <= 0) || (size <= 0)) {
+			throw new IllegalArgumentException("Invalid tick or size.");
+		}
+		this.name = name;
+		this.tick = tick;
+		this.size = size;
+	}
+
+	/**
+	 * Schedules a task to be run after the specified delay. The wheel thread is started if needed.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delay
+	 *            the delay in milliseconds.
+	 * @return the timeout, which may be cancelled.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null) {
+			throw new IllegalArgumentException("Null task.");
+		}
+		Timeout timeout = new Timeout(task);
+		while (true) {
+			Run run = start();
+			// Expire at the end of the tick the delay ends in, never earlier.
+			long elapsed = (System.nanoTime() - run.startTime) / 1000000;
+			timeout.deadline = (elapsed + Math.max(delay, 0) + tick - 1) / tick;
+			run.pending.add(timeout);
+			if (current == run) {
+				return timeout;
+			}
+			// Stopped meanwhile, schedule it in the next run.
+			run.pending.remove(timeout);
+		}
+	}
+
+	/**
+	 * Starts the wheel thread if it's not running.
+	 *
+	 * @return the current run.
+	 */
+	private synchronized Run start() {
+		if (current == null) {
+			current = new Run();
+			current.start();
+		}
+		return current;
+	}
+
+	/**
+	 * Stops the wheel thread and waits for it to die. Scheduled timeouts are discarded without being run. The wheel is started again if a
+	 * new timeout is scheduled.
+	 */
+	public void stop() {
+		Run stopped;
+		synchronized (this) {
+			stopped = current;
+			current = null;
+		}
+		if ((stopped == null) || (stopped == Thread.currentThread())) {
+			return;
+		}
+		stopped.interrupt();
+		try {
+			stopped.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The loop of the wheel thread.
+	 */
+	private void run(Run self) {
+		long tickCount = 0;
+		try {
+			while (current == self) {
+				// Sleep until the end of the next tick.
+				tickCount++;
+				long sleep = tickCount * tick - (System.nanoTime() - self.startTime) / 1000000;
+				if (sleep > 0) {
+					Thread.sleep(sleep);
+				}
+				if (current != self) {
+					break;
+				}
+				transfer(self, tickCount);
+				expire(self.slots.get((int) (tickCount % size)));
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+		// Only the timeouts of this run are discarded.
+		self.pending.clear();
+		for (List<Timeout> slot : self.slots) {
+			slot.clear();
+		}
+	}
+
+	/**
+	 * Places the timeouts scheduled since the last tick into their slots.
+	 */
+	private void transfer(Run run, long tickCount) {
+		Timeout timeout;
+		while ((timeout = run.pending.poll()) != null) {
+			if (timeout.isDone()) {
+				continue;
+			}
+			long deadline = Math.max(timeout.deadline, tickCount);
+			timeout.rounds = (deadline - tickCount) / size;
+			run.slots.get((int) (deadline % size)).add(timeout);
+		}
+	}
+
+	/**
+	 * Runs the expired timeouts of a slot, and drops the cancelled ones.
+	 */
+	private void expire(List<Timeout> slot) {
+		// Compact the slot in place, removing from an array list one by one would be quadratic.
+		int kept = 0;
+		for (int i = 0; i < slot.size(); i++) {
+			Timeout timeout = slot.get(i);
+			if (timeout.isDone()) {
+				continue;
+			}
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+				slot.set(kept++, timeout);
+			} else if (timeout.done.compareAndSet(false, true)) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					logger.warning("Exception caught while running timeout task: " + e.getMessage());
+				}
+			}
+		}
+		slot.subList(kept, slot.size()).clear();
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.andresoviedo.util.messaging.api1.common.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue backed by a ring buffer. Each slot has a sequence number telling producers whether it's free and consumers
+ * whether it's been published, so neither side ever takes a lock. Any number of threads may offer and poll elements.
+ *
+ * @author andresoviedo
+ */
+public class BoundedQueue<E> {
+
+	/**
+	 * The ring buffer.
+	 */
+	private final AtomicReferenceArray<E> buffer;
+
+	/**
+	 * The sequence number of each slot.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * The mask to apply to a position to get its slot, capacity minus one.
+	 */
+	private final int mask;
+
+	/**
+	 * The position of the next element to poll.
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * The position of the next element to offer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Creates a new queue.
+	 *
+	 * @param capacity
+	 *            the capacity of the queue, rounded up to the next power of two.
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> is less than 1 or greater than 2^30.
+	 */
+	public BoundedQueue(int capacity) {
+		if ((capacity < 1) || (capacity > (1 << 30))) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.buffer = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Returns the capacity of the queue.
+	 *
+	 * @return the capacity of the queue.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Inserts an element at the tail of the queue if there's room for it.
+	 *
+	 * @param e
+	 *            the element to insert.
+	 * @return <code>true</code> if the element was inserted, <code>false</code> if the queue is full.
+	 * @throws NullPointerException
+	 *             if <code>e</code> is <code>null</code>.
+	 */
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long diff = sequences.get(slot) - position;
+			if (diff == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					buffer.lazySet(slot, e);
+					// Publish the element.
+					sequences.lazySet(slot, position + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				// The slot still holds the element offered a lap ago.
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue.
+	 *
+	 * @return the head of the queue, or <code>null</code> if the queue is empty.
+	 */
+	public E poll() {
+		while (true) {
+			long position = head.get();
+			int slot = (int) position & mask;
+			long diff = sequences.get(slot) - (position + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E e = buffer.get(slot);
+					buffer.lazySet(slot, null);
+					// Free the slot for the next lap.
+					sequences.lazySet(slot, position + mask + 1);
+					return e;
+				}
+			} else if (diff < 0) {
+				// The slot hasn't been published yet.
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the queue. The value is only an estimate while other threads are using the queue.
+	 *
+	 * @return the number of elements in the queue.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	/**
+	 * Returns whether the queue is empty.
+	 *
+	 * @return <code>true</code> if the queue is empty.
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+}
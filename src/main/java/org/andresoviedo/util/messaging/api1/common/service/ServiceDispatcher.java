@@ -0,0 +1,338 @@
+package org.andresoviedo.util.messaging.api1.common.service;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+
+/**
+ * Dispatches the elements received for a single service to a handler. Elements are queued in a bounded lock-free queue and drained by up
+ * to <code>maxConcurrency</code> tasks run by an executor, so no thread is bound to the service while it's idle. With a concurrency of 1
+ * elements are handled one at a time and in the order they were dispatched.
+ * <p>
+ * The dispatcher can be paused to quiesce the service, e.g. while its listener is replaced, without affecting any other service.
+ * </p>
+ * <p>
+ * Threads serving many connections must not wait for room in the queue: they <code>offer()</code> elements instead and, if the queue is
+ * full, stop reading from the connection until the task given to <code>whenRoom()</code> is run.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class ServiceDispatcher<E> {
+
+	/**
+	 * Handles the elements dispatched to a service.
+	 */
+	public interface Handler<E> {
+
+		/**
+		 * Handles the specified element.
+		 *
+		 * @param e
+		 *            the element to handle.
+		 */
+		public void handle(E e);
+
+	}
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The number of nanoseconds a producer waits before retrying when the queue is full.
+	 */
+	private static final long FULL_QUEUE_PARK_NANOS = 100000;
+
+	/**
+	 * The service id, for logging purposes.
+	 */
+	private final String serviceId;
+
+	/**
+	 * The pending elements.
+	 */
+	private final BoundedQueue<E> queue;
+
+	/**
+	 * The handler of the elements.
+	 */
+	private final Handler<E> handler;
+
+	/**
+	 * The executor running the drain tasks.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * The maximum number of drain tasks running at the same time.
+	 */
+	private volatile int maxConcurrency;
+
+	/**
+	 * The number of drain tasks scheduled or running.
+	 */
+	private final AtomicInteger drainers = new AtomicInteger();
+
+	/**
+	 * The number of elements being handled.
+	 */
+	private final AtomicInteger executing = new AtomicInteger();
+
+	/**
+	 * The tasks to run once the queue has room again.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> roomWaiters = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * The number of callers that paused the dispatcher and haven't resumed it yet.
+	 */
+	private final AtomicInteger pauses = new AtomicInteger();
+
+	/**
+	 * The task draining the queue.
+	 */
+	private final Runnable drainer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Creates a new dispatcher.
+	 *
+	 * @param serviceId
+	 *            the service id.
+	 * @param capacity
+	 *            the capacity of the queue.
+	 * @param maxConcurrency
+	 *            the maximum number of elements handled at the same time, 1 to handle them in order.
+	 * @param executor
+	 *            the executor running the handler.
+	 * @param handler
+	 *            the handler of the elements.
+	 */
+	public ServiceDispatcher(String serviceId, int capacity, int maxConcurrency, Executor executor, Handler<E> handler) {
+		if ((executor == null) || (handler == null)) {
+			throw new IllegalArgumentException("Null executor or handler.");
+		}
+		this.serviceId = serviceId;
+		this.queue = new BoundedQueue<E>(capacity);
+		this.executor = executor;
+		this.handler = handler;
+		setMaxConcurrency(maxConcurrency);
+	}
+
+	/**
+	 * Sets the executor running the handler. Drain tasks already scheduled keep running in the previous executor.
+	 *
+	 * @param executor
+	 *            the executor running the handler.
+	 */
+	public void setExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Null executor.");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the maximum number of elements handled at the same time.
+	 *
+	 * @return the maximum number of elements handled at the same time.
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of elements handled at the same time. A value of 1 guarantees elements are handled in order.
+	 *
+	 * @param maxConcurrency
+	 *            the maximum number of elements handled at the same time.
+	 * @throws IllegalArgumentException
+	 *             if <code>maxConcurrency</code> is less than 1.
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+		}
+		this.maxConcurrency = maxConcurrency;
+		schedule();
+	}
+
+	/**
+	 * Queues an element to be handled. If the queue is full, the caller waits until there's room for it. Only for threads which can wait,
+	 * threads serving many connections use <code>offer()</code>.
+	 *
+	 * @param e
+	 *            the element to queue.
+	 */
+	public void dispatch(E e) {
+		while (!queue.offer(e)) {
+			schedule();
+			LockSupport.parkNanos(FULL_QUEUE_PARK_NANOS);
+		}
+		schedule();
+	}
+
+	/**
+	 * Queues an element to be handled, unless the queue is full.
+	 *
+	 * @param e
+	 *            the element to queue.
+	 * @return <code>true</code> if the element has been queued, <code>false</code> if the queue is full.
+	 */
+	public boolean offer(E e) {
+		boolean ret = queue.offer(e);
+		// Even if full, the queue may be waiting for a drain task the executor rejected before.
+		schedule();
+		return ret;
+	}
+
+	/**
+	 * Runs a task once the queue is at most half full, i.e. to offer again an element which didn't fit and resume reading from its
+	 * connection. The task is run by the thread draining the queue, or by the caller if there's already room, so it must not block.
+	 *
+	 * @param task
+	 *            the task to run.
+	 */
+	public void whenRoom(Runnable task) {
+		roomWaiters.add(task);
+		// The queue may have been drained before the task was added.
+		if (hasRoom() && roomWaiters.remove(task)) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Pauses the dispatcher and waits until the elements being handled are done. Queued elements are kept until the dispatcher is resumed.
+	 * Every call has to be followed by a call to <code>resume()</code>, even if it's interrupted.
+	 *
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting.
+	 */
+	public void pause() throws InterruptedException {
+		pauses.incrementAndGet();
+		synchronized (this) {
+			while (executing.get() > 0) {
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * Resumes the dispatcher.
+	 */
+	public void resume() {
+		if (pauses.decrementAndGet() == 0) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Returns the number of queued elements.
+	 *
+	 * @return the number of queued elements.
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of elements being handled.
+	 *
+	 * @return the number of elements being handled.
+	 */
+	public int getExecuting() {
+		return executing.get();
+	}
+
+	/**
+	 * Returns whether the queue is at most half full, so that waiters aren't woken up for every element handled.
+	 */
+	private boolean hasRoom() {
+		return queue.size() <= queue.capacity() / 2;
+	}
+
+	/**
+	 * Runs the tasks waiting for room in the queue.
+	 */
+	private void notifyRoom() {
+		Runnable task;
+		while (hasRoom() && ((task = roomWaiters.poll()) != null)) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				logger.severe("Exception caught while notifying room in the queue of service '" + serviceId + "': " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Schedules a new drain task if there are queued elements and the maximum concurrency hasn't been reached.
+	 */
+	private void schedule() {
+		while ((pauses.get() == 0) && !queue.isEmpty()) {
+			int current = drainers.get();
+			if (current >= maxConcurrency) {
+				return;
+			}
+			if (drainers.compareAndSet(current, current + 1)) {
+				try {
+					executor.execute(drainer);
+				} catch (RejectedExecutionException e) {
+					drainers.decrementAndGet();
+					logger.warning("Executor of service '" + serviceId + "' rejected the dispatch: " + e.getMessage());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Handles queued elements until the queue is empty or the dispatcher is paused.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				executing.incrementAndGet();
+				try {
+					// Checked after counting the execution, so that pause() either waits for it or it sees the pause.
+					if (pauses.get() > 0) {
+						break;
+					}
+					E e = queue.poll();
+					if (!roomWaiters.isEmpty()) {
+						notifyRoom();
+					}
+					if (e == null) {
+						break;
+					}
+					try {
+						handler.handle(e);
+					} catch (RuntimeException ex) {
+						logger.severe("Exception caught while handling an element of service '" + serviceId + "': " + ex.getMessage());
+					}
+				} finally {
+					if ((executing.decrementAndGet() == 0) && (pauses.get() > 0)) {
+						synchronized (this) {
+							notifyAll();
+						}
+					}
+				}
+			}
+		} finally {
+			drainers.decrementAndGet();
+		}
+		// An element may have been queued after the last poll while the producer saw this task running.
+		schedule();
+	}
+
+}
@@ -0,0 +1,504 @@
+package org.andresoviedo.util.messaging.api1.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.Messenger;
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfiguration;
+import org.andresoviedo.util.messaging.api1.common.data.ClientLocation;
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.net.NioReactor;
+import org.andresoviedo.util.messaging.api1.common.net.NioSocketSession;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSessionController;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSessionException;
+import org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery;
+import org.andresoviedo.util.messaging.api1.server.cluster.ClusterNode;
+import org.andresoviedo.util.messaging.api1.server.cluster.ConsistentHashRing;
+
+/**
+ * The cluster a server messenger is a node of. Each node connects to every other node as a client does, with the node id as its client id,
+ * and messages for clients connected to other nodes are forwarded through these links.
+ * <p>
+ * Every client id is owned by a node, chosen by hashing the id over the nodes reachable from this one. Nodes tell the owners of their
+ * clients where they are connected, so a message for a client which isn't connected to this node is forwarded to its owner, and from there
+ * to the node the client is connected to. Messages aren't forwarded more than twice, so they can't loop while the nodes disagree about the
+ * members of the cluster. Messages which can't be forwarded are handled as messages for any other client not connected.
+ * </p>
+ * <p>
+ * Clients fail over to another node if they're given the addresses of several nodes, and the node they log in tells the owner.
+ * </p>
+ * 
+ * @author andresoviedo
+ */
+public class ServerCluster {
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The message property holding the number of times a message has been forwarded to another node.
+	 */
+	public static final String MESSAGE_HOPS_PROPERTY = "messaging.cluster.hops";
+
+	/**
+	 * The maximum number of times a message is forwarded to another node: to the owner of the target client and to the node it's connected
+	 * to.
+	 */
+	static final int MAX_HOPS = 2;
+
+	/**
+	 * The server messenger.
+	 */
+	private final ServerMessenger messenger;
+
+	/**
+	 * The local node.
+	 */
+	private final ClusterNode self;
+
+	/**
+	 * Discovers the members of the cluster.
+	 */
+	private final ClusterDiscovery discovery;
+
+	/**
+	 * The ids of the members of the cluster, including the local node.
+	 */
+	private volatile Set<String> members = Collections.emptySet();
+
+	/**
+	 * The ring of the members reachable from this node, which own the client ids.
+	 */
+	private volatile ConsistentHashRing ring;
+
+	/**
+	 * The links to the other members, by node id.
+	 */
+	private final Map<String, SocketSession> links = new ConcurrentHashMap<String, SocketSession>();
+
+	/**
+	 * The nodes the clients owned by this node are connected to, by client id. Clients connected to this node aren't included.
+	 */
+	private final Map<String, String> locations = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Handles the events of the links.
+	 */
+	private final LinkController linkController = new LinkController();
+
+	/**
+	 * Indicates whether the cluster is started.
+	 */
+	private volatile boolean started;
+
+	/**
+	 * Creates a new cluster.
+	 * 
+	 * @param messenger
+	 *            the server messenger of the local node.
+	 * @param discovery
+	 *            discovers the members of the cluster.
+	 */
+	ServerCluster(ServerMessenger messenger, ClusterDiscovery discovery) {
+		this.messenger = messenger;
+		this.discovery = discovery;
+		ServerMessengerConfiguration configuration = messenger.getConfiguration();
+		this.self = new ClusterNode(configuration.getServerId(), new InetSocketAddress(configuration.getHost(), configuration.getPort()));
+		this.ring = new ConsistentHashRing(Collections.singleton(self.getNodeId()), configuration.getClusterVirtualNodes());
+	}
+
+	/**
+	 * Starts discovering the members of the cluster and connecting to them.
+	 */
+	void start() {
+		started = true;
+		discovery.start(self, messenger.getConfiguration().getClusterNodes(), new ClusterDiscovery.Listener() {
+			public void membershipChanged(List<ClusterNode> nodes) {
+				ServerCluster.this.membershipChanged(nodes);
+			}
+		});
+	}
+
+	/**
+	 * Stops discovering the members of the cluster and closes the links to them.
+	 */
+	void stop() {
+		started = false;
+		discovery.stop();
+		for (Iterator<SocketSession> it = links.values().iterator(); it.hasNext();) {
+			SocketSession link = it.next();
+			it.remove();
+			link.close();
+		}
+		members = Collections.emptySet();
+		locations.clear();
+		updateRing();
+	}
+
+	/**
+	 * Returns the local node.
+	 * 
+	 * @return the local node.
+	 */
+	public ClusterNode getSelf() {
+		return self;
+	}
+
+	/**
+	 * Returns the cluster discovery.
+	 * 
+	 * @return the cluster discovery.
+	 */
+	public ClusterDiscovery getDiscovery() {
+		return discovery;
+	}
+
+	/**
+	 * Returns the ring of the members reachable from this node.
+	 * 
+	 * @return the consistent hash ring.
+	 */
+	public ConsistentHashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Returns whether an id is the id of a member of the cluster rather than a client.
+	 * 
+	 * @param clientId
+	 *            the id.
+	 * @return <code>true</code> if it's the id of a node.
+	 */
+	public boolean isNode(String clientId) {
+		return members.contains(clientId);
+	}
+
+	/**
+	 * Returns the node a client owned by this node is connected to, as told by that node.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 * @return the id of the node, or <code>null</code> if not known.
+	 */
+	public String getLocation(String clientId) {
+		return locations.get(clientId);
+	}
+
+	/**
+	 * Opens links to the members which joined the cluster and closes the ones to the members which left.
+	 * 
+	 * @param nodes
+	 *            the members of the cluster.
+	 */
+	private void membershipChanged(List<ClusterNode> nodes) {
+		if (!started) {
+			return;
+		}
+		logger.info("Cluster members: " + nodes);
+		List<ClusterNode> joined = new ArrayList<ClusterNode>();
+		synchronized (this) {
+			Set<String> ids = new HashSet<String>();
+			for (ClusterNode node : nodes) {
+				ids.add(node.getNodeId());
+				if (!node.equals(self) && !links.containsKey(node.getNodeId())) {
+					joined.add(node);
+				}
+			}
+			members = Collections.unmodifiableSet(ids);
+			for (Iterator<Map.Entry<String, SocketSession>> it = links.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, SocketSession> entry = it.next();
+				if (!ids.contains(entry.getKey())) {
+					it.remove();
+					entry.getValue().close();
+				}
+			}
+			locations.values().retainAll(ids);
+			for (ClusterNode node : joined) {
+				links.put(node.getNodeId(), createLink(node));
+			}
+		}
+		updateRing();
+		for (ClusterNode node : joined) {
+			SocketSession link = links.get(node.getNodeId());
+			if (link != null) {
+				try {
+					link.open();
+				} catch (SocketSessionException e) {
+					// The link reconnects by itself.
+					logger.info("Node '" + node.getNodeId() + "' not reachable yet: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the link to another node, reconnecting until the link is closed.
+	 * 
+	 * @param node
+	 *            the node.
+	 * @return the link.
+	 */
+	private SocketSession createLink(ClusterNode node) {
+		ServerMessengerConfiguration configuration = messenger.getConfiguration();
+		InetSocketAddress[] addresses = { node.getAddress() };
+		SocketSession link;
+		if (BasicConfiguration.TRANSPORT_NIO.equals(configuration.getTransport())) {
+			link = new NioSocketSession(self.getNodeId(), addresses, linkController, NioReactor.getDefault());
+		} else {
+			link = new SocketSession(self.getNodeId(), addresses, linkController);
+		}
+		link.setReconnectionDelay(configuration.getClusterReconnectionDelay());
+		link.setCodec(BasicConfiguration.createCodec(configuration.getCodec()));
+		link.getMetrics().setMessengerMetrics(messenger.getMetrics());
+		link.putProperty(Messenger.SESSION_CLIENT_ID_PROPERTY, node.getNodeId());
+		return link;
+	}
+
+	/**
+	 * Builds the ring again with the members logged in through their links, moving the client ids owned by the members which aren't
+	 * reachable anymore, and tells the new owners of the clients connected to this node.
+	 */
+	private void updateRing() {
+		ConsistentHashRing updated;
+		synchronized (this) {
+			Set<String> reachable = new HashSet<String>();
+			reachable.add(self.getNodeId());
+			for (Map.Entry<String, SocketSession> entry : links.entrySet()) {
+				if (entry.getValue().containsProperty(Messenger.SESSION_AUTHENTICATED_PROPERTY)) {
+					reachable.add(entry.getKey());
+				}
+			}
+			if (reachable.equals(ring.getNodes())) {
+				return;
+			}
+			updated = new ConsistentHashRing(reachable, messenger.getConfiguration().getClusterVirtualNodes());
+			ring = updated;
+			// The locations of clients owned by other nodes now are told to them.
+			for (Iterator<String> it = locations.keySet().iterator(); it.hasNext();) {
+				if (!self.getNodeId().equals(updated.getNode(it.next()))) {
+					it.remove();
+				}
+			}
+		}
+		logger.info("Cluster ring: " + updated);
+		for (String nodeId : updated.getNodes()) {
+			announceClients(nodeId);
+		}
+	}
+
+	/**
+	 * Tells a node where the clients it owns are connected to, that is, to this node.
+	 * 
+	 * @param nodeId
+	 *            the node id.
+	 */
+	private void announceClients(String nodeId) {
+		if (self.getNodeId().equals(nodeId)) {
+			return;
+		}
+		ConsistentHashRing current = ring;
+		for (SocketSession session : messenger.getServerSession().getSessions()) {
+			Object clientId = session.getProperty(Messenger.SESSION_CLIENT_ID_PROPERTY);
+			if ((clientId != null) && !isNode(clientId.toString()) && nodeId.equals(current.getNode(clientId.toString()))) {
+				sendLocation(nodeId, clientId.toString(), true);
+			}
+		}
+	}
+
+	/**
+	 * Sends the location of a client to a node.
+	 */
+	private void sendLocation(String nodeId, String clientId, boolean present) {
+		SocketSession link = links.get(nodeId);
+		if ((link == null) || !link.containsProperty(Messenger.SESSION_AUTHENTICATED_PROPERTY)) {
+			// Told once the link logs in.
+			return;
+		}
+		try {
+			link.send(new ClientLocation(self.getNodeId(), clientId, present));
+		} catch (SocketSessionException e) {
+			logger.warning("SocketSessionException caught: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Invoked when a client has logged in this node, to tell its owner.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	void clientRegistered(String clientId) {
+		if (isNode(clientId)) {
+			return;
+		}
+		String owner = ring.getNode(clientId);
+		if (self.getNodeId().equals(owner)) {
+			locations.remove(clientId);
+		} else {
+			sendLocation(owner, clientId, true);
+		}
+	}
+
+	/**
+	 * Invoked when a client has logged out of this node, to tell its owner. If the client is a node, the locations it told are forgotten,
+	 * it tells them again when it logs in.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	void clientUnregistered(String clientId) {
+		if (isNode(clientId)) {
+			locations.values().removeAll(Collections.singleton(clientId));
+			return;
+		}
+		String owner = ring.getNode(clientId);
+		if (!self.getNodeId().equals(owner)) {
+			sendLocation(owner, clientId, false);
+		}
+	}
+
+	/**
+	 * Invoked when another node tells where a client owned by this node is connected.
+	 * 
+	 * @param location
+	 *            the location of the client.
+	 */
+	void locationReceived(ClientLocation location) {
+		if (location.isPresent()) {
+			locations.put(location.getLocatedClientId(), location.getClientId());
+		} else {
+			locations.remove(location.getLocatedClientId(), location.getClientId());
+		}
+	}
+
+	/**
+	 * Returns the link a message for a client not connected to this node has to be forwarded through, that is, the link to the owner of
+	 * the client or, if it's this node, the link to the node the client is connected to.
+	 * 
+	 * @param message
+	 *            the message, the number of times it's been forwarded is updated if a link is returned.
+	 * @return the link, or <code>null</code> if the message can't be forwarded.
+	 */
+	SocketSession route(Message message) {
+		String targetClientId = message.getTargetClientId();
+		int hops = getHops(message);
+		if ((targetClientId == null) || (hops >= MAX_HOPS)) {
+			return null;
+		}
+		String nodeId;
+		if (isNode(targetClientId)) {
+			nodeId = targetClientId;
+		} else {
+			nodeId = ring.getNode(targetClientId);
+			if (self.getNodeId().equals(nodeId)) {
+				nodeId = locations.get(targetClientId);
+			}
+		}
+		if ((nodeId == null) || self.getNodeId().equals(nodeId)) {
+			return null;
+		}
+		SocketSession link = links.get(nodeId);
+		if ((link == null) || !link.containsProperty(Messenger.SESSION_AUTHENTICATED_PROPERTY)) {
+			return null;
+		}
+		logger.fine("Forwarding message with id '" + message.getMessageId() + "' to node '" + nodeId + "'...");
+		message.putStringProperty(MESSAGE_HOPS_PROPERTY, String.valueOf(hops + 1));
+		return link;
+	}
+
+	/**
+	 * Returns the number of times a message has been forwarded to another node.
+	 */
+	private static int getHops(Message message) {
+		String hops = message.getStringProperty(MESSAGE_HOPS_PROPERTY);
+		if (hops == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(hops);
+		} catch (NumberFormatException e) {
+			return MAX_HOPS;
+		}
+	}
+
+	/**
+	 * Handles the events of the links to the other nodes. The link logs in as a client does, and then the commands received through it are
+	 * processed by the messenger as the ones received from clients.
+	 */
+	private class LinkController implements SocketSessionController {
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSessionController#sessionOpened
+		 * (org.andresoviedo.util.messaging.api1.common.net.SocketSession)
+		 */
+		public void sessionOpened(SocketSession session) {
+			messenger.sessionOpened(session);
+			LoginRequest logon = new LoginRequest(self.getNodeId());
+			logon.setCreditWindow(messenger.getServiceCredits());
+			try {
+				session.send(logon);
+			} catch (SocketSessionException e) {
+				logger.info(e.getMessage());
+			}
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSessionController#commandReceived
+		 * (org.andresoviedo.util.messaging.api1.common.net.SocketSession, org.andresoviedo.util.messaging.api1.common.data.Command)
+		 */
+		public void commandReceived(SocketSession session, Command command) {
+			if (command instanceof LoginResponse) {
+				LoginResponse response = (LoginResponse) command;
+				Object nodeId = session.getProperty(Messenger.SESSION_CLIENT_ID_PROPERTY);
+				if (response.getResult() != LoginResponse.LOGIN_OK) {
+					logger.warning("Node '" + nodeId + "' refused the link, closing it...");
+					session.close();
+					return;
+				}
+				logger.info("Linked to node '" + nodeId + "'.");
+				messenger.linkOpened(session, response);
+				updateRing();
+				announceClients(nodeId.toString());
+			} else {
+				messenger.commandReceived(session, command);
+			}
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSessionController#commandSent(
+		 * org.andresoviedo.util.messaging.api1.common.net.SocketSession, org.andresoviedo.util.messaging.api1.common.data.Command)
+		 */
+		public void commandSent(SocketSession session, Command command) {
+			messenger.commandSent(session, command);
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.SocketSessionController#sessionClosed
+		 * (org.andresoviedo.util.messaging.api1.common.net.SocketSession, boolean)
+		 */
+		public void sessionClosed(SocketSession session, boolean forced) {
+			// Messenger's handling removes the authenticated property, so the node leaves the ring.
+			messenger.linkClosed(session, forced);
+			if (started) {
+				updateRing();
+			}
+		}
+
+	}
+
+}
@@ -1,16 +1,28 @@
 package org.andresoviedo.util.messaging.api1.server;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.andresoviedo.util.messaging.api1.Messenger;
 import org.andresoviedo.util.messaging.api1.MessengerException;
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.ClientLocation;
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.SubscriptionRequest;
 import org.andresoviedo.util.messaging.api1.common.io.Persistence;
+import org.andresoviedo.util.messaging.api1.common.net.ResumeState;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
 import org.andresoviedo.util.messaging.api1.common.service.Service;
+import org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery;
 
 /**
  * The server messenger.
@@ -44,6 +56,26 @@ public class ServerMessenger extends Messenger {
 	 */
 	private SessionAuthenticator sessionAuthenticator;
 
+	/**
+	 * The topics published by this messenger and their subscribers.
+	 */
+	private TopicRegistry topics;
+
+	/**
+	 * The state of the streams of each client, by client id, kept across reconnections.
+	 */
+	private Map<String, ResumeState> resumeStates = new ConcurrentHashMap<String, ResumeState>();
+
+	/**
+	 * The cluster this messenger is a node of, while it's started and cluster nodes are configured.
+	 */
+	private volatile ServerCluster cluster;
+
+	/**
+	 * The cluster discovery set programmatically, used instead of the configured one.
+	 */
+	private ClusterDiscovery clusterDiscovery;
+
 	/**
 	 * Returns the single instance of this class.
 	 * 
@@ -53,20 +85,35 @@ public class ServerMessenger extends Messenger {
 		if (instance == null) {
 			synchronized (ServerMessenger.class) {
 				if (instance == null) {
-					instance = new ServerMessenger();
+					instance = new ServerMessenger(null);
 				}
 			}
 		}
 		return instance;
 	}
 
+	/**
+	 * Creates a new server messenger with the specified configuration file, e.g. to run several nodes of a cluster in the same JVM. It's not
+	 * the single instance of this class.
+	 * 
+	 * @param configFile
+	 *            the configuration file.
+	 * @return a new server messenger.
+	 */
+	public static ServerMessenger getInstance(String configFile) {
+		return new ServerMessenger(configFile);
+	}
+
 	/**
 	 * Creates a server messenger instance.
+	 * 
+	 * @param configFile
+	 *            the configuration file, or <code>null</code> to use the default one.
 	 */
-	private ServerMessenger() {
+	private ServerMessenger(String configFile) {
 		super();
 		// Creates the server configuration.
-		this.configuration = new ServerMessengerConfiguration();
+		this.configuration = new ServerMessengerConfiguration(configFile);
 
 		setClientId(configuration.getServerId());
 		// Create the server session.
@@ -75,6 +122,8 @@ public class ServerMessenger extends Messenger {
 		this.persistence = new Persistence(this.configuration.getPersistenceDirectory());
 
 		logger.info("Persistence directory: " + this.configuration.getPersistenceDirectory());
+		// Messages spilled to slow subscribers are stored apart.
+		this.topics = new TopicRegistry(new File(this.configuration.getPersistenceDirectory(), "topics"));
 
 		// Initialize services.
 		this.initialize();
@@ -148,11 +197,118 @@ public class ServerMessenger extends Messenger {
 		this.sessionAuthenticator = sessionAuthenticator;
 	}
 
+	/**
+	 * Returns the topics published by this messenger and their subscribers.
+	 * 
+	 * @return the topic registry.
+	 */
+	public TopicRegistry getTopicRegistry() {
+		return topics;
+	}
+
+	/**
+	 * Returns the cluster this messenger is a node of.
+	 * 
+	 * @return the cluster, or <code>null</code> if the messenger isn't started or isn't clustered.
+	 */
+	public ServerCluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Sets the cluster discovery, instead of the one configured. Takes effect the next time the messenger is started.
+	 * 
+	 * @param clusterDiscovery
+	 *            the cluster discovery, or <code>null</code> to use the configured one.
+	 */
+	public void setClusterDiscovery(ClusterDiscovery clusterDiscovery) {
+		this.clusterDiscovery = clusterDiscovery;
+	}
+
+	/**
+	 * Creates the configured cluster discovery.
+	 * 
+	 * @return the cluster discovery, or <code>null</code> if it cannot be instantiated.
+	 */
+	private ClusterDiscovery createClusterDiscovery() {
+		if (clusterDiscovery != null) {
+			return clusterDiscovery;
+		}
+		try {
+			return (ClusterDiscovery) Class.forName(configuration.getClusterDiscovery()).getConstructor().newInstance();
+		} catch (Exception e) {
+			logger.warning("Exception caught instantiating the cluster discovery: " + configuration.getClusterDiscovery());
+			return null;
+		}
+	}
+
+	/**
+	 * Publishes a message to the clients subscribed to a topic. The message is encoded once and the same frame is queued to every
+	 * subscriber, so it's much cheaper than sending it to each of them. Published messages are neither persisted nor acknowledged, messages
+	 * queued to slow subscribers are handled according to the slow subscriber policy of the topic registry.
+	 * 
+	 * @param topic
+	 *            the topic.
+	 * @param message
+	 *            the message to publish. Its target service id is the service receiving it in the clients. It's not modified, a copy not
+	 *            needing acknowledgement is published.
+	 * @return the number of subscribers the message has been queued to.
+	 * @throws MessengerException
+	 *             if the message is not valid or cannot be encoded.
+	 */
+	public int publish(String topic, Message message) throws MessengerException {
+		if (topic == null) {
+			throw new MessengerException("Invalid topic: null.");
+		}
+		validate(message);
+		Message published = message.copy();
+		published.setNeedsAck(false);
+		published.setSequence(0);
+		try {
+			return topics.publish(topic, published);
+		} catch (IOException e) {
+			throw new MessengerException("Exception caught while encoding the message.", e);
+		}
+	}
+
+	/**
+	 * Invoked from ServerSession when a client subscribes to or unsubscribes from a topic.
+	 * 
+	 * @param session
+	 *            the session of the client.
+	 * @param request
+	 *            the subscription request.
+	 */
+	void subscriptionReceived(SocketSession session, SubscriptionRequest request) {
+		if (request.isSubscribe()) {
+			topics.subscribe(session, request.getClientId(), request.getTopic());
+		} else {
+			topics.unsubscribe(session, request.getTopic());
+		}
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#sessionClosed(org.andresoviedo.util.messaging.api1.common.net.SocketSession,
+	 * boolean)
+	 */
+	public void sessionClosed(SocketSession session, boolean forced) {
+		topics.remove(session);
+		super.sessionClosed(session, forced);
+	}
+
 	/*
 	 * @see org.andresoviedo.util.messaging.api1.Messenger#start()
 	 */
 	public void start() {
+		super.start();
 		logger.info("Starting server messenger...");
+		if (configuration.isClustered() && (cluster == null)) {
+			ClusterDiscovery discovery = createClusterDiscovery();
+			if (discovery != null) {
+				cluster = new ServerCluster(this, discovery);
+				cluster.start();
+			}
+		}
 		try {
 			session.open();
 			logger.info("Server messenger started.");
@@ -166,7 +322,12 @@ public class ServerMessenger extends Messenger {
 	 */
 	public void stop() {
 		logger.info("Stopping server messenger...");
+		if (cluster != null) {
+			cluster.stop();
+			cluster = null;
+		}
 		session.close();
+		topics.close();
 		super.stop();
 		logger.info("Server messenger stopped.");
 	}
@@ -178,14 +339,22 @@ public class ServerMessenger extends Messenger {
 			return;
 		}
 
-		sendImpl(message);
+		// Never waits for the target client to grant credits, the message is spilled until it does.
+		relay(message);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#getSessions()
+	 */
+	protected List<SocketSession> getSessions() {
+		return session.getSessions();
 	}
 
 	/*
 	 * @see org.andresoviedo.util.messaging.api1.Messenger#sendImpl(org.andresoviedo.util.messaging.api1.common .data.Message)
 	 */
 	protected void sendImpl(Message message) throws MessengerException {
-		SocketSession clientSession = session.getSession(message.getTargetClientId());
+		SocketSession clientSession = getTargetSession(message);
 		if (clientSession != null) {
 			super.send(message, clientSession);
 		} else {
@@ -198,7 +367,7 @@ public class ServerMessenger extends Messenger {
 	 * long)
 	 */
 	protected Message sendAndReceiveImpl(Message message, long timeout) throws MessengerException, InterruptedException {
-		SocketSession clientSession = session.getSession(message.getTargetClientId());
+		SocketSession clientSession = getTargetSession(message);
 		if (clientSession != null) {
 			return super.sendAndReceive(message, clientSession, timeout);
 		} else {
@@ -206,13 +375,162 @@ public class ServerMessenger extends Messenger {
 		}
 	}
 
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.Messenger#sendAsyncImpl(org.andresoviedo.util.messaging.api1.common.data.Message, long)
+	 */
+	protected CompletableFuture<Message> sendAsyncImpl(Message message, long timeout) throws MessengerException {
+		SocketSession clientSession = getTargetSession(message);
+		if (clientSession != null) {
+			return super.sendAsync(message, clientSession, timeout);
+		} else {
+			throw new MessengerException("Client not available: " + message.getTargetClientId());
+		}
+	}
+
+	/**
+	 * Returns the session a message has to be sent through: the session of the target client if it's connected to this messenger, or else
+	 * the link to the node of the cluster the message has to be forwarded to.
+	 * 
+	 * @param message
+	 *            the message.
+	 * @return the session, or <code>null</code> if the target client is not available.
+	 */
+	private SocketSession getTargetSession(Message message) {
+		SocketSession clientSession = session.getSession(message.getTargetClientId());
+		ServerCluster current = cluster;
+		if ((clientSession == null) && (current != null)) {
+			clientSession = current.route(message);
+		}
+		return clientSession;
+	}
+
+	/**
+	 * Invoked from ServerSession when a client has logged in.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	void clientRegistered(String clientId) {
+		ServerCluster current = cluster;
+		if (current != null) {
+			current.clientRegistered(clientId);
+		}
+	}
+
+	/**
+	 * Invoked from ServerSession when a client has logged out and no other session of the client is registered.
+	 * 
+	 * @param clientId
+	 *            the client id.
+	 */
+	void clientUnregistered(String clientId) {
+		ServerCluster current = cluster;
+		if (current != null) {
+			current.clientUnregistered(clientId);
+		}
+	}
+
+	/**
+	 * Invoked from ServerSession when another node of the cluster tells where a client is connected.
+	 * 
+	 * @param location
+	 *            the location of the client.
+	 */
+	void locationReceived(ClientLocation location) {
+		ServerCluster current = cluster;
+		if (current != null) {
+			current.locationReceived(location);
+		}
+	}
+
+	/**
+	 * Invoked from ServerCluster when the link to another node has logged in.
+	 * 
+	 * @param link
+	 *            the link.
+	 * @param response
+	 *            the login response of the node.
+	 */
+	void linkOpened(SocketSession link, LoginResponse response) {
+		openCredits(link, response.getCreditWindow());
+		link.putProperty(SESSION_AUTHENTICATED_PROPERTY, Boolean.TRUE);
+		fireSessionOpened(link);
+	}
+
+	/**
+	 * Invoked from ServerCluster when the link to another node has been closed.
+	 * 
+	 * @param link
+	 *            the link.
+	 * @param forced
+	 *            <code>true</code> if the link has been closed using its <code>close()</code> method.
+	 */
+	void linkClosed(SocketSession link, boolean forced) {
+		super.sessionClosed(link, forced);
+	}
+
+	/**
+	 * Invoked from ServerSession when a client logs in, to resume its streams if the client offered to. The messages it missed have to be
+	 * sent before any other.
+	 * 
+	 * @param session
+	 *            the session of the client, not registered yet.
+	 * @param request
+	 *            the login request of the client.
+	 * @param response
+	 *            the login response about to be sent.
+	 * @return the messages to retransmit to the client, or <code>null</code> if the stream of the client starts again.
+	 */
+	List<Message> resumeSession(SocketSession session, LoginRequest request, LoginResponse response) {
+		if (!MessengerProperties.isResumeEnabled() || (request.getStreamId() == 0)) {
+			// Older clients don't number their messages.
+			return null;
+		}
+		ResumeState state = resumeStates.get(request.getClientId());
+		if (state == null) {
+			ResumeState created = new ResumeState();
+			state = resumeStates.putIfAbsent(request.getClientId(), created);
+			if (state == null) {
+				state = created;
+			}
+		}
+		List<Message> acknowledged = new ArrayList<Message>();
+		List<Message> missed = state.accept(request, response, acknowledged);
+		session.setResumeState(state);
+		session.setSequencing(true);
+		deleteAcknowledged(acknowledged);
+		return missed;
+	}
+
+	/**
+	 * Invoked from ServerSession when a client logs in, to start the flow control of its session. The credits the client grants to the
+	 * services of this messenger are taken from the login request, and the ones granted to the client are answered in the login response.
+	 * 
+	 * @param session
+	 *            the session of the client.
+	 * @param request
+	 *            the login request of the client.
+	 * @param response
+	 *            the login response about to be sent.
+	 */
+	void openCredits(SocketSession session, LoginRequest request, LoginResponse response) {
+		response.setCreditWindow(openCredits(session, request.getCreditWindow()));
+	}
+
 	/**
 	 * Invoked from ServerSession when a session has been registered.
 	 * 
 	 * @param clientId
 	 *            the client id.
+	 * @param resumed
+	 *            whether the stream of the client has been resumed, so only the messages which couldn't be sent are missing.
 	 */
-	void resendPersistedMessages(String clientId) {
+	void resendPersistedMessages(String clientId, boolean resumed) {
+		if (resumed) {
+			resendUnsentMessages(clientId);
+			return;
+		}
+		clearUnsentMessages(clientId);
 		// We're now connected, then send all persisted messages. Notice
 		// messages are not removed from persistence.
 		try {
@@ -222,7 +540,7 @@ public class ServerMessenger extends Messenger {
 				if (message != null) {
 					// Send the message. This method will remove this message
 					// from persistence if needed.
-					send(message, false);
+					resend(message);
 				}
 			}
 		} catch (MessengerException e) {
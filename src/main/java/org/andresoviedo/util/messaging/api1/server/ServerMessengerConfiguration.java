@@ -4,9 +4,13 @@ import java.io.File;
 import java.util.List;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.logging.Logger;
 
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
 import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfiguration;
+import org.andresoviedo.util.messaging.api1.server.cluster.ClusterNode;
+import org.andresoviedo.util.messaging.api1.server.cluster.ConsistentHashRing;
+import org.andresoviedo.util.messaging.api1.server.cluster.StaticClusterDiscovery;
 
 /**
  * Server messenger configuration.
@@ -15,6 +19,11 @@ import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfigurat
  */
 public class ServerMessengerConfiguration extends BasicConfiguration {
 
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
 	/**
 	 * Configuration file system property name.
 	 */
@@ -35,11 +44,46 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 	 */
 	public static final String SYSTEM_PROPERTY_PERSISTENCE_DIRECTORY = "messaging.persistenceDirectory";
 
+	/**
+	 * Transport system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_TRANSPORT = "messaging.server.transport";
+
+	/**
+	 * Codec system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_CODEC = "messaging.server.codec";
+
+	/**
+	 * Selector threads system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_SELECTOR_THREADS = "messaging.server.selectorThreads";
+
 	/**
 	 * HttpXMLTT system property prefix.
 	 */
 	public static final String SYSTEM_PROPERTY_PREFIX_SERVICE = "messaging.server.service";
 
+	/**
+	 * Cluster node system property prefix.
+	 */
+	public static final String SYSTEM_PROPERTY_PREFIX_CLUSTER_NODE = "messaging.server.clusterNode";
+
+	/**
+	 * Cluster discovery system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_CLUSTER_DISCOVERY = "messaging.server.clusterDiscovery";
+
+	/**
+	 * Cluster virtual nodes system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_CLUSTER_VIRTUAL_NODES = "messaging.server.clusterVirtualNodes";
+
+	/**
+	 * Cluster reconnection delay system property name.
+	 */
+	public static final String SYSTEM_PROPERTY_CLUSTER_RECONNECTION_DELAY = "messaging.server.clusterReconnectionDelay";
+
 	/**
 	 * Host configuration file property name.
 	 */
@@ -55,11 +99,46 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 	 */
 	private static final String PROPERTY_PERSISTENCE_DIRECTORY = "messaging.persistenceDirectory";
 
+	/**
+	 * Transport configuration file property name.
+	 */
+	private static final String PROPERTY_TRANSPORT = "transport";
+
+	/**
+	 * Codec configuration file property name.
+	 */
+	private static final String PROPERTY_CODEC = "codec";
+
+	/**
+	 * Selector threads configuration file property name.
+	 */
+	private static final String PROPERTY_SELECTOR_THREADS = "selector-threads";
+
 	/**
 	 * HttpXMLTT configuration file property prefix.
 	 */
 	private static final String PROPERTY_PREFIX_SERVICE = "service";
 
+	/**
+	 * Cluster node configuration file property prefix.
+	 */
+	private static final String PROPERTY_PREFIX_CLUSTER_NODE = "cluster-node";
+
+	/**
+	 * Cluster discovery configuration file property name.
+	 */
+	private static final String PROPERTY_CLUSTER_DISCOVERY = "cluster-discovery";
+
+	/**
+	 * Cluster virtual nodes configuration file property name.
+	 */
+	private static final String PROPERTY_CLUSTER_VIRTUAL_NODES = "cluster-virtual-nodes";
+
+	/**
+	 * Cluster reconnection delay configuration file property name.
+	 */
+	private static final String PROPERTY_CLUSTER_RECONNECTION_DELAY = "cluster-reconnection-delay";
+
 	/**
 	 * Configuration file's default value.
 	 */
@@ -80,11 +159,36 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 	 */
 	private static final String DEFAULT_PERSISTENCE_DIRECTORY = "." + File.separator + "messages-server";
 
+	/**
+	 * The default number of selector threads when using the NIO transport.
+	 */
+	private static final int DEFAULT_SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The default delay between attempts to connect to the other nodes of the cluster.
+	 */
+	private static final int DEFAULT_CLUSTER_RECONNECTION_DELAY = 5000;
+
 	/**
 	 * The address to bind the server socket to.
 	 */
 	private String host;
 
+	/**
+	 * The transport used to accept clients, either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 */
+	private String transport;
+
+	/**
+	 * The codec offered at login, either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 */
+	private String codec;
+
+	/**
+	 * The number of selector threads when using the NIO transport.
+	 */
+	private int selectorThreads;
+
 	/**
 	 * The port to bind the server socket to.
 	 */
@@ -100,14 +204,44 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 	 */
 	private List<String> serviceList;
 
+	/**
+	 * The nodes of the cluster, empty if the messenger is not clustered.
+	 */
+	private List<ClusterNode> clusterNodes;
+
+	/**
+	 * The class name of the cluster discovery.
+	 */
+	private String clusterDiscovery;
+
+	/**
+	 * The number of points of each node in the consistent hash ring.
+	 */
+	private int clusterVirtualNodes;
+
+	/**
+	 * The delay between attempts to connect to the other nodes of the cluster.
+	 */
+	private int clusterReconnectionDelay;
+
 	private String serverId;
 
 	/**
-	 * Constructs a new client messenger configuration.
+	 * Constructs a new server messenger configuration.
 	 */
 	public ServerMessengerConfiguration() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a new server messenger configuration.
+	 * 
+	 * @param configFile
+	 *            the configuration file, or <code>null</code> to use the default one.
+	 */
+	public ServerMessengerConfiguration(String configFile) {
 		// Try to load properties from a file.
-		super.load(SYSTEM_PROPERTY_CONFIGURATION_FILE, DEFAULT_CONFIGURATION_FILE);
+		super.load(SYSTEM_PROPERTY_CONFIGURATION_FILE, configFile != null ? configFile : DEFAULT_CONFIGURATION_FILE);
 
 		this.serverId = getProperty(MessengerProperties.SYSTEM_PROPERTY_NODE_ID, UUID.randomUUID().toString());
 
@@ -122,6 +256,16 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 		// Set the persistence direetory.
 		persistenceDirectory = new File(getProperty(PROPERTY_PERSISTENCE_DIRECTORY, SYSTEM_PROPERTY_PERSISTENCE_DIRECTORY,
 				DEFAULT_PERSISTENCE_DIRECTORY));
+		// Set the transport.
+		transport = getProperty(PROPERTY_TRANSPORT, SYSTEM_PROPERTY_TRANSPORT, TRANSPORT_BLOCKING);
+		// Set the codec.
+		codec = getProperty(PROPERTY_CODEC, SYSTEM_PROPERTY_CODEC, CODEC_BINARY);
+		try {
+			selectorThreads = Integer.parseInt(getProperty(PROPERTY_SELECTOR_THREADS, SYSTEM_PROPERTY_SELECTOR_THREADS,
+					String.valueOf(DEFAULT_SELECTOR_THREADS)));
+		} catch (NumberFormatException e) {
+			selectorThreads = DEFAULT_SELECTOR_THREADS;
+		}
 		// Set the list of services. Check for properties named "service1",
 		// "service2", [...] ,"serviceN".
 		this.serviceList = new Vector<String>();
@@ -133,6 +277,32 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 			}
 			i++;
 		}
+		// Set the nodes of the cluster. Check for properties named "cluster-node1", "cluster-node2", [...], "cluster-nodeN", written as
+		// nodeId@host@port.
+		this.clusterNodes = new Vector<ClusterNode>();
+		i = 1;
+		String node = null;
+		while ((node = getProperty(PROPERTY_PREFIX_CLUSTER_NODE + i, SYSTEM_PROPERTY_PREFIX_CLUSTER_NODE + i, null)) != null) {
+			try {
+				clusterNodes.add(ClusterNode.parse(node));
+			} catch (IllegalArgumentException e) {
+				logger.warning(e.getMessage());
+			}
+			i++;
+		}
+		clusterDiscovery = getProperty(PROPERTY_CLUSTER_DISCOVERY, SYSTEM_PROPERTY_CLUSTER_DISCOVERY, StaticClusterDiscovery.class.getName());
+		try {
+			clusterVirtualNodes = Integer.parseInt(getProperty(PROPERTY_CLUSTER_VIRTUAL_NODES, SYSTEM_PROPERTY_CLUSTER_VIRTUAL_NODES,
+					String.valueOf(ConsistentHashRing.DEFAULT_VIRTUAL_NODES)));
+		} catch (NumberFormatException e) {
+			clusterVirtualNodes = ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+		}
+		try {
+			clusterReconnectionDelay = Integer.parseInt(getProperty(PROPERTY_CLUSTER_RECONNECTION_DELAY,
+					SYSTEM_PROPERTY_CLUSTER_RECONNECTION_DELAY, String.valueOf(DEFAULT_CLUSTER_RECONNECTION_DELAY)));
+		} catch (NumberFormatException e) {
+			clusterReconnectionDelay = DEFAULT_CLUSTER_RECONNECTION_DELAY;
+		}
 	}
 
 	/**
@@ -211,8 +381,130 @@ public class ServerMessengerConfiguration extends BasicConfiguration {
 		this.serviceList = serviceList;
 	}
 
+	/**
+	 * Returns the transport used to accept clients, either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 * 
+	 * @return the transport.
+	 */
+	public String getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets the transport used to accept clients. Takes effect the next time the messenger is started.
+	 * 
+	 * @param transport
+	 *            either <code>TRANSPORT_BLOCKING</code> or <code>TRANSPORT_NIO</code>.
+	 */
+	public void setTransport(String transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the codec offered at login, either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 * 
+	 * @return the codec.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec offered at login. Commands are sent with Java serialization unless both peers offer the binary codec.
+	 * 
+	 * @param codec
+	 *            either <code>CODEC_BINARY</code> or <code>CODEC_SERIALIZATION</code>.
+	 */
+	public void setCodec(String codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the number of selector threads used by the NIO transport.
+	 * 
+	 * @return the number of selector threads.
+	 */
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * Sets the number of selector threads used by the NIO transport.
+	 * 
+	 * @param selectorThreads
+	 *            the new number of selector threads.
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
 	public String getServerId() {
 		return this.serverId;
 	}
 
+	/**
+	 * Returns whether the messenger is a node of a cluster, that is, whether cluster nodes are configured.
+	 * 
+	 * @return <code>true</code> if the messenger is clustered.
+	 */
+	public boolean isClustered() {
+		return !clusterNodes.isEmpty();
+	}
+
+	/**
+	 * Returns the nodes of the cluster. The local node may be one of them.
+	 * 
+	 * @return the nodes of the cluster, empty if the messenger is not clustered.
+	 */
+	public List<ClusterNode> getClusterNodes() {
+		return clusterNodes;
+	}
+
+	/**
+	 * Sets the nodes of the cluster. Takes effect the next time the messenger is started.
+	 * 
+	 * @param clusterNodes
+	 *            the nodes of the cluster, empty if the messenger is not clustered.
+	 */
+	public void setClusterNodes(List<ClusterNode> clusterNodes) {
+		this.clusterNodes = clusterNodes;
+	}
+
+	/**
+	 * Returns the class name of the cluster discovery, <code>StaticClusterDiscovery</code> by default.
+	 * 
+	 * @return the class name of the cluster discovery.
+	 */
+	public String getClusterDiscovery() {
+		return clusterDiscovery;
+	}
+
+	/**
+	 * Sets the class name of the cluster discovery. It must implement <code>ClusterDiscovery</code>.
+	 * 
+	 * @param clusterDiscovery
+	 *            the class name of the cluster discovery.
+	 */
+	public void setClusterDiscovery(String clusterDiscovery) {
+		this.clusterDiscovery = clusterDiscovery;
+	}
+
+	/**
+	 * Returns the number of points of each node in the consistent hash ring.
+	 * 
+	 * @return the number of virtual nodes.
+	 */
+	public int getClusterVirtualNodes() {
+		return clusterVirtualNodes;
+	}
+
+	/**
+	 * Returns the delay between attempts to connect to the other nodes of the cluster, in milliseconds.
+	 * 
+	 * @return the cluster reconnection delay.
+	 */
+	public int getClusterReconnectionDelay() {
+		return clusterReconnectionDelay;
+	}
+
 }
\ No newline at end of file
@@ -1,7 +1,11 @@
 package org.andresoviedo.util.messaging.api1.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
@@ -12,11 +16,16 @@ import java.util.logging.Logger;
 import org.andresoviedo.util.messaging.api1.Messenger;
 import org.andresoviedo.util.messaging.api1.MessengerException;
 import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.configuration.BasicConfiguration;
+import org.andresoviedo.util.messaging.api1.common.data.ClientLocation;
 import org.andresoviedo.util.messaging.api1.common.data.Command;
 import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
 import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
 import org.andresoviedo.util.messaging.api1.common.data.Message;
 import org.andresoviedo.util.messaging.api1.common.data.SignalingCommand;
+import org.andresoviedo.util.messaging.api1.common.data.SubscriptionRequest;
+import org.andresoviedo.util.messaging.api1.common.net.NioReactor;
+import org.andresoviedo.util.messaging.api1.common.net.NioSocketSession;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSessionController;
 import org.andresoviedo.util.messaging.api1.common.net.SocketSessionException;
@@ -43,6 +52,16 @@ public class ServerSession implements Runnable, SocketSessionController {
 	 */
 	private Thread serverThread;
 
+	/**
+	 * The server channel, when the NIO transport is used.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * The reactor serving client sessions, when the NIO transport is used.
+	 */
+	private NioReactor reactor;
+
 	/**
 	 * The map of client sessions (stored with the client id as the key). Only authenticated sessions are stored.
 	 */
@@ -83,6 +102,12 @@ public class ServerSession implements Runnable, SocketSessionController {
 			return;
 		}
 
+		if (BasicConfiguration.TRANSPORT_NIO.equals(messenger.getConfiguration().getTransport())) {
+			openNio();
+			opened = true;
+			return;
+		}
+
 		// Try to create the server socket.
 		try {
 			logger.info("Opening server socket at port: " + messenger.getConfiguration().getPort());
@@ -101,6 +126,44 @@ public class ServerSession implements Runnable, SocketSessionController {
 		opened = true;
 	}
 
+	/**
+	 * Opens the server channel and registers it with a new reactor.
+	 * 
+	 * @throws ServerSessionException
+	 *             if something goes wrong.
+	 */
+	private void openNio() throws ServerSessionException {
+		try {
+			logger.info("Opening server channel at port: " + messenger.getConfiguration().getPort());
+			reactor = new NioReactor("Server", messenger.getConfiguration().getSelectorThreads());
+			reactor.start();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(messenger.getConfiguration().getPort()));
+			reactor.register(serverChannel, SelectionKey.OP_ACCEPT, new AcceptHandler());
+		} catch (IOException e) {
+			closeNio();
+			throw new ServerSessionException("Exception caught while creating server channel.", e);
+		}
+	}
+
+	/**
+	 * Closes the server channel and stops the reactor.
+	 */
+	private void closeNio() {
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				logger.warning("Exception caught while closing the server channel: " + e.getMessage());
+			}
+			serverChannel = null;
+		}
+		if (reactor != null) {
+			reactor.stop();
+			reactor = null;
+		}
+	}
+
 	/**
 	 * Closes this session.
 	 */
@@ -130,6 +193,9 @@ public class ServerSession implements Runnable, SocketSessionController {
 		// Close all sessions.
 		closeAllSessions();
 
+		// Stop the reactor, if any.
+		closeNio();
+
 		// We now consider that this session is closed.
 		opened = false;
 	}
@@ -260,8 +326,34 @@ public class ServerSession implements Runnable, SocketSessionController {
 	 *            the socket session.
 	 * @param clientId
 	 *            the client id.
+	 * @param resumed
+	 *            whether the stream sent to the client has been resumed.
+	 */
+	private void registerSession(SocketSession session, String clientId, boolean resumed) {
+		closeOldSession(session, clientId);
+		// Store the client id property for later use and mark the session
+		// as authenticated.
+		session.putProperty(Messenger.SESSION_AUTHENTICATED_PROPERTY, Boolean.TRUE);
+		session.putProperty(Messenger.SESSION_CLIENT_ID_PROPERTY, clientId);
+		// Add the session to the table.
+		putSession(session);
+		// Tell the owner of the client, if clustered.
+		messenger.clientRegistered(clientId);
+		// Resend persisted messages.
+		messenger.resendPersistedMessages(clientId, resumed);
+		// Fire the event.
+		messenger.fireSessionOpened(session);
+	}
+
+	/**
+	 * Closes the session registered with the specified client id, if it's not the specified session.
+	 * 
+	 * @param session
+	 *            the new socket session of the client.
+	 * @param clientId
+	 *            the client id.
 	 */
-	private void registerSession(SocketSession session, String clientId) {
+	private void closeOldSession(SocketSession session, String clientId) {
 		// Check whether the session is already in the table.
 		SocketSession oldSession = getSession(clientId);
 		logger.fine("Session object for clientId '" + clientId + "' is " + oldSession + ".");
@@ -271,26 +363,11 @@ public class ServerSession implements Runnable, SocketSessionController {
 			logger.warning("A session with client id '" + clientId + "' already exists. The old one will be closed.");
 			// The session will be removed when sessionClosed() is invoked.
 			oldSession.close();
-			// removeSession(oldSession);
-			oldSession = null;
-		}
-		// If 'oldSession' is null, register the session.
-		if (oldSession == null) {
-			// Store the client id property for later use and mark the session
-			// as authenticated.
-			session.putProperty(Messenger.SESSION_AUTHENTICATED_PROPERTY, Boolean.TRUE);
-			session.putProperty(Messenger.SESSION_CLIENT_ID_PROPERTY, clientId);
-			// Add the session to the table.
-			putSession(session);
-			// Resend persisted messages.
-			messenger.resendPersistedMessages(clientId);
 		}
-		// Fire the event.
-		messenger.fireSessionOpened(session);
 	}
 
 	/**
-	 * Implements signaling logic. Only login is handled.
+	 * Implements signaling logic. Only login, subscriptions and client locations are handled.
 	 * 
 	 * @param session
 	 *            the socket session.
@@ -306,14 +383,35 @@ public class ServerSession implements Runnable, SocketSessionController {
 			if ((authenticator == null) || authenticator.authenticate(request.getClientId())) {
 				// Login successful, send back the ack and register the session.
 				logger.info("Successful logon attempt from clientId [" + request.getClientId() + "]");
-				session.send(new LoginResponse(request.getClientId(), LoginResponse.LOGIN_OK));
-				registerSession(session, request.getClientId());
+				// Nothing must be sent through the old session while the streams of the client are resumed.
+				closeOldSession(session, request.getClientId());
+				LoginResponse response = new LoginResponse(request.getClientId(), LoginResponse.LOGIN_OK);
+				List<Message> missed = messenger.resumeSession(session, request, response);
+				messenger.openCredits(session, request, response);
+				session.send(response);
+				if ((missed != null) && !missed.isEmpty()) {
+					// Queued before the session is registered, so before any new message.
+					session.send(missed);
+				}
+				registerSession(session, request.getClientId(), missed != null);
 			} else {
 				// Login failed, send back the ack and close the session.
 				logger.info("Invalid logon attempt from clientId [" + request.getClientId() + "]. Session will be closed.");
 				session.send(new LoginResponse(request.getClientId(), LoginResponse.LOGIN_NOT_OK));
 				session.close();
 			}
+		} else if (command instanceof SubscriptionRequest) {
+			if (isSessionRegistered(session)) {
+				messenger.subscriptionReceived(session, (SubscriptionRequest) command);
+			} else {
+				logger.warning("Subscription received from an unregistered session, ignoring it...");
+			}
+		} else if (command instanceof ClientLocation) {
+			if (isSessionRegistered(session)) {
+				messenger.locationReceived((ClientLocation) command);
+			} else {
+				logger.warning("Client location received from an unregistered session, ignoring it...");
+			}
 		} else {
 			// Any other signaling commands are processed at messenger level.
 			messenger.commandReceived(session, command);
@@ -371,7 +469,13 @@ public class ServerSession implements Runnable, SocketSessionController {
 	public void sessionClosed(SocketSession session, boolean forced) {
 		// WARNING! We may receive a "session closed" event from a session that
 		// hasn't been registered.
+		boolean registered = isSessionRegistered(session);
 		removeSession(session);
+		Object clientId = session.getProperty(Messenger.SESSION_CLIENT_ID_PROPERTY);
+		if (registered && (getSession(clientId) == null)) {
+			// Tell the owner of the client, if clustered.
+			messenger.clientUnregistered(clientId.toString());
+		}
 		// Forward the event to the messenger.
 		messenger.sessionClosed(session, forced);
 	}
@@ -385,6 +489,45 @@ public class ServerSession implements Runnable, SocketSessionController {
 		messenger.sessionOpened(session);
 	}
 
+	/**
+	 * Accepts incoming connections on the server channel and opens a session for each one.
+	 */
+	private class AcceptHandler implements NioReactor.Handler {
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#ready(java.nio.channels.SelectionKey)
+		 */
+		public void ready(SelectionKey key) {
+			try {
+				SocketChannel channel;
+				while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+					SocketSession session = new NioSocketSession(messenger.getConfiguration().getServerId(), channel, ServerSession.this,
+							reactor);
+					// No reconnection wanted.
+					session.setReconnectionDelay(0);
+					session.setCodec(BasicConfiguration.createCodec(messenger.getConfiguration().getCodec()));
+					session.getMetrics().setMessengerMetrics(messenger.getMetrics());
+					try {
+						session.open();
+					} catch (SocketSessionException e) {
+						logger.warning("SocketSessionException caught: " + e.getMessage());
+						// Close the session, just in case.
+						session.close();
+					}
+				}
+			} catch (IOException e) {
+				logger.warning("IOException caught: " + e.getMessage());
+			}
+		}
+
+		/*
+		 * @see org.andresoviedo.util.messaging.api1.common.net.NioReactor.Handler#stopped()
+		 */
+		public void stopped() {
+		}
+
+	}
+
 	/**
 	 * A thread to handle incoming connection requests.
 	 */
@@ -397,6 +540,8 @@ public class ServerSession implements Runnable, SocketSessionController {
 			this.session = session;
 			// No reconnection wanted.
 			this.session.setReconnectionDelay(0);
+			this.session.setCodec(BasicConfiguration.createCodec(messenger.getConfiguration().getCodec()));
+			this.session.getMetrics().setMessengerMetrics(messenger.getMetrics());
 		}
 
 		/*
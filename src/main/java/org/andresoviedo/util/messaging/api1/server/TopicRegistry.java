@@ -0,0 +1,537 @@
+package org.andresoviedo.util.messaging.api1.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageCodec;
+import org.andresoviedo.util.messaging.api1.common.io.Persistence;
+import org.andresoviedo.util.messaging.api1.common.io.PersistenceException;
+import org.andresoviedo.util.messaging.api1.common.net.SharedFrame;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSessionException;
+import org.andresoviedo.util.messaging.api1.common.net.TimingWheel;
+
+/**
+ * The topics published by the server messenger and the sessions subscribed to them. A message published to a topic is encoded once into a
+ * <code>SharedFrame</code>, which is queued as is to the session of every subscriber agreeing on the same codec.
+ * <p>
+ * A subscriber is slow when more than <code>maxBacklog</code> commands are queued to its session. What happens then to the messages
+ * published to it depends on the slow subscriber policy: the oldest message queued to it is discarded, its session is closed, or messages
+ * are spilled to a persistence of its own and sent in order once it catches up. As elsewhere, only messages with a timeout greater or
+ * equal to 0 are persisted, the ones expiring immediately are discarded instead of being spilled.
+ * </p>
+ * <p>
+ * Subscriptions belong to a session, so they're removed when the session is closed and clients subscribe again when they reconnect.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class TopicRegistry {
+
+	/**
+	 * A static reference to the logger object.
+	 */
+	private static Logger logger = Logger.getLogger(MessengerProperties.LOGGER_NAME);
+
+	/**
+	 * The delay between attempts to send spilled messages, in milliseconds.
+	 */
+	private static final long DRAIN_DELAY = 100;
+
+	/**
+	 * The directory spilled messages are stored in, with a subdirectory for each client.
+	 */
+	private final File spillDirectory;
+
+	/**
+	 * The subscribers of each topic.
+	 */
+	private final ConcurrentHashMap<String, List<Subscriber>> topics = new ConcurrentHashMap<String, List<Subscriber>>();
+
+	/**
+	 * The subscribers, by session.
+	 */
+	private final ConcurrentHashMap<SocketSession, Subscriber> subscribers = new ConcurrentHashMap<SocketSession, Subscriber>();
+
+	/**
+	 * The persistences holding spilled messages, by client id. They're kept when the client disconnects.
+	 */
+	private final Map<String, Persistence> spills = new ConcurrentHashMap<String, Persistence>();
+
+	/**
+	 * Schedules the attempts to send spilled messages.
+	 */
+	private final TimingWheel drains = new TimingWheel("TMS@Topics", 50, 64);
+
+	/**
+	 * The maximum number of commands queued to a subscriber before it's considered slow.
+	 */
+	private volatile int maxBacklog = MessengerProperties.getMaxSubscriberBacklog();
+
+	/**
+	 * What happens to messages published to a slow subscriber.
+	 */
+	private volatile String slowSubscriberPolicy = MessengerProperties.getSlowSubscriberPolicy();
+
+	/**
+	 * The number of messages published.
+	 */
+	private final AtomicLong published = new AtomicLong();
+
+	/**
+	 * The number of copies of messages discarded because their subscriber was slow.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * The number of copies of messages spilled because their subscriber was slow.
+	 */
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * The number of copies of messages not delivered because their subscriber was slow and has been disconnected.
+	 */
+	private final AtomicLong disconnected = new AtomicLong();
+
+	/**
+	 * A session subscribed to one or more topics.
+	 */
+	private static final class Subscriber {
+
+		/**
+		 * The client id.
+		 */
+		private final String clientId;
+
+		/**
+		 * The session.
+		 */
+		private final SocketSession session;
+
+		/**
+		 * The topics the session is subscribed to.
+		 */
+		private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * The persistence holding spilled messages, or <code>null</code> if none has been spilled yet. Guarded by the subscriber.
+		 */
+		private Persistence spill;
+
+		/**
+		 * Whether an attempt to send spilled messages has been scheduled. Guarded by the subscriber.
+		 */
+		private boolean drainScheduled;
+
+		/**
+		 * Whether the subscriber has been removed.
+		 */
+		private volatile boolean removed;
+
+		/**
+		 * Creates a new subscriber.
+		 */
+		private Subscriber(String clientId, SocketSession session) {
+			this.clientId = clientId;
+			this.session = session;
+		}
+
+	}
+
+	/**
+	 * Creates a new registry.
+	 *
+	 * @param spillDirectory
+	 *            the directory spilled messages are stored in.
+	 */
+	TopicRegistry(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Returns the maximum number of commands queued to a subscriber before it's considered slow.
+	 *
+	 * @return the maximum number of commands queued to a subscriber.
+	 */
+	public int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	/**
+	 * Sets the maximum number of commands queued to a subscriber before it's considered slow.
+	 *
+	 * @param maxBacklog
+	 *            the maximum number of commands queued to a subscriber.
+	 */
+	public void setMaxBacklog(int maxBacklog) {
+		if (maxBacklog < 1) {
+			throw new IllegalArgumentException("Invalid backlog: " + maxBacklog);
+		}
+		this.maxBacklog = maxBacklog;
+	}
+
+	/**
+	 * Returns what happens to messages published to a slow subscriber.
+	 *
+	 * @return the slow subscriber policy.
+	 */
+	public String getSlowSubscriberPolicy() {
+		return slowSubscriberPolicy;
+	}
+
+	/**
+	 * Sets what happens to messages published to a slow subscriber.
+	 *
+	 * @param slowSubscriberPolicy
+	 *            one of <code>MessengerProperties.SLOW_SUBSCRIBER_DROP_OLDEST</code>,
+	 *            <code>MessengerProperties.SLOW_SUBSCRIBER_DISCONNECT</code> or <code>MessengerProperties.SLOW_SUBSCRIBER_SPILL</code>.
+	 */
+	public void setSlowSubscriberPolicy(String slowSubscriberPolicy) {
+		if (!MessengerProperties.SLOW_SUBSCRIBER_DROP_OLDEST.equals(slowSubscriberPolicy)
+				&& !MessengerProperties.SLOW_SUBSCRIBER_DISCONNECT.equals(slowSubscriberPolicy)
+				&& !MessengerProperties.SLOW_SUBSCRIBER_SPILL.equals(slowSubscriberPolicy)) {
+			throw new IllegalArgumentException("Unknown slow subscriber policy: " + slowSubscriberPolicy);
+		}
+		this.slowSubscriberPolicy = slowSubscriberPolicy;
+	}
+
+	/**
+	 * Returns the topics with at least one subscriber.
+	 *
+	 * @return the topics with at least one subscriber.
+	 */
+	public List<String> getTopics() {
+		List<String> ret = new ArrayList<String>();
+		for (Map.Entry<String, List<Subscriber>> entry : topics.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				ret.add(entry.getKey());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the client ids of the subscribers of a topic.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @return the client ids of the subscribers of the topic.
+	 */
+	public List<String> getSubscribers(String topic) {
+		List<String> ret = new ArrayList<String>();
+		List<Subscriber> list = topics.get(topic);
+		if (list != null) {
+			for (Subscriber subscriber : list) {
+				ret.add(subscriber.clientId);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the number of messages published.
+	 *
+	 * @return the number of messages published.
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * Returns the number of copies of messages discarded because their subscriber was slow.
+	 *
+	 * @return the number of copies of messages discarded.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of copies of messages spilled because their subscriber was slow.
+	 *
+	 * @return the number of copies of messages spilled.
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/**
+	 * Returns the number of copies of messages not delivered because their subscriber was slow and has been disconnected.
+	 *
+	 * @return the number of copies of messages not delivered.
+	 */
+	public long getDisconnected() {
+		return disconnected.get();
+	}
+
+	/**
+	 * Subscribes a session to a topic.
+	 *
+	 * @param session
+	 *            the session.
+	 * @param clientId
+	 *            the client id of the session.
+	 * @param topic
+	 *            the topic.
+	 */
+	void subscribe(SocketSession session, String clientId, String topic) {
+		Subscriber subscriber = subscribers.get(session);
+		if (subscriber == null) {
+			Subscriber created = new Subscriber(clientId, session);
+			subscriber = subscribers.putIfAbsent(session, created);
+			if (subscriber == null) {
+				subscriber = created;
+				// Messages spilled before the client reconnected, or before a restart, are sent first.
+				if (spills.containsKey(clientId) || new File(spillDirectory, clientId).isDirectory()) {
+					synchronized (subscriber) {
+						subscriber.spill = getSpill(clientId);
+						scheduleDrain(subscriber);
+					}
+				}
+			}
+		}
+		if (subscriber.topics.add(topic)) {
+			List<Subscriber> list = topics.get(topic);
+			if (list == null) {
+				List<Subscriber> created = new CopyOnWriteArrayList<Subscriber>();
+				list = topics.putIfAbsent(topic, created);
+				if (list == null) {
+					list = created;
+				}
+			}
+			list.add(subscriber);
+			logger.fine("Client '" + clientId + "' subscribed to topic '" + topic + "'.");
+		}
+		if (subscriber.removed) {
+			// The session was closed meanwhile.
+			remove(session);
+		}
+	}
+
+	/**
+	 * Unsubscribes a session from a topic.
+	 *
+	 * @param session
+	 *            the session.
+	 * @param topic
+	 *            the topic.
+	 */
+	void unsubscribe(SocketSession session, String topic) {
+		Subscriber subscriber = subscribers.get(session);
+		if ((subscriber != null) && subscriber.topics.remove(topic)) {
+			List<Subscriber> list = topics.get(topic);
+			if (list != null) {
+				list.remove(subscriber);
+			}
+			logger.fine("Client '" + subscriber.clientId + "' unsubscribed from topic '" + topic + "'.");
+		}
+	}
+
+	/**
+	 * Removes all the subscriptions of a session. Messages spilled to it are kept until its client subscribes again.
+	 *
+	 * @param session
+	 *            the session.
+	 */
+	void remove(SocketSession session) {
+		Subscriber subscriber = subscribers.remove(session);
+		if (subscriber == null) {
+			return;
+		}
+		subscriber.removed = true;
+		for (String topic : subscriber.topics) {
+			List<Subscriber> list = topics.get(topic);
+			if (list != null) {
+				list.remove(subscriber);
+			}
+		}
+	}
+
+	/**
+	 * Publishes a message to the subscribers of a topic.
+	 *
+	 * @param topic
+	 *            the topic.
+	 * @param message
+	 *            the message.
+	 * @return the number of subscribers the message has been queued or spilled to.
+	 * @throws IOException
+	 *             if the message cannot be encoded.
+	 */
+	int publish(String topic, Message message) throws IOException {
+		List<Subscriber> list = topics.get(topic);
+		if ((list == null) || list.isEmpty()) {
+			return 0;
+		}
+		published.incrementAndGet();
+		message.setTimeSent(new Date());
+
+		// Sessions are usually created with the same codec, so the message is encoded once.
+		SharedFrame frame = null;
+		int delivered = 0;
+		for (Subscriber subscriber : list) {
+			MessageCodec codec = subscriber.session.getCodec();
+			if ((codec != null) && ((frame == null) || (frame.getVersion() != codec.getVersion()))) {
+				frame = SharedFrame.encode(codec, message);
+			}
+			if (deliver(subscriber, message, (codec != null) ? frame : null)) {
+				delivered++;
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * Delivers a published message to a subscriber, applying the slow subscriber policy if needed.
+	 *
+	 * @return <code>true</code> if the message has been queued or spilled.
+	 */
+	private boolean deliver(Subscriber subscriber, Message message, SharedFrame frame) {
+		SocketSession session = subscriber.session;
+		synchronized (subscriber) {
+			try {
+				if ((subscriber.spill != null) && (subscriber.spill.size() > 0)) {
+					// Keep the order, nothing is sent until every spilled message has been.
+					drain(subscriber);
+					if (subscriber.spill.size() > 0) {
+						return spill(subscriber, message);
+					}
+				}
+				if (session.getPendingCommands() >= maxBacklog) {
+					String policy = slowSubscriberPolicy;
+					if (MessengerProperties.SLOW_SUBSCRIBER_DISCONNECT.equals(policy)) {
+						logger.warning("Subscriber '" + subscriber.clientId + "' is too slow, closing its session...");
+						disconnected.incrementAndGet();
+						session.close();
+						return false;
+					}
+					if (MessengerProperties.SLOW_SUBSCRIBER_SPILL.equals(policy)) {
+						return spill(subscriber, message);
+					}
+					if (session.dropOldestFrame()) {
+						dropped.incrementAndGet();
+					}
+				}
+				if (frame != null) {
+					session.send(frame);
+				} else {
+					session.send(message);
+				}
+				return true;
+			} catch (SocketSessionException e) {
+				logger.fine("Couldn't deliver the message to subscriber '" + subscriber.clientId + "': " + e.getMessage());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Stores a message published to a slow subscriber. Must be called holding the subscriber lock.
+	 *
+	 * @return <code>true</code> if the message has been stored, <code>false</code> if it expires immediately or couldn't be stored.
+	 */
+	private boolean spill(Subscriber subscriber, Message message) {
+		if (message.getTimeout() < 0) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (subscriber.spill == null) {
+			subscriber.spill = getSpill(subscriber.clientId);
+		}
+		try {
+			subscriber.spill.add(message);
+		} catch (PersistenceException e) {
+			logger.severe("Couldn't spill the message to subscriber '" + subscriber.clientId + "': " + e.getMessage());
+			return false;
+		}
+		spilled.incrementAndGet();
+		scheduleDrain(subscriber);
+		return true;
+	}
+
+	/**
+	 * Sends spilled messages, in order, until the backlog of the subscriber is full. Must be called holding the subscriber lock.
+	 */
+	private void drain(Subscriber subscriber) throws SocketSessionException {
+		int room = maxBacklog - subscriber.session.getPendingCommands();
+		for (Iterator<?> it = subscriber.spill.iterator(true); it.hasNext() && (room > 0);) {
+			Message message = (Message) it.next();
+			if (message != null) {
+				subscriber.session.send(message);
+				room--;
+			}
+		}
+	}
+
+	/**
+	 * Schedules an attempt to send spilled messages, so that they're sent even if nothing else is published. Must be called holding the
+	 * subscriber lock.
+	 */
+	private void scheduleDrain(final Subscriber subscriber) {
+		if (subscriber.drainScheduled) {
+			return;
+		}
+		subscriber.drainScheduled = true;
+		drains.schedule(new Runnable() {
+			public void run() {
+				synchronized (subscriber) {
+					subscriber.drainScheduled = false;
+					if (subscriber.removed || (subscriber.spill.size() == 0)) {
+						return;
+					}
+					try {
+						drain(subscriber);
+					} catch (SocketSessionException e) {
+						return;
+					}
+					if (subscriber.spill.size() > 0) {
+						scheduleDrain(subscriber);
+					}
+				}
+			}
+		}, DRAIN_DELAY);
+	}
+
+	/**
+	 * Returns the persistence holding the messages spilled to a client, creating it if needed.
+	 */
+	private Persistence getSpill(String clientId) {
+		synchronized (spills) {
+			Persistence spill = spills.get(clientId);
+			if (spill == null) {
+				spill = new Persistence(new File(spillDirectory, clientId));
+				spills.put(clientId, spill);
+			}
+			return spill;
+		}
+	}
+
+	/**
+	 * Removes all the subscriptions and releases the persistences holding spilled messages, which are kept on disk.
+	 */
+	void close() {
+		drains.stop();
+		for (SocketSession session : new ArrayList<SocketSession>(subscribers.keySet())) {
+			remove(session);
+		}
+		synchronized (spills) {
+			for (Persistence spill : spills.values()) {
+				spill.close();
+			}
+			spills.clear();
+		}
+	}
+
+}
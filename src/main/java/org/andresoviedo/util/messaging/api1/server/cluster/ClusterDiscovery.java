@@ -0,0 +1,53 @@
+package org.andresoviedo.util.messaging.api1.server.cluster;
+
+import java.util.List;
+
+/**
+ * Discovers the members of a cluster of server messengers. Every node has to end up with the same view of the cluster, since the node
+ * owning a client is chosen by hashing its id over the members. Implementations must have a public constructor without arguments to be
+ * configured by class name.
+ * 
+ * @author andresoviedo
+ */
+public interface ClusterDiscovery {
+
+	/**
+	 * Notified when the members of the cluster change.
+	 */
+	public interface Listener {
+
+		/**
+		 * Invoked with the current members of the cluster, including the local node. It's invoked once when discovery starts.
+		 * 
+		 * @param members
+		 *            the members of the cluster.
+		 */
+		void membershipChanged(List<ClusterNode> members);
+
+	}
+
+	/**
+	 * Starts discovering the members of the cluster.
+	 * 
+	 * @param self
+	 *            the local node.
+	 * @param seeds
+	 *            the configured nodes.
+	 * @param listener
+	 *            the listener notified of the members of the cluster.
+	 */
+	public void start(ClusterNode self, List<ClusterNode> seeds, Listener listener);
+
+	/**
+	 * Stops discovering the members of the cluster. The listener isn't notified anymore.
+	 */
+	public void stop();
+
+	/**
+	 * Returns the current members of the cluster.
+	 * 
+	 * @return the members of the cluster, empty if discovery isn't started.
+	 */
+	public List<ClusterNode> getMembers();
+
+}
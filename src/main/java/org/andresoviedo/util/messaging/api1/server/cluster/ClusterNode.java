@@ -0,0 +1,103 @@
+package org.andresoviedo.util.messaging.api1.server.cluster;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A server messenger member of a cluster: its node id and the address other nodes connect to. Nodes are equal if their ids are.
+ * 
+ * @author andresoviedo
+ */
+public final class ClusterNode {
+
+	/**
+	 * The id of the node, that is, the client id of its server messenger.
+	 */
+	private final String nodeId;
+
+	/**
+	 * The address the node accepts connections at.
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Creates a new cluster node.
+	 * 
+	 * @param nodeId
+	 *            the id of the node.
+	 * @param address
+	 *            the address the node accepts connections at.
+	 */
+	public ClusterNode(String nodeId, InetSocketAddress address) {
+		if (nodeId == null) {
+			throw new IllegalArgumentException("The node id is null.");
+		}
+		if (address == null) {
+			throw new IllegalArgumentException("The address is null.");
+		}
+		this.nodeId = nodeId;
+		this.address = address;
+	}
+
+	/**
+	 * Parses a node written as <code>nodeId@host@port</code>, the way addresses are written in the configuration files.
+	 * 
+	 * @param node
+	 *            the node.
+	 * @return the cluster node.
+	 * @throws IllegalArgumentException
+	 *             if the node is not valid.
+	 */
+	public static ClusterNode parse(String node) {
+		String[] tokens = (node != null) ? node.split("@") : new String[0];
+		if (tokens.length != 3) {
+			throw new IllegalArgumentException("Invalid cluster node: " + node);
+		}
+		try {
+			return new ClusterNode(tokens[0].trim(), new InetSocketAddress(tokens[1].trim(), Integer.parseInt(tokens[2].trim())));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cluster node: " + node);
+		}
+	}
+
+	/**
+	 * Returns the id of the node.
+	 * 
+	 * @return the id of the node.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Returns the address the node accepts connections at.
+	 * 
+	 * @return the address of the node.
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/*
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object obj) {
+		return (obj instanceof ClusterNode) && nodeId.equals(((ClusterNode) obj).nodeId);
+	}
+
+	/*
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return nodeId.hashCode();
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(nodeId).append("@").append(address.getHostString()).append("@").append(address.getPort());
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.andresoviedo.util.messaging.api1.server.cluster;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An immutable consistent hash ring mapping keys, such as client ids, to nodes. Each node is placed at several points of the ring (its
+ * virtual nodes) and a key belongs to the first node found clockwise from the hash of the key. When a node joins or leaves only the keys
+ * between its points and the previous ones move, about one in as many keys as nodes.
+ * 
+ * @author andresoviedo
+ */
+public class ConsistentHashRing {
+
+	/**
+	 * The default number of virtual nodes per node.
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	/**
+	 * The charset the keys are hashed in.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The node ids, sorted.
+	 */
+	private final Set<String> nodes;
+
+	/**
+	 * The points of the ring and the node id each one belongs to.
+	 */
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**
+	 * Creates a new ring.
+	 * 
+	 * @param nodeIds
+	 *            the ids of the nodes.
+	 * @param virtualNodes
+	 *            the number of points of each node in the ring.
+	 */
+	public ConsistentHashRing(Collection<String> nodeIds, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+		}
+		// Sorted, so colliding points are resolved the same way on every node.
+		this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodeIds));
+		for (String nodeId : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				Long point = Long.valueOf(hash(nodeId + "#" + i));
+				if (!ring.containsKey(point)) {
+					ring.put(point, nodeId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the node a key belongs to.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the id of the node, or <code>null</code> if the ring is empty.
+	 */
+	public String getNode(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(Long.valueOf(hash(key)));
+		return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * Returns the ids of the nodes.
+	 * 
+	 * @return the node ids, sorted.
+	 */
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns whether a node is in the ring.
+	 * 
+	 * @param nodeId
+	 *            the node id.
+	 * @return <code>true</code> if the node is in the ring.
+	 */
+	public boolean contains(String nodeId) {
+		return nodes.contains(nodeId);
+	}
+
+	/**
+	 * Hashes a key with 64-bit FNV-1a, mixing the result so that similar keys spread over the whole ring. The hash must be the same on every
+	 * node, so it doesn't depend on <code>String.hashCode()</code> or the platform.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the hash of the key.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		byte[] bytes = key.getBytes(UTF8);
+		for (int i = 0; i < bytes.length; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		// The finalizer of MurmurHash3.
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("ConsistentHashRing [");
+		sb.append("nodes=").append(nodes).append(", ");
+		sb.append("points=").append(ring.size()).append("]");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.andresoviedo.util.messaging.api1.server.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The default cluster discovery: the members are the configured nodes, as in a static TCPPING list. Members can be changed at runtime with
+ * <code>setMembers()</code>, which has to be done on every node.
+ * 
+ * @author andresoviedo
+ */
+public class StaticClusterDiscovery implements ClusterDiscovery {
+
+	/**
+	 * The local node.
+	 */
+	private ClusterNode self;
+
+	/**
+	 * The members of the cluster.
+	 */
+	private List<ClusterNode> members = Collections.emptyList();
+
+	/**
+	 * The listener notified of the members, <code>null</code> if discovery is stopped.
+	 */
+	private Listener listener;
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery#start(org.andresoviedo.util.messaging.api1.server.cluster.
+	 * ClusterNode, java.util.List, org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery.Listener)
+	 */
+	public void start(ClusterNode self, List<ClusterNode> seeds, Listener listener) {
+		synchronized (this) {
+			this.self = self;
+			this.listener = listener;
+		}
+		setMembers(seeds);
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery#stop()
+	 */
+	public synchronized void stop() {
+		listener = null;
+		members = Collections.emptyList();
+	}
+
+	/*
+	 * @see org.andresoviedo.util.messaging.api1.server.cluster.ClusterDiscovery#getMembers()
+	 */
+	public synchronized List<ClusterNode> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Sets the members of the cluster, notifying the listener. The local node is always a member.
+	 * 
+	 * @param nodes
+	 *            the members of the cluster.
+	 */
+	public void setMembers(List<ClusterNode> nodes) {
+		Listener current;
+		List<ClusterNode> view;
+		synchronized (this) {
+			if (listener == null) {
+				return;
+			}
+			Set<ClusterNode> set = new LinkedHashSet<ClusterNode>();
+			set.add(self);
+			set.addAll(nodes);
+			members = Collections.unmodifiableList(new ArrayList<ClusterNode>(set));
+			current = listener;
+			view = members;
+		}
+		// Not notified holding the lock, the listener opens connections.
+		current.membershipChanged(view);
+	}
+
+}
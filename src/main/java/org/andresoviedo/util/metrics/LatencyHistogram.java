@@ -0,0 +1,263 @@
+package org.andresoviedo.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in microseconds, recorded without locks. Like HDR histograms, buckets grow exponentially and each power of two
+ * is split in 32 linear sub-buckets, so any value is reported with an error below 1/32 (3%) using a fixed amount of memory. Values up to
+ * about 25 days are tracked, larger ones are counted in the last bucket.
+ * <p>
+ * Recording a value is a few atomic increments, so histograms can be kept on all the time. Percentiles are computed from a snapshot.
+ * </p>
+ *
+ * @author andresoviedo
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of bits of the linear sub-buckets.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * The number of linear sub-buckets of each power of two.
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The exponent of the largest power of two tracked.
+	 */
+	private static final int MAX_EXPONENT = 41;
+
+	/**
+	 * The number of buckets.
+	 */
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	/**
+	 * The counts of each bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * The sum of the recorded values.
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * The largest recorded value.
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * An immutable view of a histogram at some point in time.
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * The number of recorded values.
+		 */
+		private final long count;
+
+		/**
+		 * The mean of the recorded values.
+		 */
+		private final double mean;
+
+		/**
+		 * The percentiles reported.
+		 */
+		private final long median, p90, p99, p999;
+
+		/**
+		 * The largest recorded value.
+		 */
+		private final long max;
+
+		/**
+		 * Creates a new snapshot.
+		 */
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.count = count;
+			this.mean = (count > 0) ? (double) sum / count : 0;
+			this.max = max;
+			this.median = valueAt(counts, count, 0.5, max);
+			this.p90 = valueAt(counts, count, 0.9, max);
+			this.p99 = valueAt(counts, count, 0.99, max);
+			this.p999 = valueAt(counts, count, 0.999, max);
+		}
+
+		/**
+		 * Returns the number of recorded values.
+		 *
+		 * @return the number of recorded values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean of the recorded values, in microseconds.
+		 *
+		 * @return the mean of the recorded values.
+		 */
+		public double getMean() {
+			return mean;
+		}
+
+		/**
+		 * Returns the median, in microseconds.
+		 *
+		 * @return the median.
+		 */
+		public long getMedian() {
+			return median;
+		}
+
+		/**
+		 * Returns the 90th percentile, in microseconds.
+		 *
+		 * @return the 90th percentile.
+		 */
+		public long get90thPercentile() {
+			return p90;
+		}
+
+		/**
+		 * Returns the 99th percentile, in microseconds.
+		 *
+		 * @return the 99th percentile.
+		 */
+		public long get99thPercentile() {
+			return p99;
+		}
+
+		/**
+		 * Returns the 99.9th percentile, in microseconds.
+		 *
+		 * @return the 99.9th percentile.
+		 */
+		public long get999thPercentile() {
+			return p999;
+		}
+
+		/**
+		 * Returns the largest recorded value, in microseconds.
+		 *
+		 * @return the largest recorded value.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/*
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("count[").append(count).append("] ");
+			sb.append("mean[").append(Math.round(mean)).append("] ");
+			sb.append("p50[").append(median).append("] ");
+			sb.append("p90[").append(p90).append("] ");
+			sb.append("p99[").append(p99).append("] ");
+			sb.append("p999[").append(p999).append("] ");
+			sb.append("max[").append(max).append("]");
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param micros
+	 *            the value, in microseconds. Negative values, e.g. due to clock skew between hosts, are recorded as 0.
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.incrementAndGet(indexOf(micros));
+		sum.add(micros);
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the histogram. Values recorded while the snapshot is taken may or may not be included.
+	 *
+	 * @return a snapshot of the histogram.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	/**
+	 * Clears the histogram, e.g. to report the latencies of fixed intervals. Values recorded meanwhile may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 */
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value of a bucket.
+	 */
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Returns the value below which the specified fraction of the values fall.
+	 */
+	private static long valueAt(long[] counts, long count, double fraction, long max) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max);
+			}
+		}
+		return max;
+	}
+
+}
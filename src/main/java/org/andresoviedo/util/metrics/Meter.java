@@ -0,0 +1,106 @@
+package org.andresoviedo.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, e.g. messages or bytes, and their rate over the last seconds. Events are counted in a ring of one second slots, each
+ * holding the second it belongs to and its count in a single long, so marking events takes no lock and stale slots are reset by the first
+ * event of a new second.
+ *
+ * @author andresoviedo
+ */
+public class Meter {
+
+	/**
+	 * The number of seconds the rate is computed over. The current second is not included, since it's not complete.
+	 */
+	public static final int WINDOW = 10;
+
+	/**
+	 * The number of slots of the ring, a power of two larger than the window.
+	 */
+	private static final int SLOTS = 16;
+
+	/**
+	 * The bits of a slot holding its count, the upper ones hold its second.
+	 */
+	private static final int COUNT_BITS = 40;
+
+	/**
+	 * The mask of the count of a slot.
+	 */
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	/**
+	 * The mask of the second of a slot, which wraps around every 194 days.
+	 */
+	private static final long SECOND_MASK = (1L << (64 - COUNT_BITS)) - 1;
+
+	/**
+	 * The total count.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * The ring of slots.
+	 */
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	/**
+	 * Marks one event.
+	 */
+	public void mark() {
+		mark(1);
+	}
+
+	/**
+	 * Marks a number of events.
+	 *
+	 * @param n
+	 *            the number of events.
+	 */
+	public void mark(long n) {
+		if (n <= 0) {
+			return;
+		}
+		count.add(n);
+		long second = System.currentTimeMillis() / 1000;
+		long stamp = (second & SECOND_MASK) << COUNT_BITS;
+		int i = (int) (second & (SLOTS - 1));
+		while (true) {
+			long current = slots.get(i);
+			long next = ((current & ~COUNT_MASK) == stamp) ? current + n : stamp | n;
+			if (slots.compareAndSet(i, current, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the total number of events.
+	 *
+	 * @return the total number of events.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the number of events per second over the last <code>WINDOW</code> complete seconds.
+	 *
+	 * @return the number of events per second.
+	 */
+	public double getRate() {
+		long second = System.currentTimeMillis() / 1000;
+		long total = 0;
+		for (int k = 1; k <= WINDOW; k++) {
+			long slot = slots.get((int) ((second - k) & (SLOTS - 1)));
+			if ((slot & ~COUNT_MASK) == (((second - k) & SECOND_MASK) << COUNT_BITS)) {
+				total += slot & COUNT_MASK;
+			}
+		}
+		return (double) total / WINDOW;
+	}
+
+}
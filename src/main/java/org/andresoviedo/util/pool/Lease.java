@@ -0,0 +1,78 @@
+package org.andresoviedo.util.pool;
+
+/**
+ * A resource borrowed from a {@link ResourcePool}, which is returned to the pool when the lease is closed:
+ *
+ * <pre>
+ * try (Lease&lt;Connection&gt; lease = pool.borrow()) {
+ * 	lease.get().send(message);
+ * }
+ * </pre>
+ *
+ * If the resource turns out to be broken, {@link #invalidate()} destroys it instead of returning it.
+ *
+ * @author aoviedo
+ *
+ * @param <T>
+ *            the type of the resource
+ */
+public final class Lease<T> implements AutoCloseable {
+
+	/**
+	 * The pool the resource was borrowed from.
+	 */
+	private final ResourcePool<T> pool;
+
+	/**
+	 * The entry of the resource in the pool.
+	 */
+	private final ResourcePool.Entry<T> entry;
+
+	/**
+	 * Whether the lease is closed.
+	 */
+	private boolean closed;
+
+	Lease(ResourcePool<T> pool, ResourcePool.Entry<T> entry) {
+		this.pool = pool;
+		this.entry = entry;
+	}
+
+	/**
+	 * @return the borrowed resource
+	 * @throws IllegalStateException
+	 *             if the lease is closed
+	 */
+	public T get() {
+		if (closed) {
+			throw new IllegalStateException("Lease already closed");
+		}
+		return entry.resource;
+	}
+
+	/**
+	 * Destroys the resource instead of returning it to the pool, and closes the lease.
+	 */
+	public void invalidate() {
+		if (!closed) {
+			closed = true;
+			pool.invalidate(entry);
+		}
+	}
+
+	/**
+	 * Returns the resource to the pool. Closing an already closed lease has no effect.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			pool.release(entry);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Lease [resource=" + entry.resource + ", closed=" + closed + "]";
+	}
+}
@@ -0,0 +1,39 @@
+package org.andresoviedo.util.pool;
+
+/**
+ * Creates, validates and destroys the resources of an elastic {@link ResourcePool}.
+ *
+ * @author aoviedo
+ *
+ * @param <T>
+ *            the type of the resources
+ */
+public interface ResourceFactory<T> {
+
+	/**
+	 * Creates a new resource. It's invoked without holding any lock of the pool, so it may take a while (i.e. opening a connection).
+	 *
+	 * @return the new resource
+	 * @throws Exception
+	 *             if the resource can't be created
+	 */
+	T create() throws Exception;
+
+	/**
+	 * Checks whether a resource can still be used. It's invoked before lending it if the pool tests on borrow, and in the background for
+	 * idle resources.
+	 *
+	 * @param resource
+	 *            the resource
+	 * @return <code>true</code> if it's valid, <code>false</code> if it has to be destroyed
+	 */
+	boolean validate(T resource);
+
+	/**
+	 * Destroys a resource which is no longer in the pool.
+	 *
+	 * @param resource
+	 *            the resource
+	 */
+	void destroy(T resource);
+}
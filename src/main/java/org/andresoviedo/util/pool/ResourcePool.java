@@ -1,51 +1,253 @@
 package org.andresoviedo.util.pool;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.andresoviedo.util.metrics.LatencyHistogram;
+
 /**
- * This class represents a pool of resources. It can be used to implement a round-robin queue using {@link #get()} 
- * then {@link #putBack(Object)}
- * 
+ * This class represents a pool of resources. It can be used to implement a round-robin queue using {@link #get()} then
+ * {@link #putBack(Object)}
+ * <p>
+ * A pool is either fixed, made of a given collection of resources which are lent in the order they are returned, or elastic, made of
+ * the resources of a {@link ResourceFactory}. An elastic pool creates resources on demand up to its maximum size, keeps at least its
+ * minimum size in the background and evicts the resources idle for too long. Resources can be validated before being lent and while
+ * they're idle.
+ * </p>
+ * <p>
+ * Free resources are kept in a lock-free bag, and in elastic pools a thread first tries the resource it returned last, which is usually
+ * free and still warm. Threads only wait when the pool is exhausted, and then resources are handed to them in arrival order.
+ * </p>
+ * <p>
+ * Resources are better borrowed with {@link #borrow()} in a try-with-resources block, so they're always returned. Elastic pools must be
+ * {@link #close() closed} to stop their maintenance.
+ * </p>
+ * <p>
+ * {@link #borrowAsync(Object, long, TimeUnit)} doesn't block the caller: the future completes when a resource is returned, or fails
+ * when its deadline passes, without parking any thread meanwhile. Waiters are served in arrival order, or in turns by caller key if the
+ * pool is {@link #setFairByKey(boolean) fair by key}, so a caller with many waiters can't starve the others.
+ * </p>
+ *
  * @author aoviedo
- * 
+ *
  */
 public class ResourcePool<T> {
 
 	private static final Logger LOG = Logger.getLogger(ResourcePool.class.getName());
+
+	/**
+	 * The entry is free in the bag.
+	 */
+	private static final int FREE = 0;
+
+	/**
+	 * The entry is lent.
+	 */
+	private static final int IN_USE = 1;
+
+	/**
+	 * The entry is being checked by the maintenance.
+	 */
+	private static final int RESERVED = 2;
+
+	/**
+	 * The entry is no longer in the pool.
+	 */
+	private static final int REMOVED = 3;
+
+	/**
+	 * Runs the maintenance of all the elastic pools.
+	 */
+	private static final ScheduledExecutorService MAINTENANCE;
+
+	static {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ResourcePool-maintenance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Deadlines of asynchronous borrows are cancelled most of the times.
+		executor.setRemoveOnCancelPolicy(true);
+		MAINTENANCE = executor;
+	}
+
 	/**
 	 * Timeout constant to get or return users to the pool (it can be hacked from JUnit)
 	 */
 	long timeout = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Creates the resources, <code>null</code> if the pool is fixed.
+	 */
+	private final ResourceFactory<T> factory;
+
+	/**
+	 * The minimum number of resources kept in the pool.
+	 */
+	private final int minSize;
+
+	/**
+	 * The maximum number of resources in the pool.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Whether resources are validated before being lent.
+	 */
+	private volatile boolean testOnBorrow;
+
+	/**
+	 * Whether a thread first tries the resource it returned last.
+	 */
+	private volatile boolean threadAffinity;
+
+	/**
+	 * The nanos a resource can be idle before being evicted, 0 not to evict them.
+	 */
+	private volatile long idleTimeout;
+
+	/**
+	 * The scheduled maintenance, <code>null</code> if none.
+	 */
+	private ScheduledFuture<?> maintenance;
+
+	/**
+	 * Whether the pool is closed.
+	 */
+	private volatile boolean closed;
+
 	/**
-	 * Underlying implementation of the pool
+	 * All the entries in the pool.
 	 */
-	private final BlockingQueue<T> poolOfResources;
+	private final CopyOnWriteArrayList<Entry<T>> entries = new CopyOnWriteArrayList<Entry<T>>();
+
+	/**
+	 * The entries of the resources by identity, to return them with {@link #putBack(Object)}. A resource may be in the pool more than once,
+	 * i.e. the same user in a pool of users, and its <code>hashCode()</code> may change while it's lent. Guarded by itself.
+	 */
+	private final Map<T, Entry<T>[]> entriesByResource = new IdentityHashMap<T, Entry<T>[]>();
+
+	/**
+	 * The free entries, in the order they were returned. It may also hold entries taken by affinity, which are skipped.
+	 */
+	private final ConcurrentLinkedQueue<Entry<T>> bag = new ConcurrentLinkedQueue<Entry<T>>();
+
+	/**
+	 * The callers waiting for a resource.
+	 */
+	private final WaitQueue<T> waiters = new WaitQueue<T>();
+
+	/**
+	 * The entry each thread returned last.
+	 */
+	private final ThreadLocal<Entry<T>> lastReturned = new ThreadLocal<Entry<T>>();
+
+	/**
+	 * The number of resources in the pool or being created.
+	 */
+	private final AtomicInteger total = new AtomicInteger();
+
+	/**
+	 * The number of resources lent.
+	 */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * The number of callers waiting for a resource.
+	 */
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/**
+	 * The micros spent getting resources.
+	 */
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong destroyed = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong validationFailures = new AtomicLong();
+
+	/**
+	 * The last error creating a resource, reported as the cause of timeouts.
+	 */
+	private volatile Exception lastCreationError;
 
 	/**
 	 * Creates a pool of resources.
-	 * 
-	 * @param resourceNames
-	 *            comma separated users
+	 *
 	 * @param resources
-	 *            comma separated passwords
+	 *            the resources, which are lent in order
 	 */
 	public ResourcePool(Collection<T> resources) {
 		if (resources == null || resources.size() == 0) {
 			throw new RuntimeException("Empty resources");
 		}
-		this.poolOfResources = new ArrayBlockingQueue<T>(resources.size(), true, resources);
-		LOG.fine("Resource pool created with this list of resources '" + Arrays.asList(resources) + "'");
+		this.factory = null;
+		this.minSize = resources.size();
+		this.maxSize = resources.size();
+		for (T resource : resources) {
+			Entry<T> entry = new Entry<T>(resource);
+			register(entry);
+			enqueue(entry);
+		}
+		LOG.fine("Resource pool created with this list of resources '" + resources + "'");
+	}
+
+	/**
+	 * Creates an elastic pool of resources, which are created on demand. The pool validates its idle resources every 30 seconds, and keeps
+	 * at least the minimum size.
+	 *
+	 * @param factory
+	 *            creates, validates and destroys the resources
+	 * @param minSize
+	 *            the minimum number of resources kept in the pool
+	 * @param maxSize
+	 *            the maximum number of resources in the pool
+	 */
+	public ResourcePool(ResourceFactory<T> factory, int minSize, int maxSize) {
+		if (factory == null) {
+			throw new IllegalArgumentException("factory is required");
+		}
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool sizes: min=" + minSize + ", max=" + maxSize);
+		}
+		this.factory = factory;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.threadAffinity = true;
+		setMaintenanceInterval(TimeUnit.SECONDS.toMillis(30));
+		LOG.fine("Elastic resource pool created with sizes min=" + minSize + ", max=" + maxSize);
 	}
 
 	/**
 	 * Just for testing purposes.
-	 * 
+	 *
 	 * @return the timeout constant
 	 */
 	public long getTimeout() {
@@ -54,7 +256,7 @@ public class ResourcePool<T> {
 
 	/**
 	 * Just for testing purposes.
-	 * 
+	 *
 	 * @param timeout
 	 *            the new timeout
 	 */
@@ -63,16 +265,145 @@ public class ResourcePool<T> {
 	}
 
 	/**
-	 * @return the tital size of the pool
+	 * @param testOnBorrow
+	 *            whether resources of an elastic pool are validated before being lent. Invalid ones are destroyed.
+	 */
+	public void setTestOnBorrow(boolean testOnBorrow) {
+		this.testOnBorrow = testOnBorrow;
+	}
+
+	/**
+	 * @param threadAffinity
+	 *            whether a thread first tries the resource it returned last. It's enabled by default in elastic pools, and disabling it
+	 *            lends resources in the order they're returned.
+	 */
+	public void setThreadAffinity(boolean threadAffinity) {
+		this.threadAffinity = threadAffinity;
+	}
+
+	/**
+	 * @param fairByKey
+	 *            whether waiters are served in turns by the key they borrow with, instead of in arrival order. Within a key they're served
+	 *            in arrival order.
+	 */
+	public void setFairByKey(boolean fairByKey) {
+		waiters.fair = fairByKey;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            the millis a resource of an elastic pool can be idle before being evicted, as long as the minimum size is kept. 0 not to
+	 *            evict them.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Schedules the maintenance of an elastic pool, which evicts and validates the idle resources and keeps the minimum size.
+	 *
+	 * @param interval
+	 *            the millis between runs, 0 not to run it
+	 */
+	public synchronized void setMaintenanceInterval(long interval) {
+		if (maintenance != null) {
+			maintenance.cancel(false);
+			maintenance = null;
+		}
+		if (factory == null || closed || interval <= 0) {
+			return;
+		}
+		maintenance = MAINTENANCE.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					maintain();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Pool maintenance failed", ex);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of free resources in the pool
 	 */
 	public int size() {
-		return poolOfResources.size();
+		int ret = 0;
+		for (Entry<T> entry : entries) {
+			if (entry.state.get() == FREE) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the number of resources in the pool, free or lent
+	 */
+	public int getTotalSize() {
+		return total.get();
+	}
+
+	/**
+	 * @return the number of resources lent
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of callers waiting for a resource
+	 */
+	public int getWaitingCount() {
+		return waiting.get();
+	}
+
+	/**
+	 * @return the fraction of the maximum size which is lent, between 0 and 1
+	 */
+	public double getUtilization() {
+		return (double) active.get() / maxSize;
+	}
+
+	/**
+	 * @return the histogram of the micros spent getting resources, including the ones which timed out
+	 */
+	public LatencyHistogram.Snapshot getWaitTime() {
+		return waitTime.snapshot();
+	}
+
+	/**
+	 * @return the number of resources created by the factory
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return the number of resources removed from the pool
+	 */
+	public long getDestroyedCount() {
+		return destroyed.get();
+	}
+
+	/**
+	 * @return the number of times getting a resource timed out
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return the number of resources found invalid
+	 */
+	public long getValidationFailureCount() {
+		return validationFailures.get();
 	}
 
 	/**
 	 * @return a resource from the pool
 	 * @throws RuntimeException
-	 *             if thread is interrupted
+	 *             if thread is interrupted, whose interrupted status is kept
 	 * @throws TimeoutException
 	 *             if operation times out waiting for an available resource
 	 */
@@ -82,12 +413,10 @@ public class ResourcePool<T> {
 		}
 		T resource;
 		try {
-			resource = poolOfResources.poll(timeout, TimeUnit.MILLISECONDS);
+			resource = acquire(timeout).resource;
 		} catch (InterruptedException ex) {
-			throw new RuntimeException("Thread interrupted while waiting to get a resource");
-		}
-		if (resource == null) {
-			throw new TimeoutException("Couldn't get a resource after waiting '" + timeout + "' millis");
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Thread interrupted while waiting to get a resource", ex);
 		}
 		if (LOG.isLoggable(Level.FINEST)) {
 			LOG.finest("Returned resource '" + resource + "' from the pool.");
@@ -95,36 +424,675 @@ public class ResourcePool<T> {
 		return resource;
 	}
 
+	/**
+	 * Borrows a resource, waiting up to the pool timeout.
+	 *
+	 * @return the lease of the resource, which returns it when closed
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 * @throws TimeoutException
+	 *             if no resource gets available in time
+	 */
+	public Lease<T> borrow() throws InterruptedException {
+		return borrow(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a resource.
+	 *
+	 * @param timeout
+	 *            the time to wait for a resource
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the lease of the resource, which returns it when closed
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 * @throws TimeoutException
+	 *             if no resource gets available in time
+	 */
+	public Lease<T> borrow(long timeout, TimeUnit unit) throws InterruptedException {
+		return new Lease<T>(this, acquire(unit.toMillis(timeout)));
+	}
+
+	/**
+	 * Borrows a resource asynchronously, waiting up to the pool timeout.
+	 *
+	 * @return the future of the resource, which must be returned with {@link #putBack(Object)}
+	 * @see #borrowAsync(Object, long, TimeUnit)
+	 */
+	public CompletableFuture<T> borrowAsync() {
+		return borrowAsync(null, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a resource asynchronously.
+	 *
+	 * @param timeout
+	 *            the time to wait for a resource
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future of the resource, which must be returned with {@link #putBack(Object)}
+	 * @see #borrowAsync(Object, long, TimeUnit)
+	 */
+	public CompletableFuture<T> borrowAsync(long timeout, TimeUnit unit) {
+		return borrowAsync(null, timeout, unit);
+	}
+
+	/**
+	 * Borrows a resource without blocking the caller. If the pool is exhausted the future completes when a resource is returned, and it
+	 * fails with a {@link TimeoutException} if none is returned in time. No thread is parked meanwhile: the future is usually completed by
+	 * the thread returning the resource, so dependent stages which take a while should be run with an executor. Cancelling the future
+	 * gives up waiting, and the resource is put back if it was already taken.
+	 *
+	 * @param key
+	 *            identifies the caller, i.e. a tenant, to serve waiters in turns if the pool is {@link #setFairByKey(boolean) fair by key}.
+	 *            <code>null</code> is a key too.
+	 * @param timeout
+	 *            the time to wait for a resource
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future of the resource, which must be returned with {@link #putBack(Object)}
+	 */
+	public CompletableFuture<T> borrowAsync(Object key, long timeout, TimeUnit unit) {
+		CompletableFuture<T> ret = new CompletableFuture<T>();
+		if (closed) {
+			ret.completeExceptionally(new IllegalStateException("Pool closed"));
+			return ret;
+		}
+		final long start = System.nanoTime();
+		acquireAsync(key, start, start + unit.toNanos(timeout), ret);
+		return ret;
+	}
+
 	/**
 	 * Returns the resource to the pool
-	 * 
+	 *
 	 * @param previouslyGottenResource
 	 *            the previously gotten resource
-	 * @throws RuntimeException
-	 *             if thread is interrupted
+	 * @throws IllegalArgumentException
+	 *             if the resource isn't from this pool
+	 * @throws IllegalStateException
+	 *             if the resource isn't lent
 	 */
 	public void putBack(T previouslyGottenResource) {
 		if (LOG.isLoggable(Level.FINEST)) {
 			LOG.finest("Putting back resource '" + previouslyGottenResource + "'...");
 		}
-		try {
-			if (!poolOfResources.offer(previouslyGottenResource, timeout, TimeUnit.MILLISECONDS)) {
-				// INFO: This should never happen because this is supposed to be a pool.
-				throw new RuntimeException("Couldn't return the resource '" + previouslyGottenResource + "' to the pool after waiting '"
-						+ timeout + "' millis");
+		Entry<T>[] candidates;
+		synchronized (entriesByResource) {
+			candidates = entriesByResource.get(previouslyGottenResource);
+		}
+		if (candidates == null) {
+			// Not the same object, i.e. a copy of a value: any lent entry equal to it
+			candidates = equalEntries(previouslyGottenResource);
+			if (candidates.length == 0) {
+				throw new IllegalArgumentException("Resource '" + previouslyGottenResource + "' isn't from this pool");
+			}
+		}
+		// Any lent entry of the resource will do, they're the same resource.
+		boolean released = false;
+		for (int i = 0; i < candidates.length && !released; i++) {
+			released = candidates[i].state.compareAndSet(IN_USE, RESERVED);
+			if (released) {
+				returned(candidates[i]);
 			}
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Thread interrupted while waiting to return the resource " + previouslyGottenResource
-					+ " to the pool");
+		}
+		if (!released) {
+			throw new IllegalStateException("Resource '" + previouslyGottenResource + "' isn't lent");
 		}
 		if (LOG.isLoggable(Level.FINEST)) {
 			LOG.finest("Resource '" + previouslyGottenResource + "' returned to the pool.");
 		}
 	}
 
+	/**
+	 * Closes the pool: stops the maintenance, destroys the free resources and fails the waiting threads. Lent resources are destroyed when
+	 * returned.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			setMaintenanceInterval(0);
+		}
+		Waiter<T> waiter;
+		while ((waiter = waiters.poll()) != null) {
+			waiter.completeExceptionally(new IllegalStateException("Pool closed"));
+		}
+		for (Entry<T> entry : entries) {
+			if (entry.state.compareAndSet(FREE, RESERVED)) {
+				remove(entry);
+			}
+		}
+		bag.clear();
+	}
+
 	@Override
 	public String toString() {
-		return "ResourcePool [timeout=" + timeout + ", poolOfResources=" + poolOfResources + "]";
+		return "ResourcePool [timeout=" + timeout + ", total=" + total + ", free=" + size() + ", active=" + active + ", waiting=" + waiting
+				+ "]";
+	}
+
+	/**
+	 * Returns a lent entry to the pool.
+	 */
+	void release(Entry<T> entry) {
+		if (!entry.state.compareAndSet(IN_USE, RESERVED)) {
+			throw new IllegalStateException("Resource '" + entry.resource + "' isn't lent");
+		}
+		returned(entry);
+	}
+
+	/**
+	 * Makes available an entry reserved when returned, or removes it if the pool is closed.
+	 */
+	private void returned(Entry<T> entry) {
+		active.decrementAndGet();
+		if (closed) {
+			remove(entry);
+			return;
+		}
+		entry.lastUsed = System.nanoTime();
+		if (threadAffinity) {
+			lastReturned.set(entry);
+		}
+		makeAvailable(entry);
+	}
+
+	/**
+	 * Destroys a lent entry instead of returning it.
+	 */
+	void invalidate(Entry<T> entry) {
+		if (!entry.state.compareAndSet(IN_USE, RESERVED)) {
+			throw new IllegalStateException("Resource '" + entry.resource + "' isn't lent");
+		}
+		active.decrementAndGet();
+		remove(entry);
+	}
+
+	/**
+	 * Takes an entry, waiting for one if the pool is exhausted.
+	 */
+	private Entry<T> acquire(long timeoutMillis) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("Pool closed");
+		}
+		final long start = System.nanoTime();
+		try {
+			Entry<T> entry = tryAcquire();
+			if (entry == null) {
+				final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				waiting.incrementAndGet();
+				try {
+					do {
+						entry = await(deadline);
+						if (entry == null) {
+							timeouts.incrementAndGet();
+							throw new TimeoutException("Couldn't get a resource after waiting '" + timeoutMillis + "' millis",
+									lastCreationError);
+						}
+					} while (!checkOnBorrow(entry));
+				} finally {
+					waiting.decrementAndGet();
+				}
+			}
+			active.incrementAndGet();
+			return entry;
+		} finally {
+			waitTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Takes an entry for an asynchronous borrow, queuing a waiter if the pool is exhausted.
+	 */
+	private void acquireAsync(final Object key, final long start, final long deadline, final CompletableFuture<T> ret) {
+		Entry<T> entry = tryAcquire();
+		if (entry != null) {
+			lend(entry, start, ret);
+			return;
+		}
+		final Waiter<T> waiter = new Waiter<T>(key);
+		waiting.incrementAndGet();
+		waiters.add(waiter);
+		// An entry returned before the waiter was queued isn't handed over.
+		entry = tryAcquire();
+		if (entry != null) {
+			if (waiter.cancel(false)) {
+				waiters.remove(waiter);
+				waiting.decrementAndGet();
+				lend(entry, start, ret);
+				return;
+			}
+			makeAvailable(entry);
+		}
+		final ScheduledFuture<?> deadlineTask = MAINTENANCE.schedule(new Runnable() {
+			public void run() {
+				waiter.completeExceptionally(new TimeoutException("Couldn't get a resource after waiting '"
+						+ TimeUnit.NANOSECONDS.toMillis(deadline - start) + "' millis", lastCreationError));
+			}
+		}, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		waiter.whenComplete(new BiConsumer<Entry<T>, Throwable>() {
+			public void accept(Entry<T> handed, Throwable error) {
+				deadlineTask.cancel(false);
+				waiting.decrementAndGet();
+				if (error != null) {
+					// Accounted before the caller sees the failure
+					waiters.remove(waiter);
+					if (error instanceof TimeoutException) {
+						timeouts.incrementAndGet();
+					}
+					waitTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+					ret.completeExceptionally(error);
+				} else if (checkOnBorrow(handed)) {
+					lend(handed, start, ret);
+				} else {
+					acquireAsync(key, start, deadline, ret);
+				}
+			}
+		});
+		ret.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T resource, Throwable error) {
+				if (ret.isCancelled() && waiter.cancel(false)) {
+					waiters.remove(waiter);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Completes an asynchronous borrow with a taken entry, which is put back if the borrow was cancelled.
+	 */
+	private void lend(Entry<T> entry, long start, CompletableFuture<T> ret) {
+		active.incrementAndGet();
+		waitTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		if (!ret.complete(entry.resource)) {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Takes an entry without waiting: the one returned last by the thread, a free one or a new one.
+	 *
+	 * @return the entry, or <code>null</code> if the pool is exhausted
+	 */
+	private Entry<T> tryAcquire() {
+		Entry<T> entry;
+		if (threadAffinity) {
+			entry = lastReturned.get();
+			if (entry != null && entry.state.compareAndSet(FREE, IN_USE) && checkOnBorrow(entry)) {
+				return entry;
+			}
+		}
+		while ((entry = pollFree()) != null) {
+			if (checkOnBorrow(entry)) {
+				return entry;
+			}
+		}
+		return create();
+	}
+
+	/**
+	 * Waits for an entry to be handed over.
+	 *
+	 * @return the entry, or <code>null</code> if the deadline passed
+	 */
+	private Entry<T> await(long deadline) throws InterruptedException {
+		Waiter<T> waiter = new Waiter<T>(null);
+		waiters.add(waiter);
+		// An entry returned before the waiter was queued isn't handed over.
+		Entry<T> entry = tryAcquire();
+		if (entry != null) {
+			if (waiter.cancel(false)) {
+				waiters.remove(waiter);
+				return entry;
+			}
+			makeAvailable(entry);
+			return waiter.join();
+		}
+		try {
+			return waiter.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (java.util.concurrent.TimeoutException ex) {
+			if (waiter.cancel(false)) {
+				waiters.remove(waiter);
+				return null;
+			}
+			return waiter.join();
+		} catch (InterruptedException ex) {
+			if (!waiter.cancel(false)) {
+				makeAvailable(waiter.join());
+			}
+			waiters.remove(waiter);
+			throw ex;
+		} catch (ExecutionException ex) {
+			throw (RuntimeException) ex.getCause();
+		} catch (CancellationException ex) {
+			throw new IllegalStateException("Pool closed");
+		}
+	}
+
+	/**
+	 * Puts a taken entry back in the bag, or hands it to a waiting thread.
+	 */
+	private void makeAvailable(Entry<T> entry) {
+		entry.state.set(FREE);
+		enqueue(entry);
+		while (!waiters.isEmpty()) {
+			Entry<T> free = pollFree();
+			if (free == null) {
+				return;
+			}
+			Waiter<T> waiter;
+			while ((waiter = waiters.poll()) != null && !waiter.complete(free)) {
+				// Timed out, interrupted or cancelled.
+			}
+			if (waiter == null) {
+				free.state.set(FREE);
+				enqueue(free);
+			}
+		}
+	}
+
+	/**
+	 * Takes a free entry from the bag.
+	 */
+	private Entry<T> pollFree() {
+		Entry<T> entry;
+		while ((entry = bag.poll()) != null) {
+			entry.queued.set(false);
+			if (entry.state.compareAndSet(FREE, IN_USE)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void enqueue(Entry<T> entry) {
+		if (entry.queued.compareAndSet(false, true)) {
+			bag.offer(entry);
+		}
+	}
+
+	/**
+	 * Validates a taken entry if the pool tests on borrow, removing it if invalid.
+	 */
+	private boolean checkOnBorrow(Entry<T> entry) {
+		if (!testOnBorrow || factory == null || isValid(entry)) {
+			return true;
+		}
+		entry.state.set(RESERVED);
+		remove(entry);
+		return false;
+	}
+
+	private boolean isValid(Entry<T> entry) {
+		boolean valid;
+		try {
+			valid = factory.validate(entry.resource);
+		} catch (RuntimeException ex) {
+			LOG.log(Level.FINE, "Validation of resource '" + entry.resource + "' failed", ex);
+			valid = false;
+		}
+		if (!valid) {
+			validationFailures.incrementAndGet();
+		}
+		return valid;
+	}
+
+	/**
+	 * Creates a new entry, taken, if the pool isn't full.
+	 *
+	 * @return the entry, or <code>null</code> if the pool is full or the resource couldn't be created
+	 */
+	private Entry<T> create() {
+		if (factory == null || closed) {
+			return null;
+		}
+		int current;
+		do {
+			current = total.get();
+			if (current >= maxSize) {
+				return null;
+			}
+		} while (!total.compareAndSet(current, current + 1));
+		T resource;
+		try {
+			resource = factory.create();
+		} catch (Exception ex) {
+			total.decrementAndGet();
+			lastCreationError = ex;
+			LOG.log(Level.WARNING, "Couldn't create a resource", ex);
+			return null;
+		}
+		Entry<T> entry = new Entry<T>(resource);
+		entry.state.set(IN_USE);
+		entries.add(entry);
+		index(entry);
+		created.incrementAndGet();
+		lastCreationError = null;
+		return entry;
+	}
+
+	private void register(Entry<T> entry) {
+		entries.add(entry);
+		index(entry);
+		total.incrementAndGet();
+	}
+
+	/**
+	 * Adds an entry to the entries of its resource.
+	 */
+	@SuppressWarnings("unchecked")
+	private void index(Entry<T> entry) {
+		synchronized (entriesByResource) {
+			Entry<T>[] current = entriesByResource.get(entry.resource);
+			Entry<T>[] updated;
+			if (current == null) {
+				updated = new Entry[] { entry };
+			} else {
+				updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = entry;
+			}
+			entriesByResource.put(entry.resource, updated);
+		}
+	}
+
+	/**
+	 * @return the entries whose resources are equal to a resource
+	 */
+	@SuppressWarnings("unchecked")
+	private Entry<T>[] equalEntries(T resource) {
+		ArrayDeque<Entry<T>> ret = new ArrayDeque<Entry<T>>();
+		for (Entry<T> entry : entries) {
+			if (entry.resource.equals(resource)) {
+				ret.add(entry);
+			}
+		}
+		return ret.toArray(new Entry[ret.size()]);
+	}
+
+	/**
+	 * Removes an entry from the entries of its resource.
+	 */
+	private void unindex(Entry<T> entry) {
+		synchronized (entriesByResource) {
+			Entry<T>[] current = entriesByResource.get(entry.resource);
+			if (current == null) {
+				return;
+			}
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == entry) {
+					if (current.length == 1) {
+						entriesByResource.remove(entry.resource);
+					} else {
+						Entry<T>[] updated = Arrays.copyOf(current, current.length - 1);
+						System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+						entriesByResource.put(entry.resource, updated);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a reserved entry from the pool and destroys its resource. If threads are waiting, a new resource is created for them.
+	 */
+	private void remove(Entry<T> entry) {
+		entry.state.set(REMOVED);
+		entries.remove(entry);
+		unindex(entry);
+		total.decrementAndGet();
+		destroyed.incrementAndGet();
+		if (factory != null) {
+			try {
+				factory.destroy(entry.resource);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Couldn't destroy resource '" + entry.resource + "'", ex);
+			}
+		}
+		if (!waiters.isEmpty()) {
+			Entry<T> replacement = create();
+			if (replacement != null) {
+				makeAvailable(replacement);
+			}
+		}
+	}
+
+	/**
+	 * Evicts the resources idle for too long, validates the rest of free resources and creates the ones missing to the minimum size.
+	 */
+	void maintain() {
+		final long now = System.nanoTime();
+		for (Entry<T> entry : entries) {
+			if (closed || !entry.state.compareAndSet(FREE, RESERVED)) {
+				continue;
+			}
+			if (idleTimeout > 0 && now - entry.lastUsed > idleTimeout && total.get() > minSize) {
+				LOG.fine("Evicting idle resource '" + entry.resource + "'");
+				remove(entry);
+			} else if (!isValid(entry)) {
+				LOG.fine("Removing invalid resource '" + entry.resource + "'");
+				remove(entry);
+			} else {
+				makeAvailable(entry);
+			}
+		}
+		while (!closed && total.get() < minSize) {
+			Entry<T> entry = create();
+			if (entry == null) {
+				break;
+			}
+			makeAvailable(entry);
+		}
+	}
+
+	/**
+	 * A caller waiting for an entry to be handed over.
+	 */
+	private static final class Waiter<T> extends CompletableFuture<Entry<T>> {
+
+		/**
+		 * The key the caller borrows with.
+		 */
+		final Object key;
+
+		/**
+		 * The key of its queue in the {@link WaitQueue}.
+		 */
+		Object queueKey;
+
+		Waiter(Object key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The waiters of a pool, served in arrival order or, if it's fair, in turns by key. It's only used when the pool is exhausted, so it's
+	 * simply synchronized, but whether it's empty is checked on every return without locking.
+	 */
+	private static final class WaitQueue<T> {
+
+		/**
+		 * The queue of all the waiters if it isn't fair.
+		 */
+		private static final Object ALL = new Object();
+
+		/**
+		 * The queues of waiters by key, in the order their turn comes.
+		 */
+		private final LinkedHashMap<Object, ArrayDeque<Waiter<T>>> queues = new LinkedHashMap<Object, ArrayDeque<Waiter<T>>>();
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		volatile boolean fair;
+
+		synchronized void add(Waiter<T> waiter) {
+			waiter.queueKey = fair ? waiter.key : ALL;
+			ArrayDeque<Waiter<T>> queue = queues.get(waiter.queueKey);
+			if (queue == null) {
+				queue = new ArrayDeque<Waiter<T>>();
+				queues.put(waiter.queueKey, queue);
+			}
+			queue.add(waiter);
+			size.incrementAndGet();
+		}
+
+		synchronized Waiter<T> poll() {
+			Iterator<ArrayDeque<Waiter<T>>> it = queues.values().iterator();
+			if (!it.hasNext()) {
+				return null;
+			}
+			ArrayDeque<Waiter<T>> queue = it.next();
+			Waiter<T> ret = queue.poll();
+			it.remove();
+			if (!queue.isEmpty()) {
+				// Its next waiter goes after the other keys.
+				queues.put(ret.queueKey, queue);
+			}
+			size.decrementAndGet();
+			return ret;
+		}
+
+		synchronized void remove(Waiter<T> waiter) {
+			ArrayDeque<Waiter<T>> queue = queues.get(waiter.queueKey);
+			if (queue != null && queue.remove(waiter)) {
+				size.decrementAndGet();
+				if (queue.isEmpty()) {
+					queues.remove(waiter.queueKey);
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return size.get() == 0;
+		}
+	}
+
+	/**
+	 * A resource and its state in the pool.
+	 */
+	static final class Entry<T> {
+
+		final T resource;
+
+		final AtomicInteger state = new AtomicInteger(FREE);
+
+		/**
+		 * Whether the entry is in the bag.
+		 */
+		final AtomicBoolean queued = new AtomicBoolean();
+
+		/**
+		 * The nanos when it was last returned.
+		 */
+		volatile long lastUsed = System.nanoTime();
+
+		Entry(T resource) {
+			this.resource = resource;
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package org.andresoviedo.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.cache.SpringTTLCache;
+import org.andresoviedo.util.cache.invalidation.CacheInvalidationBus;
+import org.andresoviedo.util.cache.invalidation.InvalidatingCache;
+import org.andresoviedo.util.cache.invalidation.InvalidationBatch;
+import org.andresoviedo.util.cache.invalidation.LoopbackInvalidationTransport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheInvalidationBusTest {
+
+	private final List<InvalidationBatch> sent = new ArrayList<InvalidationBatch>();
+
+	private volatile CountDownLatch received = new CountDownLatch(1);
+
+	private CacheInvalidationBus bus1, bus2;
+
+	private InvalidatingCache cache1, cache2;
+
+	@Before
+	public void setUp() {
+		LoopbackInvalidationTransport transport1 = new LoopbackInvalidationTransport() {
+			@Override
+			public void send(InvalidationBatch batch) {
+				synchronized (sent) {
+					sent.add(batch);
+				}
+				super.send(batch);
+				received.countDown();
+			}
+		};
+		bus1 = new CacheInvalidationBus("node1", transport1);
+		bus2 = new CacheInvalidationBus("node2", new LoopbackInvalidationTransport(transport1));
+		bus1.setDebounceMillis(100);
+		cache1 = bus1.register(new SpringTTLCache("junit", 60));
+		cache2 = bus2.register(new SpringTTLCache("junit", 60));
+		bus1.start();
+		bus2.start();
+	}
+
+	@After
+	public void tearDown() {
+		bus1.stop();
+		bus2.stop();
+	}
+
+	@Test
+	public void testWritesInvalidatePeersInBatches() throws Exception {
+		cacheOnMiss(cache2, "a", "old a");
+		cacheOnMiss(cache2, "b", "old b");
+		cacheOnMiss(cache2, "c", "old c");
+
+		cache1.put("a", "new a");
+		cache1.put("a", "newer a");
+		cache1.evict("b");
+		Assert.assertNotNull(cache2.get("a"));
+		Assert.assertTrue(sent.isEmpty());
+
+		// debounced into a single batch with the last change of every key
+		Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, sent.size());
+		Assert.assertEquals(2, sent.get(0).getEvents().size());
+		Assert.assertNull(cache2.get("a"));
+		Assert.assertNull(cache2.get("b"));
+		Assert.assertEquals("old c", cache2.get("c").get());
+		Assert.assertEquals("newer a", cache1.get("a").get());
+
+		cache1.clear();
+		bus1.flush();
+		Assert.assertNull(cache2.get("c"));
+	}
+
+	@Test
+	public void testStaleReadIsNotCached() {
+		// node2 misses and reads the old value while node1 writes
+		Assert.assertNull(cache2.get("key"));
+		cache1.put("key", "new");
+		bus1.flush();
+		cache2.put("key", "old");
+		Assert.assertNull(cache2.get("key"));
+
+		// a later read is cached
+		cacheOnMiss(cache2, "key", "new");
+		Assert.assertEquals("new", cache2.get("key").get());
+
+		// and node2 changes reach node1 too
+		Assert.assertEquals("new", cache1.get("key").get());
+		cache2.evict("key");
+		bus2.flush();
+		Assert.assertNull(cache1.get("key"));
+	}
+
+	@Test
+	public void testLoadedValuesAreNotBroadcast() {
+		Assert.assertEquals("loaded", cache1.get("key", new Callable<String>() {
+			public String call() {
+				return "loaded";
+			}
+		}));
+		Assert.assertEquals("loaded", cache1.get("key").get());
+		bus1.flush();
+		Assert.assertTrue(sent.isEmpty());
+
+		// a change known of while loading leaves the value loaded out
+		Assert.assertEquals("stale", cache2.get("other", new Callable<String>() {
+			public String call() {
+				cache1.put("other", "new");
+				bus1.flush();
+				return "stale";
+			}
+		}));
+		Assert.assertNull(cache2.get("other"));
+	}
+
+	@Test
+	public void testPutAfterExpiredLeaseIsBroadcast() {
+		bus1.setLeaseMillis(0);
+		cacheOnMiss(cache2, "key", "old");
+		// the miss of node1 doesn't make the write a population
+		Assert.assertNull(cache1.get("key"));
+		cache1.put("key", "new");
+		bus1.flush();
+		Assert.assertEquals(1, sent.size());
+		Assert.assertNull(cache2.get("key"));
+	}
+
+	private static void cacheOnMiss(InvalidatingCache cache, Object key, Object value) {
+		Assert.assertNull(cache.get(key));
+		cache.put(key, value);
+		Assert.assertEquals(value, cache.get(key).get());
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.andresoviedo.cache;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock which only moves when the test advances it.
+ */
+final class ManualClock extends Clock {
+
+	private volatile long millis;
+
+	ManualClock(long millis) {
+		this.millis = millis;
+	}
+
+	void advance(long delta) {
+		millis += delta;
+	}
+
+	@Override
+	public long millis() {
+		return millis;
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis);
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return ZoneOffset.UTC;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		throw new UnsupportedOperationException();
+	}
+
+}
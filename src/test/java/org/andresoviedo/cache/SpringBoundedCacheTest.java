@@ -0,0 +1,131 @@
+package org.andresoviedo.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.andresoviedo.util.cache.BoundedCacheConfiguration;
+import org.andresoviedo.util.cache.BoundedCacheConfiguration.EvictionPolicy;
+import org.andresoviedo.util.cache.SpringBoundedCache;
+import org.andresoviedo.util.cache.SpringBoundedCacheManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+
+public class SpringBoundedCacheTest {
+
+	@Test
+	public void testTinyLfuKeepsFrequentValues() {
+		BoundedCacheConfiguration configuration = new BoundedCacheConfiguration();
+		configuration.setMaxEntries(100);
+		SpringBoundedCache cache = new SpringBoundedCache("lfu", configuration);
+		for (int i = 0; i < 100; i++) {
+			cache.put(i, "value" + i);
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				Assert.assertNotNull(cache.get(i));
+			}
+		}
+
+		// a scan of values used once doesn't flush the frequent ones
+		for (int i = 1000; i < 2000; i++) {
+			cache.put(i, "value" + i);
+		}
+		Assert.assertEquals(100, cache.getSize());
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get(i) != null) {
+				hot++;
+			}
+		}
+		Assert.assertTrue("hot values kept: " + hot, hot >= 45);
+		Assert.assertEquals(1000, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void testSegmentedLruBound() {
+		BoundedCacheConfiguration configuration = new BoundedCacheConfiguration();
+		configuration.setMaxEntries(10);
+		configuration.setEvictionPolicy(EvictionPolicy.SEGMENTED_LRU);
+		SpringBoundedCache cache = new SpringBoundedCache("slru", configuration);
+		for (int i = 0; i < 10; i++) {
+			cache.put(i, i);
+		}
+		cache.get(0);
+		for (int i = 10; i < 15; i++) {
+			cache.put(i, i);
+		}
+		Assert.assertEquals(10, cache.getSize());
+		Assert.assertNotNull(cache.get(0));
+		Assert.assertNull(cache.get(1));
+		Assert.assertNotNull(cache.get(14));
+	}
+
+	@Test
+	public void testExpirySweep() {
+		ManualClock clock = new ManualClock(0);
+		BoundedCacheConfiguration configuration = new BoundedCacheConfiguration();
+		configuration.setTtlSeconds(1);
+		configuration.setExpiryTickMillis(100);
+		configuration.setClock(clock);
+		SpringBoundedCacheManager manager = new SpringBoundedCacheManager();
+		manager.setConfigurations(Collections.singletonMap("ttl", configuration));
+		manager.afterPropertiesSet();
+		try {
+			SpringBoundedCache cache = (SpringBoundedCache) manager.getCache("ttl");
+			cache.put("key", "value");
+			cache.put("null", null);
+			Assert.assertEquals("value", cache.get("key").get());
+			Assert.assertNull(cache.get("null").get());
+
+			// not before the TTL
+			clock.advance(999);
+			cache.cleanUp();
+			Assert.assertEquals(2, cache.getSize());
+			Assert.assertEquals("value", cache.get("key").get());
+
+			// swept without being looked up
+			clock.advance(1);
+			cache.cleanUp();
+			Assert.assertEquals(0, cache.getSize());
+			Assert.assertEquals(2, cache.getStats().getExpirations());
+			Assert.assertNull(cache.get("key"));
+		} finally {
+			manager.destroy();
+		}
+	}
+
+	@Test
+	public void testOffHeapBytesBound() {
+		BoundedCacheConfiguration configuration = new BoundedCacheConfiguration();
+		configuration.setMaxBytes(16 * 1024);
+		configuration.setOffHeap(true);
+		SpringBoundedCacheManager manager = new SpringBoundedCacheManager();
+		manager.setDefaultConfiguration(configuration);
+		manager.afterPropertiesSet();
+		try {
+			Cache cache = manager.getCache("offheap");
+			Assert.assertSame(cache, manager.getCache("offheap"));
+			for (int i = 0; i < 100; i++) {
+				byte[] value = new byte[1000];
+				Arrays.fill(value, (byte) i);
+				cache.put(i, value);
+			}
+			SpringBoundedCache bounded = (SpringBoundedCache) cache;
+			Assert.assertTrue(bounded.getBytes() <= 16 * 1024);
+			Assert.assertTrue(bounded.getStats().getEvictions() > 0);
+
+			byte[] expected = new byte[1000];
+			Arrays.fill(expected, (byte) 99);
+			Assert.assertArrayEquals(expected, (byte[]) cache.get(99).get());
+			Assert.assertEquals(1, bounded.getStats().getHits());
+
+			cache.evict(99);
+			Assert.assertNull(cache.get(99));
+			Assert.assertEquals(1, bounded.getStats().getMisses());
+		} finally {
+			manager.destroy();
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.andresoviedo.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.andresoviedo.util.cache.SpringTTLCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpringTTLCacheLoadingTest {
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		final SpringTTLCache cache = new SpringTTLCache("coalescing", 10);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(8);
+		final Callable<String> loader = new Callable<String>() {
+			public String call() throws Exception {
+				loads.incrementAndGet();
+				Thread.sleep(200);
+				return "value";
+			}
+		};
+		final AtomicInteger values = new AtomicInteger();
+		for (int i = 0; i < 8; i++) {
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						if ("value".equals(cache.get("key", loader))) {
+							values.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(8, values.get());
+		Assert.assertEquals("value", cache.get("key").get());
+	}
+
+	@Test
+	public void testRefreshAheadAndStaleValues() throws Exception {
+		final ManualClock clock = new ManualClock(0);
+		// refreshes are queued and run by the test itself
+		final List<Runnable> refreshes = new ArrayList<Runnable>();
+		SpringTTLCache cache = new SpringTTLCache("refresh", 1);
+		cache.setClock(clock);
+		cache.setRefreshAheadRatio(0.5);
+		cache.setRefreshExecutor(new Executor() {
+			public void execute(Runnable command) {
+				refreshes.add(command);
+			}
+		});
+		cache.setStaleSeconds(5);
+		final AtomicInteger version = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		Callable<Integer> loader = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				if (failures.get() > 0) {
+					failures.decrementAndGet();
+					throw new IllegalStateException("backend down");
+				}
+				return version.incrementAndGet();
+			}
+		};
+		Assert.assertEquals(Integer.valueOf(1), cache.get("key", loader));
+
+		// before half the TTL nothing is refreshed
+		clock.advance(400);
+		Assert.assertEquals(Integer.valueOf(1), cache.get("key", loader));
+		Assert.assertTrue(refreshes.isEmpty());
+
+		// past half the TTL the current value is served while it's reloaded, only once
+		clock.advance(200);
+		Assert.assertEquals(Integer.valueOf(1), cache.get("key", loader));
+		Assert.assertEquals(Integer.valueOf(1), cache.get("key", loader));
+		Assert.assertEquals(1, refreshes.size());
+		refreshes.remove(0).run();
+		Assert.assertEquals(2, version.get());
+		Assert.assertEquals(Integer.valueOf(2), cache.get("key", loader));
+
+		// once expired, a failed load serves the stale value
+		failures.set(1);
+		clock.advance(1000);
+		Assert.assertNull(cache.get("key"));
+		Assert.assertEquals(Integer.valueOf(2), cache.get("key", loader));
+		Assert.assertEquals(Integer.valueOf(3), cache.get("key", loader));
+
+		// past the stale time a failed load fails
+		failures.set(1);
+		clock.advance(7000);
+		try {
+			cache.get("key", loader);
+			Assert.fail("stale value served past the stale time");
+		} catch (SpringTTLCache.ValueRetrievalException e) {
+			Assert.assertEquals("key", e.getKey());
+		}
+	}
+
+	@Test(expected = SpringTTLCache.ValueRetrievalException.class)
+	public void testFailedLoadWithoutStaleValue() {
+		SpringTTLCache cache = new SpringTTLCache("failing", 1);
+		cache.get("key", new Callable<Object>() {
+			public Object call() throws Exception {
+				throw new IllegalStateException("backend down");
+			}
+		});
+	}
+
+}
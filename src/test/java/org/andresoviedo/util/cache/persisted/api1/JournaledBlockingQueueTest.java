@@ -0,0 +1,151 @@
+package org.andresoviedo.util.cache.persisted.api1;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.andresoviedo.util.cache.JdkCacheSerializer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+public class JournaledBlockingQueueTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void test_elements_not_acknowledged_survive_reopening() throws Exception {
+		File folder = temp.newFolder("queue");
+		JournaledBlockingQueue<String> queue = new JournaledBlockingQueue<String>(folder);
+		for (int i = 0; i < 10; i++) {
+			queue.put("element " + i);
+		}
+		Assert.assertEquals("element 0", queue.take());
+		List<String> batch = new ArrayList<String>();
+		Assert.assertEquals(3, queue.drainTo(batch, 3));
+		Assert.assertEquals(Arrays.asList("element 1", "element 2", "element 3"), batch);
+		JournaledBlockingQueue.Delivery<String> delivery = queue.receive(1, TimeUnit.SECONDS);
+		Assert.assertEquals("element 4", delivery.getElement());
+		Assert.assertTrue(queue.receive(1, TimeUnit.SECONDS).ack());
+		queue.close();
+
+		queue = new JournaledBlockingQueue<String>(folder);
+		Assert.assertEquals(5, queue.size());
+		Assert.assertEquals("element 4", queue.poll());
+		Assert.assertEquals("element 6", queue.poll());
+		queue.close();
+	}
+
+	@Test
+	public void test_redelivery() throws Exception {
+		JournaledBlockingQueue<String> queue = new JournaledBlockingQueue<String>(temp.newFolder("queue"));
+		queue.setAckTimeoutMillis(200);
+		queue.put("a");
+		queue.put("b");
+		JournaledBlockingQueue.Delivery<String> a = queue.receive(1, TimeUnit.SECONDS);
+		JournaledBlockingQueue.Delivery<String> b = queue.receive(1, TimeUnit.SECONDS);
+		Assert.assertNull(queue.receive(10, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(b.nack());
+		Assert.assertEquals("b", queue.receive(1, TimeUnit.SECONDS).getElement());
+
+		// "a" expires while waiting
+		JournaledBlockingQueue.Delivery<String> again = queue.receive(1, TimeUnit.SECONDS);
+		Assert.assertEquals("a", again.getElement());
+		Assert.assertEquals(1, again.getRedeliveries());
+		Assert.assertFalse(a.ack());
+		Assert.assertTrue(again.ack());
+		queue.close();
+	}
+
+	@Test
+	public void test_acknowledged_segments_are_deleted() throws Exception {
+		File folder = temp.newFolder("queue");
+		JournaledBlockingQueue<String> queue = new JournaledBlockingQueue<String>(folder, new JdkCacheSerializer(), 100, 4096);
+		queue.setSyncEnqueue(false);
+		for (int i = 0; i < 1000; i++) {
+			queue.put("element " + i);
+			Assert.assertEquals("element " + i, queue.take());
+		}
+		Assert.assertTrue(folder.listFiles().length <= 2);
+		queue.close();
+
+		queue = new JournaledBlockingQueue<String>(folder, new JdkCacheSerializer(), 100, 4096);
+		Assert.assertTrue(queue.isEmpty());
+		queue.close();
+	}
+
+	@Test
+	public void test_group_commit_concurrent_producers() throws Exception {
+		File folder = temp.newFolder("queue");
+		final JournaledBlockingQueue<Integer> queue = new JournaledBlockingQueue<Integer>(folder);
+		final int producers = 8, elements = 5000;
+		final CountDownLatch done = new CountDownLatch(producers);
+		final AtomicInteger rejected = new AtomicInteger();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < elements; i++) {
+						if (!queue.offer(producer * elements + i)) {
+							rejected.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		// Every element is drained exactly once
+		boolean[] seen = new boolean[producers * elements];
+		List<Integer> drained = new ArrayList<Integer>();
+		int count = 0;
+		while (count < producers * elements) {
+			Integer first = queue.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull("Drained " + count + " elements", first);
+			drained.clear();
+			drained.add(first);
+			queue.drainTo(drained, 1000);
+			for (Integer element : drained) {
+				Assert.assertFalse("Drained twice: " + element, seen[element]);
+				seen[element] = true;
+				count++;
+			}
+		}
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, rejected.get());
+		Assert.assertNull(queue.poll());
+		queue.close();
+
+		JournaledBlockingQueue<Integer> reopened = new JournaledBlockingQueue<Integer>(folder);
+		Assert.assertTrue(reopened.isEmpty());
+		reopened.close();
+	}
+
+	@Test
+	public void test_xml_documents() throws Exception {
+		File folder = temp.newFolder("xml");
+		FileWriter legacy = new FileWriter(new File(folder, "0000.xml"));
+		legacy.write("<legacy/>");
+		legacy.close();
+
+		XMLPersistedBlockingQueue queue = new XMLPersistedBlockingQueue(folder.getPath());
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		doc.appendChild(doc.createElement("message"));
+		queue.add(doc);
+		queue.add(doc);
+		Assert.assertEquals("legacy", queue.get().getDocumentElement().getNodeName());
+		Document[] docs = queue.get(5);
+		Assert.assertEquals(2, docs.length);
+		Assert.assertEquals("message", docs[1].getDocumentElement().getNodeName());
+		queue.close();
+	}
+}
@@ -0,0 +1,106 @@
+package org.andresoviedo.util.cache.persisted.api1;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogStructuredPersistedListTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void test_changes_survive_reopening() throws Exception {
+		File folder = temp.newFolder("list");
+		LogStructuredPersistedList<String> list = open(folder);
+		list.setMaxHotElements(4);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			list.add("element " + i);
+			expected.add("element " + i);
+		}
+		list.set(10, "ten");
+		expected.set(10, "ten");
+		list.remove(0);
+		expected.remove(0);
+		Assert.assertEquals(expected, list);
+		list.close();
+
+		list = open(folder);
+		Assert.assertEquals(expected, list);
+		list.clear();
+		list.add("last");
+		list.close();
+
+		list = open(folder);
+		Assert.assertEquals(Arrays.asList("last"), list);
+		list.close();
+	}
+
+	@Test
+	public void test_torn_record_is_truncated() throws Exception {
+		File folder = temp.newFolder("list");
+		LogStructuredPersistedList<String> list = open(folder);
+		list.add("a");
+		list.add("b");
+		list.close();
+
+		// a crash while appending "c"
+		File segment = folder.listFiles()[0];
+		long length = segment.length();
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(length);
+		raf.writeInt(100);
+		raf.writeInt(12345);
+		raf.write(new byte[] { 1, 0, 0 });
+		raf.close();
+
+		list = open(folder);
+		Assert.assertEquals(Arrays.asList("a", "b"), list);
+		Assert.assertEquals(length, segment.length());
+		list.add("c");
+		list.close();
+
+		list = open(folder);
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), list);
+		list.close();
+	}
+
+	@Test
+	public void test_compaction_drops_garbage() throws Exception {
+		File folder = temp.newFolder("list");
+		LogStructuredPersistedList<String> list = open(folder);
+		list.setSegmentSize(4096);
+		for (int i = 0; i < 1000; i++) {
+			list.add("element " + i);
+			if (i % 10 != 0) {
+				list.remove(list.size() - 1);
+			}
+		}
+		Assert.assertEquals(100, list.size());
+		long bytes = 0;
+		for (File f : folder.listFiles()) {
+			bytes += f.length();
+		}
+		Assert.assertTrue("bytes " + bytes, bytes < 3 * 4096 + 100 * 64);
+		list.close();
+
+		list = open(folder);
+		Assert.assertEquals(100, list.size());
+		Assert.assertEquals("element 990", list.get(99));
+		list.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static LogStructuredPersistedList<String> open(File folder) {
+		return (LogStructuredPersistedList<String>) PersistedListFactory.getObjectStorage(String.class, folder,
+				PersistedListFactory.TYPE_LOG_STRUCTURED);
+	}
+}
@@ -0,0 +1,155 @@
+package org.andresoviedo.util.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.http.server.impl.HttpServiceImpl;
+import org.andresoviedo.util.http.server.nio.NioHttpServiceImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileResponseTest {
+
+	private File file;
+
+	private byte[] data;
+
+	@Before
+	public void setUp() throws Exception {
+		data = new byte[3 * 1024 * 1024 + 17];
+		new Random(7).nextBytes(data);
+		file = File.createTempFile("FileResponseTest", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void test_parseRange() {
+		Assert.assertArrayEquals(new long[] { 0, 99 }, FileResponse.parseRange("bytes=0-99", 1000));
+		Assert.assertArrayEquals(new long[] { 900, 999 }, FileResponse.parseRange("bytes=900-", 1000));
+		Assert.assertArrayEquals(new long[] { 990, 999 }, FileResponse.parseRange("bytes=-10", 1000));
+		Assert.assertArrayEquals(new long[] { 500, 999 }, FileResponse.parseRange("bytes=500-5000", 1000));
+		Assert.assertNull(FileResponse.parseRange("bytes=1000-", 1000));
+		Assert.assertEquals(0, FileResponse.parseRange("bytes=0-1,5-6", 1000).length);
+		Assert.assertEquals(0, FileResponse.parseRange("items=0-1", 1000).length);
+	}
+
+	@Test
+	public void test_etag() {
+		Assert.assertEquals("\"dev.803.ino.1234-3e8-10\"", FileResponse.etag("(dev=803,ino=1234)", 1000, 16));
+		Assert.assertEquals("\"volSerialNumber.1.fileIndexHigh.2.fileIndexLow.3-3e8-10\"",
+				FileResponse.etag("(volSerialNumber=1, fileIndexHigh=2, fileIndexLow=3)", 1000, 16));
+		// INFO: Keys with the same hash code
+		Assert.assertFalse(FileResponse.etag("Aa", 1000, 16).equals(FileResponse.etag("BB", 1000, 16)));
+	}
+
+	@Test
+	public void test_classic_service() throws Exception {
+		HttpServiceImpl httpService = new HttpServiceImpl(0);
+		httpService.addRoute(Method.GET, "/file", new FileHandler());
+		httpService.start();
+		try {
+			assertServed(httpService.getListeningPort());
+		} finally {
+			httpService.stop();
+		}
+	}
+
+	@Test
+	public void test_nio_service() throws Exception {
+		NioHttpServiceImpl httpService = new NioHttpServiceImpl(0, 2);
+		httpService.addRoute(Method.GET, "/file", new FileHandler());
+		httpService.start();
+		try {
+			assertServed(httpService.getListeningPort());
+		} finally {
+			httpService.stop();
+		}
+	}
+
+	private void assertServed(int port) throws IOException {
+		URL url = new URL("http://localhost:" + port + "/file");
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		Assert.assertNotNull(etag);
+		Assert.assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+		Assert.assertArrayEquals(data, read(connection.getInputStream()));
+
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Range", "bytes=1000-1999");
+		connection.setRequestProperty("If-Range", etag);
+		Assert.assertEquals(206, connection.getResponseCode());
+		Assert.assertEquals("bytes 1000-1999/" + data.length, connection.getHeaderField("Content-Range"));
+		Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 2000), read(connection.getInputStream()));
+
+		// a stale If-Range gets the whole file
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Range", "bytes=0-9");
+		connection.setRequestProperty("If-Range", "\"stale\"");
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals(data.length, read(connection.getInputStream()).length);
+
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Range", "bytes=" + data.length + "-");
+		Assert.assertEquals(416, connection.getResponseCode());
+
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("If-None-Match", etag);
+		Assert.assertEquals(304, connection.getResponseCode());
+
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("If-Modified-Since", lastModified);
+		Assert.assertEquals(304, connection.getResponseCode());
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			ret.write(buffer, 0, read);
+		}
+		in.close();
+		return ret.toByteArray();
+	}
+
+	private class FileHandler implements RequestHandler {
+
+		@Override
+		public Response handle(IHTTPSession session) {
+			try {
+				return FileResponse.newFileResponse(session, file, "application/octet-stream");
+			} catch (IOException ex) {
+				return NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+			}
+		}
+
+		@Override
+		public boolean canHandle(String uri) {
+			return false;
+		}
+	}
+}
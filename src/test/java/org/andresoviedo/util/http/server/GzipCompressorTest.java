@@ -0,0 +1,219 @@
+package org.andresoviedo.util.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.http.server.impl.HttpServiceImpl;
+import org.andresoviedo.util.http.server.nio.NioHttpServiceImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GzipCompressorTest {
+
+	private static final String JSON;
+
+	static {
+		StringBuffer sb = new StringBuffer("[");
+		for (int i = 0; i < 500; i++) {
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"},");
+		}
+		JSON = sb.append("{}]").toString();
+	}
+
+	private File file;
+
+	private File sibling;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("GzipCompressorTest", ".json");
+		write(file, JSON.getBytes("UTF-8"));
+		sibling = new File(file.getPath() + ".gz");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		sibling.delete();
+	}
+
+	@Test
+	public void test_classic_service() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(6, 1024 * 1024);
+		HttpServiceImpl httpService = new HttpServiceImpl(0);
+		httpService.setCompressor(compressor);
+		addRoutes(httpService);
+		httpService.start();
+		try {
+			assertCompressed(httpService.getListeningPort(), compressor);
+		} finally {
+			httpService.stop();
+		}
+	}
+
+	@Test
+	public void test_nio_service() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(1, 1024 * 1024);
+		NioHttpServiceImpl httpService = new NioHttpServiceImpl(0, 2);
+		httpService.setCompressor(compressor);
+		addRoutes(httpService);
+		httpService.start();
+		try {
+			assertCompressed(httpService.getListeningPort(), compressor);
+		} finally {
+			httpService.stop();
+		}
+	}
+
+	@Test
+	public void test_stopped_service_leaves_set_compressor_open() throws Exception {
+		GzipCompressor compressor = new GzipCompressor(6, 1024 * 1024);
+		NioHttpServiceImpl httpService = new NioHttpServiceImpl(0, 1);
+		httpService.setCompressor(compressor);
+		addRoutes(httpService);
+		httpService.start();
+		HttpURLConnection connection = open(httpService.getListeningPort(), "/json");
+		Assert.assertEquals(JSON, gunzip(connection.getInputStream()));
+		httpService.stop();
+
+		// the caller owns it
+		Assert.assertNotNull(compressor.gzip(new byte[1]));
+		compressor.close();
+		// once closed the bodies go uncompressed
+		Assert.assertNull(compressor.gzip(new byte[1]));
+	}
+
+	@Test
+	public void test_restarted_services_still_compress() throws Exception {
+		HttpServiceImpl classic = new HttpServiceImpl(0);
+		NioHttpServiceImpl nio = new NioHttpServiceImpl(0, 1);
+		for (HttpService httpService : new HttpService[] { classic, nio }) {
+			addRoutes(httpService);
+			for (int i = 0; i < 2; i++) {
+				httpService.start();
+				try {
+					int port = httpService == classic ? classic.getListeningPort() : nio.getListeningPort();
+					HttpURLConnection connection = open(port, "/json");
+					Assert.assertEquals("gzip", connection.getContentEncoding());
+					Assert.assertEquals(JSON, gunzip(connection.getInputStream()));
+				} finally {
+					httpService.stop();
+				}
+			}
+		}
+	}
+
+	private void assertCompressed(int port, GzipCompressor compressor) throws IOException {
+		// cached by digest
+		HttpURLConnection connection = open(port, "/json");
+		Assert.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals(JSON, gunzip(connection.getInputStream()));
+		connection = open(port, "/json");
+		Assert.assertEquals(JSON, gunzip(connection.getInputStream()));
+		Assert.assertEquals(1, compressor.getCacheStats().getHits());
+
+		// below the threshold
+		connection = open(port, "/small");
+		Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+		Assert.assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+		Assert.assertEquals("small", read(connection.getInputStream()));
+
+		// streamed
+		connection = open(port, "/stream");
+		Assert.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		StringBuffer expected = new StringBuffer();
+		for (int i = 0; i < 20; i++) {
+			expected.append(JSON);
+		}
+		Assert.assertEquals(expected.toString(), gunzip(connection.getInputStream()));
+
+		// file, cached by ETag
+		connection = open(port, "/file");
+		String etag = connection.getHeaderField("ETag");
+		Assert.assertTrue(etag, etag.endsWith("-gzip\""));
+		Assert.assertEquals(JSON, gunzip(connection.getInputStream()));
+		connection = open(port, "/file");
+		connection.setRequestProperty("If-None-Match", etag);
+		Assert.assertEquals(304, connection.getResponseCode());
+
+		// precompressed sibling, served as is
+		byte[] precompressed = compressor.gzip("precompressed".getBytes("UTF-8"));
+		write(sibling, precompressed);
+		connection = open(port, "/file");
+		Assert.assertEquals(String.valueOf(precompressed.length), connection.getHeaderField("Content-Length"));
+		Assert.assertEquals("precompressed", gunzip(connection.getInputStream()));
+	}
+
+	private void addRoutes(HttpService httpService) {
+		httpService.addRoute(Method.GET, "/{name}", new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				String name = session.getParms().get("name");
+				if (name.equals("json")) {
+					return NanoHTTPD.newFixedLengthResponse(Status.OK, "application/json", JSON);
+				} else if (name.equals("small")) {
+					return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "small");
+				} else if (name.equals("stream")) {
+					StringBuffer sb = new StringBuffer();
+					for (int i = 0; i < 20; i++) {
+						sb.append(JSON);
+					}
+					return NanoHTTPD.newFixedLengthResponse(Status.OK, "application/json",
+							new ByteArrayInputStream(sb.toString().getBytes()), -1);
+				}
+				try {
+					return FileResponse.newFileResponse(session, file, "application/json");
+				} catch (IOException ex) {
+					return NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+				}
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return false;
+			}
+		});
+	}
+
+	private static HttpURLConnection open(int port, String path) throws IOException {
+		HttpURLConnection ret = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		ret.setRequestProperty("Accept-Encoding", "gzip");
+		return ret;
+	}
+
+	private static String gunzip(InputStream in) throws IOException {
+		return read(new GZIPInputStream(in));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			ret.write(buffer, 0, read);
+		}
+		in.close();
+		return ret.toString("UTF-8");
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+}
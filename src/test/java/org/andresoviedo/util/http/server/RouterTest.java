@@ -0,0 +1,108 @@
+package org.andresoviedo.util.http.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RouterTest {
+
+	@Test
+	public void test_find() {
+		Router router = new Router();
+		Assert.assertNull(router.find(Method.GET, "/users"));
+
+		RequestHandler users = new NamedHandler("users");
+		RequestHandler user = new NamedHandler("user");
+		RequestHandler me = new NamedHandler("me");
+		RequestHandler update = new NamedHandler("update");
+		RequestHandler orders = new NamedHandler("orders");
+		RequestHandler files = new NamedHandler("files");
+		router.add(Method.GET, "/users", users);
+		router.add(Method.GET, "/users/{id}", user);
+		router.add(Method.PUT, "/users/{id}", update);
+		router.add(Method.GET, "/users/me", me);
+		router.add(Method.GET, "/users/{id}/orders/{order}", orders);
+		router.add(null, "/files/*", files);
+
+		Assert.assertSame(users, router.find(Method.GET, "/users").getHandler());
+		Assert.assertSame(users, router.find(Method.GET, "/users/").getHandler());
+		Assert.assertSame(me, router.find(Method.GET, "/users/me").getHandler());
+
+		Router.Match match = router.find(Method.GET, "/users/42");
+		Assert.assertSame(user, match.getHandler());
+		Assert.assertEquals("42", match.getParameter("id"));
+		Assert.assertSame(update, router.find(Method.PUT, "/users/me").getHandler());
+
+		match = router.find(Method.GET, "/users/42/orders/7");
+		Assert.assertSame(orders, match.getHandler());
+		Map<String, String> parms = new HashMap<String, String>();
+		match.putParameters(parms);
+		Assert.assertEquals("42", parms.get("id"));
+		Assert.assertEquals("7", parms.get("order"));
+
+		match = router.find(Method.POST, "/files/a/b.txt");
+		Assert.assertSame(files, match.getHandler());
+		Assert.assertEquals("a/b.txt", match.getParameter(Router.WILDCARD));
+		Assert.assertEquals("", router.find(Method.GET, "/files").getParameter(Router.WILDCARD));
+
+		Assert.assertNull(router.find(Method.GET, "/users/42/orders"));
+		Assert.assertNull(router.find(Method.GET, "/groups"));
+		Assert.assertNull(router.find(Method.DELETE, "/users/42"));
+		Assert.assertTrue(router.isRouted("/users/42"));
+		Assert.assertFalse(router.isRouted("/groups"));
+	}
+
+	@Test
+	public void test_invalid_routes() {
+		Router router = new Router();
+		router.add(Method.GET, "/users/{id}", new NamedHandler("user"));
+		assertInvalid(router, Method.GET, "/users/{id}");
+		assertInvalid(router, Method.PUT, "/users/{name}");
+		assertInvalid(router, Method.GET, "users");
+		assertInvalid(router, Method.GET, "/files/*/a");
+		assertInvalid(router, Method.GET, "/a/{x}/{x}");
+		assertInvalid(router, Method.GET, "/a{x}");
+		// a failed route leaves the router as it was
+		router.add(Method.PUT, "/users/{id}", new NamedHandler("update"));
+		Assert.assertNotNull(router.find(Method.PUT, "/users/1"));
+		Assert.assertNull(router.find(Method.GET, "/files/a"));
+	}
+
+	private static void assertInvalid(Router router, Method method, String pattern) {
+		try {
+			router.add(method, pattern, new NamedHandler(pattern));
+			Assert.fail(pattern);
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	private static class NamedHandler implements RequestHandler {
+
+		private final String name;
+
+		NamedHandler(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Response handle(IHTTPSession session) {
+			return null;
+		}
+
+		@Override
+		public boolean canHandle(String uri) {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package org.andresoviedo.util.http.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.http.server.RequestHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpServiceImplTest {
+
+	@Test
+	public void test_pooledRunner_rejects_over_limit() throws Exception {
+		final CountDownLatch handling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		PooledAsyncRunner runner = new PooledAsyncRunner(1, 0, 1);
+		HttpServiceImpl httpService = new HttpServiceImpl(0, runner, 2000);
+		httpService.addHandler(new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				handling.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "pong!");
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return uri.equals("/ping");
+			}
+		});
+		httpService.start();
+		try {
+			final URL url = new URL("http://localhost:" + httpService.getListeningPort() + "/ping");
+			final int[] status = new int[1];
+			Thread slow = new Thread(new Runnable() {
+				public void run() {
+					try {
+						status[0] = request(url);
+					} catch (Exception ex) {
+						status[0] = -1;
+					}
+				}
+			});
+			slow.start();
+			Assert.assertTrue(handling.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(1, runner.getActiveCount());
+
+			Assert.assertEquals(503, request(url));
+			Assert.assertEquals(1, runner.getRejectedCount());
+
+			release.countDown();
+			slow.join(5000);
+			Assert.assertEquals(200, status[0]);
+			Assert.assertEquals(1, runner.getAcceptedCount());
+		} finally {
+			httpService.stop();
+			runner.shutdown();
+		}
+	}
+
+	@Test
+	public void test_connection_limit_rejects_with_503() throws Exception {
+		PooledAsyncRunner runner = new PooledAsyncRunner(4, 0, 2);
+		HttpServiceImpl httpService = new HttpServiceImpl(0, runner, 10000);
+		httpService.addHandler(new PingHandler(null, null));
+		httpService.start();
+		Socket first = null;
+		Socket second = null;
+		try {
+			int port = httpService.getListeningPort();
+			URL url = new URL("http://localhost:" + port + "/ping");
+			// two kept alive connections take the limit, although there are threads left
+			first = new Socket("localhost", port);
+			second = new Socket("localhost", port);
+			Assert.assertEquals("pong!", exchange(first));
+			Assert.assertEquals("pong!", exchange(second));
+			Assert.assertEquals(2, runner.getOpenConnections());
+
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			Assert.assertEquals(503, connection.getResponseCode());
+			Assert.assertEquals("1", connection.getHeaderField("Retry-After"));
+			connection.disconnect();
+			Assert.assertEquals(1, runner.getRejectedCount());
+			Assert.assertEquals(2, runner.getAcceptedCount());
+
+			// closing one of them makes room for a new connection
+			first.close();
+			waitFor(runner, 1, 1);
+			Assert.assertEquals(200, request(url));
+			Assert.assertEquals(3, runner.getAcceptedCount());
+			Assert.assertEquals(1, runner.getRejectedCount());
+		} finally {
+			close(first);
+			close(second);
+			httpService.stop();
+			runner.shutdown();
+		}
+	}
+
+	@Test
+	public void test_idle_connection_closed_after_timeout() throws Exception {
+		PooledAsyncRunner runner = new PooledAsyncRunner(2, 0, 0);
+		HttpServiceImpl httpService = new HttpServiceImpl(0, runner, 300);
+		httpService.addHandler(new PingHandler(null, null));
+		httpService.start();
+		Socket socket = new Socket("localhost", httpService.getListeningPort());
+		try {
+			socket.setSoTimeout(5000);
+			Assert.assertEquals("pong!", exchange(socket));
+			Assert.assertEquals("pong!", exchange(socket));
+			Assert.assertEquals(1, runner.getOpenConnections());
+
+			long start = System.currentTimeMillis();
+			Assert.assertEquals(-1, socket.getInputStream().read());
+			long elapsed = System.currentTimeMillis() - start;
+			Assert.assertTrue("Closed after " + elapsed + "ms", elapsed >= 200);
+			waitFor(runner, 0, 1);
+			Assert.assertEquals(1, runner.getAcceptedCount());
+		} finally {
+			socket.close();
+			httpService.stop();
+			runner.shutdown();
+		}
+	}
+
+	@Test
+	public void test_runner_counters_after_mixed_run() throws Exception {
+		final CountDownLatch handling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		PooledAsyncRunner runner = new PooledAsyncRunner(1, 1, 0);
+		HttpServiceImpl httpService = new HttpServiceImpl(0, runner, 2000);
+		httpService.addHandler(new PingHandler(handling, release));
+		Assert.assertSame(runner, httpService.getAsyncRunner());
+		httpService.start();
+		try {
+			String base = "http://localhost:" + httpService.getListeningPort();
+			Assert.assertEquals(200, request(new URL(base + "/ping")));
+			waitFor(runner, 0, 1);
+
+			// one connection served, one queued and one rejected because the queue is full
+			final URL slow = new URL(base + "/slow");
+			final int[] status = new int[2];
+			Thread[] clients = new Thread[2];
+			for (int i = 0; i < clients.length; i++) {
+				final int index = i;
+				clients[i] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							status[index] = request(slow);
+						} catch (Exception ex) {
+							status[index] = -1;
+						}
+					}
+				});
+			}
+			clients[0].start();
+			Assert.assertTrue(handling.await(5, TimeUnit.SECONDS));
+			clients[1].start();
+			waitFor(runner, 2, 1);
+			Assert.assertEquals(1, runner.getActiveCount());
+			Assert.assertEquals(1, runner.getQueuedCount());
+
+			Assert.assertEquals(503, request(new URL(base + "/ping")));
+			Assert.assertEquals(1, runner.getRejectedCount());
+
+			release.countDown();
+			for (Thread client : clients) {
+				client.join(5000);
+			}
+			Assert.assertEquals(200, status[0]);
+			Assert.assertEquals(200, status[1]);
+			waitFor(runner, 0, 3);
+			Assert.assertEquals(0, runner.getActiveCount());
+			Assert.assertEquals(0, runner.getQueuedCount());
+			Assert.assertEquals(3, runner.getAcceptedCount());
+			Assert.assertEquals(1, runner.getRejectedCount());
+		} finally {
+			httpService.stop();
+			runner.shutdown();
+		}
+	}
+
+	/**
+	 * Waits for the connections to be closed by the server, which happens after the client reads the response.
+	 */
+	private static void waitFor(LimitedAsyncRunner runner, int open, long completed) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		// the connection is closed before the task serving it ends
+		while ((runner.getOpenConnections() != open || runner.getCompletedCount() != completed || runner.getActiveCount() > open)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(open, runner.getOpenConnections());
+		Assert.assertEquals(completed, runner.getCompletedCount());
+	}
+
+	/**
+	 * Sends a request through a kept alive connection.
+	 *
+	 * @return the body of the response
+	 */
+	private static String exchange(Socket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write("GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+		out.flush();
+		InputStream in = socket.getInputStream();
+		int contentLength = -1;
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			if (line.toLowerCase().startsWith("content-length:")) {
+				contentLength = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		Assert.assertTrue(contentLength >= 0);
+		byte[] body = new byte[contentLength];
+		for (int read = 0; read < body.length;) {
+			int n = in.read(body, read, body.length - read);
+			Assert.assertTrue(n > 0);
+			read += n;
+		}
+		return new String(body, "UTF-8");
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != '\n') {
+			Assert.assertTrue("Connection closed", c >= 0);
+			if (c != '\r') {
+				ret.write(c);
+			}
+		}
+		return ret.toString("US-ASCII");
+	}
+
+	private static void close(Socket socket) throws IOException {
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	private static int request(URL url) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Connection", "close");
+		connection.setReadTimeout(5000);
+		try {
+			int ret = connection.getResponseCode();
+			InputStream in = ret < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				while (in.read() != -1) {
+					// consume
+				}
+				in.close();
+			}
+			return ret;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Answers <code>/ping</code> at once and <code>/slow</code> once released.
+	 */
+	private static class PingHandler implements RequestHandler {
+
+		private final CountDownLatch handling;
+
+		private final CountDownLatch release;
+
+		PingHandler(CountDownLatch handling, CountDownLatch release) {
+			this.handling = handling;
+			this.release = release;
+		}
+
+		@Override
+		public Response handle(IHTTPSession session) {
+			if (session.getUri().equals("/slow")) {
+				handling.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "pong!");
+		}
+
+		@Override
+		public boolean canHandle(String uri) {
+			return uri.equals("/ping") || uri.equals("/slow");
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package org.andresoviedo.util.http.server.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+
+import org.andresoviedo.util.http.NanoHTTPD;
+import org.andresoviedo.util.http.NanoHTTPD.IHTTPSession;
+import org.andresoviedo.util.http.NanoHTTPD.Method;
+import org.andresoviedo.util.http.NanoHTTPD.Response;
+import org.andresoviedo.util.http.NanoHTTPD.Response.Status;
+import org.andresoviedo.util.http.server.RequestHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioHttpServiceImplTest {
+
+	private NioHttpServiceImpl httpService;
+
+	@Before
+	public void setUp() throws Exception {
+		httpService = new NioHttpServiceImpl(0, 4);
+		httpService.setBodyWindow(8 * 1024);
+		httpService.addHandler(new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "hello " + session.getParms().get("name"));
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return uri.equals("/hello");
+			}
+		});
+		httpService.addRoute(Method.GET, "/greet/{name}", new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "hi " + session.getParms().get("name"));
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return false;
+			}
+		});
+		httpService.addHandler(new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				long length = 0;
+				try {
+					InputStream in = session.getInputStream();
+					byte[] buffer = new byte[1000];
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						length += read;
+					}
+				} catch (IOException ex) {
+					return NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, "text/plain", ex.getMessage());
+				}
+				return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", String.valueOf(length));
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return uri.equals("/count");
+			}
+		});
+		httpService.addHandler(new RequestHandler() {
+
+			@Override
+			public Response handle(IHTTPSession session) {
+				byte[] data = new byte[2 * 1024 * 1024];
+				return NanoHTTPD.newFixedLengthResponse(Status.OK, "application/octet-stream", new ByteArrayInputStream(data),
+						data.length);
+			}
+
+			@Override
+			public boolean canHandle(String uri) {
+				return uri.equals("/big");
+			}
+		});
+		httpService.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		httpService.stop();
+	}
+
+	@Test
+	public void test_get_and_form() throws Exception {
+		URL url = new URL("http://localhost:" + httpService.getListeningPort() + "/hello?name=nio%20world");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertEquals("hello nio world", read(connection.getInputStream()));
+
+		connection = (HttpURLConnection) new URL("http://localhost:" + httpService.getListeningPort() + "/hello").openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		OutputStream out = connection.getOutputStream();
+		out.write("name=form".getBytes("UTF-8"));
+		out.close();
+		Assert.assertEquals("hello form", read(connection.getInputStream()));
+
+		connection = (HttpURLConnection) new URL("http://localhost:" + httpService.getListeningPort() + "/none").openConnection();
+		Assert.assertEquals(400, connection.getResponseCode());
+	}
+
+	@Test
+	public void test_routes() throws Exception {
+		URL url = new URL("http://localhost:" + httpService.getListeningPort() + "/greet/routed");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		Assert.assertEquals("hi routed", read(connection.getInputStream()));
+
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("DELETE");
+		Assert.assertEquals(405, connection.getResponseCode());
+	}
+
+	@Test
+	public void test_streamed_bodies() throws Exception {
+		byte[] data = new byte[1024 * 1024];
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + httpService.getListeningPort() + "/count")
+				.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/octet-stream");
+		connection.setFixedLengthStreamingMode(data.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(data);
+		out.close();
+		Assert.assertEquals(String.valueOf(data.length), read(connection.getInputStream()));
+
+		connection = (HttpURLConnection) new URL("http://localhost:" + httpService.getListeningPort() + "/count").openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/octet-stream");
+		connection.setChunkedStreamingMode(1000);
+		out = connection.getOutputStream();
+		out.write(data, 0, 300000);
+		out.close();
+		Assert.assertEquals("300000", read(connection.getInputStream()));
+
+		// larger than the bytes a response can queue
+		connection = (HttpURLConnection) new URL("http://localhost:" + httpService.getListeningPort() + "/big").openConnection();
+		Assert.assertEquals(2 * 1024 * 1024, read(connection.getInputStream()).length());
+	}
+
+	@Test
+	public void test_pipelined_requests() throws Exception {
+		Socket socket = new Socket("localhost", httpService.getListeningPort());
+		try {
+			socket.setSoTimeout(5000);
+			String requests = "GET /hello?name=1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					+ "POST /count HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nabcde"
+					+ "GET /hello?name=3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+			socket.getOutputStream().write(requests.getBytes("ISO-8859-1"));
+			String responses = read(socket.getInputStream());
+			int first = responses.indexOf("hello 1");
+			int second = responses.indexOf("\r\n\r\n5");
+			int third = responses.indexOf("hello 3");
+			Assert.assertTrue(responses, first > 0 && second > first && third > second);
+			Assert.assertEquals(3, responses.split("HTTP/1.1 200 OK").length - 1);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void test_https_is_rejected() throws Exception {
+		httpService.makeSecure(NanoHTTPD.makeSSLSocketFactory("/server.jks", "password".toCharArray()));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			ret.write(buffer, 0, read);
+		}
+		in.close();
+		return ret.toString("UTF-8");
+	}
+
+}
@@ -0,0 +1,93 @@
+package org.andresoviedo.util.messaging.api1;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Messengers written before asynchronous requests only implement <code>sendImpl</code>, and may still wait on the deprecated locks.
+ */
+public class SubclassedMessengerTest {
+
+	private EchoMessenger messenger;
+
+	private MessageFactory factory;
+
+	@Before
+	public void setUp() {
+		messenger = new EchoMessenger();
+		messenger.setClientId("client");
+		factory = messenger.createMessageFactory();
+	}
+
+	@After
+	public void tearDown() {
+		messenger.stop();
+	}
+
+	@Test
+	public void test_sendAsync_defaults_to_sendImpl() throws Exception {
+		Message request = factory.createTextMessage("service", "ping");
+		CompletableFuture<Message> future = messenger.sendAsync(request, 5000);
+		Message response = future.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(request.getMessageId(), response.getCorrelationMessageId());
+		Assert.assertEquals(0, messenger.currentRequestsPending());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void test_deprecated_locks_are_notified() throws Exception {
+		Message request = factory.createTextMessage("service", "ping");
+		Messenger.MessageLock lock = new Messenger.MessageLock();
+		messenger.locks.put(request.getMessageId(), lock);
+		synchronized (lock) {
+			messenger.sendImpl(request);
+			lock.wait(5000);
+		}
+		Assert.assertEquals(request.getMessageId(), lock.result.getCorrelationMessageId());
+	}
+
+	/**
+	 * Answers every message it sends from another thread, as a peer would.
+	 */
+	private static class EchoMessenger extends Messenger {
+
+		@Override
+		protected List<SocketSession> getSessions() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		protected void sendImpl(final Message message) throws MessengerException {
+			final Message response = createMessageFactory().createTextMessageReply("pong", message);
+			// There's no session to acknowledge it through.
+			response.setNeedsAck(false);
+			new Thread() {
+				public void run() {
+					messageReceived(null, response);
+				}
+			}.start();
+		}
+
+		@Override
+		protected Message sendAndReceiveImpl(Message message, long timeout) throws MessengerException, InterruptedException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected File getServicePersistenceDirectory() {
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.andresoviedo.util.messaging.api1.common.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryMessageCodecTest {
+
+	private MessageCodec codec;
+
+	private MessageFactory factory;
+
+	@Before
+	public void setUp() {
+		codec = new BinaryMessageCodec();
+		factory = MessageFactory.getInstance("client");
+	}
+
+	@Test
+	public void test_messages_round_trip() throws Exception {
+		Message text = factory.createTextMessage("service", "target", "hello áé", 5000);
+		text.setTargetClientId("server");
+		text.setTimeSent(new Date(text.getTimeCreated().getTime() + 3));
+		text.putProperty("string", "value");
+		text.putProperty("int", Integer.valueOf(-7));
+		text.putProperty("long", Long.valueOf(Long.MAX_VALUE));
+		text.putProperty("bool", Boolean.TRUE);
+		text.putProperty("date", new Date(1000));
+		text.putProperty("null", null);
+		text.setNeedsAck(false);
+		text.setSequence(1L << 40);
+
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("a");
+		Message object = factory.createObjectMessageReply(list, text);
+		object.setCompressed(true);
+		Message empty = factory.createObjectMessage("service", null);
+
+		List<Command> decoded = roundTrip(text, object, empty, text);
+
+		for (int i : new int[] { 0, 3 }) {
+			TextMessage message = (TextMessage) decoded.get(i);
+			Assert.assertEquals(text.toString(), message.toString());
+			Assert.assertEquals(text.getTimeCreated(), message.getTimeCreated());
+			Assert.assertEquals(text.getTimeSent(), message.getTimeSent());
+			Assert.assertEquals(text.getProperties(), message.getProperties());
+			Assert.assertFalse(message.isNeedsAck());
+			Assert.assertEquals(1L << 40, message.getSequence());
+		}
+		ObjectMessage message = (ObjectMessage) decoded.get(1);
+		Assert.assertEquals(list, message.getObject());
+		Assert.assertTrue(message.isCompressed());
+		Assert.assertEquals(text.getMessageId(), message.getCorrelationMessageId());
+		Assert.assertEquals("client", message.getCorrelationClientId());
+		Assert.assertNull(((ObjectMessage) decoded.get(2)).getObject());
+		Assert.assertEquals(0, ((Message) decoded.get(2)).getSequence());
+	}
+
+	@Test
+	public void test_signaling_commands_round_trip() throws Exception {
+		LoginRequest request = new LoginRequest("client");
+		request.setCodecVersion(BinaryMessageCodec.VERSION);
+		request.setStreamId(-42);
+		request.setNextSequence(100);
+		request.setAckedSequence(7);
+		request.setCreditWindow(1000);
+		LoginResponse response = new LoginResponse("client", LoginResponse.LOGIN_NOT_OK);
+		response.setCodecVersion(BinaryMessageCodec.VERSION);
+		response.setStreamId(Long.MIN_VALUE);
+		response.setResumed(true);
+		response.setAckedSequence(99);
+		response.setCreditWindow(64);
+
+		List<Command> decoded = roundTrip(new PingRequest("client"), new PingResponse("server"), new MessageAck("client", "id-1"),
+				request, response, new SequenceAck("server", -1, 12345), new CreditGrant("server", "service", 250));
+
+		Assert.assertEquals("PingRequest [clientId=client]", decoded.get(0).toString());
+		Assert.assertEquals("PingResponse [clientId=server]", decoded.get(1).toString());
+		Assert.assertEquals("id-1", ((MessageAck) decoded.get(2)).getMessageId());
+		Assert.assertEquals(request.toString(), decoded.get(3).toString());
+		Assert.assertEquals(response.toString(), decoded.get(4).toString());
+		Assert.assertEquals("SequenceAck [clientId=server, streamId=-1, sequence=12345]", decoded.get(5).toString());
+		Assert.assertEquals("CreditGrant [clientId=server, serviceId=service, credits=250]", decoded.get(6).toString());
+	}
+
+	@Test
+	public void test_batched_acks_round_trip() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			ids.add("id-" + i);
+		}
+		List<Command> decoded = roundTrip(new MessageAck("client", ids), new MessageAck("client", ids.subList(0, 1)));
+
+		MessageAck batch = (MessageAck) decoded.get(0);
+		Assert.assertEquals("client", batch.getClientId());
+		Assert.assertEquals(ids, batch.getMessageIds());
+		Assert.assertEquals("id-0", batch.getMessageId());
+		Assert.assertEquals(ids.subList(0, 1), ((MessageAck) decoded.get(1)).getMessageIds());
+	}
+
+	@Test
+	public void test_bodies_above_threshold_are_compressed() throws Exception {
+		PayloadCompressor compressor = new PayloadCompressor(256, 1);
+		codec = new BinaryMessageCodec(compressor);
+		StringBuffer json = new StringBuffer();
+		for (int i = 0; i < 20; i++) {
+			json.append("{\"customerId\":").append(i).append(",\"status\":\"ACTIVE\",\"balance\":").append(i * 100).append("}");
+		}
+		Message small = factory.createTextMessage("service", "target", "small", 0);
+		Message large = factory.createTextMessage("service", "target", json.toString(), 0);
+
+		List<Command> decoded = roundTrip(small, large);
+
+		Assert.assertFalse(((Message) decoded.get(0)).isCompressed());
+		Assert.assertTrue(((Message) decoded.get(1)).isCompressed());
+		Assert.assertFalse(large.isCompressed());
+		Assert.assertEquals(json.toString(), ((TextMessage) decoded.get(1)).getText());
+		PayloadCompressor.Statistics stats = compressor.getStatistics("service");
+		Assert.assertEquals(1, stats.getCompressed());
+		Assert.assertEquals(1, stats.getDecompressed());
+		Assert.assertTrue(stats.getRatio() > 2);
+
+		// A dictionary holding the common strings makes the body smaller.
+		int plain = encode(large).length;
+		compressor.setDictionary("service", "{\"customerId\":,\"status\":\"ACTIVE\",\"balance\":}".getBytes("UTF-8"));
+		byte[] withDictionary = encode(large);
+		Assert.assertTrue(withDictionary.length + " >= " + plain, withDictionary.length < plain);
+		Assert.assertEquals(json.toString(), ((TextMessage) roundTrip(large).get(0)).getText());
+
+		// Peers without the dictionary cannot read the body.
+		codec = new BinaryMessageCodec(new PayloadCompressor(256, 1));
+		try {
+			codec.newDecoder().decode(new DataInputStream(new ByteArrayInputStream(withDictionary)));
+			Assert.fail();
+		} catch (StreamCorruptedException e) {
+		}
+	}
+
+	@Test
+	public void test_sizes_beyond_the_deflate_ratio_are_rejected() throws Exception {
+		PayloadCompressor compressor = new PayloadCompressor(256, 9);
+		byte[] zeros = new byte[1024 * 1024];
+		byte[] compressed = compressor.compress("service", zeros);
+		Assert.assertArrayEquals(zeros, compressor.decompress("service", compressed, zeros.length));
+		try {
+			compressor.decompress("service", new byte[16], 64 * 1024 * 1024);
+			Assert.fail();
+		} catch (StreamCorruptedException e) {
+		}
+	}
+
+	@Test
+	public void test_strings_beyond_the_interned_limit_round_trip() throws Exception {
+		Message[] messages = new Message[5000];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = factory.createTextMessage("service", "text");
+			messages[i].putProperty("key" + i, Integer.valueOf(i));
+		}
+		List<Command> decoded = roundTrip(messages);
+		for (int i = 0; i < messages.length; i++) {
+			Assert.assertEquals(Integer.valueOf(i), ((Message) decoded.get(i)).getProperty("key" + i));
+		}
+	}
+
+	@Test
+	public void test_unknown_commands_are_serialized() throws Exception {
+		List<Command> decoded = roundTrip(new CustomPing("client", 42));
+		Assert.assertEquals(42, ((CustomPing) decoded.get(0)).value);
+	}
+
+	@Test
+	public void test_at_least_five_times_smaller_than_serialization() throws Exception {
+		MessageCodec.Encoder encoder = codec.newEncoder();
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(binary);
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(serialized);
+
+		// Warm up interned strings and class descriptors as a long-lived connection would.
+		encoder.encode(new PingRequest("client"), out);
+		oos.writeObject(new PingRequest("client"));
+		oos.reset();
+
+		Command[] commands = { new PingRequest("client"), new PingResponse("client"), new MessageAck("client", "1234567890"),
+				factory.createTextMessage("service", "text") };
+		for (Command command : commands) {
+			binary.reset();
+			encoder.encode(command, out);
+			out.flush();
+			int binarySize = binary.size();
+
+			oos.flush();
+			int before = serialized.size();
+			oos.writeObject(command);
+			oos.reset();
+			oos.flush();
+			int serializedSize = serialized.size() - before;
+
+			Assert.assertTrue(command + ": " + binarySize + " vs " + serializedSize, binarySize * 5 <= serializedSize);
+		}
+	}
+
+	private byte[] encode(Command command) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		codec.newEncoder().encode(command, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private List<Command> roundTrip(Command... commands) throws IOException, ClassNotFoundException {
+		MessageCodec.Encoder encoder = codec.newEncoder();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Command command : commands) {
+			encoder.encode(command, out);
+		}
+		out.flush();
+
+		MessageCodec.Decoder decoder = codec.newDecoder();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		List<Command> ret = new ArrayList<Command>();
+		for (int i = 0; i < commands.length; i++) {
+			ret.add(decoder.decode(in));
+		}
+		Assert.assertEquals(0, in.available());
+		return ret;
+	}
+
+	private static class CustomPing extends PingRequest {
+
+		private static final long serialVersionUID = 1L;
+
+		private int value;
+
+		CustomPing(String clientId, int value) {
+			super(clientId);
+			this.value = value;
+		}
+	}
+
+}
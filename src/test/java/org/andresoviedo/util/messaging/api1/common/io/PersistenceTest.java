@@ -0,0 +1,243 @@
+package org.andresoviedo.util.messaging.api1.common.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.data.TextMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistenceTest {
+
+	private File directory;
+
+	private Persistence persistence;
+
+	private MessageFactory factory;
+
+	@Before
+	public void setUp() {
+		directory = new File("target/persistence-test/" + System.nanoTime());
+		persistence = new Persistence(directory);
+		factory = MessageFactory.getInstance("client");
+	}
+
+	@After
+	public void tearDown() {
+		persistence.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void test_add_get_delete_survive_reopen() throws Exception {
+		List<Message> messages = add(100, 0);
+		Assert.assertTrue(persistence.delete(messages.get(10)));
+		Assert.assertFalse(persistence.delete(messages.get(10)));
+		Assert.assertTrue(persistence.delete("client", messages.get(20).getMessageId()));
+		// Duplicates are ignored.
+		persistence.add(messages.get(30));
+
+		persistence.close();
+		persistence = new Persistence(directory);
+
+		Assert.assertEquals(98, persistence.size());
+		Assert.assertNull(persistence.get("client", messages.get(10).getMessageId(), false));
+		TextMessage message = (TextMessage) persistence.get("client", messages.get(30).getMessageId(), false);
+		Assert.assertEquals("text-30", message.getText());
+		Assert.assertEquals(messages.get(30).getTimeSent(), message.getTimeSent());
+
+		List<Message> all = persistence.get("client", false);
+		Assert.assertEquals(98, all.size());
+		Assert.assertEquals("text-0", ((TextMessage) all.get(0)).getText());
+		Assert.assertEquals(0, persistence.get("other", false).size());
+
+		Iterator<?> it = persistence.iterator(true);
+		int count = 0;
+		while (it.hasNext()) {
+			if (it.next() != null) {
+				count++;
+			}
+		}
+		Assert.assertEquals(98, count);
+		Assert.assertEquals(0, persistence.size());
+	}
+
+	@Test
+	public void test_expired_messages_are_not_returned() throws Exception {
+		Message message = factory.createTextMessage("service", "text", 1);
+		message.setTimeSent(new Date(System.currentTimeMillis() - 1000));
+		persistence.add(message);
+		persistence.add(factory.createTextMessage("service", "text", 60000));
+		Assert.assertEquals(1, persistence.get(false).size());
+		Assert.assertEquals(1, persistence.size());
+	}
+
+	@Test
+	public void test_torn_tail_is_discarded() throws Exception {
+		add(10, 0);
+		persistence.close();
+
+		// Simulate a record whose body was written but not its length, followed by garbage.
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long end = findEnd(raf);
+		raf.seek(end + 8);
+		raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		raf.close();
+
+		persistence = new Persistence(directory);
+		Assert.assertEquals(10, persistence.size());
+		add(5, 10);
+		persistence.close();
+		persistence = new Persistence(directory);
+		Assert.assertEquals(15, persistence.size());
+	}
+
+	@Test
+	public void test_compaction_removes_dead_segments() throws Exception {
+		persistence.setSegmentSize(4096);
+		List<Message> messages = add(500, 0);
+		int before = directory.listFiles().length;
+		for (int i = 0; i < 495; i++) {
+			Assert.assertTrue(persistence.delete(messages.get(i)));
+		}
+		// Roll the active segment so the last messages are compacted too.
+		add(60, 500);
+		persistence.compact();
+		int after = directory.listFiles().length;
+		Assert.assertTrue(before + " -> " + after, after * 4 < before);
+
+		persistence.close();
+		persistence = new Persistence(directory);
+		List<Message> left = persistence.get(false);
+		Assert.assertEquals(65, left.size());
+		Assert.assertEquals("text-495", ((TextMessage) left.get(0)).getText());
+		Assert.assertEquals("text-559", ((TextMessage) left.get(64)).getText());
+	}
+
+	@Test
+	public void test_compaction_concurrent_with_deletes() throws Exception {
+		persistence.setSegmentSize(4096);
+		final List<Message> messages = add(400, 0);
+		for (int i = 0; i < 400; i += 2) {
+			Assert.assertTrue(persistence.delete(messages.get(i)));
+		}
+		final List<Exception> errors = new ArrayList<Exception>();
+		Thread deleter = new Thread() {
+			public void run() {
+				try {
+					// Deleted while their segments are being compacted, they must not be recovered from the copies.
+					for (int i = 1; i < 200; i += 2) {
+						persistence.delete(messages.get(i));
+					}
+					add(100, 400);
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+		deleter.start();
+		for (int i = 0; i < 5; i++) {
+			persistence.compact();
+		}
+		deleter.join();
+		persistence.compact();
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(200, persistence.size());
+
+		persistence.close();
+		persistence = new Persistence(directory);
+		List<Message> left = persistence.get(false);
+		Assert.assertEquals(200, left.size());
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals("text-" + (201 + i * 2), ((TextMessage) left.get(i)).getText());
+			Assert.assertEquals("text-" + (400 + i), ((TextMessage) left.get(100 + i)).getText());
+		}
+	}
+
+	@Test
+	public void test_legacy_files_are_imported() throws Exception {
+		directory.mkdirs();
+		Message message = factory.createTextMessage("service", "legacy", 0);
+		message.setTimeSent(new Date());
+		File file = new File(directory, persistence.getPersistedMessageId(message));
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
+		oos.writeObject(message);
+		oos.close();
+
+		Assert.assertEquals("legacy", ((TextMessage) persistence.getMessage(file.getName(), false)).getText());
+		Assert.assertFalse(file.exists());
+	}
+
+	@Test
+	public void test_group_sync_with_concurrent_writers() throws Exception {
+		persistence.setSyncPolicy(Persistence.SYNC_GROUP);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Exception> errors = new ArrayList<Exception>();
+		for (int t = 0; t < 4; t++) {
+			final MessageFactory threadFactory = MessageFactory.getInstance("client" + t);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							Message message = threadFactory.createTextMessage("service", "text", 0);
+							message.setTimeSent(new Date());
+							persistence.add(message);
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(200, persistence.size());
+	}
+
+	private List<Message> add(int count, int first) throws PersistenceException {
+		List<Message> ret = new ArrayList<Message>();
+		for (int i = first; i < first + count; i++) {
+			Message message = factory.createTextMessage("service", "text-" + i, 0);
+			message.setTimeSent(new Date());
+			persistence.add(message);
+			ret.add(message);
+		}
+		return ret;
+	}
+
+	private long findEnd(RandomAccessFile raf) throws IOException {
+		long position = 0;
+		while (true) {
+			raf.seek(position);
+			int length = raf.readInt();
+			if (length == 0) {
+				return position;
+			}
+			position += 8 + length;
+		}
+	}
+
+}
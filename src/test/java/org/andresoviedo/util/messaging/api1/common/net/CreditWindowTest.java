@@ -0,0 +1,102 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CreditWindowTest {
+
+	@Test
+	public void test_credits_are_taken_granted_and_capped() throws Exception {
+		CreditWindow credits = new CreditWindow();
+		// Peers that don't announce a window aren't limited.
+		Assert.assertTrue(credits.acquire("service", 0));
+
+		credits.open(2, 8);
+		Assert.assertTrue(credits.acquire("Service", 0));
+		Assert.assertTrue(credits.acquire("service", 0));
+		Assert.assertFalse(credits.acquire("service", 0));
+		// Each service has a window of its own.
+		Assert.assertTrue(credits.acquire("other", 0));
+
+		credits.grant("service", 5);
+		Assert.assertEquals(2, credits.getCredits("service"));
+
+		// Granted back every quarter of the window.
+		Assert.assertEquals(0, credits.consumed("service"));
+		Assert.assertEquals(2, credits.consumed("service"));
+		Assert.assertEquals(0, credits.consumed("service"));
+	}
+
+	@Test
+	public void test_spilled_messages_go_before_new_ones() throws Exception {
+		CreditWindow credits = new CreditWindow();
+		credits.open(1, 0);
+		Assert.assertTrue(credits.acquire("service", 0));
+		credits.spill("service", new CreditWindow.Spilled("client", "id-1"));
+		Assert.assertNull(credits.nextSpilled("service"));
+
+		Assert.assertTrue(credits.grant("service", 1));
+		// The credit goes to the spilled message.
+		Assert.assertFalse(credits.acquire("service", 0));
+		Assert.assertEquals("id-1", credits.nextSpilled("service").getPersistedId());
+		Assert.assertEquals(0, credits.getSpilled());
+		credits.release("service");
+		Assert.assertTrue(credits.acquire("service", 0));
+	}
+
+	@Test
+	public void test_waiting_senders_are_released() throws Exception {
+		final CreditWindow credits = new CreditWindow();
+		credits.open(1, 0);
+		Assert.assertTrue(credits.acquire("service", 0));
+		final AtomicBoolean acquired = new AtomicBoolean();
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					started.countDown();
+					acquired.set(credits.acquire("service", 10000));
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		sender.start();
+		awaitWaiting(sender, started);
+		Assert.assertFalse(acquired.get());
+		credits.grant("service", 1);
+		sender.join(1000);
+		Assert.assertTrue(acquired.get());
+		Assert.assertEquals(0, credits.getCredits("service"));
+
+		// Closing the connection releases them too, the send fails as the session is closed.
+		final CountDownLatch restarted = new CountDownLatch(1);
+		sender = new Thread() {
+			public void run() {
+				try {
+					restarted.countDown();
+					credits.acquire("service", 10000);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		sender.start();
+		awaitWaiting(sender, restarted);
+		credits.close();
+		sender.join(1000);
+		Assert.assertFalse(sender.isAlive());
+	}
+
+	/**
+	 * Waits for a sender to wait for credits, i.e. to release the monitor of the window in {@link CreditWindow#acquire(String, long)}.
+	 */
+	private static void awaitWaiting(Thread sender, CountDownLatch started) throws InterruptedException {
+		started.await();
+		while (sender.getState() != Thread.State.TIMED_WAITING) {
+			Thread.yield();
+		}
+	}
+
+}
@@ -0,0 +1,281 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.andresoviedo.util.messaging.api1.common.data.BinaryMessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.data.PingRequest;
+import org.andresoviedo.util.messaging.api1.common.data.PingResponse;
+import org.andresoviedo.util.messaging.api1.common.data.TextMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioSocketSessionTest {
+
+	private NioReactor reactor;
+
+	private ServerSocketChannel serverChannel;
+
+	private RecordingController serverController;
+
+	private RecordingController clientController;
+
+	@Before
+	public void setUp() throws IOException {
+		reactor = new NioReactor("Test", 2);
+		reactor.start();
+		serverController = new RecordingController();
+		clientController = new RecordingController();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		reactor.register(serverChannel, SelectionKey.OP_ACCEPT, new NioReactor.Handler() {
+			public void ready(SelectionKey key) {
+				try {
+					SocketChannel channel = serverChannel.accept();
+					if (channel != null) {
+						NioSocketSession session = new NioSocketSession("server", channel, serverController, reactor);
+						session.setReconnectionDelay(0);
+						session.setCodec(new BinaryMessageCodec());
+						session.open();
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			public void stopped() {
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		serverChannel.close();
+		reactor.stop();
+	}
+
+	@Test
+	public void test_send_receive_in_order() throws Exception {
+		int count = 2000;
+		serverController.expect(count);
+		NioSocketSession client = newClient();
+		client.open();
+		Assert.assertTrue(client.isOpened());
+
+		MessageFactory factory = MessageFactory.getInstance("client");
+		for (int i = 0; i < count; i++) {
+			client.send(factory.createTextMessage("service", "text-" + i));
+		}
+		Assert.assertTrue(serverController.await());
+		for (int i = 0; i < count; i++) {
+			TextMessage message = (TextMessage) serverController.received.get(i);
+			Assert.assertEquals("text-" + i, message.getText());
+			Assert.assertNotNull(message.getTimeReceived());
+		}
+		client.close();
+		Assert.assertFalse(client.isOpened());
+	}
+
+	@Test
+	public void test_big_frames_and_replies() throws Exception {
+		serverController.expect(1);
+		clientController.expect(1);
+		NioSocketSession client = newClient();
+		client.open();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300000; i++) {
+			sb.append((char) ('a' + (i % 26)));
+		}
+		client.send(MessageFactory.getInstance("client").createTextMessage("service", sb.toString()));
+		Assert.assertTrue(serverController.await());
+		Assert.assertEquals(sb.toString(), ((TextMessage) serverController.received.get(0)).getText());
+
+		serverController.sessions.get(0).send(new PingRequest("server"));
+		Assert.assertTrue(clientController.await());
+		Assert.assertTrue(clientController.received.get(0) instanceof PingRequest);
+		client.close();
+	}
+
+	@Test
+	public void test_remote_close_is_notified() throws Exception {
+		serverController.expect(1);
+		NioSocketSession client = newClient();
+		client.open();
+		client.send(new PingResponse("client"));
+		Assert.assertTrue(serverController.await());
+
+		clientController.closed = new CountDownLatch(1);
+		serverController.sessions.get(0).close();
+		Assert.assertTrue(clientController.closed.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(client.isOpened());
+	}
+
+	@Test
+	public void test_codec_negotiated_at_login() throws Exception {
+		serverController.expect(1);
+		clientController.expect(1);
+		NioSocketSession client = newClient();
+		client.setCodec(new BinaryMessageCodec());
+		client.open();
+		client.send(new LoginRequest("client"));
+		Assert.assertTrue(serverController.await());
+		Assert.assertEquals(BinaryMessageCodec.VERSION, ((LoginRequest) serverController.received.get(0)).getCodecVersion());
+
+		serverController.sessions.get(0).send(new LoginResponse("client", LoginResponse.LOGIN_OK));
+		Assert.assertTrue(clientController.await());
+		Assert.assertEquals(BinaryMessageCodec.VERSION, ((LoginResponse) clientController.received.get(0)).getCodecVersion());
+
+		int count = 100;
+		serverController.expect(count);
+		clientController.expect(count);
+		MessageFactory factory = MessageFactory.getInstance("client");
+		for (int i = 0; i < count; i++) {
+			client.send(factory.createTextMessage("service", "text-" + i));
+			serverController.sessions.get(0).send(new PingRequest("server"));
+		}
+		Assert.assertTrue(serverController.await());
+		Assert.assertTrue(clientController.await());
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals("text-" + i, ((TextMessage) serverController.received.get(i + 1)).getText());
+		}
+		client.close();
+	}
+
+	@Test
+	public void test_serialization_used_without_codec() throws Exception {
+		serverController.expect(1);
+		clientController.expect(1);
+		NioSocketSession client = newClient();
+		client.open();
+		client.send(new LoginRequest("client"));
+		Assert.assertTrue(serverController.await());
+		serverController.sessions.get(0).send(new LoginResponse("client", LoginResponse.LOGIN_OK));
+		Assert.assertTrue(clientController.await());
+		Assert.assertEquals(0, ((LoginResponse) clientController.received.get(0)).getCodecVersion());
+
+		serverController.expect(1);
+		client.send(MessageFactory.getInstance("client").createTextMessage("service", "text"));
+		Assert.assertTrue(serverController.await());
+		Assert.assertEquals("text", ((TextMessage) serverController.received.get(1)).getText());
+		client.close();
+	}
+
+	@Test
+	public void test_suspended_reading_keeps_frames_until_resumed() throws Exception {
+		serverController.expect(1);
+		serverController.suspend = true;
+		NioSocketSession client = newClient();
+		client.open();
+		int count = 50;
+		MessageFactory factory = MessageFactory.getInstance("client");
+		for (int i = 0; i < count; i++) {
+			client.send(factory.createTextMessage("service", "text-" + i));
+		}
+		Assert.assertTrue(serverController.await());
+		serverController.expect(count - 1);
+		Assert.assertFalse(serverController.latch.await(300, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, serverController.received.size());
+
+		// The loop keeps serving the other sessions meanwhile.
+		clientController.expect(1);
+		serverController.sessions.get(0).send(new PingRequest("server"));
+		Assert.assertTrue(clientController.await());
+
+		serverController.sessions.get(0).resumeReading();
+		Assert.assertTrue(serverController.await());
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals("text-" + i, ((TextMessage) serverController.received.get(i)).getText());
+		}
+		client.close();
+	}
+
+	@Test
+	public void test_connect_tries_the_next_address() throws Exception {
+		ServerSocketChannel closedChannel = ServerSocketChannel.open();
+		closedChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		InetSocketAddress refused = (InetSocketAddress) closedChannel.socket().getLocalSocketAddress();
+		closedChannel.close();
+
+		NioSocketSession unreachable = new NioSocketSession("client", new InetSocketAddress[] { refused }, clientController, reactor);
+		unreachable.setReconnectionDelay(0);
+		try {
+			unreachable.open();
+			Assert.fail("Connected to a closed port");
+		} catch (SocketSessionException e) {
+			Assert.assertFalse(unreachable.isOpened());
+		}
+
+		serverController.expect(1);
+		NioSocketSession client = new NioSocketSession("client", new InetSocketAddress[] { refused,
+				(InetSocketAddress) serverChannel.socket().getLocalSocketAddress() }, clientController, reactor);
+		client.setReconnectionDelay(0);
+		client.open();
+		Assert.assertTrue(client.isOpened());
+		client.send(new PingResponse("client"));
+		Assert.assertTrue(serverController.await());
+		client.close();
+	}
+
+	private NioSocketSession newClient() {
+		NioSocketSession client = new NioSocketSession("client", new InetSocketAddress[] { (InetSocketAddress) serverChannel.socket()
+				.getLocalSocketAddress() }, clientController, reactor);
+		client.setReconnectionDelay(0);
+		return client;
+	}
+
+	private static class RecordingController implements SocketSessionController {
+
+		List<Command> received = new CopyOnWriteArrayList<Command>();
+
+		List<SocketSession> sessions = new CopyOnWriteArrayList<SocketSession>();
+
+		CountDownLatch latch = new CountDownLatch(0);
+
+		CountDownLatch closed = new CountDownLatch(0);
+
+		volatile boolean suspend;
+
+		void expect(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		boolean await() throws InterruptedException {
+			return latch.await(10, TimeUnit.SECONDS);
+		}
+
+		public void sessionOpened(SocketSession session) {
+			sessions.add(session);
+		}
+
+		public void sessionClosed(SocketSession session, boolean forced) {
+			closed.countDown();
+		}
+
+		public void commandSent(SocketSession session, Command command) {
+		}
+
+		public void commandReceived(SocketSession session, Command command) {
+			received.add(command);
+			if (suspend) {
+				suspend = false;
+				session.suspendReading();
+			}
+			latch.countDown();
+		}
+	}
+
+}
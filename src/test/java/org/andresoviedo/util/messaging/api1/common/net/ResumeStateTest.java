@@ -0,0 +1,124 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.andresoviedo.util.messaging.api1.common.data.LoginRequest;
+import org.andresoviedo.util.messaging.api1.common.data.LoginResponse;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.data.SequenceAck;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResumeStateTest {
+
+	private MessageFactory factory = MessageFactory.getInstance("client");
+
+	@Test
+	public void test_retransmit_window_numbers_acknowledges_and_drops_oldest() {
+		RetransmitWindow window = new RetransmitWindow(4);
+		List<Message> sent = send(window, 6);
+		// Only the last 4 are held.
+		Assert.assertEquals(3, window.getFirstSequence());
+		Assert.assertEquals(7, window.getNextSequence());
+		Assert.assertEquals(6, sent.get(5).getSequence());
+
+		// A retransmitted message keeps its number.
+		window.stamp(sent.get(4));
+		Assert.assertEquals(5, sent.get(4).getSequence());
+		Assert.assertEquals(7, window.getNextSequence());
+
+		Assert.assertEquals(sent.subList(2, 4), window.acknowledge(4));
+		Assert.assertNull(window.resume(1, new ArrayList<Message>()));
+		List<Message> acknowledged = new ArrayList<Message>();
+		Assert.assertEquals(sent.subList(5, 6), window.resume(5, acknowledged));
+		Assert.assertEquals(sent.subList(4, 5), acknowledged);
+	}
+
+	@Test
+	public void test_receive_window_drops_duplicates_and_acks_contiguous() {
+		ReceiveWindow window = new ReceiveWindow();
+		window.reset(9, 0);
+		for (int i = 1; i <= 4; i++) {
+			Assert.assertTrue(window.accept(i));
+		}
+		Assert.assertFalse(window.accept(2));
+		// Processed out of order, and the third one failed.
+		window.complete(2);
+		Assert.assertNull(window.acknowledge("server"));
+		window.complete(1);
+		window.fail(3);
+		// Counted since the last acknowledgement.
+		Assert.assertEquals(2, window.complete(4));
+		SequenceAck ack = window.acknowledge("server");
+		Assert.assertEquals(9, ack.getStreamId());
+		Assert.assertEquals(2, ack.getSequence());
+
+		// The failed message is accepted again when retransmitted, the others are dropped.
+		Assert.assertTrue(window.accept(3));
+		Assert.assertFalse(window.accept(4));
+		window.complete(3);
+		Assert.assertEquals(4, window.acknowledge("server").getSequence());
+	}
+
+	@Test
+	public void test_handshake_retransmits_only_missed_messages() {
+		ResumeState client = new ResumeState(16);
+		ResumeState server = new ResumeState(16);
+		login(client, server);
+
+		// The client sends 5 messages, the server processes 3 and the connection drops.
+		List<Message> sent = send(client.getOutbound(), 5);
+		for (int i = 1; i <= 3; i++) {
+			Assert.assertTrue(server.getInbound().accept(i));
+			server.getInbound().complete(i);
+		}
+		send(server.getOutbound(), 2);
+		client.getInbound().accept(1);
+		client.getInbound().complete(1);
+
+		List<Message> acknowledged = new ArrayList<Message>();
+		LoginResponse response = new LoginResponse("client", LoginResponse.LOGIN_OK);
+		List<Message> toClient = accept(client, server, response, acknowledged);
+		Assert.assertEquals(1, toClient.size());
+		Assert.assertEquals(2, toClient.get(0).getSequence());
+		Assert.assertEquals(1, acknowledged.size());
+
+		acknowledged.clear();
+		Assert.assertEquals(sent.subList(3, 5), client.resume(response, acknowledged));
+		Assert.assertEquals(sent.subList(0, 3), acknowledged);
+
+		// A restarted server starts both streams again.
+		server = new ResumeState(16);
+		response = new LoginResponse("client", LoginResponse.LOGIN_OK);
+		Assert.assertNull(accept(client, server, response, new ArrayList<Message>()));
+		Assert.assertNull(client.resume(response, new ArrayList<Message>()));
+		Assert.assertEquals(0, client.getOutbound().size());
+		Assert.assertEquals(server.getOutbound().getStreamId(), client.getInbound().getStreamId());
+	}
+
+	private void login(ResumeState client, ResumeState server) {
+		LoginResponse response = new LoginResponse("client", LoginResponse.LOGIN_OK);
+		Assert.assertNull(accept(client, server, response, new ArrayList<Message>()));
+		Assert.assertFalse(response.isResumed());
+		client.resume(response, new ArrayList<Message>());
+	}
+
+	private List<Message> accept(ResumeState client, ResumeState server, LoginResponse response, List<Message> acknowledged) {
+		LoginRequest request = new LoginRequest("client");
+		client.offer(request);
+		return server.accept(request, response, acknowledged);
+	}
+
+	private List<Message> send(RetransmitWindow window, int count) {
+		List<Message> sent = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message message = factory.createTextMessage("service", "target", "m" + i, 0);
+			window.stamp(message);
+			sent.add(message);
+		}
+		return sent;
+	}
+
+}
@@ -0,0 +1,115 @@
+package org.andresoviedo.util.messaging.api1.common.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	private TimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		// A small wheel so that timeouts take several turns.
+		wheel = new TimingWheel("test", 5, 8);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void test_timeouts_expire_in_order_and_never_early() throws Exception {
+		final List<Long> expired = new ArrayList<Long>();
+		final CountDownLatch latch = new CountDownLatch(3);
+		final long start = System.nanoTime();
+		for (final long delay : new long[] { 150, 20, 70 }) {
+			wheel.schedule(new Runnable() {
+				public void run() {
+					long elapsed = (System.nanoTime() - start) / 1000000;
+					Assert.assertTrue(delay + " expired at " + elapsed, elapsed >= delay);
+					expired.add(delay);
+					latch.countDown();
+				}
+			}, delay);
+		}
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("[20, 70, 150]", expired.toString());
+	}
+
+	@Test
+	public void test_cancelled_timeouts_are_not_run() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		List<TimingWheel.Timeout> timeouts = new ArrayList<TimingWheel.Timeout>();
+		for (int i = 0; i < 10000; i++) {
+			timeouts.add(wheel.schedule(task, 200 + (i % 50)));
+		}
+		for (int i = 0; i < timeouts.size(); i += 2) {
+			Assert.assertTrue(timeouts.get(i).cancel());
+		}
+		Thread.sleep(500);
+		Assert.assertEquals(5000, runs.get());
+		for (TimingWheel.Timeout timeout : timeouts) {
+			Assert.assertTrue(timeout.isDone());
+			Assert.assertFalse(timeout.cancel());
+		}
+	}
+
+	@Test
+	public void test_restart_keeps_timeouts_of_new_run() throws Exception {
+		final CountDownLatch blocking = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// Keeps the old wheel thread busy, ignoring the interrupt of stop().
+		wheel.schedule(new Runnable() {
+			public void run() {
+				blocking.countDown();
+				boolean interrupted = false;
+				while (true) {
+					try {
+						release.await();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 10);
+		Assert.assertTrue(blocking.await(5, TimeUnit.SECONDS));
+		Thread stopper = new Thread() {
+			public void run() {
+				wheel.stop();
+			}
+		};
+		stopper.start();
+		while (stopper.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		// Restarts the wheel while the old thread is still running.
+		final CountDownLatch expired = new CountDownLatch(1);
+		wheel.schedule(new Runnable() {
+			public void run() {
+				expired.countDown();
+			}
+		}, 50);
+		release.countDown();
+		stopper.join();
+		Assert.assertTrue(expired.await(5, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.andresoviedo.util.messaging.api1.common.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServiceDispatcherTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void test_bounded_queue() {
+		BoundedQueue<Integer> queue = new BoundedQueue<Integer>(3);
+		Assert.assertEquals(4, queue.capacity());
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(queue.offer(i));
+		}
+		Assert.assertFalse(queue.offer(4));
+		Assert.assertEquals(4, queue.size());
+		for (int lap = 0; lap < 3; lap++) {
+			Assert.assertEquals(Integer.valueOf(lap), queue.poll());
+			Assert.assertTrue(queue.offer(lap + 4));
+		}
+		for (int i = 3; i < 7; i++) {
+			Assert.assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		Assert.assertNull(queue.poll());
+		Assert.assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void test_ordered_dispatch_with_concurrent_producers() throws Exception {
+		final int producers = 4;
+		final int count = 20000;
+		final List<int[]> handled = Collections.synchronizedList(new ArrayList<int[]>());
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(producers * count);
+		final ServiceDispatcher<int[]> dispatcher = new ServiceDispatcher<int[]>("service", 64, 1, executor,
+				new ServiceDispatcher.Handler<int[]>() {
+					public void handle(int[] e) {
+						int current = concurrent.incrementAndGet();
+						if (current > maxConcurrent.get()) {
+							maxConcurrent.set(current);
+						}
+						handled.add(e);
+						concurrent.decrementAndGet();
+						done.countDown();
+					}
+				});
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread() {
+				public void run() {
+					for (int i = 0; i < count; i++) {
+						dispatcher.dispatch(new int[] { producer, i });
+					}
+				}
+			}.start();
+		}
+		Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(1, maxConcurrent.get());
+		int[] next = new int[producers];
+		for (int[] e : handled) {
+			Assert.assertEquals(next[e[0]]++, e[1]);
+		}
+	}
+
+	@Test
+	public void test_offer_never_blocks_and_notifies_room() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger handled = new AtomicInteger();
+		ServiceDispatcher<Integer> dispatcher = new ServiceDispatcher<Integer>("service", 4, 1, executor,
+				new ServiceDispatcher.Handler<Integer>() {
+					public void handle(Integer e) {
+						try {
+							release.await();
+						} catch (InterruptedException ex) {
+						}
+						handled.incrementAndGet();
+					}
+				});
+		int offered = 0;
+		while (dispatcher.offer(offered)) {
+			offered++;
+		}
+		// The queue plus the element being handled.
+		Assert.assertTrue(offered >= 4);
+
+		final CountDownLatch room = new CountDownLatch(1);
+		dispatcher.whenRoom(new Runnable() {
+			public void run() {
+				room.countDown();
+			}
+		});
+		Assert.assertEquals(1, room.getCount());
+		release.countDown();
+		Assert.assertTrue(room.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(dispatcher.offer(offered));
+
+		// Runs at once when there's room already.
+		final CountDownLatch now = new CountDownLatch(1);
+		ServiceDispatcher<Integer> idle = new ServiceDispatcher<Integer>("idle", 4, 1, executor, new ServiceDispatcher.Handler<Integer>() {
+			public void handle(Integer e) {
+			}
+		});
+		idle.whenRoom(new Runnable() {
+			public void run() {
+				now.countDown();
+			}
+		});
+		Assert.assertEquals(0, now.getCount());
+	}
+
+	@Test
+	public void test_pause_only_quiesces_its_service() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger slowHandled = new AtomicInteger();
+		final ServiceDispatcher<String> slow = new ServiceDispatcher<String>("slow", 16, 4, executor, new ServiceDispatcher.Handler<String>() {
+			public void handle(String e) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+				}
+				slowHandled.incrementAndGet();
+			}
+		});
+		final CountDownLatch fastDone = new CountDownLatch(1);
+		ServiceDispatcher<String> fast = new ServiceDispatcher<String>("fast", 16, 4, executor, new ServiceDispatcher.Handler<String>() {
+			public void handle(String e) {
+				fastDone.countDown();
+			}
+		});
+
+		slow.dispatch("a");
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread pauser = new Thread() {
+			public void run() {
+				try {
+					slow.pause();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		pauser.start();
+		pauser.join(200);
+		Assert.assertTrue("pause() returned while a message was being handled", pauser.isAlive());
+
+		// Other services keep running meanwhile.
+		fast.dispatch("b");
+		Assert.assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+
+		// Messages queued while paused are kept until resumed.
+		slow.dispatch("c");
+		release.countDown();
+		pauser.join(5000);
+		Assert.assertFalse(pauser.isAlive());
+		Thread.sleep(100);
+		Assert.assertEquals(1, slowHandled.get());
+		Assert.assertEquals(1, slow.getPending());
+
+		slow.resume();
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((slowHandled.get() < 2) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(2, slowHandled.get());
+	}
+
+}
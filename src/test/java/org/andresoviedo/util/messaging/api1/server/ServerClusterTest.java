@@ -0,0 +1,112 @@
+package org.andresoviedo.util.messaging.api1.server;
+
+import org.andresoviedo.util.messaging.api1.MessengerException;
+import org.andresoviedo.util.messaging.api1.client.ClientMessenger;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.data.TextMessage;
+import org.andresoviedo.util.messaging.api1.common.service.ServiceListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a cluster of three nodes on localhost, with a client connected to the first node and another one to the third, which fails over to
+ * the second.
+ * 
+ * @author andresoviedo
+ */
+public class ServerClusterTest {
+
+	private ServerMessenger[] nodes = new ServerMessenger[3];
+	private ClientMessenger client1;
+	private ClientMessenger client2;
+
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = ServerMessenger.getInstance("messaging.cluster.node" + (i + 1) + ".properties");
+			nodes[i].start();
+		}
+		client1 = ClientMessenger.getInstance("messaging.cluster.client1.properties");
+		client1.start();
+		client2 = ClientMessenger.getInstance("messaging.cluster.client2.properties");
+		final MessageFactory factory2 = client2.createMessageFactory();
+		client2.setServiceListener("pongService", new ServiceListener() {
+			public void processMessage(Message message) {
+				try {
+					client2.send(factory2.createTextMessageReply("pong", message));
+				} catch (MessengerException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		client2.start();
+	}
+
+	@After
+	public void tearDown() {
+		client1.stop();
+		client2.stop();
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i].stop();
+		}
+	}
+
+	@Test
+	public void test_message_routed_to_client_connected_to_other_node() throws Exception {
+		awaitRouted("clusterClient2", 2, 3);
+		Assert.assertEquals("pong", ping());
+	}
+
+	@Test
+	public void test_client_fails_over_to_other_node() throws Exception {
+		awaitRouted("clusterClient2", 2, 3);
+		nodes[2].stop();
+		awaitRouted("clusterClient2", 1, 2);
+		Assert.assertEquals("pong", ping());
+	}
+
+	private String ping() throws Exception {
+		Message ping = client1.createMessageFactory().createTextMessage("pingService", "pongService", "ping", 5000L);
+		ping.setTargetClientId("clusterClient2");
+		return ((TextMessage) client1.sendAndReceive(ping)).getText();
+	}
+
+	/**
+	 * Waits until the running nodes agree on the ring and the owner of the client knows the node it's connected to.
+	 */
+	private void awaitRouted(String clientId, int node, int members) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (System.currentTimeMillis() < deadline) {
+			if (isRouted(clientId, node, members)) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+		Assert.fail("Client '" + clientId + "' not routed to node " + (node + 1));
+	}
+
+	private boolean isRouted(String clientId, int node, int members) {
+		String nodeId = nodes[node].getConfiguration().getServerId();
+		if (nodes[node].getServerSession().getSession(clientId) == null) {
+			return false;
+		}
+		String owner = null;
+		for (int i = 0; i < members; i++) {
+			ServerCluster cluster = nodes[i].getCluster();
+			if ((cluster == null) || (cluster.getRing().getNodes().size() != members)) {
+				return false;
+			}
+			owner = cluster.getRing().getNode(clientId);
+		}
+		for (int i = 0; i < members; i++) {
+			if (nodes[i].getConfiguration().getServerId().equals(owner)) {
+				return owner.equals(nodeId) || nodeId.equals(nodes[i].getCluster().getLocation(clientId));
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,193 @@
+package org.andresoviedo.util.messaging.api1.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.andresoviedo.util.messaging.api1.MessengerProperties;
+import org.andresoviedo.util.messaging.api1.common.data.BinaryMessageCodec;
+import org.andresoviedo.util.messaging.api1.common.data.Command;
+import org.andresoviedo.util.messaging.api1.common.data.Message;
+import org.andresoviedo.util.messaging.api1.common.data.MessageFactory;
+import org.andresoviedo.util.messaging.api1.common.data.TextMessage;
+import org.andresoviedo.util.messaging.api1.common.net.SharedFrame;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSession;
+import org.andresoviedo.util.messaging.api1.common.net.SocketSessionController;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicRegistryTest {
+
+	private File directory;
+
+	private TopicRegistry registry;
+
+	private MessageFactory factory;
+
+	@Before
+	public void setUp() {
+		directory = new File("target/topics-test/" + System.nanoTime());
+		registry = new TopicRegistry(directory);
+		registry.setMaxBacklog(2);
+		factory = MessageFactory.getInstance("server");
+	}
+
+	@After
+	public void tearDown() {
+		registry.close();
+		delete(directory);
+	}
+
+	@Test
+	public void test_published_messages_are_encoded_once() throws Exception {
+		FakeSession a = new FakeSession("a", true);
+		FakeSession b = new FakeSession("b", true);
+		FakeSession c = new FakeSession("c", false);
+		FakeSession other = new FakeSession("other", true);
+		registry.subscribe(a, "a", "prices");
+		registry.subscribe(b, "b", "prices");
+		registry.subscribe(c, "c", "prices");
+		registry.subscribe(other, "other", "news");
+
+		Assert.assertEquals(3, registry.publish("prices", factory.createTextMessage("quotes", "1.5")));
+		Assert.assertEquals(1, a.sent.size());
+		Assert.assertTrue(a.sent.get(0) instanceof SharedFrame);
+		Assert.assertSame(a.sent.get(0), b.sent.get(0));
+		// Sessions without a codec are sent the message itself.
+		Assert.assertTrue(c.sent.get(0) instanceof TextMessage);
+		Assert.assertTrue(other.sent.isEmpty());
+
+		registry.unsubscribe(b, "prices");
+		registry.remove(c);
+		Assert.assertEquals(1, registry.publish("prices", factory.createTextMessage("quotes", "1.6")));
+		Assert.assertEquals(1, b.sent.size());
+		Assert.assertEquals("[a]", registry.getSubscribers("prices").toString());
+	}
+
+	@Test
+	public void test_shared_frames_leave_the_message_unchanged() throws Exception {
+		Message message = factory.createTextMessage("quotes", "1.5");
+		message.setSequence(7);
+		SharedFrame frame = SharedFrame.encode(new BinaryMessageCodec(), message);
+		Assert.assertEquals(7, message.getSequence());
+		Assert.assertEquals(0, ((Message) frame.getCommand()).getSequence());
+		Assert.assertEquals(message.getMessageId(), ((Message) frame.getCommand()).getMessageId());
+		Assert.assertEquals("1.5", ((TextMessage) frame.getCommand()).getText());
+	}
+
+	@Test
+	public void test_slow_subscriber_drop_oldest_and_disconnect() throws Exception {
+		FakeSession session = new FakeSession("a", true);
+		registry.subscribe(session, "a", "prices");
+		session.pending = 2;
+
+		registry.publish("prices", factory.createTextMessage("quotes", "1.5"));
+		Assert.assertEquals(1, session.drops);
+		Assert.assertEquals(1, session.sent.size());
+		Assert.assertEquals(1, registry.getDropped());
+
+		registry.setSlowSubscriberPolicy(MessengerProperties.SLOW_SUBSCRIBER_DISCONNECT);
+		Assert.assertEquals(0, registry.publish("prices", factory.createTextMessage("quotes", "1.6")));
+		Assert.assertTrue(session.closed);
+		Assert.assertEquals(1, registry.getDisconnected());
+	}
+
+	@Test
+	public void test_slow_subscriber_spill_is_sent_in_order() throws Exception {
+		registry.setSlowSubscriberPolicy(MessengerProperties.SLOW_SUBSCRIBER_SPILL);
+		FakeSession session = new FakeSession("a", false);
+		registry.subscribe(session, "a", "prices");
+		session.pending = 2;
+		for (int i = 0; i < 5; i++) {
+			registry.publish("prices", factory.createTextMessage("quotes", "" + i, 0));
+		}
+		// Messages expiring immediately aren't spilled.
+		registry.publish("prices", factory.createTextMessage("quotes", "expired"));
+		Assert.assertTrue(session.sent.isEmpty());
+		Assert.assertEquals(5, registry.getSpilled());
+		Assert.assertEquals(1, registry.getDropped());
+
+		// Once the subscriber catches up the spilled messages are sent before the new ones.
+		session.pending = 0;
+		registry.publish("prices", factory.createTextMessage("quotes", "5", 0));
+		Assert.assertEquals(2, session.sent.size());
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((session.sent.size() < 6) && (System.currentTimeMillis() < deadline)) {
+			synchronized (session) {
+				session.pending = 0;
+			}
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(6, session.sent.size());
+		for (int i = 0; i < 6; i++) {
+			Assert.assertEquals("" + i, ((TextMessage) session.sent.get(i)).getText());
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static class FakeSession extends SocketSession {
+
+		private final List<Object> sent = new ArrayList<Object>();
+
+		private int pending;
+
+		private int drops;
+
+		private boolean closed;
+
+		private FakeSession(String clientId, boolean codec) {
+			super(clientId, new SocketSessionController() {
+				public void sessionOpened(SocketSession session) {
+				}
+
+				public void sessionClosed(SocketSession session, boolean forced) {
+				}
+
+				public void commandSent(SocketSession session, Command command) {
+				}
+
+				public void commandReceived(SocketSession session, Command command) {
+				}
+			});
+			if (codec) {
+				setCodec(new BinaryMessageCodec());
+			}
+		}
+
+		public synchronized void send(Command command) {
+			sent.add(command);
+			pending++;
+		}
+
+		public synchronized void send(SharedFrame frame) {
+			sent.add(frame);
+			pending++;
+		}
+
+		public synchronized int getPendingCommands() {
+			return pending;
+		}
+
+		public synchronized boolean dropOldestFrame() {
+			drops++;
+			return true;
+		}
+
+		public synchronized void close() {
+			closed = true;
+		}
+
+	}
+
+}
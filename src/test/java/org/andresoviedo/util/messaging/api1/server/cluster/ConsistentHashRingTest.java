@@ -0,0 +1,47 @@
+package org.andresoviedo.util.messaging.api1.server.cluster;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+	@Test
+	public void test_keys_spread_over_nodes() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 30000; i++) {
+			String node = ring.getNode("client" + i);
+			Integer count = counts.get(node);
+			counts.put(node, (count != null) ? count + 1 : 1);
+		}
+		Assert.assertEquals(3, counts.size());
+		for (Integer count : counts.values()) {
+			Assert.assertTrue(counts.toString(), (count > 7500) && (count < 12500));
+		}
+		// The same on every node.
+		ConsistentHashRing other = new ConsistentHashRing(Arrays.asList("node3", "node1", "node2"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		Assert.assertEquals(ring.getNode("client1"), other.getNode("client1"));
+		Assert.assertNull(new ConsistentHashRing(Arrays.<String> asList(), 1).getNode("client1"));
+	}
+
+	@Test
+	public void test_only_keys_of_the_new_node_move() {
+		ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"),
+				ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		int moved = 0;
+		for (int i = 0; i < 10000; i++) {
+			String key = "client" + i;
+			if (!before.getNode(key).equals(after.getNode(key))) {
+				Assert.assertEquals("node4", after.getNode(key));
+				moved++;
+			}
+		}
+		Assert.assertTrue(String.valueOf(moved), (moved > 1500) && (moved < 3500));
+	}
+
+}
@@ -0,0 +1,61 @@
+package org.andresoviedo.util.metrics;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void test_buckets_cover_values_within_precision() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (23 + random.nextInt(40));
+			long highest = LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(value));
+			Assert.assertTrue(value + " > " + highest, value <= highest);
+			Assert.assertTrue(value + " far from " + highest, (highest - value) <= Math.max(1, value / 32));
+		}
+		Assert.assertEquals(31, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(31)));
+	}
+
+	@Test
+	public void test_percentiles_with_concurrent_recorders() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final CountDownLatch done = new CountDownLatch(4);
+		for (int t = 0; t < 4; t++) {
+			new Thread() {
+				public void run() {
+					for (int i = 1; i <= 10000; i++) {
+						histogram.record(i);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(40000, snapshot.getCount());
+		Assert.assertEquals(5000.5, snapshot.getMean(), 0.001);
+		Assert.assertEquals(10000, snapshot.getMax());
+		Assert.assertEquals(5000, snapshot.getMedian(), 5000 / 32);
+		Assert.assertEquals(9900, snapshot.get99thPercentile(), 9900 / 32);
+
+		histogram.reset();
+		Assert.assertEquals(0, histogram.snapshot().getCount());
+		Assert.assertEquals(0, histogram.snapshot().get999thPercentile());
+	}
+
+	@Test
+	public void test_meter_counts_and_rate() throws Exception {
+		Meter meter = new Meter();
+		meter.mark();
+		meter.mark(99);
+		Assert.assertEquals(100, meter.getCount());
+		// The current second isn't part of the rate until it's complete.
+		Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+		Assert.assertEquals(10.0, meter.getRate(), 0.001);
+	}
+
+}
@@ -1,8 +1,17 @@
 package org.andresoviedo.util.pool;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -119,6 +128,31 @@ public class ResourcePoolTest {
 		Assert.assertEquals(user, user2);
 	}
 	
+	@Test
+	public void test_putBack_duplicated_and_mutable_resources() {
+		ResourcePool<String> users = new ResourcePool<String>(Arrays.asList("u", "u"));
+		String first = users.get();
+		String second = users.get();
+		users.putBack(first);
+		users.putBack(second);
+		Assert.assertEquals(2, users.size());
+		// An equal copy is accepted too
+		users.putBack(new String(users.get()));
+		try {
+			users.putBack("u");
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			// both are already returned
+		}
+
+		List<String> list = new ArrayList<String>();
+		ResourcePool<List<String>> lists = new ResourcePool<List<String>>(Collections.singletonList(list));
+		List<String> lent = lists.get();
+		lent.add("hash changed");
+		lists.putBack(lent);
+		Assert.assertSame(list, lists.get());
+	}
+
 	@Test
 	public void test_poolOrder(){
 		ResourcePool<Integer> testUserPool = new ResourcePool<Integer>(Arrays.asList(1,2,3,4,5));
@@ -137,4 +171,175 @@ public class ResourcePoolTest {
 		
 	}
 
+	@Test
+	public void test_elasticPool_lazy_creation_and_affinity() throws Exception {
+		CountingFactory factory = new CountingFactory();
+		ResourcePool<Integer> pool = new ResourcePool<Integer>(factory, 0, 2);
+		pool.setMaintenanceInterval(0);
+		Assert.assertEquals(0, pool.getTotalSize());
+		Integer first;
+		try (Lease<Integer> lease = pool.borrow()) {
+			first = lease.get();
+			Assert.assertEquals(1, pool.getActiveCount());
+			Assert.assertEquals(0.5, pool.getUtilization(), 0.001);
+		}
+		Assert.assertEquals(0, pool.getActiveCount());
+		// the thread gets back the resource it returned
+		try (Lease<Integer> lease = pool.borrow()) {
+			Assert.assertEquals(first, lease.get());
+			try (Lease<Integer> second = pool.borrow()) {
+				Assert.assertEquals(2, pool.getTotalSize());
+				try {
+					pool.borrow(100, TimeUnit.MILLISECONDS);
+					Assert.fail("The pool is full");
+				} catch (org.andresoviedo.util.pool.TimeoutException ex) {
+				}
+			}
+		}
+		Assert.assertEquals(2, factory.created.get());
+		Assert.assertEquals(1, pool.getTimeoutCount());
+		Assert.assertEquals(4, pool.getWaitTime().getCount());
+		pool.close();
+		Assert.assertEquals(2, factory.destroyed.get());
+	}
+
+	@Test
+	public void test_elasticPool_validation_and_eviction() throws Exception {
+		CountingFactory factory = new CountingFactory();
+		ResourcePool<Integer> pool = new ResourcePool<Integer>(factory, 1, 3);
+		pool.setMaintenanceInterval(0);
+		pool.setTestOnBorrow(true);
+		pool.maintain();
+		Assert.assertEquals(1, pool.getTotalSize());
+
+		// an invalid resource is replaced on borrow
+		factory.invalid.add(1);
+		try (Lease<Integer> lease = pool.borrow()) {
+			Assert.assertEquals(2, lease.get().intValue());
+			Assert.assertEquals(1, pool.getValidationFailureCount());
+			try (Lease<Integer> other = pool.borrow()) {
+				other.invalidate();
+			}
+		}
+		Assert.assertEquals(1, pool.getTotalSize());
+		Assert.assertEquals(2, factory.destroyed.get());
+
+		// idle resources beyond the minimum are evicted
+		pool.setIdleTimeout(1);
+		Lease<Integer> a = pool.borrow();
+		Lease<Integer> b = pool.borrow();
+		a.close();
+		b.close();
+		Assert.assertEquals(2, pool.getTotalSize());
+		Thread.sleep(10);
+		pool.maintain();
+		Assert.assertEquals(1, pool.getTotalSize());
+		pool.close();
+	}
+
+	@Test
+	public void test_elasticPool_concurrent_borrowers() throws Exception {
+		final CountingFactory factory = new CountingFactory();
+		final ResourcePool<Integer> pool = new ResourcePool<Integer>(factory, 0, 4);
+		pool.setMaintenanceInterval(0);
+		final Set<Integer> inUse = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(16);
+		for (int i = 0; i < 16; i++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 2000; j++) {
+							try (Lease<Integer> lease = pool.borrow()) {
+								if (!inUse.add(lease.get())) {
+									errors.incrementAndGet();
+								}
+								inUse.remove(lease.get());
+							}
+						}
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(0, errors.get());
+		Assert.assertTrue(pool.getTotalSize() <= 4);
+		Assert.assertEquals(pool.getTotalSize(), pool.size());
+		Assert.assertEquals(0, pool.getActiveCount());
+		Assert.assertEquals(0, pool.getWaitingCount());
+		pool.close();
+	}
+
+	@Test
+	public void test_borrowAsync_fifo_timeout_and_cancel() throws Exception {
+		ResourcePool<String> pool = new ResourcePool<String>(Arrays.asList("user1"));
+		Assert.assertEquals("user1", pool.borrowAsync().get());
+		CompletableFuture<String> first = pool.borrowAsync(5, TimeUnit.SECONDS);
+		CompletableFuture<String> cancelled = pool.borrowAsync(5, TimeUnit.SECONDS);
+		CompletableFuture<String> second = pool.borrowAsync(5, TimeUnit.SECONDS);
+		CompletableFuture<String> expired = pool.borrowAsync(100, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(4, pool.getWaitingCount());
+		try {
+			expired.get();
+			Assert.fail("The borrow should have timed out");
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof org.andresoviedo.util.pool.TimeoutException);
+		}
+		Assert.assertTrue(cancelled.cancel(false));
+		Assert.assertEquals(2, pool.getWaitingCount());
+
+		pool.putBack("user1");
+		Assert.assertEquals("user1", first.getNow(null));
+		Assert.assertFalse(second.isDone());
+		pool.putBack("user1");
+		Assert.assertEquals("user1", second.getNow(null));
+		Assert.assertEquals(0, pool.getWaitingCount());
+		Assert.assertEquals(1, pool.getTimeoutCount());
+	}
+
+	@Test
+	public void test_borrowAsync_fair_by_key() throws Exception {
+		ResourcePool<String> pool = new ResourcePool<String>(Arrays.asList("user1"));
+		pool.setFairByKey(true);
+		String resource = pool.get();
+		List<CompletableFuture<String>> noisy = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 10; i++) {
+			noisy.add(pool.borrowAsync("noisy", 5, TimeUnit.SECONDS));
+		}
+		CompletableFuture<String> quiet = pool.borrowAsync("quiet", 5, TimeUnit.SECONDS);
+		pool.putBack(resource);
+		Assert.assertTrue(noisy.get(0).isDone());
+		pool.putBack(resource);
+		// the quiet caller is served before the rest of the noisy one
+		Assert.assertTrue(quiet.isDone());
+		Assert.assertFalse(noisy.get(1).isDone());
+		pool.putBack(resource);
+		Assert.assertTrue(noisy.get(1).isDone());
+	}
+
+	private static class CountingFactory implements ResourceFactory<Integer> {
+
+		final AtomicInteger created = new AtomicInteger();
+
+		final AtomicInteger destroyed = new AtomicInteger();
+
+		final Set<Integer> invalid = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+		public Integer create() {
+			return created.incrementAndGet();
+		}
+
+		public boolean validate(Integer resource) {
+			return !invalid.contains(resource);
+		}
+
+		public void destroy(Integer resource) {
+			destroyed.incrementAndGet();
+		}
+	}
+
 }